@@ -0,0 +1,78 @@
+package org.amoudi.trace.benchmarks;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.amoudi.trace.EventDecoder;
+import org.amoudi.trace.TraceEvent;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Decoding lines that are already in memory: the readTree and findValue path the tools started with, against
+// EventDecoder asked for the fields the analyzers use
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DecodeBenchmark {
+
+    @Param("100000")
+    public int events;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private byte[][] lines;
+    private long bytes;
+    private EventDecoder decoder;
+    private TraceEvent event;
+
+    @Setup
+    public void setUp() throws IOException {
+        File dir = Files.createTempDirectory("decode-benchmark").toFile();
+        try {
+            List<byte[]> read = Traces.lines(Traces.multiThread(dir, events, 2, 8, 42).file);
+            lines = read.toArray(new byte[0][]);
+            for (byte[] line : lines) {
+                bytes += line.length + 2;
+            }
+        } finally {
+            Traces.delete(dir);
+        }
+        decoder = new EventDecoder().require(TraceEvent.PID | TraceEvent.TID | TraceEvent.TIMESTAMP
+                | TraceEvent.PHASE | TraceEvent.NAME | TraceEvent.ARGS_SIZE);
+        event = decoder.newEvent();
+    }
+
+    @Benchmark
+    public void readTree(Throughput throughput, Blackhole blackhole) throws IOException {
+        for (byte[] line : lines) {
+            JsonNode node = mapper.readTree(line);
+            blackhole.consume(node.findValue("pid").asText());
+            blackhole.consume(node.findValue("tid").asLong());
+            blackhole.consume(node.findValue("ts").asLong());
+            blackhole.consume(node.findValue("ph").asText());
+            blackhole.consume(node.findValue("name").asText());
+            JsonNode size = node.findValue("size");
+            blackhole.consume(size == null ? 0 : size.asLong());
+        }
+        throughput.add(lines.length, bytes);
+    }
+
+    @Benchmark
+    public void eventDecoder(Throughput throughput, Blackhole blackhole) {
+        for (byte[] line : lines) {
+            decoder.decode(line, 0, line.length, event);
+            blackhole.consume(event.tid());
+            blackhole.consume(event.timestamp());
+            blackhole.consume(event.phase());
+            blackhole.consume(event.size());
+        }
+        throughput.add(lines.length, bytes);
+    }
+}
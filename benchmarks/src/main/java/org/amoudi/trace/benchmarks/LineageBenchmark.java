@@ -0,0 +1,39 @@
+package org.amoudi.trace.benchmarks;
+
+import org.amoudi.trace.LineageComputer;
+import org.amoudi.trace.TreeHeightComputer;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+
+// The lineage of an index, and the tree heights computed from the lineage it wrote
+public class LineageBenchmark extends ToolBenchmark {
+
+    @Param("200000")
+    public int flushes;
+
+    private Traces.Trace trace;
+    private File lineage;
+
+    @Override
+    protected void generate() throws Exception {
+        trace = Traces.lineage(dir, flushes, 42);
+        lineage = LineageComputer.compute(trace.file.getPath());
+    }
+
+    @Benchmark
+    public File lineage(Throughput throughput) throws Exception {
+        File output = LineageComputer.compute(trace.file.getPath());
+        throughput.add(trace);
+        return output;
+    }
+
+    @Benchmark
+    public double treeHeight(Throughput throughput) throws Exception {
+        double height = TreeHeightComputer.compute(lineage.getPath());
+        // One lineage record per operation, which is two events of the trace
+        throughput.add(trace.events / 2, lineage.length());
+        return height;
+    }
+}
@@ -0,0 +1,42 @@
+package org.amoudi.trace.benchmarks;
+
+import org.amoudi.trace.ThreadExtractor;
+import org.apache.commons.lang3.tuple.Pair;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+// Extracts 1, 10 or 100 of the 128 threads of a trace into a single file, by scanning the trace
+public class ThreadExtractorBenchmark extends ToolBenchmark {
+
+    private static final int PROCESSES = 4;
+    private static final int THREADS = 128;
+
+    @Param("1000000")
+    public int events;
+
+    @Param({"1", "10", "100"})
+    public int threads;
+
+    private Traces.Trace trace;
+    private final List<Pair<String, Long>> selected = new ArrayList<>();
+
+    @Override
+    protected void generate() throws IOException {
+        trace = Traces.multiThread(dir, events, PROCESSES, THREADS, 42);
+        // Threads are numbered like Traces does, so every selected one has events
+        for (int thread = 0; thread < threads; thread++) {
+            selected.add(Pair.of("nc" + (thread % PROCESSES + 1), (long) (thread / PROCESSES + 11)));
+        }
+    }
+
+    @Benchmark
+    public File extract(Throughput throughput) throws Exception {
+        File output = ThreadExtractor.extract(trace.file.getPath(), selected, "extracted", false);
+        throughput.add(trace);
+        return output;
+    }
+}
@@ -0,0 +1,32 @@
+package org.amoudi.trace.benchmarks;
+
+import org.amoudi.trace.ThreadFinder;
+import org.apache.commons.lang3.tuple.Pair;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+public class ThreadFinderBenchmark extends ToolBenchmark {
+
+    @Param("1000000")
+    public int events;
+
+    private Traces.Trace trace;
+    private Map<String, List<String>> predicates;
+
+    @Override
+    protected void generate() throws IOException {
+        trace = Traces.multiThread(dir, events, 4, 32, 42);
+        predicates = Collections.singletonMap("name", Collections.singletonList(Traces.INGESTION));
+    }
+
+    @Benchmark
+    public List<Pair<String, Long>> find(Throughput throughput) throws Exception {
+        List<Pair<String, Long>> threads = ThreadFinder.find(trace.file.getPath(), predicates);
+        throughput.add(trace);
+        return threads;
+    }
+}
@@ -0,0 +1,30 @@
+package org.amoudi.trace.benchmarks;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+// Counts what every benchmark invocation went through, so JMH reports events/s and MB/s next to ops/s
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.OPERATIONS)
+public class Throughput {
+    public long events;
+    public double megabytes;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+        events = 0;
+        megabytes = 0;
+    }
+
+    void add(Traces.Trace trace) {
+        add(trace.events, trace.bytes);
+    }
+
+    void add(long events, long bytes) {
+        this.events += events;
+        this.megabytes += bytes / 1e6;
+    }
+}
@@ -0,0 +1,38 @@
+package org.amoudi.trace.benchmarks;
+
+import org.amoudi.trace.TimeBreaker;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.Writer;
+
+public class TimeBreakerBenchmark extends ToolBenchmark {
+
+    @Param("1000000")
+    public int events;
+
+    private Traces.Trace trace;
+
+    @Override
+    protected void generate() throws IOException {
+        trace = Traces.singleThread(dir, events, 42);
+    }
+
+    @Benchmark
+    public void breakdown(Throughput throughput) throws Exception {
+        TimeBreaker.breakdown(trace.file, new Writer() {
+            @Override
+            public void write(char[] buffer, int offset, int length) {
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        });
+        throughput.add(trace);
+    }
+}
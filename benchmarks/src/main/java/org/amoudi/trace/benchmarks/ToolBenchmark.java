@@ -0,0 +1,47 @@
+package org.amoudi.trace.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+// Runs a tool end to end on traces that generate writes to a temporary directory. The tools report on System.out,
+// which is silenced while they run so the console only shows JMH's results.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public abstract class ToolBenchmark {
+
+    protected File dir;
+    private PrintStream out;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("trace-benchmark").toFile();
+        out = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        }));
+        generate();
+    }
+
+    protected abstract void generate() throws Exception;
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        System.setOut(out);
+        Traces.delete(dir);
+    }
+}
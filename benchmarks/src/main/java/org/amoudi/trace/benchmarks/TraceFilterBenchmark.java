@@ -0,0 +1,44 @@
+package org.amoudi.trace.benchmarks;
+
+import org.amoudi.trace.TraceFilter;
+import org.apache.commons.lang3.tuple.Pair;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+// Filters on the name with one pattern that matches the storage spans and many that match nothing, half of them
+// contains and half exact matches
+public class TraceFilterBenchmark extends ToolBenchmark {
+
+    @Param("1000000")
+    public int events;
+
+    @Param({"1", "100", "1000"})
+    public int patterns;
+
+    private Traces.Trace trace;
+    private Map<String, List<Pair<Character, String>>> predicates;
+
+    @Override
+    protected void generate() throws IOException {
+        trace = Traces.multiThread(dir, events, 4, 32, 42);
+        List<Pair<Character, String>> values = new ArrayList<>();
+        values.add(Pair.of('c', "Store"));
+        for (int i = 1; i < patterns; i++) {
+            values.add(Pair.of(i % 2 == 0 ? 'c' : 'e', "Missing-Span-" + i));
+        }
+        predicates = Collections.singletonMap("name", values);
+    }
+
+    @Benchmark
+    public File filter(Throughput throughput) throws Exception {
+        File output = TraceFilter.filter(trace.file.getPath(), predicates);
+        throughput.add(trace);
+        return output;
+    }
+}
@@ -0,0 +1,178 @@
+package org.amoudi.trace.benchmarks;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+// Writes deterministic traces for the benchmarks. Every thread nests spans a few levels deep and sprinkles instant
+// events in between, the first thread of every process is an ingestion thread and the second a storage thread, like
+// in the traces of a cluster. The same seed always gives the same file.
+final class Traces {
+
+    static final String INGESTION = "Write-Network-Ingestion-To-Store";
+    static final String STORAGE = "Ingestion-Store";
+    private static final long START = 1508281686570000L;
+    private static final String[] NAMES = {"a", "b", "c", "d", "e", "f", "g", "h"};
+    private static final int MAX_DEPTH = 4;
+    private static final DateTimeFormatter FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd-HH-mm-ss-SSS");
+
+    private Traces() {
+    }
+
+    // Events of threads threads spread over processes processes, interleaved at random
+    static Trace multiThread(File dir, int events, int processes, int threads, long seed) throws IOException {
+        File file = new File(dir, "multi-" + events + "-" + processes + "-" + threads + ".json");
+        Random random = new Random(seed);
+        List<Deque> stacks = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            stacks.add(new Deque());
+        }
+        try (Writer out = writer(file)) {
+            out.write("[\n");
+            long ts = START;
+            for (int i = 0; i < events; i++) {
+                int thread = random.nextInt(threads);
+                ts += 1 + random.nextInt(50);
+                String pid = "nc" + (thread % processes + 1);
+                int tid = thread / processes + 11;
+                writeEvent(out, random, stacks.get(thread), pid, tid, ts, firstName(thread / processes));
+            }
+        }
+        return new Trace(file, events + 1);
+    }
+
+    // Events of a single thread, the input of TimeBreaker
+    static Trace singleThread(File dir, int events, long seed) throws IOException {
+        File file = new File(dir, "single-" + events + ".json");
+        Random random = new Random(seed);
+        Deque stack = new Deque();
+        try (Writer out = writer(file)) {
+            out.write("[\n");
+            long ts = START;
+            for (int i = 0; i < events; i++) {
+                ts += 1 + random.nextInt(50);
+                writeEvent(out, random, stack, "nc1", 11, ts, INGESTION);
+            }
+        }
+        return new Trace(file, events + 1);
+    }
+
+    // Flushes of a single index, every 4 flushes are merged and every 4 of those merges are merged again, the input
+    // of LineageComputer
+    static Trace lineage(File dir, int flushes, long seed) throws IOException {
+        File file = new File(dir, "lineage-" + flushes + ".json");
+        Random random = new Random(seed);
+        LocalDateTime base = LocalDateTime.of(2017, 10, 17, 23, 8, 6, 570_000_000);
+        long events = 1;
+        try (Writer out = writer(file)) {
+            out.write("[\n");
+            long ts = START;
+            for (int i = 0; i < flushes; i++) {
+                String date = base.plusNanos(i * 1_000_000L).format(FORMATTER);
+                ts = writeOperation(out, random, "flush", date, date, ts);
+                events += 2;
+                for (int width = 4; width <= 16; width *= 4) {
+                    if ((i + 1) % width == 0) {
+                        String oldest = base.plusNanos((i + 1 - width) * 1_000_000L).format(FORMATTER);
+                        ts = writeOperation(out, random, "merge", date, oldest, ts);
+                        events += 2;
+                    }
+                }
+            }
+        }
+        return new Trace(file, events);
+    }
+
+    private static long writeOperation(Writer out, Random random, String category, String newest, String oldest,
+            long ts) throws IOException {
+        String name = "idx0/" + newest + "_" + oldest + "_b";
+        ts += 1 + random.nextInt(50);
+        out.write("{\"name\":\"" + name + "\",\"cat\":\"" + category + "\",\"ph\":\"B\",\"pid\":\"nc1\",\"tid\":5,"
+                + "\"ts\":" + ts + ",\"args\":{}},\n");
+        ts += 1 + random.nextInt(500);
+        out.write("{\"name\":\"" + name + "\",\"cat\":\"" + category + "\",\"ph\":\"E\",\"pid\":\"nc1\",\"tid\":5,"
+                + "\"ts\":" + ts + ",\"args\":{\"size\":" + random.nextInt(1 << 20) + "}},\n");
+        return ts;
+    }
+
+    private static String firstName(int thread) {
+        return thread == 0 ? INGESTION : thread == 1 ? STORAGE : "Other";
+    }
+
+    private static void writeEvent(Writer out, Random random, Deque stack, String pid, int tid, long ts,
+            String threadName) throws IOException {
+        double r = random.nextDouble();
+        if (stack.size > 0 && (r < 0.4 || stack.size >= MAX_DEPTH)) {
+            out.write("{\"name\":\"" + stack.pop() + "\",\"cat\":\"c\",\"ph\":\"E\",\"pid\":\"" + pid
+                    + "\",\"tid\":" + tid + ",\"ts\":" + ts + ",\"args\":{\"size\":" + random.nextInt(1000) + "}},\n");
+        } else if (r < 0.85) {
+            String name = stack.size == 0 && random.nextBoolean() ? threadName : NAMES[random.nextInt(NAMES.length)];
+            stack.push(name);
+            out.write("{\"name\":\"" + name + "\",\"cat\":\"c\",\"ph\":\"B\",\"pid\":\"" + pid + "\",\"tid\":" + tid
+                    + ",\"ts\":" + ts + ",\"args\":{}},\n");
+        } else {
+            out.write("{\"name\":\"inst" + random.nextInt(3) + "\",\"cat\":\"c\",\"ph\":\"i\",\"pid\":\"" + pid
+                    + "\",\"tid\":" + tid + ",\"ts\":" + ts + ",\"args\":{\"count\":" + (1 + random.nextInt(9))
+                    + ",\"avg-duration-ns\":" + (100 + random.nextInt(9000)) + "}},\n");
+        }
+    }
+
+    private static Writer writer(File file) throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8),
+                1 << 16);
+    }
+
+    // Reads the lines of a trace, the input of the decode benchmarks
+    static List<byte[]> lines(File file) throws IOException {
+        List<byte[]> lines = new ArrayList<>();
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file),
+                StandardCharsets.UTF_8))) {
+            for (String line; (line = in.readLine()) != null;) {
+                if (line.startsWith("{")) {
+                    lines.add(line.substring(0, line.lastIndexOf('}') + 1).getBytes(StandardCharsets.UTF_8));
+                }
+            }
+        }
+        return lines;
+    }
+
+    static void delete(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                delete(file);
+            }
+        }
+        dir.delete();
+    }
+
+    static final class Trace {
+        final File file;
+        // Lines, including the opening one
+        final long events;
+        final long bytes;
+
+        private Trace(File file, long events) {
+            this.file = file;
+            this.events = events;
+            this.bytes = file.length();
+        }
+    }
+
+    private static final class Deque {
+        private String[] names = new String[MAX_DEPTH];
+        private int size = 0;
+
+        private void push(String name) {
+            names[size++] = name;
+        }
+
+        private String pop() {
+            return names[--size];
+        }
+    }
+}
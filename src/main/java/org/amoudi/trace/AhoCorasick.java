@@ -0,0 +1,80 @@
+package org.amoudi.trace;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+
+// Byte level Aho-Corasick automaton that tells whether a text contains any of a set of patterns. The failure links
+// are folded into a full transition table, so matching is one table lookup per byte however many patterns there are.
+class AhoCorasick {
+
+    private static final int ALPHABET = 256;
+
+    // Next state of every (state, byte), state s owns [s * ALPHABET, (s + 1) * ALPHABET)
+    private final int[] next;
+    // True if a pattern ends at the state or at one of its suffixes
+    private final boolean[] accepting;
+
+    AhoCorasick(List<byte[]> patterns) {
+        int maxStates = 1;
+        for (byte[] pattern : patterns) {
+            maxStates += pattern.length;
+        }
+        int[] trie = new int[maxStates * ALPHABET];
+        Arrays.fill(trie, -1);
+        boolean[] ends = new boolean[maxStates];
+        int states = 1;
+        for (byte[] pattern : patterns) {
+            int state = 0;
+            for (byte b : pattern) {
+                int transition = state * ALPHABET + (b & 0xFF);
+                if (trie[transition] < 0) {
+                    trie[transition] = states++;
+                }
+                state = trie[transition];
+            }
+            ends[state] = true;
+        }
+        next = Arrays.copyOf(trie, states * ALPHABET);
+        accepting = Arrays.copyOf(ends, states);
+        // Breadth first, so the failure state of every state is complete before its children are visited
+        int[] fail = new int[states];
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        for (int c = 0; c < ALPHABET; c++) {
+            if (next[c] < 0) {
+                next[c] = 0;
+            } else {
+                fail[next[c]] = 0;
+                queue.add(next[c]);
+            }
+        }
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            accepting[state] |= accepting[fail[state]];
+            for (int c = 0; c < ALPHABET; c++) {
+                int transition = state * ALPHABET + c;
+                int child = next[transition];
+                if (child < 0) {
+                    next[transition] = next[fail[state] * ALPHABET + c];
+                } else {
+                    fail[child] = next[fail[state] * ALPHABET + c];
+                    queue.add(child);
+                }
+            }
+        }
+    }
+
+    boolean matches(byte[] text, int from, int to) {
+        if (accepting[0]) {
+            return true;
+        }
+        int state = 0;
+        for (int i = from; i < to; i++) {
+            state = next[state * ALPHABET + (text[i] & 0xFF)];
+            if (accepting[state]) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,134 @@
+package org.amoudi.trace;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+// Writes gzip as a series of independent members of at most 64KB, each with the BGZF block size in its header.
+// Any gzip reader can read the result, and GzipTraceInputStream can inflate its blocks in parallel.
+class BgzfOutputStream extends FilterOutputStream {
+
+    private static final int BLOCK_INPUT = 0xFF00;
+    private static final int MAX_BLOCK = 1 << 16;
+    private static final int HEADER_LENGTH = 18;
+    private static final int TRAILER_LENGTH = 8;
+    // The empty block BGZF files end with
+    private static final byte[] EOF_BLOCK = {0x1F, (byte) 0x8B, 8, 4, 0, 0, 0, 0, 0, (byte) 0xFF, 6, 0, 'B', 'C', 2,
+            0, 0x1B, 0, 3, 0, 0, 0, 0, 0, 0, 0, 0, 0};
+
+    private final byte[] input = new byte[BLOCK_INPUT];
+    private final byte[] block = new byte[MAX_BLOCK];
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    private final CRC32 crc = new CRC32();
+    private int used = 0;
+    private boolean closed = false;
+
+    BgzfOutputStream(OutputStream out) {
+        super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (used == input.length) {
+            writeBlock();
+        }
+        input[used++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        while (length > 0) {
+            if (used == input.length) {
+                writeBlock();
+            }
+            int copied = Math.min(length, input.length - used);
+            System.arraycopy(bytes, offset, input, used, copied);
+            used += copied;
+            offset += copied;
+            length -= copied;
+        }
+    }
+
+    // Blocks are only written when full, so flushing doesn't fragment the output
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (used > 0) {
+                writeBlock();
+            }
+            out.write(EOF_BLOCK);
+        } finally {
+            deflater.end();
+            out.close();
+        }
+    }
+
+    private void writeBlock() throws IOException {
+        int compressed = deflate(deflater);
+        if (compressed < 0) {
+            // Incompressible input, stored blocks always fit
+            Deflater store = new Deflater(Deflater.NO_COMPRESSION, true);
+            try {
+                compressed = deflate(store);
+            } finally {
+                store.end();
+            }
+        }
+        int size = HEADER_LENGTH + compressed + TRAILER_LENGTH;
+        block[0] = 0x1F;
+        block[1] = (byte) 0x8B;
+        block[2] = 8;
+        block[3] = 4;
+        block[4] = block[5] = block[6] = block[7] = block[8] = 0;
+        block[9] = (byte) 0xFF;
+        block[10] = 6;
+        block[11] = 0;
+        block[12] = 'B';
+        block[13] = 'C';
+        block[14] = 2;
+        block[15] = 0;
+        block[16] = (byte) (size - 1);
+        block[17] = (byte) ((size - 1) >>> 8);
+        crc.reset();
+        crc.update(input, 0, used);
+        int trailer = HEADER_LENGTH + compressed;
+        writeInt(trailer, (int) crc.getValue());
+        writeInt(trailer + 4, used);
+        out.write(block, 0, size);
+        used = 0;
+    }
+
+    // Returns the compressed length, or -1 if it doesn't fit in a block
+    private int deflate(Deflater deflater) {
+        deflater.reset();
+        deflater.setInput(input, 0, used);
+        deflater.finish();
+        int limit = MAX_BLOCK - HEADER_LENGTH - TRAILER_LENGTH;
+        int compressed = 0;
+        while (!deflater.finished()) {
+            if (compressed == limit) {
+                return -1;
+            }
+            compressed += deflater.deflate(block, HEADER_LENGTH + compressed, limit - compressed);
+        }
+        return compressed;
+    }
+
+    private void writeInt(int position, int value) {
+        block[position] = (byte) value;
+        block[position + 1] = (byte) (value >>> 8);
+        block[position + 2] = (byte) (value >>> 16);
+        block[position + 3] = (byte) (value >>> 24);
+    }
+}
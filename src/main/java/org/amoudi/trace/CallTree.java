@@ -0,0 +1,233 @@
+package org.amoudi.trace;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Prefix tree of the call paths of spans, parent to child, with the count, inclusive and self time of every path in
+// primitive arrays indexed by node. Children are found through one map keyed by (parent, name id), so the memory is
+// one node per distinct path however many spans there are.
+// A tree can have several roots: a chunk of a trace that ends spans it never saw begin starts a new root after
+// every such end, and merge grafts each root onto the path that was open at that point in the preceding chunk. The
+// roots no chunk could claim are grafted onto root 0 by graftRoots, so every path is written once.
+public class CallTree implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final int INITIAL_CAPACITY = 16;
+    private static final int NO_NAME = -1;
+
+    private NameTable names = new NameTable();
+    private int[] parents = new int[INITIAL_CAPACITY];
+    private int[] nameIds = new int[INITIAL_CAPACITY];
+    private long[] counts = new long[INITIAL_CAPACITY];
+    private long[] totals = new long[INITIAL_CAPACITY];
+    private long[] selfs = new long[INITIAL_CAPACITY];
+    private int size = 0;
+    private LongIntMap children = new LongIntMap();
+
+    public CallTree() {
+        addRoot();
+    }
+
+    // A new root node, the first one is 0
+    public int addRoot() {
+        return add(-1, NO_NAME);
+    }
+
+    // Node of the path of parent followed by the name in a text field of the event, added if it wasn't seen yet
+    public int child(int parent, TraceEvent event, int slot) {
+        return child(parent, names.getOrAdd(event, slot));
+    }
+
+    public int child(int parent, String name) {
+        return child(parent, names.getOrAdd(name));
+    }
+
+    private int child(int parent, int name) {
+        long key = (long) parent << 32 | name;
+        int node = children.get(key);
+        if (node < 0) {
+            node = add(parent, name);
+            children.put(key, node);
+        }
+        return node;
+    }
+
+    private int add(int parent, int name) {
+        if (size == parents.length) {
+            int capacity = size * 2;
+            parents = Arrays.copyOf(parents, capacity);
+            nameIds = Arrays.copyOf(nameIds, capacity);
+            counts = Arrays.copyOf(counts, capacity);
+            totals = Arrays.copyOf(totals, capacity);
+            selfs = Arrays.copyOf(selfs, capacity);
+        }
+        parents[size] = parent;
+        nameIds[size] = name;
+        return size++;
+    }
+
+    // Records one span of the node's path
+    public void record(int node, long total, long self) {
+        counts[node]++;
+        totals[node] += total;
+        selfs[node] += self;
+    }
+
+    // Adds the paths of other to this tree, every root r of other onto the node targets[r], and returns the node
+    // every node of other became. A node is always added after its parent, so parents are mapped first.
+    public int[] merge(CallTree other, int[] targets) {
+        int[] mapped = new int[other.size];
+        for (int node = 0; node < other.size; node++) {
+            int parent = other.parents[node];
+            mapped[node] = parent < 0 ? targets[node]
+                    : child(mapped[parent], other.names.getName(other.nameIds[node]));
+            counts[mapped[node]] += other.counts[node];
+            totals[mapped[node]] += other.totals[node];
+            selfs[mapped[node]] += other.selfs[node];
+        }
+        return mapped;
+    }
+
+    // Moves the paths of every other root onto root 0, adding up the ones that are then the same path, and returns
+    // the node every node became
+    public int[] graftRoots() {
+        CallTree grafted = new CallTree();
+        int[] mapped = grafted.merge(this, new int[size]);
+        names = grafted.names;
+        parents = grafted.parents;
+        nameIds = grafted.nameIds;
+        counts = grafted.counts;
+        totals = grafted.totals;
+        selfs = grafted.selfs;
+        size = grafted.size;
+        children = grafted.children;
+        return mapped;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isRoot(int node) {
+        return parents[node] < 0;
+    }
+
+    public int getParent(int node) {
+        return parents[node];
+    }
+
+    // Name of the node's span, null for a root
+    public String getName(int node) {
+        return nameIds[node] == NO_NAME ? null : names.getName(nameIds[node]);
+    }
+
+    public long getCount(int node) {
+        return counts[node];
+    }
+
+    public long getTotal(int node) {
+        return totals[node];
+    }
+
+    public long getSelf(int node) {
+        return selfs[node];
+    }
+
+    // Names of the path from the root to the node
+    public List<String> getPath(int node) {
+        List<String> path = new ArrayList<>();
+        for (; parents[node] >= 0; node = parents[node]) {
+            path.add(getName(node));
+        }
+        Collections.reverse(path);
+        return path;
+    }
+
+    // Self time of every name, summed over all of its paths, by name
+    public Map<String, Long> getSelfByName() {
+        Map<String, Long> self = new HashMap<>();
+        for (int node = 0; node < size; node++) {
+            if (parents[node] >= 0) {
+                self.merge(getName(node), selfs[node], Long::sum);
+            }
+        }
+        return self;
+    }
+
+    // Writes every path that has spans, depth first and by name, one line each
+    public void write(Writer bw, long totalTime) throws IOException {
+        for (int node : depthFirst()) {
+            if (parents[node] >= 0 && counts[node] > 0) {
+                bw.write(String.join(";", getPath(node)) + " took: " + totals[node] + "us, self = " + selfs[node]
+                        + "us which is " + ((double) selfs[node] / (double) totalTime) + " of the whole time, count = "
+                        + counts[node] + "\n");
+            }
+        }
+    }
+
+    // Writes the self time of every path in the folded stack format of flame graph tools, "a;b;c <self us>"
+    public void writeFolded(Writer bw) throws IOException {
+        for (int node : depthFirst()) {
+            if (parents[node] >= 0 && selfs[node] > 0) {
+                StringBuilder line = new StringBuilder();
+                List<String> path = getPath(node);
+                for (int i = 0; i < path.size(); i++) {
+                    line.append(i == 0 ? "" : ";").append(frame(path.get(i)));
+                }
+                bw.write(line.append(' ').append(selfs[node]).append('\n').toString());
+            }
+        }
+    }
+
+    // Separators can't appear in a frame of a folded stack
+    private static String frame(String name) {
+        return name.replace(';', ':').replace('\n', ' ');
+    }
+
+    // Every node once, roots in order and children by name after their parent
+    public int[] depthFirst() {
+        List<List<Integer>> sortedChildren = new ArrayList<>();
+        for (int node = 0; node < size; node++) {
+            sortedChildren.add(new ArrayList<>());
+        }
+        for (int node = 0; node < size; node++) {
+            if (parents[node] >= 0) {
+                sortedChildren.get(parents[node]).add(node);
+            }
+        }
+        for (List<Integer> nodes : sortedChildren) {
+            nodes.sort((a, b) -> getName(a).compareTo(getName(b)));
+        }
+        int[] order = new int[size];
+        int visited = 0;
+        // Iterative, the depth of the spans is only bounded by the trace
+        int[] stack = new int[16];
+        int depth = 0;
+        for (int root = 0; root < size; root++) {
+            if (parents[root] >= 0) {
+                continue;
+            }
+            stack[depth++] = root;
+            while (depth > 0) {
+                int node = stack[--depth];
+                order[visited++] = node;
+                List<Integer> next = sortedChildren.get(node);
+                for (int i = next.size() - 1; i >= 0; i--) {
+                    if (depth == stack.length) {
+                        stack = Arrays.copyOf(stack, depth * 2);
+                    }
+                    stack[depth++] = next.get(i);
+                }
+            }
+        }
+        return order;
+    }
+}
@@ -3,6 +3,7 @@ package org.amoudi.trace;
 import org.apache.commons.lang3.tuple.Pair;
 
 import java.io.BufferedWriter;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
@@ -10,91 +11,264 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 public class Driver {
+
+    private static final String ANALYSIS_DIR = "analysis";
+
     public static void main(String[] args) throws Exception {
 
         if(args.length == 0){
             System.err.println("Must pass list of files argument");
             System.exit(1);
         }
-        // for every file
+        for(String fileName: args){
+            File input = new File(fileName);
+            if (!input.exists()) {
+                System.out.println("File" + input.getAbsolutePath() + " doesn't exist");
+                System.exit(1);
+            }
+        }
+        // Traces that share a directory get a report each instead of overwriting each other's
+        Map<File, Integer> perDirectory = new HashMap<>();
+        for(String fileName: args){
+            perDirectory.merge(new File(fileName).getAbsoluteFile().getParentFile(), 1, Integer::sum);
+        }
+        // for every file, concurrently
         // -- for each thread
-        // ----- filter out
         // ----- compute time breakdown
         // -- find every index
         // -- compute lineage of every index
         // -- compute tree height of every index
         // -- produce a report
-        for(String fileName: args){
-            // -- find ingestion and storage threads
-            Map<String,List<String>> predicates = new HashMap<>();
-            String key = "name";
-            List<String> values = new ArrayList<>();
-            values.add("Write-Network-Ingestion-To-Store");
-            predicates.put(key,values);
-            List<Pair<String, Long>> ingestionThreads = ThreadFinder.find(fileName, predicates);
-            values.clear();
-            values.add("Ingestion-Store");
-            List<Pair<String, Long>> storageThreads = ThreadFinder.find(fileName, predicates);
-            System.out.println("Found ingestion threads are: " + ingestionThreads +" and storage threads are: " + storageThreads);
-            List<File> filteredIngestionFiles = new ArrayList<>();
-            List<File> filteredStorageFiles = new ArrayList<>();
-            for (Pair<String,Long> thread: ingestionThreads){
-                filteredIngestionFiles.add(ThreadExtractor.extract(fileName, Collections.singletonList(thread), "analysis"+ File.separator+"ingestion"));
+        // then produce a summary of all files
+        // Each file is scanned once, so the pool is sized for cores plus one to overlap I/O
+        int threads = Math.min(args.length, Runtime.getRuntime().availableProcessors() + 1);
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>());
+        ScanMetrics metrics = ScanMetrics.global();
+        Closeable queue = metrics == null ? null : metrics.queue("files", () -> executor.getQueue().size());
+        try {
+            List<Future<Analysis>> futures = new ArrayList<>();
+            for(String fileName: args){
+                File input = new File(fileName);
+                String prefix = perDirectory.get(input.getAbsoluteFile().getParentFile()) > 1
+                        ? TraceInput.getName(input) + "." : "";
+                futures.add(executor.submit(() -> analyze(input, prefix)));
+            }
+            List<Analysis> analyses = new ArrayList<>();
+            for (Future<Analysis> future : futures) {
+                try {
+                    analyses.add(future.get());
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof Exception) {
+                        throw (Exception) e.getCause();
+                    }
+                    throw e;
+                }
             }
-            for (Pair<String,Long> thread: storageThreads){
-                filteredStorageFiles.add(ThreadExtractor.extract(fileName, Collections.singletonList(thread), "analysis"+ File.separator+"storage"));
+            if (analyses.size() > 1) {
+                long start = System.nanoTime();
+                writeSummary(analyses, getOutputFile(args[0], "summary.txt"));
+                if (metrics != null) {
+                    metrics.addStage(ScanMetrics.Stage.WRITE, System.nanoTime() - start);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+            if (queue != null) {
+                queue.close();
             }
+        }
+    }
 
-            // TODO: Find indexes, compute their lineage and height, then add to the report
+    private static Analysis analyze(File input, String prefix) throws IOException {
+        ScanEvents.Analysis analysisEvent = new ScanEvents.Analysis();
+        analysisEvent.begin();
+        // -- find ingestion and storage threads, compute the breakdown of every thread from its own stack of open
+        // spans and the lineage of every index in a single scan, without extracting the threads to files first
+        Map<String,List<String>> ingestionPredicates = new HashMap<>();
+        ingestionPredicates.put("name", Collections.singletonList("Write-Network-Ingestion-To-Store"));
+        Map<String,List<String>> storagePredicates = new HashMap<>();
+        storagePredicates.put("name", Collections.singletonList("Ingestion-Store"));
+        ThreadFinder.Collector ingestionCollector = new ThreadFinder.Collector(ingestionPredicates);
+        ThreadFinder.Collector storageCollector = new ThreadFinder.Collector(storagePredicates);
+        TimeBreaker.PerThread breakdowns = new TimeBreaker.PerThread();
+        String lineageFile = getOutputFile(input.getPath(), prefix + "lineage.json");
+        LineageComputer.PerIndex lineages;
+        try (BufferedWriter lineageWriter = new BufferedWriter(new FileWriter(lineageFile))) {
+            lineages = new LineageComputer.PerIndex(lineageWriter);
+            new TraceScanner()
+                    .register(ingestionCollector)
+                    .register(storageCollector)
+                    .register(breakdowns)
+                    .register(lineages)
+                    .scan(input);
+        }
+        List<Pair<String, Long>> ingestionThreads = ingestionCollector.getThreads();
+        List<Pair<String, Long>> storageThreads = storageCollector.getThreads();
+        // Only the merged durations are kept for the summary, the breakdowns go away with this file
+        Analysis analysis = new Analysis(input, ingestionThreads.size(), storageThreads.size(),
+                lineages.getIndexes().size());
+        for (Pair<String, Long> thread : ingestionThreads) {
+            breakdowns.get(thread).addDurations(analysis.ingestion);
+        }
+        for (Pair<String, Long> thread : storageThreads) {
+            breakdowns.get(thread).addDurations(analysis.storage);
+        }
+        System.out.println("Found ingestion threads are: " + ingestionThreads +" and storage threads are: " + storageThreads);
+        System.out.println("Found " + lineages.getIndexes().size() + " indexes, their lineage is in " + lineageFile);
+        if (lineages.getUnmatched() > 0) {
+            System.out.println(lineages.getUnmatched() + " flushes and merges ended without beginning");
+        }
 
-            try (BufferedWriter bw = new BufferedWriter(new FileWriter(getOutputFile(fileName)))){
-                bw.write("Analysis report");
+        long reportStart = System.nanoTime();
+        try (BufferedWriter bw = new BufferedWriter(new FileWriter(getOutputFile(input.getPath(),
+                prefix + "report.txt")))){
+            bw.write("Analysis report");
+            bw.newLine();
+            bw.write("Ingestion threads found: ");
+            bw.write(ingestionThreads.toString());
+            bw.newLine();
+            bw.write("Storage threads found: ");
+            bw.write(storageThreads.toString());
+            bw.newLine();
+            bw.newLine();
+            bw.write("=======================================");
+            bw.write("Breakdown of ingestion threads: ");
+            bw.newLine();
+            for(int i=0;i<ingestionThreads.size();i++){
+                bw.write("Process: ");
+                bw.write(ingestionThreads.get(i).getKey());
+                bw.write(" Thread: ");
+                bw.write(Long.toString(ingestionThreads.get(i).getValue()));
                 bw.newLine();
-                bw.write("Ingestion threads found: ");
-                bw.write(ingestionThreads.toString());
+                breakdowns.get(ingestionThreads.get(i)).write(bw);
                 bw.newLine();
-                bw.write("Storage threads found: ");
-                bw.write(storageThreads.toString());
+            }
+            bw.write("=======================================");
+            bw.write("Breakdown of storage threads: ");
+            bw.newLine();
+            for(int i=0;i<storageThreads.size();i++){
+                bw.write("Process: ");
+                bw.write(storageThreads.get(i).getKey());
+                bw.write(" Thread: ");
+                bw.write(Long.toString(storageThreads.get(i).getValue()));
                 bw.newLine();
+                breakdowns.get(storageThreads.get(i)).write(bw);
                 bw.newLine();
-                bw.write("=======================================");
-                bw.write("Breakdown of ingestion threads: ");
+            }
+            bw.write("=======================================");
+            bw.write("Lineage of indexes: ");
+            bw.newLine();
+            for (LineageComputer.IndexLineage index : lineages.getIndexes()) {
+                TreeHeightComputer.Tree tree = index.getTree();
+                bw.write("Index: " + index.getName() + " flushes = " + index.getFlushes() + ", merges = "
+                        + index.getMerges() + ", components = " + tree.size() + ", max height = "
+                        + tree.getMaxHeight() + ", max weighted average height = " + tree.getMaxAverageHeight());
                 bw.newLine();
-                for(int i=0;i<ingestionThreads.size();i++){
-                    bw.write("Process: ");
-                    bw.write(ingestionThreads.get(i).getKey());
-                    bw.write(" Thread: ");
-                    bw.write(Long.toString(ingestionThreads.get(i).getValue()));
-                    bw.newLine();
-                    TimeBreaker.breakdown(filteredIngestionFiles.get(i),bw);
-                    bw.newLine();
-                }
-                bw.write("=======================================");
-                bw.write("Breakdown of storage threads: ");
+            }
+        }
+        // One line per distinct call path, so they are kept out of the report
+        String callPathsFile = getOutputFile(input.getPath(), prefix + "callpaths.txt");
+        try (BufferedWriter bw = new BufferedWriter(new FileWriter(callPathsFile))) {
+            writeCallPaths("ingestion", ingestionThreads, breakdowns, bw);
+            writeCallPaths("storage", storageThreads, breakdowns, bw);
+        }
+        System.out.println("Call paths of the ingestion and storage threads are in " + callPathsFile);
+        ScanMetrics metrics = ScanMetrics.global();
+        if (metrics != null) {
+            metrics.addStage(ScanMetrics.Stage.WRITE, System.nanoTime() - reportStart);
+        }
+        analysisEvent.file = input.getPath();
+        analysisEvent.commit();
+        return analysis;
+    }
+
+    private static void writeCallPaths(String kind, List<Pair<String, Long>> threads,
+                                       TimeBreaker.PerThread breakdowns, BufferedWriter bw) throws IOException {
+        bw.write("=======================================");
+        bw.write("Call paths of " + kind + " threads: ");
+        bw.newLine();
+        for (Pair<String, Long> thread : threads) {
+            bw.write("Process: " + thread.getKey() + " Thread: " + thread.getValue());
+            bw.newLine();
+            breakdowns.get(thread).writeCallPaths(bw);
+            bw.newLine();
+        }
+    }
+
+    // Thread counts of every file, then the span durations of each kind of thread merged across all files
+    private static void writeSummary(List<Analysis> analyses, String summaryFile) throws IOException {
+        System.out.println("Writing summary to " + summaryFile);
+        Map<String, LatencyHistogram> ingestion = new TreeMap<>();
+        Map<String, LatencyHistogram> storage = new TreeMap<>();
+        try (BufferedWriter bw = new BufferedWriter(new FileWriter(summaryFile))){
+            bw.write("Summary of " + analyses.size() + " traces");
+            bw.newLine();
+            for (Analysis analysis : analyses) {
+                bw.write(analysis.input.getPath() + ": " + analysis.ingestionThreads + " ingestion threads, "
+                        + analysis.storageThreads + " storage threads, " + analysis.indexes + " indexes");
                 bw.newLine();
-                for(int i=0;i<storageThreads.size();i++){
-                    bw.write("Process: ");
-                    bw.write(storageThreads.get(i).getKey());
-                    bw.write(" Thread: ");
-                    bw.write(Long.toString(storageThreads.get(i).getValue()));
-                    bw.newLine();
-                    TimeBreaker.breakdown(filteredStorageFiles.get(i),bw);
-                    bw.newLine();
-                }
+                merge(analysis.ingestion, ingestion);
+                merge(analysis.storage, storage);
             }
+            bw.newLine();
+            bw.write("=======================================");
+            bw.write("Spans of all ingestion threads: ");
+            bw.newLine();
+            writeDurations(ingestion, bw);
+            bw.write("=======================================");
+            bw.write("Spans of all storage threads: ");
+            bw.newLine();
+            writeDurations(storage, bw);
+        }
+    }
+
+    private static void merge(Map<String, LatencyHistogram> from, Map<String, LatencyHistogram> to) {
+        for (Map.Entry<String, LatencyHistogram> entry : from.entrySet()) {
+            to.computeIfAbsent(entry.getKey(), name -> new LatencyHistogram()).merge(entry.getValue());
+        }
+    }
+
+    private static void writeDurations(Map<String, LatencyHistogram> durations, BufferedWriter bw) throws IOException {
+        for (Map.Entry<String, LatencyHistogram> entry : durations.entrySet()) {
+            LatencyHistogram stats = entry.getValue();
+            bw.write(entry.getKey() + " took: " + stats.getSum() + "us... min = " + stats.getMin() + ", max = "
+                    + stats.getMax() + ", count = " + stats.getCount() + ", " + stats.percentiles("us"));
+            bw.newLine();
         }
     }
 
-    private static String getOutputFile(String fileName) throws IOException {
+    private static String getOutputFile(String fileName, String reportName) throws IOException {
         File inputFile = new File(fileName);
-        String outputFileName = inputFile.getParentFile().getAbsolutePath();
-        outputFileName = outputFileName + File.separator + "analysis";
+        String outputFileName = inputFile.getAbsoluteFile().getParentFile().getAbsolutePath();
+        outputFileName = outputFileName + File.separator + ANALYSIS_DIR;
         Path outputDirPath = Paths.get(outputFileName);
-        if(!Files.exists(outputDirPath)){
-            Files.createDirectory(outputDirPath);
+        // Concurrent analyses may create it at the same time
+        Files.createDirectories(outputDirPath);
+        return outputFileName + File.separator + reportName;
+    }
+
+    // What the summary needs of one file: its counts and the span durations of its threads, merged by span name
+    private static class Analysis {
+        private final File input;
+        private final int ingestionThreads;
+        private final int storageThreads;
+        private final int indexes;
+        private final Map<String, LatencyHistogram> ingestion = new HashMap<>();
+        private final Map<String, LatencyHistogram> storage = new HashMap<>();
+
+        private Analysis(File input, int ingestionThreads, int storageThreads, int indexes) {
+            this.input = input;
+            this.ingestionThreads = ingestionThreads;
+            this.storageThreads = storageThreads;
+            this.indexes = indexes;
         }
-        return outputFileName + File.separator + "report.txt";
     }
 }
@@ -0,0 +1,513 @@
+package org.amoudi.trace;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Byte level decoder of a single trace event object. Callers declare the fields they need and only those are
+// decoded into a reusable TraceEvent, everything else is skipped without being materialized.
+// Text fields are top level keys, except those declared with nestedText: like JsonNode.findValue they are also
+// looked for in the objects and arrays of the event, which are only searched when the key isn't at the top level.
+public class EventDecoder {
+
+    private static final byte[] KEY_PID = bytes("pid");
+    private static final byte[] KEY_TID = bytes("tid");
+    private static final byte[] KEY_TIMESTAMP = bytes("ts");
+    private static final byte[] KEY_PHASE = bytes("ph");
+    private static final byte[] KEY_NAME = bytes("name");
+    private static final byte[] KEY_CATEGORY = bytes("cat");
+    private static final byte[] KEY_ARGS = bytes("args");
+    private static final byte[] KEY_SIZE = bytes("size");
+    private static final byte[] KEY_COUNT = bytes("count");
+    private static final byte[] KEY_AVG_DURATION_NANO = bytes("avg-duration-ns");
+
+    private int fields = 0;
+    // Key of every text slot, the first ones are the built in string fields
+    private final List<byte[]> textKeys = new ArrayList<>();
+    private final List<String> textNames = new ArrayList<>();
+    // Whether every text slot is looked for at any depth
+    private final List<Boolean> textNested = new ArrayList<>();
+    private int nestedSlots = 0;
+    // Offsets of the objects and arrays at the top level of the event being decoded
+    private int[] containers = new int[4];
+    private int containerCount;
+    // Position after the last scanned value
+    private int position;
+    private boolean escaped;
+    private long number;
+
+    public EventDecoder() {
+        textKeys.add(KEY_PID);
+        textNames.add("pid");
+        textKeys.add(KEY_PHASE);
+        textNames.add("ph");
+        textKeys.add(KEY_NAME);
+        textNames.add("name");
+        textKeys.add(KEY_CATEGORY);
+        textNames.add("cat");
+        for (int i = 0; i < textKeys.size(); i++) {
+            textNested.add(false);
+        }
+    }
+
+    public EventDecoder require(int fields) {
+        this.fields |= fields;
+        return this;
+    }
+
+    // Declares a top level field whose raw text is needed and returns its slot in the TraceEvent
+    public int text(String key) {
+        int slot = slot(key, false);
+        switch (slot) {
+            case TraceEvent.SLOT_PID:
+                require(TraceEvent.PID);
+                break;
+            case TraceEvent.SLOT_PHASE:
+                require(TraceEvent.PHASE);
+                break;
+            case TraceEvent.SLOT_NAME:
+                require(TraceEvent.NAME);
+                break;
+            case TraceEvent.SLOT_CATEGORY:
+                require(TraceEvent.CATEGORY);
+                break;
+        }
+        return slot;
+    }
+
+    // Declares a field that is read from the top level of the event or, if it isn't there, from the first key of that
+    // name in its objects and arrays, depth first. The built in string fields are only read from the top level.
+    public int nestedText(String key) {
+        for (int slot = 0; slot <= TraceEvent.SLOT_CATEGORY; slot++) {
+            if (textNames.get(slot).equals(key)) {
+                return text(key);
+            }
+        }
+        return slot(key, true);
+    }
+
+    private int slot(String key, boolean nested) {
+        for (int slot = 0; slot < textNames.size(); slot++) {
+            if (textNames.get(slot).equals(key) && textNested.get(slot) == nested) {
+                return slot;
+            }
+        }
+        textKeys.add(bytes(key));
+        textNames.add(key);
+        textNested.add(nested);
+        if (nested) {
+            nestedSlots++;
+        }
+        return textKeys.size() - 1;
+    }
+
+    public int getFields() {
+        return fields;
+    }
+
+    // Number of text slots, the built in ones included
+    public int getTextSlots() {
+        return textKeys.size();
+    }
+
+    public TraceEvent newEvent() {
+        return new TraceEvent(textKeys.size());
+    }
+
+    // Decodes the object in buffer[start, end) and returns false if it is not a well formed object
+    public boolean decode(byte[] buffer, int start, int end, TraceEvent event) {
+        event.reset(buffer, start, end);
+        int p = skipWhitespace(buffer, start, end);
+        if (p >= end || buffer[p] != '{') {
+            return false;
+        }
+        p = skipWhitespace(buffer, p + 1, end);
+        if (p < end && buffer[p] == '}') {
+            return true;
+        }
+        containerCount = 0;
+        while (p < end) {
+            if (buffer[p] != '"') {
+                return false;
+            }
+            int keyStart = p + 1;
+            int keyEnd = endOfString(buffer, p, end);
+            if (keyEnd < 0) {
+                return false;
+            }
+            p = skipWhitespace(buffer, keyEnd + 1, end);
+            if (p >= end || buffer[p] != ':') {
+                return false;
+            }
+            p = skipWhitespace(buffer, p + 1, end);
+            if (p >= end || !decodeTopLevel(buffer, keyStart, keyEnd, p, end, event)) {
+                return false;
+            }
+            if (nestedSlots > 0 && !decodeNestedTopLevel(buffer, keyStart, keyEnd, p, end, event)) {
+                return false;
+            }
+            p = skipWhitespace(buffer, position, end);
+            if (p >= end) {
+                return false;
+            }
+            if (buffer[p] == '}') {
+                if (nestedSlots > 0) {
+                    findNested(buffer, end, event);
+                }
+                return true;
+            }
+            if (buffer[p] != ',') {
+                return false;
+            }
+            p = skipWhitespace(buffer, p + 1, end);
+        }
+        return false;
+    }
+
+    private boolean decodeTopLevel(byte[] buffer, int keyStart, int keyEnd, int p, int end, TraceEvent event) {
+        int length = keyEnd - keyStart;
+        int slot = -1;
+        for (int i = 0; i < textKeys.size(); i++) {
+            if (!textNested.get(i) && equals(buffer, keyStart, length, textKeys.get(i))) {
+                if (i > TraceEvent.SLOT_CATEGORY || (fields & builtInField(i)) != 0) {
+                    slot = i;
+                }
+                break;
+            }
+        }
+        if ((fields & TraceEvent.TID) != 0 && equals(buffer, keyStart, length, KEY_TID)) {
+            return decodeNumber(buffer, p, end, event, TraceEvent.TID)
+                    && (slot < 0 || decodeText(buffer, p, end, event, slot));
+        }
+        if ((fields & TraceEvent.TIMESTAMP) != 0 && equals(buffer, keyStart, length, KEY_TIMESTAMP)) {
+            return decodeNumber(buffer, p, end, event, TraceEvent.TIMESTAMP)
+                    && (slot < 0 || decodeText(buffer, p, end, event, slot));
+        }
+        if ((fields & TraceEvent.ARGS) != 0 && equals(buffer, keyStart, length, KEY_ARGS)) {
+            return decodeArgs(buffer, p, end, event);
+        }
+        if (slot >= 0) {
+            return decodeText(buffer, p, end, event, slot);
+        }
+        position = skipValue(buffer, p, end);
+        return position >= 0;
+    }
+
+    // Fills the nested slots of a top level key and remembers where the objects and arrays are, in case some nested
+    // slot isn't at the top level
+    private boolean decodeNestedTopLevel(byte[] buffer, int keyStart, int keyEnd, int p, int end, TraceEvent event) {
+        int next = position;
+        if (buffer[p] == '{' || buffer[p] == '[') {
+            if (containerCount == containers.length) {
+                containers = Arrays.copyOf(containers, containerCount * 2);
+            }
+            containers[containerCount++] = p;
+        }
+        for (int i = TraceEvent.SLOT_CATEGORY + 1; i < textKeys.size(); i++) {
+            if (textNested.get(i) && equals(buffer, keyStart, keyEnd - keyStart, textKeys.get(i))
+                    && !decodeText(buffer, p, end, event, i)) {
+                return false;
+            }
+        }
+        position = next;
+        return true;
+    }
+
+    // The slow path of the nested slots that weren't at the top level
+    private void findNested(byte[] buffer, int end, TraceEvent event) {
+        for (int i = TraceEvent.SLOT_CATEGORY + 1; i < textKeys.size(); i++) {
+            if (!textNested.get(i) || event.textPresent[i]) {
+                continue;
+            }
+            for (int c = 0; c < containerCount; c++) {
+                int value = findValue(buffer, containers[c], end, textKeys.get(i));
+                if (value >= 0) {
+                    decodeText(buffer, value, end, event, i);
+                    break;
+                }
+            }
+        }
+    }
+
+    // Position of the value of the first key equal to key in the object or array at p, depth first, or -1
+    private int findValue(byte[] buffer, int p, int end, byte[] key) {
+        boolean object = buffer[p] == '{';
+        p = skipWhitespace(buffer, p + 1, end);
+        while (p < end && buffer[p] != '}' && buffer[p] != ']') {
+            if (object) {
+                if (buffer[p] != '"') {
+                    return -1;
+                }
+                int keyEnd = endOfString(buffer, p, end);
+                if (keyEnd < 0) {
+                    return -1;
+                }
+                boolean match = equals(buffer, p + 1, keyEnd - p - 1, key);
+                p = skipWhitespace(buffer, keyEnd + 1, end);
+                if (p >= end || buffer[p] != ':') {
+                    return -1;
+                }
+                p = skipWhitespace(buffer, p + 1, end);
+                if (p >= end) {
+                    return -1;
+                }
+                if (match) {
+                    return p;
+                }
+            }
+            if (buffer[p] == '{' || buffer[p] == '[') {
+                int found = findValue(buffer, p, end, key);
+                if (found >= 0) {
+                    return found;
+                }
+            }
+            p = skipValue(buffer, p, end);
+            if (p < 0) {
+                return -1;
+            }
+            p = skipWhitespace(buffer, p, end);
+            if (p < end && buffer[p] == ',') {
+                p = skipWhitespace(buffer, p + 1, end);
+            }
+        }
+        return -1;
+    }
+
+    private boolean decodeArgs(byte[] buffer, int p, int end, TraceEvent event) {
+        if (buffer[p] != '{') {
+            position = skipValue(buffer, p, end);
+            return position >= 0;
+        }
+        p = skipWhitespace(buffer, p + 1, end);
+        if (p < end && buffer[p] == '}') {
+            position = p + 1;
+            return true;
+        }
+        while (p < end) {
+            if (buffer[p] != '"') {
+                return false;
+            }
+            int keyStart = p + 1;
+            int keyEnd = endOfString(buffer, p, end);
+            if (keyEnd < 0) {
+                return false;
+            }
+            int length = keyEnd - keyStart;
+            p = skipWhitespace(buffer, keyEnd + 1, end);
+            if (p >= end || buffer[p] != ':') {
+                return false;
+            }
+            p = skipWhitespace(buffer, p + 1, end);
+            if (p >= end) {
+                return false;
+            }
+            boolean decoded;
+            if ((fields & TraceEvent.ARGS_SIZE) != 0 && equals(buffer, keyStart, length, KEY_SIZE)) {
+                decoded = decodeNumber(buffer, p, end, event, TraceEvent.ARGS_SIZE);
+            } else if ((fields & TraceEvent.ARGS_COUNT) != 0 && equals(buffer, keyStart, length, KEY_COUNT)) {
+                decoded = decodeNumber(buffer, p, end, event, TraceEvent.ARGS_COUNT);
+            } else if ((fields & TraceEvent.ARGS_AVG_DURATION) != 0
+                    && equals(buffer, keyStart, length, KEY_AVG_DURATION_NANO)) {
+                decoded = decodeNumber(buffer, p, end, event, TraceEvent.ARGS_AVG_DURATION);
+            } else {
+                position = skipValue(buffer, p, end);
+                decoded = position >= 0;
+            }
+            if (!decoded) {
+                return false;
+            }
+            p = skipWhitespace(buffer, position, end);
+            if (p >= end) {
+                return false;
+            }
+            if (buffer[p] == '}') {
+                position = p + 1;
+                return true;
+            }
+            if (buffer[p] != ',') {
+                return false;
+            }
+            p = skipWhitespace(buffer, p + 1, end);
+        }
+        return false;
+    }
+
+    private boolean decodeText(byte[] buffer, int p, int end, TraceEvent event, int slot) {
+        if (buffer[p] == '"') {
+            int close = endOfString(buffer, p, end);
+            if (close < 0) {
+                return false;
+            }
+            event.textStart[slot] = p + 1;
+            event.textEnd[slot] = close;
+            event.textQuoted[slot] = true;
+            event.textEscaped[slot] = escaped;
+            event.textPresent[slot] = true;
+            position = close + 1;
+            return true;
+        }
+        position = skipValue(buffer, p, end);
+        if (position < 0) {
+            return false;
+        }
+        if (buffer[p] != '{' && buffer[p] != '[') {
+            event.textStart[slot] = p;
+            event.textEnd[slot] = position;
+            event.textQuoted[slot] = false;
+            event.textEscaped[slot] = false;
+            event.textPresent[slot] = true;
+        }
+        return true;
+    }
+
+    // Numbers are read as longs, the fraction of a decimal is dropped. Quoted numbers are accepted too.
+    private boolean decodeNumber(byte[] buffer, int p, int end, TraceEvent event, int field) {
+        boolean quoted = buffer[p] == '"';
+        int from = quoted ? p + 1 : p;
+        if (!parseLong(buffer, from, end)) {
+            position = skipValue(buffer, p, end);
+            return position >= 0;
+        }
+        if (quoted) {
+            int close = endOfString(buffer, p, end);
+            if (close < 0) {
+                return false;
+            }
+            position = close + 1;
+        }
+        switch (field) {
+            case TraceEvent.TID:
+                event.tid = number;
+                break;
+            case TraceEvent.TIMESTAMP:
+                event.timestamp = number;
+                break;
+            case TraceEvent.ARGS_SIZE:
+                event.size = number;
+                break;
+            case TraceEvent.ARGS_COUNT:
+                event.count = number;
+                break;
+            case TraceEvent.ARGS_AVG_DURATION:
+                event.avgDuration = number;
+                break;
+        }
+        event.present |= field;
+        return true;
+    }
+
+    private boolean parseLong(byte[] buffer, int p, int end) {
+        boolean negative = false;
+        if (p < end && buffer[p] == '-') {
+            negative = true;
+            p++;
+        }
+        int digitsStart = p;
+        long value = 0;
+        while (p < end && buffer[p] >= '0' && buffer[p] <= '9') {
+            value = value * 10 + (buffer[p] - '0');
+            p++;
+        }
+        if (p == digitsStart) {
+            return false;
+        }
+        // Skip a fraction or an exponent
+        while (p < end && (buffer[p] == '.' || buffer[p] == 'e' || buffer[p] == 'E' || buffer[p] == '+'
+                || buffer[p] == '-' || (buffer[p] >= '0' && buffer[p] <= '9'))) {
+            p++;
+        }
+        number = negative ? -value : value;
+        position = p;
+        return true;
+    }
+
+    private static int builtInField(int slot) {
+        switch (slot) {
+            case TraceEvent.SLOT_PID:
+                return TraceEvent.PID;
+            case TraceEvent.SLOT_PHASE:
+                return TraceEvent.PHASE;
+            case TraceEvent.SLOT_NAME:
+                return TraceEvent.NAME;
+            default:
+                return TraceEvent.CATEGORY;
+        }
+    }
+
+    // Returns the position right after the value starting at p, or -1 if it is malformed
+    private int skipValue(byte[] buffer, int p, int end) {
+        byte c = buffer[p];
+        if (c == '"') {
+            int close = endOfString(buffer, p, end);
+            return close < 0 ? -1 : close + 1;
+        }
+        if (c == '{' || c == '[') {
+            int depth = 0;
+            while (p < end) {
+                c = buffer[p];
+                if (c == '"') {
+                    p = endOfString(buffer, p, end);
+                    if (p < 0) {
+                        return -1;
+                    }
+                } else if (c == '{' || c == '[') {
+                    depth++;
+                } else if (c == '}' || c == ']') {
+                    depth--;
+                    if (depth == 0) {
+                        return p + 1;
+                    }
+                }
+                p++;
+            }
+            return -1;
+        }
+        while (p < end) {
+            c = buffer[p];
+            if (c == ',' || c == '}' || c == ']' || (c <= ' ' && c >= 0)) {
+                break;
+            }
+            p++;
+        }
+        return p;
+    }
+
+    // Returns the position of the quote closing the string that starts at p, or -1 if there is none
+    private int endOfString(byte[] buffer, int p, int end) {
+        escaped = false;
+        for (int i = p + 1; i < end; i++) {
+            byte c = buffer[i];
+            if (c == '\\') {
+                escaped = true;
+                i++;
+            } else if (c == '"') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int skipWhitespace(byte[] buffer, int p, int end) {
+        while (p < end && buffer[p] <= ' ' && buffer[p] >= 0) {
+            p++;
+        }
+        return p;
+    }
+
+    private static boolean equals(byte[] buffer, int from, int length, byte[] key) {
+        if (length != key.length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (buffer[from + i] != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
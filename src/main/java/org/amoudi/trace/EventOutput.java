@@ -0,0 +1,162 @@
+package org.amoudi.trace;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+// Writes events to a trace file as a JSON array, copying the original bytes of every event instead of re-encoding
+// it. Plain files are written through a direct buffer to a FileChannel, and once a run of events that are adjacent
+// lines of a plain source file is long enough, the rest of the run is transferred from the source channel without
+// passing through the buffer at all. Compressed files are written as BGZF.
+class EventOutput implements Closeable {
+
+    static final byte[] OPEN = EventDecoder.bytes("[\n");
+    static final byte[] SEPARATOR = EventDecoder.bytes(",\n");
+    static final byte[] CLOSE = EventDecoder.bytes("\n]\n");
+    private static final int BUFFER_SIZE = 1 << 20;
+    // Runs of at least this many bytes are transferred instead of copied
+    private static final int TRANSFER_THRESHOLD = 256 << 10;
+
+    private final FileChannel channel;
+    private final OutputStream stream;
+    private final FileChannel source;
+    private final ByteBuffer buffer;
+    private long events = 0;
+    // The current run of adjacent events covers [runStart, runEnd) of the source, it was copied to the buffer from
+    // runMark on, or -1 if the buffer was flushed since
+    private long runStart = -1;
+    private long runEnd;
+    private long runLineEnd;
+    private boolean runTrailingComma;
+    private int runMark;
+    private boolean transferring = false;
+
+    // Runs are transferred from source when it is a plain file the events were read from, it can be null
+    EventOutput(File file, boolean compress, File source) throws IOException {
+        if (compress) {
+            channel = null;
+            stream = TraceInput.create(file, true, false);
+            buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            this.source = null;
+        } else {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            stream = null;
+            buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            this.source = source == null || TraceInput.isCompressed(source) ? null
+                    : FileChannel.open(source.toPath(), StandardOpenOption.READ);
+        }
+        put(OPEN, 0, OPEN.length);
+    }
+
+    void write(TraceEvent event) throws IOException {
+        event.load();
+        int length = event.end - event.start;
+        boolean adjacent = event.lineEnd >= 0 && source != null;
+        if (adjacent && runStart >= 0 && runTrailingComma && runLineEnd == event.offset) {
+            // The source already has the separator between the run and this event
+            events++;
+            runEnd = event.offset + length;
+            runLineEnd = event.lineEnd;
+            runTrailingComma = event.trailingComma;
+            if (!transferring) {
+                put(SEPARATOR, 0, SEPARATOR.length);
+                put(event.buffer, event.start, length);
+                if (runMark >= 0 && runEnd - runStart >= TRANSFER_THRESHOLD) {
+                    buffer.position(runMark);
+                    transferring = true;
+                }
+            }
+            return;
+        }
+        endRun();
+        if (events++ > 0) {
+            put(SEPARATOR, 0, SEPARATOR.length);
+        }
+        if (adjacent) {
+            runStart = event.offset;
+            runEnd = event.offset + length;
+            runLineEnd = event.lineEnd;
+            runTrailingComma = event.trailingComma;
+            runMark = length <= buffer.remaining() ? buffer.position() : -1;
+        }
+        put(event.buffer, event.start, length);
+    }
+
+    // Writes an object that isn't read from the source, like one read back from a temporary file
+    void write(byte[] object, int offset, int length) throws IOException {
+        endRun();
+        if (events++ > 0) {
+            put(SEPARATOR, 0, SEPARATOR.length);
+        }
+        put(object, offset, length);
+    }
+
+    long getEvents() {
+        return events;
+    }
+
+    private void endRun() throws IOException {
+        if (transferring) {
+            flush();
+            for (long position = runStart; position < runEnd;) {
+                position += source.transferTo(position, runEnd - position, channel);
+            }
+            transferring = false;
+        }
+        runStart = -1;
+    }
+
+    private void put(byte[] bytes, int offset, int length) throws IOException {
+        if (length > buffer.remaining()) {
+            flush();
+            if (length > buffer.capacity()) {
+                if (channel != null) {
+                    ByteBuffer wrapped = ByteBuffer.wrap(bytes, offset, length);
+                    while (wrapped.hasRemaining()) {
+                        channel.write(wrapped);
+                    }
+                } else {
+                    stream.write(bytes, offset, length);
+                }
+                return;
+            }
+        }
+        buffer.put(bytes, offset, length);
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        if (channel != null) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } else {
+            stream.write(buffer.array(), 0, buffer.limit());
+        }
+        buffer.clear();
+        runMark = -1;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            endRun();
+            put(CLOSE, 0, CLOSE.length);
+            flush();
+        } finally {
+            if (channel != null) {
+                channel.close();
+            } else {
+                stream.close();
+            }
+            if (source != null) {
+                source.close();
+            }
+        }
+    }
+}
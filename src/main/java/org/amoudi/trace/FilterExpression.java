@@ -0,0 +1,627 @@
+package org.amoudi.trace;
+
+import org.apache.commons.lang3.tuple.Pair;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+// A filter over trace events, compiled once and then evaluated once per event. The grammar is
+//   expression := term (OR term)*
+//   term       := factor (AND factor)*
+//   factor     := NOT factor | '(' expression ')' | comparison
+//   comparison := field (== | != | ~ | < | <= | > | >=) value
+//               | field IN '(' value, ... ')' | field ~ '(' value, ... ')' | field IN '[' value, value (']' | ')')
+// where ~ is a contains match, IN [a, b) a numeric range and &&, ||, ! can be used for AND, OR, NOT. Fields are top
+// level keys of the event, args.size, args.count and args.avg-duration-ns read the args object. ts, tid and the args
+// fields are numbers: ==, != and IN compare their values and ~ can't be used on them.
+// Exact matches of a field under the same OR share one hash set and its contains matches share one Aho-Corasick
+// automaton, so the cost of a filter doesn't grow with the number of values it looks for.
+public class FilterExpression {
+
+    private final String source;
+    private final Node root;
+    private final List<String> fields = new ArrayList<>();
+
+    private FilterExpression(String source, Node root) {
+        this.source = source;
+        this.root = root.optimize();
+        this.root.collectFields(fields);
+    }
+
+    public static FilterExpression compile(String expression) {
+        return new FilterExpression(expression, new Parser(expression).parse());
+    }
+
+    // OR of exact ('e') and contains ('c') matches on string fields, which are looked for at any depth of the event
+    // like JsonNode.findValue did, where an expression only reads top level keys
+    public static FilterExpression anyOf(Map<String, List<Pair<Character, String>>> predicates) {
+        List<Node> children = new ArrayList<>();
+        for (Map.Entry<String, List<Pair<Character, String>>> predicate : predicates.entrySet()) {
+            for (Pair<Character, String> value : predicate.getValue()) {
+                switch (value.getKey()) {
+                    case 'e':
+                        children.add(new TextIn(predicate.getKey(), value.getValue(), false, true));
+                        break;
+                    case 'c':
+                        children.add(new TextContains(predicate.getKey(), value.getValue(), true));
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown match type: " + value.getKey());
+                }
+            }
+        }
+        return new FilterExpression(predicates.toString(), new Or(children));
+    }
+
+    public void declare(EventDecoder decoder) {
+        root.declare(decoder);
+    }
+
+    public boolean matches(TraceEvent event) {
+        return root.matches(event);
+    }
+
+    // Fields the expression reads, in order of first appearance
+    public List<String> getFields() {
+        return fields;
+    }
+
+    @Override
+    public String toString() {
+        return source;
+    }
+
+    private abstract static class Node {
+        abstract void declare(EventDecoder decoder);
+
+        abstract boolean matches(TraceEvent event);
+
+        Node optimize() {
+            return this;
+        }
+
+        abstract void collectFields(List<String> fields);
+    }
+
+    private static class Or extends Node {
+        private final List<Node> children;
+
+        private Or(List<Node> children) {
+            this.children = children;
+        }
+
+        @Override
+        void declare(EventDecoder decoder) {
+            for (Node child : children) {
+                child.declare(decoder);
+            }
+        }
+
+        @Override
+        boolean matches(TraceEvent event) {
+            for (Node child : children) {
+                if (child.matches(event)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        // Flattens nested ORs and folds the exact and contains matches of every field, at the same depth, into one node
+        // each
+        @Override
+        Node optimize() {
+            List<Node> flat = new ArrayList<>();
+            flatten(this, flat);
+            Map<String, TextIn> exact = new HashMap<>();
+            Map<String, TextContains> contains = new HashMap<>();
+            List<Node> optimized = new ArrayList<>();
+            for (Node child : flat) {
+                if (child instanceof TextIn && !((TextIn) child).negated) {
+                    TextIn in = (TextIn) child;
+                    TextIn first = exact.putIfAbsent(in.anyDepth + in.field, in);
+                    if (first != null) {
+                        first.values.addAll(in.values);
+                        continue;
+                    }
+                } else if (child instanceof TextContains) {
+                    TextContains match = (TextContains) child;
+                    TextContains first = contains.putIfAbsent(match.anyDepth + match.field, match);
+                    if (first != null) {
+                        first.patterns.addAll(match.patterns);
+                        continue;
+                    }
+                }
+                optimized.add(child);
+            }
+            return optimized.size() == 1 ? optimized.get(0) : new Or(optimized);
+        }
+
+        private static void flatten(Node node, List<Node> flat) {
+            if (node instanceof Or) {
+                for (Node child : ((Or) node).children) {
+                    flatten(child.optimize(), flat);
+                }
+            } else {
+                flat.add(node);
+            }
+        }
+
+        @Override
+        void collectFields(List<String> fields) {
+            for (Node child : children) {
+                child.collectFields(fields);
+            }
+        }
+    }
+
+    private static class And extends Node {
+        private final List<Node> children;
+
+        private And(List<Node> children) {
+            this.children = children;
+        }
+
+        @Override
+        void declare(EventDecoder decoder) {
+            for (Node child : children) {
+                child.declare(decoder);
+            }
+        }
+
+        @Override
+        boolean matches(TraceEvent event) {
+            for (Node child : children) {
+                if (!child.matches(event)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        Node optimize() {
+            children.replaceAll(Node::optimize);
+            return children.size() == 1 ? children.get(0) : this;
+        }
+
+        @Override
+        void collectFields(List<String> fields) {
+            for (Node child : children) {
+                child.collectFields(fields);
+            }
+        }
+    }
+
+    private static class Not extends Node {
+        private Node child;
+
+        private Not(Node child) {
+            this.child = child;
+        }
+
+        @Override
+        void declare(EventDecoder decoder) {
+            child.declare(decoder);
+        }
+
+        @Override
+        boolean matches(TraceEvent event) {
+            return !child.matches(event);
+        }
+
+        @Override
+        Node optimize() {
+            child = child.optimize();
+            return this;
+        }
+
+        @Override
+        void collectFields(List<String> fields) {
+            child.collectFields(fields);
+        }
+    }
+
+    private abstract static class Leaf extends Node {
+        final String field;
+
+        private Leaf(String field) {
+            this.field = field;
+        }
+
+        // Slot of a text field, found at any depth of the event or only at the top level
+        static int slot(EventDecoder decoder, String field, boolean anyDepth) {
+            return anyDepth ? decoder.nestedText(field) : decoder.text(field);
+        }
+
+        @Override
+        void collectFields(List<String> fields) {
+            if (!fields.contains(field)) {
+                fields.add(field);
+            }
+        }
+    }
+
+    // Exact match of a string field against any of a set of values, or against none of them when negated
+    private static class TextIn extends Leaf {
+        private final List<String> values = new ArrayList<>();
+        private final boolean negated;
+        private final boolean anyDepth;
+        private int slot;
+        private NameTable set;
+
+        private TextIn(String field, String value, boolean negated) {
+            this(field, value, negated, false);
+        }
+
+        private TextIn(String field, String value, boolean negated, boolean anyDepth) {
+            super(field);
+            this.negated = negated;
+            this.anyDepth = anyDepth;
+            values.add(value);
+        }
+
+        @Override
+        void declare(EventDecoder decoder) {
+            slot = slot(decoder, field, anyDepth);
+            set = new NameTable();
+            for (String value : values) {
+                set.getOrAdd(value);
+            }
+        }
+
+        @Override
+        boolean matches(TraceEvent event) {
+            if (!event.hasText(slot)) {
+                return false;
+            }
+            return (set.get(event, slot) >= 0) != negated;
+        }
+    }
+
+    private static class TextContains extends Leaf {
+        private final List<String> patterns = new ArrayList<>();
+        private final boolean anyDepth;
+        private int slot;
+        private AhoCorasick automaton;
+
+        private TextContains(String field, String pattern) {
+            this(field, pattern, false);
+        }
+
+        private TextContains(String field, String pattern, boolean anyDepth) {
+            super(field);
+            this.anyDepth = anyDepth;
+            patterns.add(pattern);
+        }
+
+        @Override
+        void declare(EventDecoder decoder) {
+            slot = slot(decoder, field, anyDepth);
+            List<byte[]> bytes = new ArrayList<>();
+            for (String pattern : patterns) {
+                bytes.add(EventDecoder.bytes(pattern));
+            }
+            automaton = new AhoCorasick(bytes);
+        }
+
+        @Override
+        boolean matches(TraceEvent event) {
+            if (!event.hasText(slot)) {
+                return false;
+            }
+            if (event.textEscaped[slot]) {
+                byte[] text = event.text(slot).getBytes(StandardCharsets.UTF_8);
+                return automaton.matches(text, 0, text.length);
+            }
+            return automaton.matches(event.textBuffer, event.textStart[slot], event.textEnd[slot]);
+        }
+    }
+
+    // Numeric range from <(=) value <(=) to, a comparison is a range with one open end
+    private static class NumberRange extends Leaf {
+        private final long from;
+        private final long to;
+        private final int field;
+        private int slot = -1;
+
+        private NumberRange(String name, long from, long to) {
+            super(name);
+            this.from = from;
+            this.to = to;
+            field = numericField(name);
+        }
+
+        @Override
+        void declare(EventDecoder decoder) {
+            if (field != 0) {
+                decoder.require(field);
+            } else {
+                slot = decoder.text(super.field);
+            }
+        }
+
+        @Override
+        boolean matches(TraceEvent event) {
+            long value;
+            switch (field) {
+                case TraceEvent.TIMESTAMP:
+                    value = event.timestamp();
+                    break;
+                case TraceEvent.TID:
+                    value = event.tid();
+                    break;
+                case TraceEvent.ARGS_SIZE:
+                    value = event.size();
+                    break;
+                case TraceEvent.ARGS_COUNT:
+                    value = event.count();
+                    break;
+                case TraceEvent.ARGS_AVG_DURATION:
+                    value = event.avgDuration();
+                    break;
+                default:
+                    return event.hasText(slot) && matchesText(event);
+            }
+            return event.has(field) && value >= from && value <= to;
+        }
+
+        // Other fields are compared through their raw text, which has to be an integer
+        private boolean matchesText(TraceEvent event) {
+            byte[] buffer = event.textBuffer;
+            int p = event.textStart[slot];
+            int end = event.textEnd[slot];
+            boolean negative = p < end && buffer[p] == '-';
+            if (negative) {
+                p++;
+            }
+            if (p == end) {
+                return false;
+            }
+            long value = 0;
+            for (; p < end && buffer[p] != '.'; p++) {
+                if (buffer[p] < '0' || buffer[p] > '9') {
+                    return false;
+                }
+                value = value * 10 + (buffer[p] - '0');
+            }
+            value = negative ? -value : value;
+            return value >= from && value <= to;
+        }
+
+        private static int numericField(String name) {
+            switch (name) {
+                case "ts":
+                    return TraceEvent.TIMESTAMP;
+                case "tid":
+                    return TraceEvent.TID;
+                case "args.size":
+                    return TraceEvent.ARGS_SIZE;
+                case "args.count":
+                    return TraceEvent.ARGS_COUNT;
+                case "args.avg-duration-ns":
+                    return TraceEvent.ARGS_AVG_DURATION;
+                default:
+                    return 0;
+            }
+        }
+    }
+
+    private static class Parser {
+        private final String text;
+        private int position = 0;
+
+        private Parser(String text) {
+            this.text = text;
+        }
+
+        private Node parse() {
+            Node node = expression();
+            skipWhitespace();
+            if (position < text.length()) {
+                throw error("Unexpected " + text.substring(position));
+            }
+            return node;
+        }
+
+        private Node expression() {
+            List<Node> children = new ArrayList<>();
+            children.add(term());
+            while (keyword("OR") || symbol("||")) {
+                children.add(term());
+            }
+            return children.size() == 1 ? children.get(0) : new Or(children);
+        }
+
+        private Node term() {
+            List<Node> children = new ArrayList<>();
+            children.add(factor());
+            while (keyword("AND") || symbol("&&")) {
+                children.add(factor());
+            }
+            return children.size() == 1 ? children.get(0) : new And(children);
+        }
+
+        private Node factor() {
+            if (keyword("NOT") || (!peek("!=") && symbol("!"))) {
+                return new Not(factor());
+            }
+            if (symbol("(")) {
+                Node node = expression();
+                expect(")");
+                return node;
+            }
+            return comparison();
+        }
+
+        private Node comparison() {
+            String field = word();
+            if (field == null) {
+                throw error("Expected a field");
+            }
+            if (keyword("IN")) {
+                if (symbol("[")) {
+                    long from = number(value());
+                    expect(",");
+                    long to = number(value());
+                    if (symbol(")")) {
+                        to--;
+                    } else {
+                        expect("]");
+                    }
+                    return new NumberRange(field, from, to);
+                }
+                List<Node> values = new ArrayList<>();
+                for (String value : list()) {
+                    values.add(equal(field, value));
+                }
+                return new Or(values);
+            }
+            if (symbol("~")) {
+                if (NumberRange.numericField(field) != 0) {
+                    throw error("Contains matches need a text field, but " + field + " is a number");
+                }
+                List<Node> patterns = new ArrayList<>();
+                for (String pattern : peek("(") ? list() : Collections.singletonList(value())) {
+                    patterns.add(new TextContains(field, pattern));
+                }
+                return new Or(patterns);
+            }
+            if (symbol("==") || symbol("=")) {
+                return equal(field, value());
+            }
+            if (symbol("!=")) {
+                if (NumberRange.numericField(field) == 0) {
+                    return new TextIn(field, value(), true);
+                }
+                // Like a negated text match, an event without the field doesn't match
+                long number = number(value());
+                List<Node> ranges = new ArrayList<>();
+                if (number > Long.MIN_VALUE) {
+                    ranges.add(new NumberRange(field, Long.MIN_VALUE, number - 1));
+                }
+                if (number < Long.MAX_VALUE) {
+                    ranges.add(new NumberRange(field, number + 1, Long.MAX_VALUE));
+                }
+                return new Or(ranges);
+            }
+            if (symbol("<=")) {
+                return new NumberRange(field, Long.MIN_VALUE, number(value()));
+            }
+            if (symbol("<")) {
+                return new NumberRange(field, Long.MIN_VALUE, number(value()) - 1);
+            }
+            if (symbol(">=")) {
+                return new NumberRange(field, number(value()), Long.MAX_VALUE);
+            }
+            if (symbol(">")) {
+                return new NumberRange(field, number(value()) + 1, Long.MAX_VALUE);
+            }
+            throw error("Expected an operator after " + field);
+        }
+
+        // The decoder only has numeric fields as numbers, so they are compared as a single value range
+        private Node equal(String field, String value) {
+            if (NumberRange.numericField(field) == 0) {
+                return new TextIn(field, value, false);
+            }
+            long number = number(value);
+            return new NumberRange(field, number, number);
+        }
+
+        private List<String> list() {
+            expect("(");
+            List<String> values = new ArrayList<>();
+            do {
+                values.add(value());
+            } while (symbol(","));
+            expect(")");
+            return values;
+        }
+
+        private String value() {
+            skipWhitespace();
+            if (position < text.length() && text.charAt(position) == '"') {
+                StringBuilder sb = new StringBuilder();
+                for (position++; position < text.length(); position++) {
+                    char c = text.charAt(position);
+                    if (c == '"') {
+                        position++;
+                        return sb.toString();
+                    }
+                    if (c == '\\' && position + 1 < text.length()) {
+                        c = text.charAt(++position);
+                    }
+                    sb.append(c);
+                }
+                throw error("Unterminated string");
+            }
+            String word = word();
+            if (word == null) {
+                throw error("Expected a value");
+            }
+            return word;
+        }
+
+        private long number(String value) {
+            try {
+                return Long.parseLong(value);
+            } catch (NumberFormatException e) {
+                throw error("Expected a number but found " + value);
+            }
+        }
+
+        private String word() {
+            skipWhitespace();
+            int start = position;
+            while (position < text.length() && isWordChar(text.charAt(position))) {
+                position++;
+            }
+            return position == start ? null : text.substring(start, position);
+        }
+
+        private static boolean isWordChar(char c) {
+            return Character.isLetterOrDigit(c) || c == '_' || c == '-' || c == '.' || c == ':';
+        }
+
+        private boolean keyword(String keyword) {
+            skipWhitespace();
+            int end = position + keyword.length();
+            if (end > text.length() || !text.regionMatches(true, position, keyword, 0, keyword.length())
+                    || (end < text.length() && isWordChar(text.charAt(end)))) {
+                return false;
+            }
+            position = end;
+            return true;
+        }
+
+        private boolean peek(String symbol) {
+            skipWhitespace();
+            return text.startsWith(symbol, position);
+        }
+
+        private boolean symbol(String symbol) {
+            if (!peek(symbol)) {
+                return false;
+            }
+            position += symbol.length();
+            return true;
+        }
+
+        private void expect(String symbol) {
+            if (!symbol(symbol)) {
+                throw error("Expected " + symbol);
+            }
+        }
+
+        private void skipWhitespace() {
+            while (position < text.length() && Character.isWhitespace(text.charAt(position))) {
+                position++;
+            }
+        }
+
+        private IllegalArgumentException error(String message) {
+            return new IllegalArgumentException(message + " at position " + position + " of: " + text);
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package org.amoudi.trace;
+
+import org.apache.commons.lang3.tuple.Pair;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+
+// Turns the span nesting of a trace into a flame graph. The call paths of one thread, or of every thread under a
+// frame of its own, are aggregated in one pass by the CallTrees of the breakdowns, and written either in the folded
+// stack format of flame graph tools or as a self-contained SVG or HTML page. There is a line or a frame per distinct
+// path, so the output stays small however large the trace is.
+public class FlameGraph {
+
+    public enum Format {
+        FOLDED, SVG, HTML
+    }
+
+    private static final int WIDTH = 1200;
+    private static final int FRAME_HEIGHT = 16;
+    private static final int FONT_SIZE = 12;
+    private static final double FONT_WIDTH = 0.59;
+    private static final int TOP = 36;
+    private static final int BOTTOM = 8;
+    // Frames narrower than this many pixels are left out, and so are their children
+    private static final double MIN_WIDTH = 0.1;
+
+    private static void help() {
+        System.out.println("This tool is used to produce a flame graph of the spans of a trace file");
+        System.out.println("Expected arguments are:");
+        System.out.println("-f <file name>");
+        System.out.println("[-t [<pid>:]<tid>] for a single thread, all threads by default");
+        System.out.println("[-format <folded|svg|html>] [-o <output file name>]");
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0 || args.length % 2 != 0) {
+            System.out.println("Incorrect use. Arguments come in pairs");
+            help();
+            System.exit(1);
+        }
+        String fileName = null;
+        String output = null;
+        Pair<String, Long> thread = null;
+        Format format = Format.FOLDED;
+        for (int i = 0; i < args.length; i += 2) {
+            switch (args[i]) {
+                case "-f":
+                    fileName = args[i + 1];
+                    break;
+                case "-o":
+                    output = args[i + 1];
+                    break;
+                case "-t":
+                    int separator = args[i + 1].lastIndexOf(':');
+                    thread = Pair.of(separator < 0 ? null : args[i + 1].substring(0, separator),
+                            Long.parseLong(args[i + 1].substring(separator + 1)));
+                    break;
+                case "-format":
+                    try {
+                        format = Format.valueOf(args[i + 1].toUpperCase());
+                    } catch (IllegalArgumentException e) {
+                        System.out.println("Incorrect use. Unknown format: " + args[i + 1]);
+                        help();
+                        System.exit(1);
+                    }
+                    break;
+                default:
+                    System.out.println("Incorrect use. Unknown argument: " + args[i]);
+                    help();
+                    System.exit(1);
+            }
+        }
+        if (fileName == null) {
+            System.out.println("Incorrect use. Missing argument -f");
+            help();
+            System.exit(1);
+        }
+        File input = new File(fileName);
+        if (!input.exists()) {
+            System.out.println("File" + input.getAbsolutePath() + " doesn't exist");
+            System.exit(1);
+        }
+        if (output == null) {
+            String path = TraceInput.getPath(input);
+            int extension = path.lastIndexOf('.');
+            output = (extension > path.lastIndexOf(File.separatorChar) ? path.substring(0, extension) : path)
+                    + (thread == null ? "" : "." + thread.getLeft() + "." + thread.getRight())
+                    + ".flame." + format.name().toLowerCase();
+        }
+        CallTree calls = calls(input, thread);
+        System.out.println("Writing output to " + new File(output).getAbsolutePath());
+        try (Writer bw = new BufferedWriter(new FileWriter(output))) {
+            write(calls, format, input.getName() + (thread == null ? "" : " " + thread), bw);
+        }
+    }
+
+    // The call paths of the thread, or of all threads under a frame per thread if it is null
+    public static CallTree calls(File file, Pair<String, Long> thread) throws IOException, InterruptedException {
+        TimeBreaker.PerThread breakdowns = new ParallelTraceScanner<>(TimeBreaker.PerThread::new)
+                .failOnParseError(true).scan(file);
+        if (thread != null) {
+            TimeBreaker.Breakdown breakdown = breakdowns.get(thread);
+            if (breakdown == null) {
+                System.out.println("Thread " + thread + " isn't in " + file.getAbsolutePath());
+                return new CallTree();
+            }
+            return breakdown.getCalls();
+        }
+        CallTree all = new CallTree();
+        for (Pair<String, Long> each : breakdowns.getThreads()) {
+            CallTree calls = breakdowns.get(each).getCalls();
+            int[] targets = new int[calls.size()];
+            Arrays.fill(targets, all.child(0, each.toString()));
+            all.merge(calls, targets);
+        }
+        return all;
+    }
+
+    public static void write(CallTree calls, Format format, String title, Writer bw) throws IOException {
+        switch (format) {
+            case FOLDED:
+                calls.writeFolded(bw);
+                break;
+            case SVG:
+                writeSvg(calls, title, bw);
+                break;
+            case HTML:
+                bw.write("<!DOCTYPE html>\n<html>\n<head>\n<meta charset=\"utf-8\">\n<title>" + escape(title)
+                        + "</title>\n<style>body { margin: 0; }</style>\n</head>\n<body>\n");
+                writeSvg(calls, title, bw);
+                bw.write("</body>\n</html>\n");
+                break;
+        }
+    }
+
+    // Frames are as wide as the inclusive time of their path, children in name order on top of their parent
+    private static void writeSvg(CallTree calls, String title, Writer bw) throws IOException {
+        int[] order = calls.depthFirst();
+        int size = calls.size();
+        // A path can span more than its own time, like the frame of a thread that has only children
+        long[] widths = new long[size];
+        long[] childWidths = new long[size];
+        long total = 0;
+        for (int i = size - 1; i >= 0; i--) {
+            int node = order[i];
+            widths[node] = Long.max(calls.getTotal(node), childWidths[node]);
+            if (calls.isRoot(node)) {
+                total += widths[node];
+            } else {
+                childWidths[calls.getParent(node)] += widths[node];
+            }
+        }
+        double scale = total == 0 ? 0 : (double) WIDTH / total;
+        int[] depths = new int[size];
+        long[] starts = new long[size];
+        long[] nextStarts = new long[size];
+        int maxDepth = 0;
+        long rootStart = 0;
+        for (int node : order) {
+            if (calls.isRoot(node)) {
+                starts[node] = rootStart;
+                rootStart += widths[node];
+            } else {
+                int parent = calls.getParent(node);
+                depths[node] = depths[parent] + 1;
+                starts[node] = nextStarts[parent];
+                nextStarts[parent] += widths[node];
+                if (widths[node] * scale >= MIN_WIDTH) {
+                    maxDepth = Integer.max(maxDepth, depths[node]);
+                }
+            }
+            nextStarts[node] = starts[node];
+        }
+        int height = TOP + maxDepth * FRAME_HEIGHT + BOTTOM;
+        bw.write("<svg version=\"1.1\" xmlns=\"http://www.w3.org/2000/svg\" width=\"" + WIDTH + "\" height=\""
+                + height + "\" viewBox=\"0 0 " + WIDTH + " " + height + "\" font-family=\"Verdana\" font-size=\""
+                + FONT_SIZE + "\">\n");
+        bw.write("<rect x=\"0\" y=\"0\" width=\"100%\" height=\"100%\" fill=\"#f8f8f8\"/>\n");
+        bw.write("<text x=\"" + WIDTH / 2 + "\" y=\"24\" text-anchor=\"middle\" font-size=\"" + (FONT_SIZE + 5)
+                + "\">" + escape(title) + "</text>\n");
+        for (int node : order) {
+            double width = widths[node] * scale;
+            if (calls.isRoot(node) || width < MIN_WIDTH) {
+                continue;
+            }
+            String name = calls.getName(node);
+            double x = starts[node] * scale;
+            int y = height - BOTTOM - depths[node] * FRAME_HEIGHT;
+            bw.write("<g><title>" + escape(name) + " (" + widths[node] + "us, "
+                    + String.format("%.2f", 100.0 * widths[node] / total) + "%, self " + calls.getSelf(node)
+                    + "us, count " + calls.getCount(node) + ")</title>");
+            bw.write("<rect x=\"" + String.format("%.1f", x) + "\" y=\"" + y + "\" width=\""
+                    + String.format("%.1f", width) + "\" height=\"" + (FRAME_HEIGHT - 1) + "\" fill=\"" + color(name)
+                    + "\" rx=\"2\"/>");
+            int characters = (int) ((width - 6) / (FONT_SIZE * FONT_WIDTH));
+            if (characters >= 3) {
+                String label = name.length() <= characters ? name : name.substring(0, characters - 2) + "..";
+                bw.write("<text x=\"" + String.format("%.1f", x + 3) + "\" y=\"" + (y + FRAME_HEIGHT - 4) + "\">"
+                        + escape(label) + "</text>");
+            }
+            bw.write("</g>\n");
+        }
+        bw.write("</svg>\n");
+    }
+
+    // Warm colors that stay the same for a name from one graph to the next
+    private static String color(String name) {
+        int hash = name.hashCode() * 0x9E3779B9;
+        int red = 205 + ((hash >>> 24) % 50);
+        int green = (hash >>> 12 & 0xFFF) % 230;
+        int blue = (hash & 0xFFF) % 55;
+        return "rgb(" + red + "," + green + "," + blue + ")";
+    }
+
+    private static String escape(String text) {
+        return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+    }
+}
@@ -0,0 +1,430 @@
+package org.amoudi.trace;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+// Decompresses a gzip file made of many members, like BGZF or concatenated gzip files, on several threads.
+// The file is cut into segments that start at something that looks like a member header, and every segment is
+// inflated on its own, member by member, until it reaches the next segment. A segment is only used when it starts
+// where the previous one ended, so a header look-alike inside compressed data only costs wasted work. Where no
+// segment lines up, and for single member files, the members are inflated on the reading thread instead.
+class GzipTraceInputStream extends InputStream {
+
+    private static final int SEGMENT_SIZE = 256 << 10;
+    // Segments that inflate to more than this hand the rest of their member over to the reading thread
+    private static final int SEGMENT_OUTPUT_LIMIT = 32 << 20;
+    private static final int READ_SIZE = 64 << 10;
+    private static final int FLAG_HEADER_CRC = 2;
+    private static final int FLAG_EXTRA = 4;
+    private static final int FLAG_NAME = 8;
+    private static final int FLAG_COMMENT = 16;
+
+    private final FileChannel channel;
+    private final long size;
+    private final ForkJoinPool pool = ForkJoinPool.commonPool();
+    private final int window = 2 * Math.max(1, Runtime.getRuntime().availableProcessors());
+    private final ArrayDeque<Segment> ahead = new ArrayDeque<>();
+    // Size of ahead, for metrics read from other threads
+    private volatile int inFlight = 0;
+    // Where the next segment is looked for
+    private long nextSegment = 0;
+    // Compressed offset of the next member to read
+    private long expected = 0;
+    // Members inflated on the reading thread, when no segment lines up
+    private Members members;
+    private byte[] current = new byte[0];
+    private int position = 0;
+    private int limit = 0;
+    private byte[] streamBuffer;
+    private boolean ended = false;
+
+    GzipTraceInputStream(File file) throws IOException {
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        size = channel.size();
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (position == limit && !fill()) {
+            return -1;
+        }
+        return current[position++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        if (position == limit && !fill()) {
+            return -1;
+        }
+        int read = Math.min(length, limit - position);
+        System.arraycopy(current, position, bytes, offset, read);
+        position += read;
+        return read;
+    }
+
+    private boolean fill() throws IOException {
+        while (!ended) {
+            if (members != null) {
+                if (fillFromMembers()) {
+                    return true;
+                }
+                continue;
+            }
+            schedule();
+            while (!ahead.isEmpty() && ahead.peek().start < expected) {
+                ahead.poll().future.cancel(false);
+            }
+            Segment head = ahead.peek();
+            if (head != null && head.start == expected) {
+                ahead.poll();
+                inFlight = ahead.size();
+                Result result = join(head);
+                expected = result.end;
+                members = result.rest;
+                ended = result.last;
+                if (result.length > 0) {
+                    current = result.data;
+                    position = 0;
+                    limit = result.length;
+                    return true;
+                }
+                continue;
+            }
+            // Nothing starts where the last segment ended, go on from there on this thread
+            members = new Members(channel, expected);
+            if (!members.nextMember()) {
+                members.close();
+                members = null;
+                ended = true;
+            }
+        }
+        return false;
+    }
+
+    // Inflates the current member, and the following ones until a segment lines up with a member start
+    private boolean fillFromMembers() throws IOException {
+        if (members.inMember()) {
+            if (streamBuffer == null) {
+                streamBuffer = new byte[READ_SIZE * 4];
+            }
+            int read = members.inflate(streamBuffer, 0, streamBuffer.length);
+            if (read > 0) {
+                current = streamBuffer;
+                position = 0;
+                limit = read;
+                return true;
+            }
+            if (read == 0) {
+                return false;
+            }
+        }
+        expected = members.boundary();
+        schedule();
+        if (segmentAt(expected) || !members.nextMember()) {
+            if (!segmentAt(expected)) {
+                ended = true;
+            }
+            members.close();
+            members = null;
+        }
+        return false;
+    }
+
+    private boolean segmentAt(long start) {
+        for (Segment segment : ahead) {
+            if (segment.start == start) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Keeps up to window segments at or after the expected position in flight
+    private void schedule() throws IOException {
+        nextSegment = Math.max(nextSegment, expected);
+        while (ahead.size() < window && nextSegment < size) {
+            long start = findHeader(nextSegment);
+            if (start < 0) {
+                nextSegment = size;
+                break;
+            }
+            long stop = start + SEGMENT_SIZE;
+            ahead.add(new Segment(start, pool.submit(() -> inflateSegment(start, stop))));
+            nextSegment = stop;
+        }
+        inFlight = ahead.size();
+    }
+
+    // Segments scheduled and not read yet
+    int inFlight() {
+        return inFlight;
+    }
+
+    private Result inflateSegment(long start, long stop) throws IOException {
+        Members segment = new Members(channel, start);
+        byte[] data = new byte[SEGMENT_SIZE * 8];
+        int length = 0;
+        boolean last = true;
+        while (segment.nextMember()) {
+            int read;
+            while ((read = segment.inflate(data, length, data.length - length)) > 0) {
+                length += read;
+                if (length == data.length) {
+                    if (length >= SEGMENT_OUTPUT_LIMIT) {
+                        return new Result(data, length, segment.boundary(), segment, false);
+                    }
+                    data = Arrays.copyOf(data, data.length * 2);
+                }
+            }
+            if (segment.boundary() >= stop) {
+                last = segment.boundary() >= size;
+                break;
+            }
+        }
+        segment.close();
+        return new Result(data, length, segment.boundary(), null, last);
+    }
+
+    private static Result join(Segment segment) throws IOException {
+        try {
+            return segment.future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    // Offset of the first gzip member header look-alike at or after from, or -1 if there is none
+    private long findHeader(long from) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(READ_SIZE);
+        while (from < size) {
+            buffer.clear();
+            int read = channel.read(buffer, from);
+            if (read < 4) {
+                return -1;
+            }
+            for (int i = 0; i + 3 < read; i++) {
+                if (buffer.get(i) == 0x1F && buffer.get(i + 1) == (byte) 0x8B && buffer.get(i + 2) == 8
+                        && (buffer.get(i + 3) & 0xE0) == 0) {
+                    return from + i;
+                }
+            }
+            from += read - 3;
+        }
+        return -1;
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (Segment segment : ahead) {
+            segment.future.cancel(false);
+        }
+        ahead.clear();
+        inFlight = 0;
+        if (members != null) {
+            members.close();
+        }
+        channel.close();
+    }
+
+    private static class Segment {
+        private final long start;
+        private final Future<Result> future;
+
+        private Segment(long start, Future<Result> future) {
+            this.start = start;
+            this.future = future;
+        }
+    }
+
+    private static class Result {
+        private final byte[] data;
+        private final int length;
+        // Compressed offset right after the last complete member
+        private final long end;
+        // The member still being inflated when the output limit was hit
+        private final Members rest;
+        private final boolean last;
+
+        private Result(byte[] data, int length, long end, Members rest, boolean last) {
+            this.data = data;
+            this.length = length;
+            this.end = end;
+            this.rest = rest;
+            this.last = last;
+        }
+    }
+
+    // Inflates consecutive gzip members from a position of the file and keeps track of where each one ends
+    private static class Members {
+        private final FileChannel channel;
+        private final Inflater inflater = new Inflater(true);
+        private final CRC32 crc = new CRC32();
+        private final byte[] input = new byte[READ_SIZE];
+        // File offset of input[0]
+        private long inputPosition;
+        private int used = 0;
+        private int limit = 0;
+        private long boundary;
+        private boolean inMember = false;
+        private long memberLength = 0;
+
+        private Members(FileChannel channel, long position) {
+            this.channel = channel;
+            inputPosition = position;
+            boundary = position;
+        }
+
+        private boolean inMember() {
+            return inMember;
+        }
+
+        private long boundary() {
+            return boundary;
+        }
+
+        // Reads the header of the next member, returns false at the end of the file or at trailing garbage
+        private boolean nextMember() throws IOException {
+            if (!ensure(10) || (input[used] & 0xFF) != 0x1F || (input[used + 1] & 0xFF) != 0x8B
+                    || input[used + 2] != 8) {
+                return false;
+            }
+            int flags = input[used + 3] & 0xFF;
+            used += 10;
+            if ((flags & FLAG_EXTRA) != 0) {
+                require(2);
+                int extra = (input[used] & 0xFF) | (input[used + 1] & 0xFF) << 8;
+                used += 2;
+                skip(extra);
+            }
+            if ((flags & FLAG_NAME) != 0) {
+                skipString();
+            }
+            if ((flags & FLAG_COMMENT) != 0) {
+                skipString();
+            }
+            if ((flags & FLAG_HEADER_CRC) != 0) {
+                skip(2);
+            }
+            inflater.reset();
+            inflater.setInput(input, used, limit - used);
+            crc.reset();
+            memberLength = 0;
+            inMember = true;
+            return true;
+        }
+
+        // Returns the number of bytes inflated, or -1 once the member ended
+        private int inflate(byte[] bytes, int offset, int length) throws IOException {
+            while (true) {
+                int read;
+                try {
+                    read = inflater.inflate(bytes, offset, length);
+                } catch (DataFormatException e) {
+                    throw new ZipException(e.getMessage());
+                }
+                if (read > 0) {
+                    crc.update(bytes, offset, read);
+                    memberLength += read;
+                    return read;
+                }
+                if (inflater.finished()) {
+                    used = limit - inflater.getRemaining();
+                    require(8);
+                    long expectedCrc = readInt() & 0xFFFFFFFFL;
+                    long expectedLength = readInt() & 0xFFFFFFFFL;
+                    if (expectedCrc != crc.getValue() || expectedLength != (memberLength & 0xFFFFFFFFL)) {
+                        throw new ZipException("Corrupt gzip member ending at " + (inputPosition + used));
+                    }
+                    inMember = false;
+                    boundary = inputPosition + used;
+                    return -1;
+                }
+                if (inflater.needsDictionary()) {
+                    throw new ZipException("Gzip member needs a dictionary");
+                }
+                if (length == 0) {
+                    return 0;
+                }
+                used = limit;
+                if (!ensure(1)) {
+                    throw new EOFException("Unexpected end of gzip member");
+                }
+                inflater.setInput(input, used, limit - used);
+            }
+        }
+
+        // Makes count bytes available from used, returns false if the file ends first
+        private boolean ensure(int count) throws IOException {
+            if (limit - used >= count) {
+                return true;
+            }
+            System.arraycopy(input, used, input, 0, limit - used);
+            inputPosition += used;
+            limit -= used;
+            used = 0;
+            while (limit < count) {
+                int read = channel.read(ByteBuffer.wrap(input, limit, input.length - limit), inputPosition + limit);
+                if (read <= 0) {
+                    return false;
+                }
+                limit += read;
+            }
+            return true;
+        }
+
+        private void require(int count) throws IOException {
+            if (!ensure(count)) {
+                throw new EOFException("Unexpected end of gzip member");
+            }
+        }
+
+        private void skip(int count) throws IOException {
+            while (count > 0) {
+                require(1);
+                int skipped = Math.min(count, limit - used);
+                used += skipped;
+                count -= skipped;
+            }
+        }
+
+        private void skipString() throws IOException {
+            do {
+                require(1);
+            } while (input[used++] != 0);
+        }
+
+        private int readInt() {
+            int value = (input[used] & 0xFF) | (input[used + 1] & 0xFF) << 8 | (input[used + 2] & 0xFF) << 16
+                    | (input[used + 3] & 0xFF) << 24;
+            used += 4;
+            return value;
+        }
+
+        private void close() {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package org.amoudi.trace;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+// The JFR events of ScanEvents. Only built on JDK 11 and later, by the jfr profile, and loaded reflectively so the
+// rest of the analyzer still builds and runs on Java 8.
+final class JfrScanEvents implements ScanEvents.Recorder {
+
+    private static final String CATEGORY = "Trace Analyzer";
+
+    JfrScanEvents() {
+        // Fails here, and not at the first event, if jdk.jfr can't be linked
+        new Analysis().isEnabled();
+    }
+
+    @Override
+    public Object begin(ScanEvents.Span span) {
+        Event event;
+        if (span instanceof ScanEvents.FileScan) {
+            event = new FileScan();
+        } else if (span instanceof ScanEvents.ChunkScan) {
+            event = new ChunkScan();
+        } else if (span instanceof ScanEvents.Read) {
+            event = new Read();
+        } else if (span instanceof ScanEvents.Finish) {
+            event = new Finish();
+        } else {
+            event = new Analysis();
+        }
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public boolean shouldCommit(Object event) {
+        return ((Event) event).shouldCommit();
+    }
+
+    @Override
+    public void commit(Object event, ScanEvents.Span span) {
+        if (event instanceof FileScan) {
+            FileScan fileScan = (FileScan) event;
+            ScanEvents.FileScan values = (ScanEvents.FileScan) span;
+            fileScan.file = values.file;
+            fileScan.lines = values.lines;
+            fileScan.failures = values.failures;
+            fileScan.cached = values.cached;
+        } else if (event instanceof ChunkScan) {
+            ((ChunkScan) event).start = ((ScanEvents.ChunkScan) span).start;
+            ((ChunkScan) event).end = ((ScanEvents.ChunkScan) span).end;
+        } else if (event instanceof Read) {
+            ((Read) event).bytes = ((ScanEvents.Read) span).bytes;
+        } else if (event instanceof Finish) {
+            ((Finish) event).consumer = ((ScanEvents.Finish) span).consumer;
+            ((Finish) event).stage = ((ScanEvents.Finish) span).stage;
+        } else if (event instanceof Analysis) {
+            ((Analysis) event).file = ((ScanEvents.Analysis) span).file;
+        }
+        ((Event) event).commit();
+    }
+
+    @Name("org.amoudi.trace.FileScan")
+    @Label("Trace Scan")
+    @Category(CATEGORY)
+    static class FileScan extends Event {
+        @Label("File")
+        String file;
+        @Label("Lines")
+        long lines;
+        @Label("Parse Failures")
+        long failures;
+        @Label("From Cache")
+        boolean cached;
+    }
+
+    @Name("org.amoudi.trace.ChunkScan")
+    @Label("Trace Chunk Scan")
+    @Category(CATEGORY)
+    static class ChunkScan extends Event {
+        @Label("Start")
+        @DataAmount
+        long start;
+        @Label("End")
+        @DataAmount
+        long end;
+    }
+
+    @Name("org.amoudi.trace.Read")
+    @Label("Trace Read")
+    @Category(CATEGORY)
+    static class Read extends Event {
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name("org.amoudi.trace.Finish")
+    @Label("Consumer Finish")
+    @Category(CATEGORY)
+    static class Finish extends Event {
+        @Label("Consumer")
+        String consumer;
+        @Label("Stage")
+        String stage;
+    }
+
+    @Name("org.amoudi.trace.Analysis")
+    @Label("Trace Analysis")
+    @Category(CATEGORY)
+    static class Analysis extends Event {
+        @Label("File")
+        String file;
+    }
+}
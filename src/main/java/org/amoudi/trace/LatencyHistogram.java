@@ -0,0 +1,141 @@
+package org.amoudi.trace;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+// Log bucketed histogram of non-negative values, in the spirit of HdrHistogram. Every power of two range is split
+// into 2^SUB_BUCKET_BITS linear buckets, so a recorded value is off by less than 1% and the bucket array never grows
+// beyond a few thousand counts. Two histograms merge by adding their counts, which loses nothing.
+// Sum, min, max and count are kept exactly next to the buckets. The buckets are only allocated once two different
+// values were recorded, since the values of a histogram that only saw one are known from its min: most span names of
+// flushes and merges are unique and only ever get a single duration.
+public class LatencyHistogram implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    // Null while every recorded value is the same
+    private long[] counts = null;
+    private long count = 0;
+    private long sum = 0;
+    private long min = Long.MAX_VALUE;
+    private long max = Long.MIN_VALUE;
+
+    public void record(long value) {
+        record(value, 1);
+    }
+
+    // Records value as if it was seen times times. Negative values are kept exactly in the sum and min, and count as 0
+    // in the buckets, so the percentiles of the values below 0 are 0, or max if every value was negative.
+    public void record(long value, long times) {
+        if (times <= 0) {
+            return;
+        }
+        if (counts == null) {
+            if (count == 0 || (value == min && value == max)) {
+                count += times;
+                sum += value * times;
+                min = value;
+                max = value;
+                return;
+            }
+            allocate();
+        }
+        count += times;
+        sum += value * times;
+        min = Long.min(min, value);
+        max = Long.max(max, value);
+        int index = index(Long.max(0, value));
+        if (index >= counts.length) {
+            counts = Arrays.copyOf(counts, Integer.max(index + 1, counts.length * 2));
+        }
+        counts[index] += times;
+    }
+
+    public void merge(LatencyHistogram other) {
+        if (other.counts == null) {
+            record(other.min, other.count);
+            return;
+        }
+        if (counts == null) {
+            allocate();
+        }
+        if (other.counts.length > counts.length) {
+            counts = Arrays.copyOf(counts, other.counts.length);
+        }
+        for (int i = 0; i < other.counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+        count += other.count;
+        sum += other.sum;
+        min = Long.min(min, other.min);
+        max = Long.max(max, other.max);
+    }
+
+    // Buckets for the values recorded so far, which were all equal to min
+    private void allocate() {
+        counts = new long[2 * SUB_BUCKETS];
+        if (count > 0) {
+            int index = index(Long.max(0, min));
+            if (index >= counts.length) {
+                counts = Arrays.copyOf(counts, index + 1);
+            }
+            counts[index] = count;
+        }
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getSum() {
+        return sum;
+    }
+
+    public long getMin() {
+        return min;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    // Smallest recorded value that at least percentile percent of the values are less than or equal to, up to the
+    // bucket precision
+    public long getValueAtPercentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        if (counts == null) {
+            return min;
+        }
+        long rank = Long.max(1, (long) Math.ceil(percentile / 100.0 * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Long.min(max, Long.max(min, highestEquivalent(i)));
+            }
+        }
+        return max;
+    }
+
+    // Values below 2 * SUB_BUCKETS get their own bucket, above that every bucket covers 2^shift values
+    private static int index(long value) {
+        int shift = Integer.max(0, 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS);
+        return (shift << SUB_BUCKET_BITS) + (int) (value >>> shift);
+    }
+
+    private static long highestEquivalent(int index) {
+        int shift = Integer.max(0, (index >> SUB_BUCKET_BITS) - 1);
+        long subBucket = index - ((long) shift << SUB_BUCKET_BITS);
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+    public String percentiles(String unit) {
+        return "p50 = " + getValueAtPercentile(50) + unit + ", p90 = " + getValueAtPercentile(90) + unit
+                + ", p99 = " + getValueAtPercentile(99) + unit + ", p99.9 = " + getValueAtPercentile(99.9) + unit;
+    }
+}
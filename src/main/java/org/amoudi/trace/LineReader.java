@@ -0,0 +1,104 @@
+package org.amoudi.trace;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+// Reads newline delimited lines as ranges of a reusable byte buffer. The range is only valid until the next call.
+public class LineReader implements Closeable {
+
+    private static final int INITIAL_BUFFER_SIZE = 1 << 20;
+
+    private final InputStream in;
+    private byte[] buffer;
+    private int limit = 0;
+    private int next = 0;
+    private boolean eof = false;
+    private int start;
+    private int end;
+    // Offset in the stream of buffer[0]
+    private long base = 0;
+
+    public LineReader(InputStream in) {
+        this(in, INITIAL_BUFFER_SIZE);
+    }
+
+    public LineReader(InputStream in, int bufferSize) {
+        this.in = in;
+        this.buffer = new byte[Math.max(bufferSize, 1)];
+    }
+
+    // Reads the lines of bytes[0, length) in place
+    public LineReader(byte[] bytes, int length) {
+        this.in = null;
+        this.buffer = bytes;
+        this.limit = length;
+        this.eof = true;
+    }
+
+    public boolean next() throws IOException {
+        int scan = next;
+        while (true) {
+            for (int i = scan; i < limit; i++) {
+                if (buffer[i] == '\n') {
+                    start = next;
+                    end = i;
+                    next = i + 1;
+                    return true;
+                }
+            }
+            if (eof) {
+                if (next < limit) {
+                    start = next;
+                    end = limit;
+                    next = limit;
+                    return true;
+                }
+                return false;
+            }
+            // Keep the partial line and read more
+            int remaining = limit - next;
+            if (next > 0) {
+                System.arraycopy(buffer, next, buffer, 0, remaining);
+            } else if (remaining == buffer.length) {
+                byte[] grown = new byte[buffer.length * 2];
+                System.arraycopy(buffer, 0, grown, 0, remaining);
+                buffer = grown;
+            }
+            base += next;
+            next = 0;
+            limit = remaining;
+            scan = remaining;
+            int read = in.read(buffer, limit, buffer.length - limit);
+            if (read < 0) {
+                eof = true;
+            } else {
+                limit += read;
+            }
+        }
+    }
+
+    public byte[] buffer() {
+        return buffer;
+    }
+
+    public int start() {
+        return start;
+    }
+
+    public int end() {
+        return end;
+    }
+
+    // Offset in the stream of the current line
+    public long offset() {
+        return base + start;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (in != null) {
+            in.close();
+        }
+    }
+}
@@ -1,32 +1,28 @@
 package org.amoudi.trace;
 
-import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 import java.io.*;
-import java.text.Format;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Stack;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 public class LineageComputer {
     private static final String KEY_NAME = "name";
     private static final String KEY_CATEGORY = "cat";
     private static final String KEY_PHASE = "ph";
-    private static final String KEY_TIMESTAMP = "ts";
-    private static final String KEY_ARGS = "args";
-    private static final String KEY_SIZE = "size";
     private static final String CATEGORY_FLUSH = "flush";
     private static final String CATEGORY_MERGE = "merge";
-    private static final String PHASE_BEGIN = "B";
-    private static final String PHASE_END = "E";
     private static final String DATE_SAMPLE = "2017-10-17-23-08-06-570";
     private static final String SUFFIX_SAMPLE = DATE_SAMPLE + "_" + DATE_SAMPLE + "_b";
+    private static final int DATE_LENGTH = DATE_SAMPLE.length();
     private static final int SUFFIX_LENGTH = SUFFIX_SAMPLE.length();
-    private static final Format FORMATTER = new SimpleDateFormat("yyyy-MM-dd-HH-mm-ss-SSS");
+    private static final byte[] FLUSH_BYTES = EventDecoder.bytes(CATEGORY_FLUSH);
+    private static final byte[] MERGE_BYTES = EventDecoder.bytes(CATEGORY_MERGE);
+    private static final byte[] BEGIN_BYTES = EventDecoder.bytes("B");
+    private static final byte[] END_BYTES = EventDecoder.bytes("E");
+    private static final long INVALID_DATE = Long.MIN_VALUE;
+    private static final ObjectMapper MAPPER = new ObjectMapper();
 
     private static void help() {
         System.out.println("This class is used to compute the tree of flushes and merges."
@@ -40,179 +36,391 @@ public class LineageComputer {
         if (!file.exists()) {
             throw new Exception("File" + file.getAbsolutePath() + " doesn't exist");
         }
-        ObjectMapper om = new ObjectMapper();
-        String outputFileName = file.getAbsolutePath();
+        String outputFileName = TraceInput.getPath(file);
         outputFileName = outputFileName.substring(0, outputFileName.lastIndexOf('.')) + ".lineage.txt";
         System.out.println("Writing output to " + outputFileName);
         File outputFile = new File(outputFileName);
-        Map<Long, Integer> time2Num = new HashMap<>();
-        int counter = 0;
-        Stack<JsonNode> flushStarts = new Stack<>();
-        Stack<JsonNode> mergeStarts = new Stack<>();
-        try (BufferedWriter bw = new BufferedWriter(new FileWriter(outputFile));
-             BufferedReader br = new BufferedReader(new FileReader(file))) {
+        try (BufferedWriter bw = new BufferedWriter(new FileWriter(outputFile))) {
             bw.write("[\n");
-            boolean first = true;
-            for (String line; (line = br.readLine()) != null;) {
-                line = line.trim();
-                if (!line.startsWith("{")) {
-                    System.out.println(line + " doesn't contain a json object");
-                    continue;
-                }
-                line = line.substring(0, line.lastIndexOf('}') + 1);
-                JsonNode json;
-                try {
-                    json = om.readTree(line);
-                } catch (Exception e) {
-                    System.err.println("Failed parsing: " + line);
-                    throw e;
-                }
-                JsonNode property = json.findValue(KEY_NAME);
-                if (property == null) {
-                    System.out.println(line + " doesn't contain a " + KEY_NAME + " field");
-                    help();
-                    System.exit(1);
-                }
-                String fileName = property.asText();
-                if (fileName == null || fileName.length() == 0) {
-                    System.out.println(line + " doesn't contain a " + KEY_NAME + " field of type String");
-                    help();
-                    System.exit(1);
-                }
-                // Get Category
-                JsonNode categoryNode = json.findValue(KEY_CATEGORY);
-                if (categoryNode == null) {
-                    System.out.println(line + " doesn't contain a " + KEY_CATEGORY + " field");
-                    help();
-                    System.exit(1);
+            new TraceScanner().failOnParseError(true).register(new Lineage(bw)).scan(file);
+            bw.write("\n]");
+        }
+        return outputFile;
+    }
+
+    private static class Lineage implements TraceConsumer {
+        private final Writer bw;
+        private final IndexLineage lineage = new IndexLineage("");
+        // Begin and end dates of the current component
+        private final long[] dates = new long[2];
+        private boolean first = true;
+
+        private Lineage(Writer bw) {
+            this.bw = bw;
+        }
+
+        @Override
+        public void declare(EventDecoder decoder) {
+            decoder.require(TraceEvent.NAME | TraceEvent.CATEGORY | TraceEvent.PHASE | TraceEvent.TIMESTAMP
+                    | TraceEvent.ARGS_SIZE);
+        }
+
+        @Override
+        public void accept(TraceEvent event) throws IOException {
+            if (!event.hasText(TraceEvent.SLOT_NAME)) {
+                System.out.println(event.line() + " doesn't contain a " + KEY_NAME + " field");
+                help();
+                System.exit(1);
+            }
+            if (isEmpty(event, TraceEvent.SLOT_NAME)) {
+                System.out.println(event.line() + " doesn't contain a " + KEY_NAME + " field of type String");
+                help();
+                System.exit(1);
+            }
+            // Get Category
+            if (!event.hasText(TraceEvent.SLOT_CATEGORY)) {
+                System.out.println(event.line() + " doesn't contain a " + KEY_CATEGORY + " field");
+                help();
+                System.exit(1);
+            }
+            if (isEmpty(event, TraceEvent.SLOT_CATEGORY)) {
+                System.out.println(event.line() + " doesn't contain a " + KEY_CATEGORY + " field of type String");
+                help();
+                System.exit(1);
+            }
+
+            // Get phase
+            if (!event.hasText(TraceEvent.SLOT_PHASE)) {
+                System.out.println(event.line() + " doesn't contain a " + KEY_PHASE + " field");
+                help();
+                System.exit(1);
+            }
+            if (isEmpty(event, TraceEvent.SLOT_PHASE)) {
+                System.out.println(event.line() + " doesn't contain a " + KEY_PHASE + " field of type String");
+                help();
+                System.exit(1);
+            }
+            boolean begin = event.textEquals(TraceEvent.SLOT_PHASE, BEGIN_BYTES);
+            if (!(begin || event.textEquals(TraceEvent.SLOT_PHASE, END_BYTES))) {
+                System.out.println(event.line() + " doesn't contain a begin or end duration trace");
+                return;
+            }
+            boolean flush = event.textEquals(TraceEvent.SLOT_CATEGORY, FLUSH_BYTES);
+            if (!(flush || event.textEquals(TraceEvent.SLOT_CATEGORY, MERGE_BYTES))) {
+                System.out.println(event.line() + " doesn't contain a " + KEY_CATEGORY + " field of either "
+                        + CATEGORY_FLUSH + " or " + CATEGORY_MERGE);
+                help();
+                System.exit(1);
+            }
+            if (!parseComponent(event.textBuffer, event.textStart[TraceEvent.SLOT_NAME],
+                    event.textEnd[TraceEvent.SLOT_NAME], dates)) {
+                System.out.println(event.line() + " doesn't contain a " + KEY_NAME + " ending with a component like "
+                        + SUFFIX_SAMPLE);
+                help();
+                System.exit(1);
+            }
+            if (begin) {
+                lineage.begin(flush, event.timestamp());
+                return;
+            }
+            if (!lineage.isOpen(flush)) {
+                System.out.println(event.line() + " ends a " + (flush ? CATEGORY_FLUSH : CATEGORY_MERGE)
+                        + " that didn't begin");
+                help();
+                System.exit(1);
+            }
+            long duration = lineage.end(flush, event.timestamp());
+            // get size
+            if (!event.has(TraceEvent.ARGS_SIZE)) {
+                return;
+            }
+            if (first) {
+                first = false;
+            } else {
+                bw.write(",\n");
+            }
+            if (flush) {
+                bw.write("{\"op\":\"flush\", \"id\":\"" + lineage.flushed(dates[0]) + "\", \"duration\":"
+                        + duration + ", \"size\":" + event.size() + "}");
+            } else {
+                int from = lineage.getNumber(dates[0]);
+                int to = lineage.getNumber(dates[1]);
+                lineage.merged(from, to);
+                bw.write("{\"op\":\"merge\",\"id\":\"" + flushNumber(from) + "-" + flushNumber(to)
+                        + "\", \"duration\":" + duration + ", \"size\":" + event.size() + "}");
+            }
+        }
+
+        @Override
+        public void finish() {
+        }
+    }
+
+    // Demultiplexes the flushes and merges of a whole trace by index in a single pass. The index of an event is its
+    // name without the component suffix, and every index gets its own lineage and tree. The lineage records of all
+    // indexes are streamed to the writer as they complete, only the open operations and the flush numbers stay in
+    // memory. Events of other categories, and names without a component suffix, are skipped.
+    public static class PerIndex implements TraceConsumer {
+        // Null if the records are kept with their index instead
+        private final Writer bw;
+        private final StringBuilder record = new StringBuilder();
+        private final NameTable names = new NameTable();
+        private final List<IndexLineage> indexes = new ArrayList<>();
+        // Index names as JSON strings
+        private final List<String> quotedNames = new ArrayList<>();
+        private final long[] dates = new long[2];
+        private boolean first = true;
+        private long unmatched = 0;
+
+        // Records are written as the elements of a JSON array
+        public PerIndex(Writer bw) {
+            this.bw = bw;
+        }
+
+        // Keeps the records of every index with its IndexLineage, one per line, for writeRecords
+        public PerIndex() {
+            this(null);
+        }
+
+        @Override
+        public void declare(EventDecoder decoder) {
+            decoder.require(TraceEvent.NAME | TraceEvent.CATEGORY | TraceEvent.PHASE | TraceEvent.TIMESTAMP
+                    | TraceEvent.ARGS_SIZE);
+        }
+
+        @Override
+        public void accept(TraceEvent event) throws IOException {
+            boolean flush = event.textEquals(TraceEvent.SLOT_CATEGORY, FLUSH_BYTES);
+            if (!(flush || event.textEquals(TraceEvent.SLOT_CATEGORY, MERGE_BYTES))
+                    || !event.hasText(TraceEvent.SLOT_NAME) || !event.has(TraceEvent.TIMESTAMP)) {
+                return;
+            }
+            boolean begin = event.textEquals(TraceEvent.SLOT_PHASE, BEGIN_BYTES);
+            if (!begin && !event.textEquals(TraceEvent.SLOT_PHASE, END_BYTES)) {
+                return;
+            }
+            byte[] buffer = event.textBuffer;
+            int from = event.textStart[TraceEvent.SLOT_NAME];
+            int to = event.textEnd[TraceEvent.SLOT_NAME];
+            if (!parseComponent(buffer, from, to, dates)) {
+                return;
+            }
+            int indexEnd = to - SUFFIX_LENGTH;
+            if (indexEnd > from && buffer[indexEnd - 1] == '/') {
+                indexEnd--;
+            }
+            int id = names.getOrAdd(buffer, from, indexEnd);
+            if (id == indexes.size()) {
+                String name = names.getName(id);
+                if (event.textEscaped[TraceEvent.SLOT_NAME]) {
+                    String unescaped = event.name();
+                    name = unescaped.substring(0, Math.max(0, unescaped.length() - (to - indexEnd)));
                 }
-                String categoryString = categoryNode.asText();
-                if (categoryString == null || categoryString.length() == 0) {
-                    System.out.println(line + " doesn't contain a " + KEY_CATEGORY + " field of type String");
-                    help();
-                    System.exit(1);
+                IndexLineage added = new IndexLineage(name);
+                if (bw == null) {
+                    added.records = new StringBuilder();
                 }
+                indexes.add(added);
+                quotedNames.add(MAPPER.writeValueAsString(name));
+            }
+            IndexLineage lineage = indexes.get(id);
+            if (begin) {
+                lineage.begin(flush, event.timestamp());
+                return;
+            }
+            if (!lineage.isOpen(flush)) {
+                unmatched++;
+                return;
+            }
+            long duration = lineage.end(flush, event.timestamp());
+            if (!event.has(TraceEvent.ARGS_SIZE)) {
+                return;
+            }
+            record.setLength(0);
+            record.append("{\"index\":").append(quotedNames.get(id));
+            if (flush) {
+                record.append(", \"op\":\"flush\", \"id\":\"").append(lineage.flushed(dates[0]));
+            } else {
+                int number = lineage.getNumber(dates[0]);
+                int last = lineage.getNumber(dates[1]);
+                lineage.merged(number, last);
+                record.append(", \"op\":\"merge\", \"id\":\"").append(flushNumber(number)).append('-')
+                        .append(flushNumber(last));
+            }
+            record.append("\", \"duration\":").append(duration).append(", \"size\":").append(event.size())
+                    .append('}');
+            if (bw == null) {
+                lineage.records.append(record).append('\n');
+                return;
+            }
+            bw.write(first ? "[\n" : ",\n");
+            first = false;
+            bw.append(record);
+        }
 
-                // Get phase
-                JsonNode phaseNode = json.findValue(KEY_PHASE);
-                if (phaseNode == null) {
-                    System.out.println(line + " doesn't contain a " + KEY_PHASE + " field");
-                    help();
-                    System.exit(1);
-                }
-                String phaseString = phaseNode.asText();
-                if (phaseString == null || phaseString.length() == 0) {
-                    System.out.println(line + " doesn't contain a " + KEY_PHASE + " field of type String");
-                    help();
-                    System.exit(1);
+        @Override
+        public void finish() throws IOException {
+            if (bw != null) {
+                bw.write(first ? "[\n]" : "\n]");
+            }
+            first = false;
+        }
+
+        // Indexes in the order they first appeared
+        public List<IndexLineage> getIndexes() {
+            return indexes;
+        }
+
+        // Ends of flushes or merges that had no open begin in their index
+        public long getUnmatched() {
+            return unmatched;
+        }
+    }
+
+    // Lineage of a single index. Flushes are numbered in the order they end, and a merge is named after the numbers
+    // of the flushes that made its oldest and newest components. Open operations are stacks of their start times.
+    public static class IndexLineage {
+        private final String name;
+        // Flush number of every component by the begin date in its name
+        private final LongIntMap time2Num = new LongIntMap();
+        private final TreeHeightComputer.Tree tree = new TreeHeightComputer.Tree();
+        private long[] flushStarts = new long[4];
+        private int openFlushes = 0;
+        private long[] mergeStarts = new long[4];
+        private int openMerges = 0;
+        private int counter = 0;
+        private int merges = 0;
+        // Lineage records, one per line, when PerIndex keeps them
+        private StringBuilder records;
+
+        private IndexLineage(String name) {
+            this.name = name;
+        }
+
+        private void begin(boolean flush, long timestamp) {
+            if (flush) {
+                if (openFlushes == flushStarts.length) {
+                    flushStarts = Arrays.copyOf(flushStarts, openFlushes * 2);
                 }
-                if (!(phaseString.equals(PHASE_BEGIN) || phaseString.equals(PHASE_END))) {
-                    System.out.println(line + " doesn't contain a begin or end duration trace");
-                    continue;
+                flushStarts[openFlushes++] = timestamp;
+            } else {
+                if (openMerges == mergeStarts.length) {
+                    mergeStarts = Arrays.copyOf(mergeStarts, openMerges * 2);
                 }
+                mergeStarts[openMerges++] = timestamp;
+            }
+        }
 
-                // format
-                // 2017-10-17-23-08-06-570_2017-10-17-23-08-06-570_b
-                int lengthOfFileName = fileName.length();
-                int beginIndex = lengthOfFileName - SUFFIX_LENGTH;
-                String range = fileName.substring(beginIndex, beginIndex + SUFFIX_LENGTH - 2);
-                String begin = range.substring(DATE_SAMPLE.length() + 1);
-                Date beginDate = parse(begin);
-                switch (categoryString) {
-                    case CATEGORY_FLUSH:
-                        switch (phaseString) {
-                            case PHASE_BEGIN:
-                                flushStarts.push(json);
-                                break;
-                            case PHASE_END:
-                                // get the start
-                                JsonNode startJson = flushStarts.pop();
-                                // get start time
-                                long startTimestamp = startJson.findValue(KEY_TIMESTAMP).asLong();
-                                // get end time
-                                long endTimestamp = json.findValue(KEY_TIMESTAMP).asLong();
-                                // get size
-                                JsonNode args = json.findValue(KEY_ARGS);
-                                if (args == null) {
-                                    System.out.println(line + " doesn't contain args");
-                                    help();
-                                    System.exit(1);
-                                }
-                                JsonNode sizeField = args.findValue(KEY_SIZE);
-                                if (sizeField == null) {
-                                    break;
-                                }
-                                long size = sizeField.asLong();
-                                long duration = endTimestamp - startTimestamp;
-                                // get start date as long
-                                time2Num.put(beginDate.getTime(), counter);
-                                if (first) {
-                                    first = false;
-                                } else {
-                                    bw.write(",\n");
-                                }
-                                bw.write("{\"op\":\"flush\", \"id\":\"" + counter + "\", \"duration\":" + duration
-                                        + ", \"size\":" + size + "}");
-
-                                counter++;
-                                break;
-                        }
-                        break;
-                    case CATEGORY_MERGE:
-                        switch (phaseString) {
-                            case PHASE_BEGIN:
-                                mergeStarts.push(json);
-                                break;
-                            case PHASE_END:
-                                // get the start
-                                JsonNode startJson = mergeStarts.pop();
-                                // get start time
-                                long startTimestamp = startJson.findValue(KEY_TIMESTAMP).asLong();
-                                // get end time
-                                long endTimestamp = json.findValue(KEY_TIMESTAMP).asLong();
-                                // get size
-                                JsonNode args = json.findValue(KEY_ARGS);
-                                if (args == null) {
-                                    System.out.println(line + " doesn't contain args");
-                                    help();
-                                    System.exit(1);
-                                }
-                                JsonNode sizeField = args.findValue(KEY_SIZE);
-                                if (sizeField == null) {
-                                    break;
-                                }
-                                long size = sizeField.asLong();
-                                long duration = endTimestamp - startTimestamp;
-
-                                // get start date as long
-                                String end = range.substring(0, DATE_SAMPLE.length());
-                                Date endDate = parse(end);
-                                if (first) {
-                                    first = false;
-                                } else {
-                                    bw.write(",\n");
-                                }
-                                bw.write("{\"op\":\"merge\",\"id\":\"" + time2Num.get(beginDate.getTime()) + "-"
-                                        + time2Num.get(endDate.getTime()) + "\", \"duration\":" + duration
-                                        + ", \"size\":" + size + "}");
-                                // get start date as long
-                                // get end date as long
-                                break;
-                        }
-                        break;
-                    default:
-                        System.out.println(line + " doesn't contain a " + KEY_CATEGORY + " field of either "
-                                + CATEGORY_FLUSH + " or " + CATEGORY_MERGE);
-                        help();
-                        System.exit(1);
-                }
+        private boolean isOpen(boolean flush) {
+            return (flush ? openFlushes : openMerges) > 0;
+        }
+
+        // Closes the latest open operation and returns its duration
+        private long end(boolean flush, long timestamp) {
+            return timestamp - (flush ? flushStarts[--openFlushes] : mergeStarts[--openMerges]);
+        }
+
+        private int flushed(long beginDate) {
+            time2Num.put(beginDate, counter);
+            tree.flush(counter);
+            return counter++;
+        }
+
+        // Flush number of the component with this begin date, or -1 if it was flushed before the trace started
+        private int getNumber(long date) {
+            return time2Num.get(date);
+        }
+
+        private void merged(int from, int to) {
+            merges++;
+            if (from >= 0 && to >= from) {
+                tree.merge(from, to);
             }
-            bw.write("\n]");
         }
-        return outputFile;
+
+        public String getName() {
+            return name;
+        }
+
+        public int getFlushes() {
+            return counter;
+        }
+
+        public int getMerges() {
+            return merges;
+        }
+
+        // Writes the records of this index, one per line, and returns whether there were any
+        public boolean writeRecords(Writer out) throws IOException {
+            if (records == null) {
+                throw new IllegalStateException("The records of " + name + " were written as they completed");
+            }
+            out.append(records);
+            return records.length() > 0;
+        }
+
+        public TreeHeightComputer.Tree getTree() {
+            return tree;
+        }
     }
 
-    private static Date parse(String date) throws ParseException {
-        return (Date) FORMATTER.parseObject(date);
+    private static String flushNumber(int number) {
+        return number < 0 ? "null" : Integer.toString(number);
+    }
+
+    private static boolean isEmpty(TraceEvent event, int slot) {
+        return event.textEnd[slot] == event.textStart[slot];
+    }
+
+    // Parses the dates of a name in buffer[from, to) that ends with a component suffix, like
+    // 2017-10-17-23-08-06-570_2017-10-17-23-08-06-570_b, where the first date is the newest one. dates[0] gets the
+    // oldest date and dates[1] the newest. Returns false if the name doesn't end with such a suffix.
+    private static boolean parseComponent(byte[] buffer, int from, int to, long[] dates) {
+        int start = to - SUFFIX_LENGTH;
+        if (start < from || buffer[start + DATE_LENGTH] != '_') {
+            return false;
+        }
+        dates[1] = parseDate(buffer, start);
+        dates[0] = parseDate(buffer, start + DATE_LENGTH + 1);
+        return dates[0] != INVALID_DATE && dates[1] != INVALID_DATE;
+    }
+
+    // Milliseconds since the epoch of a yyyy-MM-dd-HH-mm-ss-SSS date at p, taken as UTC, or INVALID_DATE.
+    // The dates only name components, so the time zone doesn't matter as long as all of them are read the same way.
+    private static long parseDate(byte[] buffer, int p) {
+        int year = digits(buffer, p, 4);
+        int month = digits(buffer, p + 5, 2);
+        int day = digits(buffer, p + 8, 2);
+        int hour = digits(buffer, p + 11, 2);
+        int minute = digits(buffer, p + 14, 2);
+        int second = digits(buffer, p + 17, 2);
+        int milli = digits(buffer, p + 20, 3);
+        if ((year | month | day | hour | minute | second | milli) < 0 || month < 1 || month > 12 || day < 1
+                || day > 31 || hour > 23 || minute > 59 || second > 59 || buffer[p + 4] != '-'
+                || buffer[p + 7] != '-' || buffer[p + 10] != '-' || buffer[p + 13] != '-' || buffer[p + 16] != '-'
+                || buffer[p + 19] != '-') {
+            return INVALID_DATE;
+        }
+        // Days since the epoch of the proleptic Gregorian date, counting years from March
+        int y = month <= 2 ? year - 1 : year;
+        int era = y / 400;
+        int yearOfEra = y - era * 400;
+        int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        long days = era * 146097L + dayOfEra - 719468;
+        return ((days * 24 + hour) * 60 + minute) * 60_000L + second * 1000L + milli;
+    }
+
+    // Value of count decimal digits at p, or -1 if one of them isn't a digit
+    private static int digits(byte[] buffer, int p, int count) {
+        int value = 0;
+        for (int i = p; i < p + count; i++) {
+            int digit = buffer[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
     }
 }
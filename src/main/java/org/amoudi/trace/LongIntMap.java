@@ -0,0 +1,76 @@
+package org.amoudi.trace;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+// Open addressing map from long keys to non-negative int values, without boxing
+class LongIntMap implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final int INITIAL_CAPACITY = 16;
+    private static final int EMPTY = -1;
+
+    private long[] keys = new long[INITIAL_CAPACITY];
+    private int[] values = new int[INITIAL_CAPACITY];
+    private int size = 0;
+
+    LongIntMap() {
+        Arrays.fill(values, EMPTY);
+    }
+
+    // The value of the key, or -1 if there is none
+    int get(long key) {
+        int mask = keys.length - 1;
+        for (int b = hash(key) & mask; values[b] != EMPTY; b = (b + 1) & mask) {
+            if (keys[b] == key) {
+                return values[b];
+            }
+        }
+        return EMPTY;
+    }
+
+    void put(long key, int value) {
+        int mask = keys.length - 1;
+        int b = hash(key) & mask;
+        for (; values[b] != EMPTY; b = (b + 1) & mask) {
+            if (keys[b] == key) {
+                values[b] = value;
+                return;
+            }
+        }
+        keys[b] = key;
+        values[b] = value;
+        if (++size * 2 > keys.length) {
+            grow();
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new long[oldKeys.length * 2];
+        values = new int[oldKeys.length * 2];
+        Arrays.fill(values, EMPTY);
+        int mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldValues[i] != EMPTY) {
+                int b = hash(oldKeys[i]) & mask;
+                while (values[b] != EMPTY) {
+                    b = (b + 1) & mask;
+                }
+                keys[b] = oldKeys[i];
+                values[b] = oldValues[i];
+            }
+        }
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
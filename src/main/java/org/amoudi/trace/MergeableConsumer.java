@@ -0,0 +1,9 @@
+package org.amoudi.trace;
+
+// A consumer whose state can be combined with the state of another instance of the same consumer. This is what
+// lets ParallelTraceScanner feed every chunk of a file to its own instance and still get the sequential result.
+public interface MergeableConsumer<T extends MergeableConsumer<T>> extends TraceConsumer {
+
+    // Folds in the state of a consumer that was fed the events right after the ones this consumer was fed
+    void merge(T next);
+}
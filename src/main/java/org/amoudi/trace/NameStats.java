@@ -0,0 +1,118 @@
+package org.amoudi.trace;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+// Aggregates values by name. Names are interned by a NameTable, and the exact stats of every name are kept in
+// parallel primitive arrays indexed by its id, next to a LatencyHistogram for its percentiles. Once a name was seen,
+// recording a value for it doesn't allocate.
+public class NameStats implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final NameTable names = new NameTable();
+    private long[] counts = new long[INITIAL_CAPACITY];
+    private long[] sums = new long[INITIAL_CAPACITY];
+    private long[] mins = new long[INITIAL_CAPACITY];
+    private long[] maxs = new long[INITIAL_CAPACITY];
+    private LatencyHistogram[] histograms = new LatencyHistogram[INITIAL_CAPACITY];
+
+    // Id of the name in a text field of the event, the name is added if it wasn't seen yet
+    public int intern(TraceEvent event, int slot) {
+        return ensure(names.getOrAdd(event, slot));
+    }
+
+    public int intern(String name) {
+        return ensure(names.getOrAdd(name));
+    }
+
+    public void record(int id, long value) {
+        record(id, value, 1);
+    }
+
+    // Records value as if it was seen times times
+    public void record(int id, long value, long times) {
+        if (times <= 0) {
+            return;
+        }
+        counts[id] += times;
+        sums[id] += value * times;
+        mins[id] = Long.min(mins[id], value);
+        maxs[id] = Long.max(maxs[id], value);
+        histograms[id].record(value, times);
+    }
+
+    public void merge(NameStats other) {
+        for (int i = 0; i < other.size(); i++) {
+            int id = intern(other.getName(i));
+            counts[id] += other.counts[i];
+            sums[id] += other.sums[i];
+            mins[id] = Long.min(mins[id], other.mins[i]);
+            maxs[id] = Long.max(maxs[id], other.maxs[i]);
+            histograms[id].merge(other.histograms[i]);
+        }
+    }
+
+    // Number of interned names, some of them may have no values yet
+    public int size() {
+        return names.size();
+    }
+
+    public String getName(int id) {
+        return names.getName(id);
+    }
+
+    public long getCount(int id) {
+        return counts[id];
+    }
+
+    public long getSum(int id) {
+        return sums[id];
+    }
+
+    public long getMin(int id) {
+        return mins[id];
+    }
+
+    public long getMax(int id) {
+        return maxs[id];
+    }
+
+    public LatencyHistogram getHistogram(int id) {
+        return histograms[id];
+    }
+
+    // Ids of all the names in name order, which doesn't depend on the order they were interned in, like it does
+    // between a sequential scan and merged chunks
+    public int[] idsByName() {
+        Integer[] ids = new Integer[size()];
+        for (int id = 0; id < ids.length; id++) {
+            ids[id] = id;
+        }
+        Arrays.sort(ids, (a, b) -> getName(a).compareTo(getName(b)));
+        int[] sorted = new int[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            sorted[i] = ids[i];
+        }
+        return sorted;
+    }
+
+    private int ensure(int id) {
+        if (id >= counts.length) {
+            int capacity = Integer.max(id + 1, counts.length * 2);
+            counts = Arrays.copyOf(counts, capacity);
+            sums = Arrays.copyOf(sums, capacity);
+            mins = Arrays.copyOf(mins, capacity);
+            maxs = Arrays.copyOf(maxs, capacity);
+            histograms = Arrays.copyOf(histograms, capacity);
+        }
+        if (histograms[id] == null) {
+            mins[id] = Long.MAX_VALUE;
+            maxs[id] = Long.MIN_VALUE;
+            histograms[id] = new LatencyHistogram();
+        }
+        return id;
+    }
+}
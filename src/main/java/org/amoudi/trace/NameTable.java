@@ -0,0 +1,130 @@
+package org.amoudi.trace;
+
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+// Interns names given as byte ranges, every distinct name gets a dense id. Looking up a known name doesn't allocate,
+// so per event state can be kept in arrays indexed by the id instead of maps keyed by Strings.
+public class NameTable implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private byte[][] keys = new byte[INITIAL_CAPACITY][];
+    private int[] hashes = new int[INITIAL_CAPACITY];
+    // id + 1 of the name in every bucket, 0 for an empty bucket
+    private int[] buckets = new int[INITIAL_CAPACITY];
+    private final List<String> names = new ArrayList<>();
+
+    // Id of the name in buffer[from, to), or -1 if it isn't in the table
+    public int get(byte[] buffer, int from, int to) {
+        int hash = hash(buffer, from, to);
+        int mask = buckets.length - 1;
+        for (int b = hash & mask; buckets[b] != 0; b = (b + 1) & mask) {
+            if (hashes[b] == hash && equals(keys[b], buffer, from, to)) {
+                return buckets[b] - 1;
+            }
+        }
+        return -1;
+    }
+
+    public int getOrAdd(byte[] buffer, int from, int to) {
+        int id = get(buffer, from, to);
+        if (id >= 0) {
+            return id;
+        }
+        if ((names.size() + 1) * 2 > buckets.length) {
+            grow();
+        }
+        byte[] key = new byte[to - from];
+        System.arraycopy(buffer, from, key, 0, key.length);
+        id = names.size();
+        names.add(new String(key, StandardCharsets.UTF_8));
+        insert(key, hash(key, 0, key.length), id);
+        return id;
+    }
+
+    // Id of a text field of the event, or -1 if it isn't in the table or the event doesn't have the field
+    public int get(TraceEvent event, int slot) {
+        if (!event.hasText(slot)) {
+            return -1;
+        }
+        if (event.textEscaped[slot]) {
+            byte[] text = EventDecoder.bytes(event.text(slot));
+            return get(text, 0, text.length);
+        }
+        return get(event.textBuffer, event.textStart[slot], event.textEnd[slot]);
+    }
+
+    // A missing field is interned as "null", like String.valueOf would print it
+    public int getOrAdd(TraceEvent event, int slot) {
+        if (!event.hasText(slot)) {
+            return getOrAdd(String.valueOf((Object) null));
+        }
+        if (event.textEscaped[slot]) {
+            return getOrAdd(event.text(slot));
+        }
+        return getOrAdd(event.textBuffer, event.textStart[slot], event.textEnd[slot]);
+    }
+
+    public int getOrAdd(String name) {
+        byte[] key = name.getBytes(StandardCharsets.UTF_8);
+        return getOrAdd(key, 0, key.length);
+    }
+
+    public String getName(int id) {
+        return names.get(id);
+    }
+
+    public int size() {
+        return names.size();
+    }
+
+    private void insert(byte[] key, int hash, int id) {
+        int mask = buckets.length - 1;
+        int b = hash & mask;
+        while (buckets[b] != 0) {
+            b = (b + 1) & mask;
+        }
+        keys[b] = key;
+        hashes[b] = hash;
+        buckets[b] = id + 1;
+    }
+
+    private void grow() {
+        byte[][] oldKeys = keys;
+        int[] oldHashes = hashes;
+        int[] oldBuckets = buckets;
+        keys = new byte[oldBuckets.length * 2][];
+        hashes = new int[oldBuckets.length * 2];
+        buckets = new int[oldBuckets.length * 2];
+        for (int b = 0; b < oldBuckets.length; b++) {
+            if (oldBuckets[b] != 0) {
+                insert(oldKeys[b], oldHashes[b], oldBuckets[b] - 1);
+            }
+        }
+    }
+
+    private static boolean equals(byte[] key, byte[] buffer, int from, int to) {
+        if (key.length != to - from) {
+            return false;
+        }
+        for (int i = 0; i < key.length; i++) {
+            if (key[i] != buffer[from + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int hash(byte[] buffer, int from, int to) {
+        int h = 0x811C9DC5;
+        for (int i = from; i < to; i++) {
+            h = (h ^ buffer[i]) * 0x01000193;
+        }
+        return h ^ (h >>> 16);
+    }
+}
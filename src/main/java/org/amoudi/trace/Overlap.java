@@ -0,0 +1,518 @@
+package org.amoudi.trace;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.BufferedWriter;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+// How the spans of two sets overlap across threads, like the time ingestion threads spend while storage threads
+// flush or merge. A thread is busy in a set while any of its open spans, at any depth, matches the set's predicates.
+// Every thread is read as its own stream of span boundaries and the streams of all threads of all files are merged
+// by timestamp with a heap, sweeping the time from the first to the last boundary: at every point the number of
+// threads busy in each set is known, which gives the overlap, the time without any work of a set and the time
+// spent at every concurrency level. The state is a cursor and a stack per thread, so memory grows with the number
+// of threads, not of events.
+// The threads of a file are found as contiguous regions of a trace sorted by (pid, tid, ts), so a trace that isn't
+// sorted is sorted by TraceSorter into a temporary file first.
+public class Overlap {
+
+    private static final byte PHASE_BEGIN = 'B';
+    private static final byte PHASE_END = 'E';
+    private static final int READ_BUFFER = 64 << 10;
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final Map<String, List<String>> first;
+    private final Map<String, List<String>> second;
+    private long bucketWidth = 0;
+    private Writer timeline = null;
+
+    // Totals of the sweep
+    private long start = Long.MIN_VALUE;
+    private long last;
+    private int busyFirst = 0;
+    private int busySecond = 0;
+    private long firstTime = 0;
+    private long secondTime = 0;
+    private long bothTime = 0;
+    private long neitherTime = 0;
+    // Sum of the time of every busy thread of the first set, and of the part of it the second set was busy too
+    private long firstThreadTime = 0;
+    private long firstThreadTimeDuringSecond = 0;
+    private long secondThreadTime = 0;
+    // Time at every number of busy threads
+    private long[] firstLevels = new long[1];
+    private long[] secondLevels = new long[1];
+    private int threads = 0;
+    // The bucket of the timeline being filled
+    private long bucket = Long.MIN_VALUE;
+    private long bucketFirst;
+    private long bucketSecond;
+    private long bucketBoth;
+
+    private static void help() {
+        System.out.println("This tool is used to measure how the spans of two sets overlap across the threads of"
+                + " trace files");
+        System.out.println("Expected arguments are:");
+        System.out.println("-f <file name>[,<file name>,...]");
+        System.out.println("[-a <field>=<value>,<value>...] spans of the first set, name="
+                + TraceGenerator.INGESTION + " by default");
+        System.out.println("[-b <field>=<value>,<value>...] spans of the second set, cat=flush,merge by default");
+        System.out.println("[-bucket <width in us>] for a timeline of the concurrency with one JSON line per bucket");
+        System.out.println("[-o <output file name>]");
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0 || args.length % 2 != 0) {
+            System.out.println("Incorrect use. Arguments come in pairs");
+            help();
+            System.exit(1);
+        }
+        List<File> files = new ArrayList<>();
+        Map<String, List<String>> first = new HashMap<>();
+        Map<String, List<String>> second = new HashMap<>();
+        long bucketWidth = 0;
+        String output = null;
+        for (int i = 0; i < args.length; i += 2) {
+            switch (args[i]) {
+                case "-f":
+                    for (String fileName : args[i + 1].split(",")) {
+                        File input = new File(fileName);
+                        if (!input.exists()) {
+                            System.out.println("File" + input.getAbsolutePath() + " doesn't exist");
+                            System.exit(1);
+                        }
+                        files.add(input);
+                    }
+                    break;
+                case "-a":
+                case "-b":
+                    int separator = args[i + 1].indexOf('=');
+                    if (separator <= 0) {
+                        System.out.println("Incorrect use. Malformed predicate: " + args[i + 1]);
+                        help();
+                        System.exit(1);
+                    }
+                    (args[i].equals("-a") ? first : second).computeIfAbsent(args[i + 1].substring(0, separator),
+                            field -> new ArrayList<>())
+                            .addAll(Arrays.asList(args[i + 1].substring(separator + 1).split(",")));
+                    break;
+                case "-bucket":
+                    bucketWidth = Long.parseLong(args[i + 1]);
+                    break;
+                case "-o":
+                    output = args[i + 1];
+                    break;
+                default:
+                    System.out.println("Incorrect use. Unknown argument: " + args[i]);
+                    help();
+                    System.exit(1);
+            }
+        }
+        if (files.isEmpty()) {
+            System.out.println("Incorrect use. Missing argument -f");
+            help();
+            System.exit(1);
+        }
+        if (first.isEmpty()) {
+            first.put("name", Collections.singletonList(TraceGenerator.INGESTION));
+        }
+        if (second.isEmpty()) {
+            second.put("cat", Arrays.asList("flush", "merge"));
+        }
+        try (Writer bw = new BufferedWriter(output == null ? new OutputStreamWriter(System.out)
+                : new FileWriter(output))) {
+            Overlap overlap = new Overlap(first, second);
+            if (bucketWidth > 0) {
+                overlap.timeline(bucketWidth, bw);
+            }
+            overlap.compute(files);
+            overlap.write(bw);
+        }
+    }
+
+    // Each set is a map of fields to values, a span is in it if any of its fields has one of the values
+    public Overlap(Map<String, List<String>> first, Map<String, List<String>> second) {
+        this.first = first;
+        this.second = second;
+    }
+
+    // Writes the concurrency of every bucketWidth us of the sweep to out as it goes, one JSON object per line
+    public Overlap timeline(long bucketWidth, Writer out) {
+        if (bucketWidth <= 0) {
+            throw new IllegalArgumentException("Bucket width must be positive");
+        }
+        this.bucketWidth = bucketWidth;
+        this.timeline = out;
+        return this;
+    }
+
+    public void compute(List<File> files) throws IOException {
+        PriorityQueue<Cursor> heap = new PriorityQueue<>((a, b) -> a.time != b.time ? Long.compare(a.time, b.time)
+                : Integer.compare(a.index, b.index));
+        List<Cursor> cursors = new ArrayList<>();
+        List<File> temporary = new ArrayList<>();
+        try {
+            for (File file : files) {
+                // Sorted next to the trace like the runs of TraceSorter, and deleted once the sweep is done
+                File output = Files.createTempFile(file.getAbsoluteFile().getParentFile().toPath(), "overlap-",
+                        ".json").toFile();
+                temporary.add(output);
+                File sorted = new TraceSorter().sort(file, output);
+                // Every thread is read from its own offset, which a compressed trace could only reach by inflating
+                // everything before it, so an already sorted compressed trace is inflated to the temp file once
+                if (TraceInput.isCompressed(sorted)) {
+                    try (InputStream in = TraceInput.open(sorted)) {
+                        Files.copy(in, output.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                    }
+                    sorted = output;
+                }
+                for (long offset : threadOffsets(sorted)) {
+                    Cursor cursor = new Cursor(sorted, offset, cursors.size());
+                    cursors.add(cursor);
+                    if (cursor.advance()) {
+                        heap.add(cursor);
+                    }
+                }
+            }
+            threads = cursors.size();
+            firstLevels = new long[threads + 1];
+            secondLevels = new long[threads + 1];
+            while (!heap.isEmpty()) {
+                Cursor cursor = heap.poll();
+                sweep(cursor.time);
+                busyFirst += (cursor.first ? 1 : 0) - (cursor.busyFirst ? 1 : 0);
+                busySecond += (cursor.second ? 1 : 0) - (cursor.busySecond ? 1 : 0);
+                cursor.busyFirst = cursor.first;
+                cursor.busySecond = cursor.second;
+                if (cursor.advance()) {
+                    heap.add(cursor);
+                }
+            }
+            flushBucket();
+        } finally {
+            for (Cursor cursor : cursors) {
+                cursor.close();
+            }
+            for (File output : temporary) {
+                Files.deleteIfExists(output.toPath());
+            }
+        }
+    }
+
+    // Accounts the time since the last boundary to the current number of busy threads
+    private void sweep(long time) throws IOException {
+        if (start == Long.MIN_VALUE) {
+            start = time;
+            last = time;
+            return;
+        }
+        long elapsed = time - last;
+        if (elapsed <= 0) {
+            return;
+        }
+        if (busyFirst > 0) {
+            firstTime += elapsed;
+        }
+        if (busySecond > 0) {
+            secondTime += elapsed;
+            firstThreadTimeDuringSecond += busyFirst * elapsed;
+        }
+        if (busyFirst > 0 && busySecond > 0) {
+            bothTime += elapsed;
+        }
+        if (busyFirst == 0 && busySecond == 0) {
+            neitherTime += elapsed;
+        }
+        firstThreadTime += busyFirst * elapsed;
+        secondThreadTime += busySecond * elapsed;
+        firstLevels[busyFirst] += elapsed;
+        secondLevels[busySecond] += elapsed;
+        if (timeline != null) {
+            for (long from = last; from < time; ) {
+                long index = Math.floorDiv(from, bucketWidth);
+                if (index != bucket) {
+                    flushBucket();
+                    bucket = index;
+                }
+                long to = Long.min(time, (index + 1) * bucketWidth);
+                bucketFirst += busyFirst * (to - from);
+                bucketSecond += busySecond * (to - from);
+                if (busyFirst > 0 && busySecond > 0) {
+                    bucketBoth += to - from;
+                }
+                from = to;
+            }
+        }
+        last = time;
+    }
+
+    private void flushBucket() throws IOException {
+        if (timeline == null || bucket == Long.MIN_VALUE) {
+            return;
+        }
+        ObjectNode line = MAPPER.createObjectNode();
+        line.put("start", bucket * bucketWidth);
+        line.put("end", (bucket + 1) * bucketWidth);
+        line.put("first", (double) bucketFirst / bucketWidth);
+        line.put("second", (double) bucketSecond / bucketWidth);
+        line.put("overlap", bucketBoth);
+        timeline.write(line.toString());
+        timeline.write("\n");
+        bucketFirst = 0;
+        bucketSecond = 0;
+        bucketBoth = 0;
+    }
+
+    public void write(Writer bw) throws IOException {
+        long total = start == Long.MIN_VALUE ? 0 : last - start;
+        bw.write("Overlap of " + first + " and " + second + " across " + threads + " threads\n");
+        bw.write("Start = (" + start + "), End = (" + last + "), Total time: " + total + "us\n");
+        bw.write("First set busy: " + firstTime + "us which is " + ratio(firstTime, total) + " of the whole time\n");
+        bw.write("Second set busy: " + secondTime + "us which is " + ratio(secondTime, total)
+                + " of the whole time\n");
+        bw.write("Both busy: " + bothTime + "us which is " + ratio(bothTime, total) + " of the whole time\n");
+        bw.write("First set busy without the second: " + (firstTime - bothTime) + "us which is "
+                + ratio(firstTime - bothTime, total) + " of the whole time\n");
+        bw.write("Second set idle: " + (total - secondTime) + "us which is " + ratio(total - secondTime, total)
+                + " of the whole time\n");
+        bw.write("Neither busy: " + neitherTime + "us which is " + ratio(neitherTime, total) + " of the whole time\n");
+        bw.write("First set thread time: " + firstThreadTime + "us, " + firstThreadTimeDuringSecond + "us of it while"
+                + " the second set was busy which is " + ratio(firstThreadTimeDuringSecond, firstThreadTime) + "\n");
+        bw.write("Second set thread time: " + secondThreadTime + "us\n");
+        bw.write("Average concurrency while busy: first = " + ratio(firstThreadTime, firstTime) + ", second = "
+                + ratio(secondThreadTime, secondTime) + "\n");
+        writeLevels("First set", firstLevels, total, bw);
+        writeLevels("Second set", secondLevels, total, bw);
+        bw.flush();
+    }
+
+    private static void writeLevels(String set, long[] levels, long total, Writer bw) throws IOException {
+        Map<Integer, Long> busy = new LinkedHashMap<>();
+        for (int level = 0; level < levels.length; level++) {
+            if (levels[level] > 0) {
+                busy.put(level, levels[level]);
+            }
+        }
+        bw.write(set + " time by busy threads: " + busy + "\n");
+    }
+
+    private static double ratio(long part, long whole) {
+        return whole == 0 ? 0 : (double) part / (double) whole;
+    }
+
+    // Offsets of the first event of every thread of a sorted trace, where its contiguous region starts
+    private static List<Long> threadOffsets(File file) throws IOException {
+        List<Long> offsets = new ArrayList<>();
+        ThreadTable seen = new ThreadTable();
+        new TraceScanner().failOnParseError(true).register(new TraceConsumer() {
+            private int current = -1;
+
+            @Override
+            public void declare(EventDecoder decoder) {
+                decoder.require(TraceEvent.PID | TraceEvent.TID);
+            }
+
+            @Override
+            public void accept(TraceEvent event) throws IOException {
+                int id = seen.get(event);
+                if (id >= 0 && id == current) {
+                    return;
+                }
+                if (id >= 0) {
+                    throw new IOException(file.getAbsolutePath() + " isn't sorted by thread at " + event.offset());
+                }
+                current = seen.getOrAdd(event);
+                if (current >= 0) {
+                    offsets.add(event.offset());
+                }
+            }
+
+            @Override
+            public void finish() {
+            }
+        }).scan(file);
+        return offsets;
+    }
+
+    // Spans of either set matched by their begin event, fields to interned values like ThreadFinder.Collector
+    private static class SpanSet {
+        private final int[] slots;
+        private final NameTable[] values;
+
+        private SpanSet(Map<String, List<String>> predicates, EventDecoder decoder) {
+            slots = new int[predicates.size()];
+            values = new NameTable[predicates.size()];
+            int i = 0;
+            for (Map.Entry<String, List<String>> predicate : predicates.entrySet()) {
+                slots[i] = decoder.nestedText(predicate.getKey());
+                values[i] = new NameTable();
+                for (String value : predicate.getValue()) {
+                    values[i].getOrAdd(value);
+                }
+                i++;
+            }
+        }
+
+        private boolean matches(TraceEvent event) {
+            for (int i = 0; i < slots.length; i++) {
+                if (event.isTextual(slots[i]) && values[i].get(event, slots[i]) >= 0) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    // The span boundaries of one thread, read from its region of a sorted trace. Every call of advance moves to the
+    // next event that changes whether the thread is busy in either set, and the spans still open at the end of the
+    // thread are closed at its last event.
+    private class Cursor {
+        private static final int IN_FIRST = 1;
+        private static final int IN_SECOND = 2;
+
+        private final int index;
+        private final LineReader reader;
+        private final EventDecoder decoder = new EventDecoder();
+        private final TraceEvent event;
+        private final SpanSet firstSet;
+        private final SpanSet secondSet;
+        private final ThreadTable thread = new ThreadTable();
+        // Sets of every open span
+        private byte[] stack = new byte[16];
+        private int depth = 0;
+        private int openFirst = 0;
+        private int openSecond = 0;
+        private long lastTime = Long.MIN_VALUE;
+        private boolean done = false;
+        // The next boundary and whether the thread is busy in each set after it
+        private long time;
+        private boolean first;
+        private boolean second;
+        // Whether the thread is busy in each set as the sweep counts it
+        private boolean busyFirst = false;
+        private boolean busySecond = false;
+
+        private Cursor(File file, long offset, int index) throws IOException {
+            this.index = index;
+            decoder.require(TraceEvent.PID | TraceEvent.TID | TraceEvent.TIMESTAMP | TraceEvent.PHASE);
+            firstSet = new SpanSet(Overlap.this.first, decoder);
+            secondSet = new SpanSet(Overlap.this.second, decoder);
+            event = decoder.newEvent();
+            InputStream in = TraceInput.open(file);
+            try {
+                // The sorted file is plain, so skipping to the offset is a seek
+                for (long remaining = offset; remaining > 0; ) {
+                    long skipped = in.skip(remaining);
+                    if (skipped <= 0) {
+                        throw new EOFException("No thread at " + offset + " of " + file.getAbsolutePath());
+                    }
+                    remaining -= skipped;
+                }
+            } catch (IOException e) {
+                in.close();
+                throw e;
+            }
+            reader = new LineReader(in, READ_BUFFER);
+        }
+
+        private boolean advance() throws IOException {
+            while (!done) {
+                if (!next()) {
+                    done = true;
+                    openFirst = 0;
+                    openSecond = 0;
+                    if (busyFirst || busySecond) {
+                        time = lastTime;
+                        first = false;
+                        second = false;
+                        return true;
+                    }
+                    return false;
+                }
+                if (!event.has(TraceEvent.TIMESTAMP)) {
+                    continue;
+                }
+                lastTime = event.timestamp();
+                byte phase = event.phase();
+                if (phase == PHASE_BEGIN) {
+                    int sets = (firstSet.matches(event) ? IN_FIRST : 0) | (secondSet.matches(event) ? IN_SECOND : 0);
+                    if (depth == stack.length) {
+                        stack = Arrays.copyOf(stack, depth * 2);
+                    }
+                    stack[depth++] = (byte) sets;
+                    openFirst += sets & IN_FIRST;
+                    openSecond += (sets & IN_SECOND) >> 1;
+                } else if (phase == PHASE_END && depth > 0) {
+                    int sets = stack[--depth];
+                    openFirst -= sets & IN_FIRST;
+                    openSecond -= (sets & IN_SECOND) >> 1;
+                } else {
+                    continue;
+                }
+                if ((openFirst > 0) != busyFirst || (openSecond > 0) != busySecond) {
+                    time = lastTime;
+                    first = openFirst > 0;
+                    second = openSecond > 0;
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        // Decodes the next event of the thread, false at the end of its region
+        private boolean next() throws IOException {
+            while (reader.next()) {
+                byte[] buffer = reader.buffer();
+                int start = reader.start();
+                int end = reader.end();
+                while (start < end && buffer[start] <= ' ' && buffer[start] >= 0) {
+                    start++;
+                }
+                if (start == end || buffer[start] != '{') {
+                    continue;
+                }
+                int close = end - 1;
+                while (buffer[close] != '}' && close > start) {
+                    close--;
+                }
+                if (!decoder.decode(buffer, start, close + 1, event)) {
+                    throw new IOException("Failed parsing: " + new String(buffer, start, close + 1 - start,
+                            StandardCharsets.UTF_8));
+                }
+                if (!event.has(TraceEvent.TID)) {
+                    continue;
+                }
+                // The first event is the thread's own, the region ends at the first event of another thread
+                if (thread.size() == 0) {
+                    thread.getOrAdd(event);
+                } else if (thread.get(event) < 0) {
+                    return false;
+                }
+                return true;
+            }
+            return false;
+        }
+
+        private void close() throws IOException {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package org.amoudi.trace;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Supplier;
+
+// Splits a trace file into chunks that end on line boundaries and scans them on a ForkJoinPool, every chunk with
+// its own consumer. The chunk consumers are merged back in file order, so the result is the same as scanning the
+// whole file with one consumer.
+public class ParallelTraceScanner<T extends MergeableConsumer<T>> {
+
+    private static final long DEFAULT_CHUNK_SIZE = 64L << 20;
+    private static final int BOUNDARY_READ_SIZE = 64 << 10;
+    private static final int READ_BUFFER_SIZE = 1 << 20;
+
+    private final Supplier<T> factory;
+    private long chunkSize = DEFAULT_CHUNK_SIZE;
+    private ForkJoinPool pool = ForkJoinPool.commonPool();
+    private boolean failOnParseError = false;
+    private ScanMetrics metrics = ScanMetrics.global();
+
+    public ParallelTraceScanner(Supplier<T> factory) {
+        this.factory = factory;
+    }
+
+    public ParallelTraceScanner<T> chunkSize(long chunkSize) {
+        this.chunkSize = chunkSize;
+        return this;
+    }
+
+    public ParallelTraceScanner<T> pool(ForkJoinPool pool) {
+        this.pool = pool;
+        return this;
+    }
+
+    public ParallelTraceScanner<T> failOnParseError(boolean failOnParseError) {
+        this.failOnParseError = failOnParseError;
+        return this;
+    }
+
+    // Where the scans record their metrics, null for none
+    public ParallelTraceScanner<T> metrics(ScanMetrics metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
+    public T scan(File file) throws IOException {
+        TraceCache cache = TraceCache.open(file);
+        if (cache != null) {
+            T consumer = factory.get();
+            EventDecoder decoder = new EventDecoder();
+            consumer.declare(decoder);
+            if (cache.covers(decoder, failOnParseError)) {
+                cache.scan(decoder, Collections.singletonList(consumer));
+                TraceScanner.finish(consumer, metrics);
+                return consumer;
+            }
+        }
+        if (TraceInput.isCompressed(file)) {
+            // Compressed traces can't be split at byte offsets, they are inflated in parallel and parsed in order
+            T consumer = factory.get();
+            EventDecoder decoder = new EventDecoder();
+            consumer.declare(decoder);
+            InputStream in = TraceInput.open(file);
+            Closeable queue = metrics == null ? null : metrics.queue("inflate", ((GzipTraceInputStream) in)::inFlight);
+            try (LineReader reader = new LineReader(metrics == null ? in : metrics.meter(in))) {
+                new TraceScanner().failOnParseError(failOnParseError).metrics(metrics)
+                        .scan(reader, 0, decoder, Collections.singletonList(consumer));
+            } finally {
+                if (queue != null) {
+                    queue.close();
+                }
+            }
+            TraceScanner.finish(consumer, metrics);
+            return consumer;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            List<Long> bounds = split(channel);
+            T result;
+            Closeable queue = metrics == null ? null : metrics.queue("chunks", () -> (int) pool.getQueuedTaskCount());
+            try {
+                result = pool.invoke(new ChunkTask(channel, bounds, 0, bounds.size() - 1));
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            } finally {
+                if (queue != null) {
+                    queue.close();
+                }
+            }
+            TraceScanner.finish(result, metrics);
+            return result;
+        }
+    }
+
+    // Offsets where the chunks start, the last one is the file size
+    private List<Long> split(FileChannel channel) throws IOException {
+        long size = channel.size();
+        List<Long> bounds = new ArrayList<>();
+        bounds.add(0L);
+        ByteBuffer buffer = ByteBuffer.allocate(BOUNDARY_READ_SIZE);
+        for (long nominal = chunkSize; nominal < size; nominal += chunkSize) {
+            long bound = nextLineStart(channel, nominal - 1, size, buffer);
+            if (bound > bounds.get(bounds.size() - 1) && bound < size) {
+                bounds.add(bound);
+            }
+        }
+        bounds.add(size);
+        return bounds;
+    }
+
+    // Returns the offset right after the first newline at or after position
+    private static long nextLineStart(FileChannel channel, long position, long size, ByteBuffer buffer)
+            throws IOException {
+        while (position < size) {
+            buffer.clear();
+            int read = channel.read(buffer, position);
+            if (read <= 0) {
+                break;
+            }
+            for (int i = 0; i < read; i++) {
+                if (buffer.get(i) == '\n') {
+                    return position + i + 1;
+                }
+            }
+            position += read;
+        }
+        return size;
+    }
+
+    private T scanChunk(FileChannel channel, long start, long end) throws IOException {
+        ScanEvents.ChunkScan chunkEvent = new ScanEvents.ChunkScan();
+        chunkEvent.begin();
+        T consumer = factory.get();
+        EventDecoder decoder = new EventDecoder();
+        consumer.declare(decoder);
+        int bufferSize = (int) Math.min(READ_BUFFER_SIZE, end - start + 1);
+        InputStream in = new MappedInputStream(channel, start, end);
+        try (LineReader reader = new LineReader(metrics == null ? in : metrics.meter(in), bufferSize)) {
+            new TraceScanner().failOnParseError(failOnParseError).metrics(metrics)
+                    .scan(reader, start, decoder, Collections.singletonList(consumer));
+        }
+        chunkEvent.start = start;
+        chunkEvent.end = end;
+        chunkEvent.commit();
+        return consumer;
+    }
+
+    private class ChunkTask extends RecursiveTask<T> {
+        private static final long serialVersionUID = 1L;
+
+        private final FileChannel channel;
+        private final List<Long> bounds;
+        // Chunks [from, to)
+        private final int from;
+        private final int to;
+
+        private ChunkTask(FileChannel channel, List<Long> bounds, int from, int to) {
+            this.channel = channel;
+            this.bounds = bounds;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected T compute() {
+            if (to - from <= 1) {
+                try {
+                    return scanChunk(channel, bounds.get(from), bounds.get(to));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            int middle = (from + to) >>> 1;
+            ChunkTask right = new ChunkTask(channel, bounds, middle, to);
+            right.fork();
+            T left = new ChunkTask(channel, bounds, from, middle).compute();
+            left.merge(right.join());
+            return left;
+        }
+    }
+}
@@ -0,0 +1,696 @@
+package org.amoudi.trace;
+
+import org.apache.commons.lang3.tuple.Pair;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Keeps traces loaded between queries so an investigation doesn't pay a cold JVM and a full parse for every run of
+// ThreadFinder, ThreadExtractor, TraceFilter, TimeBreaker or LineageComputer. A single scan of every trace builds
+// what those queries need in compact form: the threads of every value of the built in text fields with the offset
+// they first had it at, the breakdown of every thread and the lineage of every index. find, breakdown and lineage
+// are then answered from memory, extract reads the threads through their ThreadIndex and filter is the only query
+// that scans the trace again. Answers are kept in an LRU cache bounded in bytes, and a trace that changed on disk
+// is loaded again before it is queried.
+// Queries are read one per line from stdin, or from connections to a port of the loopback interface, served one at
+// a time, where every answer ends with a line holding a single dot and answer lines starting with a dot get
+// another one. The same class is the client for such a port.
+public class QueryServer {
+
+    private static final String TERMINATOR = ".";
+    private static final String DEFAULT_OUTPUT_DIR = "analysis";
+    private static final long DEFAULT_CACHE_SIZE = 64L << 20;
+    private static final long MB = 1 << 20;
+
+    private final Map<File, Loaded> traces = new LinkedHashMap<>();
+    // Answers by query, least recently used first
+    private final LinkedHashMap<String, Answer> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private long cacheSize = DEFAULT_CACHE_SIZE;
+    private long cached = 0;
+    private long hits = 0;
+    private long misses = 0;
+
+    private static void help() {
+        System.out.println("This tool is used to load trace files once and answer queries about them");
+        System.out.println("Expected arguments are:");
+        System.out.println("[-f <file name>[,<file name>,...]] traces to load before the first query");
+        System.out.println("[-port <port>] to serve queries on the loopback interface, from stdin by default");
+        System.out.println("[-cache <size>] of the cached answers, like 64m which is the default");
+        System.out.println("or, to send queries to a server:");
+        System.out.println("-connect <port> [-q <query>]... from stdin without -q");
+        System.out.println();
+        queryHelp(new PrintWriter(System.out, true));
+    }
+
+    private static void queryHelp(PrintWriter out) {
+        out.println("Queries are:");
+        out.println("load <file name> | unload <file name>");
+        out.println("find [-f <file name>] <field 1> <value 1> ... <field n> <value n>");
+        out.println("extract [-f <file name>] [-o <dir>] (-t <[<pid>:]<tid>,...> | <field 1> <value 1> ...)");
+        out.println("filter [-f <file name>] (-x <expression> | -c<property> <key> ... | -e<property> <key> ...)");
+        out.println("breakdown [-f <file name>] [-paths] [<field 1> <value 1> ... <field n> <value n>]");
+        out.println("lineage [-f <file name>] [-i <index name>]");
+        out.println("stats | help | quit");
+        out.println("Values with spaces are written in double quotes. -f is the first loaded trace by default");
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length % 2 != 0) {
+            System.out.println("Incorrect use. Arguments come in pairs");
+            help();
+            System.exit(1);
+        }
+        QueryServer server = new QueryServer();
+        List<String> files = new ArrayList<>();
+        List<String> queries = new ArrayList<>();
+        int port = -1;
+        int connect = -1;
+        for (int i = 0; i < args.length; i += 2) {
+            switch (args[i]) {
+                case "-f":
+                    files.addAll(Arrays.asList(args[i + 1].split(",")));
+                    break;
+                case "-port":
+                    port = Integer.parseInt(args[i + 1]);
+                    break;
+                case "-cache":
+                    server.cacheSize(TraceGenerator.parseSize(args[i + 1]));
+                    break;
+                case "-connect":
+                    connect = Integer.parseInt(args[i + 1]);
+                    break;
+                case "-q":
+                    queries.add(args[i + 1]);
+                    break;
+                default:
+                    System.out.println("Incorrect use. Unknown argument: " + args[i]);
+                    help();
+                    System.exit(1);
+            }
+        }
+        if (connect >= 0) {
+            connect(connect, queries);
+            return;
+        }
+        for (String fileName : files) {
+            File input = new File(fileName);
+            if (!input.exists()) {
+                System.out.println("File" + input.getAbsolutePath() + " doesn't exist");
+                System.exit(1);
+            }
+            System.out.println(server.load(input));
+        }
+        if (port >= 0) {
+            server.serve(port);
+        } else {
+            server.repl();
+        }
+    }
+
+    public QueryServer cacheSize(long cacheSize) {
+        this.cacheSize = cacheSize;
+        evict();
+        return this;
+    }
+
+    private void repl() throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        for (String line = in.readLine(); line != null; line = in.readLine()) {
+            if (isQuit(line)) {
+                return;
+            }
+            System.out.print(answer(line));
+            System.out.flush();
+        }
+    }
+
+    // Serves the connections one after the other, which keeps the loaded traces and the cache single threaded
+    private void serve(int port) throws IOException {
+        try (ServerSocket serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())) {
+            System.out.println("Serving queries on " + serverSocket.getLocalSocketAddress());
+            while (true) {
+                try (Socket socket = serverSocket.accept();
+                     BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                             StandardCharsets.UTF_8));
+                     Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(),
+                             StandardCharsets.UTF_8))) {
+                    for (String line = in.readLine(); line != null && !isQuit(line); line = in.readLine()) {
+                        String answer = answer(line);
+                        if (answer.isEmpty()) {
+                            out.write(TERMINATOR + "\n");
+                            out.flush();
+                            continue;
+                        }
+                        for (String answerLine : answer.substring(0, answer.length() - 1).split("\n", -1)) {
+                            out.write(answerLine.startsWith(TERMINATOR) ? TERMINATOR + answerLine : answerLine);
+                            out.write("\n");
+                        }
+                        out.write(TERMINATOR + "\n");
+                        out.flush();
+                    }
+                } catch (IOException e) {
+                    System.out.println("Connection failed: " + e);
+                }
+            }
+        }
+    }
+
+    // Sends the queries, or the lines of stdin if there are none, to a server on the port and prints the answers
+    private static void connect(int port, List<String> queries) throws IOException {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                     StandardCharsets.UTF_8));
+             Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(),
+                     StandardCharsets.UTF_8))) {
+            BufferedReader stdin = queries.isEmpty()
+                    ? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8)) : null;
+            Iterator<String> next = queries.iterator();
+            while (true) {
+                String query = stdin == null ? (next.hasNext() ? next.next() : null) : stdin.readLine();
+                if (query == null || isQuit(query)) {
+                    return;
+                }
+                out.write(query + "\n");
+                out.flush();
+                for (String line = in.readLine(); line != null && !line.equals(TERMINATOR); line = in.readLine()) {
+                    System.out.println(line.startsWith(TERMINATOR) ? line.substring(1) : line);
+                }
+            }
+        }
+    }
+
+    private static boolean isQuit(String line) {
+        return line.trim().equals("quit") || line.trim().equals("exit");
+    }
+
+    // The answer to one query, every line ending with a new line, with the time it took on the last one
+    public String answer(String query) {
+        long start = System.nanoTime();
+        StringWriter text = new StringWriter();
+        String source;
+        try {
+            List<String> tokens = tokenize(query);
+            if (tokens.isEmpty()) {
+                return "";
+            }
+            source = execute(tokens, text);
+        } catch (IllegalArgumentException e) {
+            return "Incorrect query. " + e.getMessage() + "\n";
+        } catch (Exception e) {
+            return "Failed: " + e + "\n";
+        }
+        return text + "Answered in " + (System.nanoTime() - start) / 1000000L + "ms" + source + "\n";
+    }
+
+    // Writes the answer and returns where it came from
+    private String execute(List<String> tokens, Writer out) throws Exception {
+        String command = tokens.get(0);
+        List<String> arguments = tokens.subList(1, tokens.size());
+        switch (command) {
+            case "help":
+                StringWriter help = new StringWriter();
+                queryHelp(new PrintWriter(help));
+                out.write(help.toString());
+                return "";
+            case "stats":
+                stats(out);
+                return "";
+            case "load":
+            case "unload":
+                if (arguments.size() != 1) {
+                    throw new IllegalArgumentException(command + " takes a file name");
+                }
+                File file = new File(arguments.get(0)).getCanonicalFile();
+                if (command.equals("load")) {
+                    if (!file.exists()) {
+                        throw new IllegalArgumentException("File" + file.getAbsolutePath() + " doesn't exist");
+                    }
+                    out.write(load(file) + "\n");
+                } else {
+                    out.write(unload(file) + "\n");
+                }
+                return "";
+            case "find":
+            case "extract":
+            case "filter":
+            case "breakdown":
+            case "lineage":
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown query: " + command);
+        }
+        // The trace is the first argument pair when it is -f
+        Loaded trace;
+        if (arguments.size() >= 2 && arguments.get(0).equals("-f")) {
+            trace = get(new File(arguments.get(1)));
+            arguments = arguments.subList(2, arguments.size());
+        } else {
+            if (traces.isEmpty()) {
+                throw new IllegalArgumentException("No trace is loaded");
+            }
+            trace = get(traces.keySet().iterator().next());
+        }
+        String key = command + "\u0000" + trace.file.getPath() + "\u0000" + String.join("\u0000", arguments);
+        Answer answer = cache.get(key);
+        if (answer != null && (answer.output == null || answer.output.exists())) {
+            hits++;
+            out.write(answer.text);
+            return " from the cache";
+        }
+        misses++;
+        StringWriter text = new StringWriter();
+        File output = null;
+        switch (command) {
+            case "find":
+                text.write("Found the following matching threads: "
+                        + Arrays.toString(trace.find(predicates(arguments, 0)).toArray()) + "\n");
+                break;
+            case "extract":
+                output = extract(trace, arguments, text);
+                break;
+            case "filter":
+                output = filter(trace, arguments, text);
+                break;
+            case "breakdown":
+                // -paths adds the call paths of every breakdown
+                boolean callPaths = !arguments.isEmpty() && arguments.get(0).equals("-paths");
+                Map<String, List<String>> predicates = predicates(arguments, callPaths ? 1 : 0);
+                List<Pair<String, Long>> threads = predicates.isEmpty() ? trace.breakdowns.getThreads()
+                        : trace.find(predicates);
+                TimeBreaker.write(trace.breakdowns, threads, predicates.isEmpty(), callPaths, text);
+                break;
+            case "lineage":
+                lineage(trace, arguments, text);
+                break;
+        }
+        put(key, new Answer(text.toString(), output));
+        out.write(text.toString());
+        return "";
+    }
+
+    private File extract(Loaded trace, List<String> arguments, Writer out) throws Exception {
+        if (arguments.size() % 2 != 0) {
+            throw new IllegalArgumentException("Arguments come in pairs");
+        }
+        String outputDir = DEFAULT_OUTPUT_DIR;
+        List<Pair<String, Long>> threads = new ArrayList<>();
+        List<String> rest = new ArrayList<>();
+        for (int i = 0; i < arguments.size(); i += 2) {
+            switch (arguments.get(i)) {
+                case "-o":
+                    outputDir = arguments.get(i + 1);
+                    break;
+                case "-t":
+                    for (String thread : arguments.get(i + 1).split(",")) {
+                        int separator = thread.lastIndexOf(':');
+                        try {
+                            threads.add(Pair.of(separator < 0 ? null : thread.substring(0, separator),
+                                    Long.parseLong(thread.substring(separator + 1))));
+                        } catch (NumberFormatException e) {
+                            throw new IllegalArgumentException("Malformed thread: " + thread);
+                        }
+                    }
+                    break;
+                default:
+                    rest.add(arguments.get(i));
+                    rest.add(arguments.get(i + 1));
+            }
+        }
+        if (threads.isEmpty()) {
+            if (rest.isEmpty()) {
+                throw new IllegalArgumentException("Missing threads, either -t or predicates");
+            }
+            threads = trace.find(predicates(rest, 0));
+            if (threads.isEmpty()) {
+                out.write("No thread matches " + predicates(rest, 0) + "\n");
+                return null;
+            }
+        } else if (!rest.isEmpty()) {
+            throw new IllegalArgumentException("Either -t or predicates, not both");
+        }
+        File output = ThreadExtractor.extract(trace.file.getPath(), threads, outputDir, true);
+        out.write("Extracted " + threads + " to " + output.getAbsolutePath() + "\n");
+        return output;
+    }
+
+    private File filter(Loaded trace, List<String> arguments, Writer out) throws Exception {
+        if (arguments.size() % 2 != 0) {
+            throw new IllegalArgumentException("Arguments come in pairs");
+        }
+        File output;
+        if (arguments.size() == 2 && arguments.get(0).equals("-x")) {
+            // Compiled here first since TraceFilter exits on an expression it can't compile
+            FilterExpression.compile(arguments.get(1));
+            output = TraceFilter.filter(trace.file.getPath(), arguments.get(1));
+        } else {
+            Map<String, List<Pair<Character, String>>> predicates = new LinkedHashMap<>();
+            for (int i = 0; i < arguments.size(); i += 2) {
+                String key = arguments.get(i);
+                if (key.length() <= 2 || key.charAt(0) != '-' || (key.charAt(1) != 'c' && key.charAt(1) != 'e')) {
+                    throw new IllegalArgumentException("Malformed argument: " + key);
+                }
+                predicates.computeIfAbsent(key.substring(2), property -> new ArrayList<>())
+                        .add(Pair.of(key.charAt(1), arguments.get(i + 1)));
+            }
+            if (predicates.isEmpty()) {
+                throw new IllegalArgumentException("Missing predicates");
+            }
+            output = TraceFilter.filter(trace.file.getPath(), predicates);
+        }
+        out.write("Filtered to " + output.getAbsolutePath() + "\n");
+        return output;
+    }
+
+    // The summary of every index like in the Driver's report, or the lineage records of one index
+    private static void lineage(Loaded trace, List<String> arguments, Writer out) throws IOException {
+        if (arguments.isEmpty()) {
+            for (LineageComputer.IndexLineage index : trace.indexes) {
+                TreeHeightComputer.Tree tree = index.getTree();
+                out.write("Index: " + index.getName() + " flushes = " + index.getFlushes() + ", merges = "
+                        + index.getMerges() + ", components = " + tree.size() + ", max height = "
+                        + tree.getMaxHeight() + ", max weighted average height = " + tree.getMaxAverageHeight()
+                        + "\n");
+            }
+            if (trace.unmatched > 0) {
+                out.write(trace.unmatched + " flushes and merges ended without beginning\n");
+            }
+            return;
+        }
+        if (arguments.size() != 2 || !arguments.get(0).equals("-i")) {
+            throw new IllegalArgumentException("lineage only takes -i <index name>");
+        }
+        boolean records = false;
+        for (LineageComputer.IndexLineage index : trace.indexes) {
+            if (index.getName().equals(arguments.get(1))) {
+                records = index.writeRecords(out);
+                break;
+            }
+        }
+        if (!records) {
+            out.write("No lineage for index " + arguments.get(1) + "\n");
+        }
+    }
+
+    // Pairs of field and value from the index on, the values of a field are ORed like in ThreadFinder
+    private static Map<String, List<String>> predicates(List<String> arguments, int from) {
+        if ((arguments.size() - from) % 2 != 0) {
+            throw new IllegalArgumentException("Fields and values come in pairs");
+        }
+        Map<String, List<String>> predicates = new LinkedHashMap<>();
+        for (int i = from; i < arguments.size(); i += 2) {
+            predicates.computeIfAbsent(arguments.get(i), field -> new ArrayList<>()).add(arguments.get(i + 1));
+        }
+        return predicates;
+    }
+
+    private void stats(Writer out) throws IOException {
+        Runtime runtime = Runtime.getRuntime();
+        out.write("Heap used: " + (runtime.totalMemory() - runtime.freeMemory()) / MB + "MB, committed: "
+                + runtime.totalMemory() / MB + "MB, max: " + runtime.maxMemory() / MB + "MB\n");
+        for (Loaded trace : traces.values()) {
+            out.write("Trace " + trace.file.getPath() + ": " + trace.events + " events, "
+                    + trace.breakdowns.getThreads().size() + " threads, " + trace.fields.getValues()
+                    + " indexed values, " + trace.indexes.size() + " indexes, loaded in " + trace.loadMillis
+                    + "ms, heap grew by " + trace.heap / MB + "MB\n");
+        }
+        out.write("Cache: " + cache.size() + " answers of " + cached + " bytes, limit " + cacheSize + " bytes, "
+                + hits + " hits, " + misses + " misses\n");
+    }
+
+    public String load(File file) throws IOException {
+        file = file.getCanonicalFile();
+        unload(file);
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        long heap = runtime.totalMemory() - runtime.freeMemory();
+        long start = System.nanoTime();
+        Loaded trace = new Loaded(file);
+        trace.loadMillis = (System.nanoTime() - start) / 1000000L;
+        System.gc();
+        trace.heap = Long.max(0, runtime.totalMemory() - runtime.freeMemory() - heap);
+        traces.put(file, trace);
+        return "Loaded " + file.getPath() + " in " + trace.loadMillis + "ms: " + trace.events + " events, "
+                + trace.breakdowns.getThreads().size() + " threads, " + trace.indexes.size() + " indexes, heap grew by "
+                + trace.heap / MB + "MB";
+    }
+
+    private String unload(File file) {
+        String prefix = "\u0000" + file.getPath() + "\u0000";
+        for (Iterator<Map.Entry<String, Answer>> it = cache.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, Answer> entry = it.next();
+            if (entry.getKey().contains(prefix)) {
+                cached -= entry.getValue().size;
+                it.remove();
+            }
+        }
+        return traces.remove(file) == null ? file.getPath() + " isn't loaded" : "Unloaded " + file.getPath();
+    }
+
+    // The loaded trace, loaded first if it isn't or if it changed since
+    private Loaded get(File file) throws IOException {
+        file = file.getCanonicalFile();
+        if (!file.exists()) {
+            throw new IllegalArgumentException("File" + file.getAbsolutePath() + " doesn't exist");
+        }
+        Loaded trace = traces.get(file);
+        if (trace == null || trace.length != file.length() || trace.modified != file.lastModified()) {
+            System.out.println(load(file));
+            trace = traces.get(file);
+        }
+        return trace;
+    }
+
+    private void put(String key, Answer answer) {
+        if (answer.size > cacheSize) {
+            return;
+        }
+        Answer previous = cache.put(key, answer);
+        cached += answer.size - (previous == null ? 0 : previous.size);
+        evict();
+    }
+
+    private void evict() {
+        for (Iterator<Answer> it = cache.values().iterator(); cached > cacheSize && it.hasNext(); ) {
+            cached -= it.next().size;
+            it.remove();
+        }
+    }
+
+    // Splits a query on spaces, except inside double quotes where a backslash escapes the next character
+    static List<String> tokenize(String query) {
+        List<String> tokens = new ArrayList<>();
+        StringBuilder token = null;
+        boolean quoted = false;
+        for (int i = 0; i < query.length(); i++) {
+            char c = query.charAt(i);
+            if (quoted) {
+                if (c == '\\' && i + 1 < query.length()) {
+                    token.append(query.charAt(++i));
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    token.append(c);
+                }
+            } else if (Character.isWhitespace(c)) {
+                if (token != null) {
+                    tokens.add(token.toString());
+                    token = null;
+                }
+            } else {
+                if (token == null) {
+                    token = new StringBuilder();
+                }
+                if (c == '"') {
+                    quoted = true;
+                } else {
+                    token.append(c);
+                }
+            }
+        }
+        if (quoted) {
+            throw new IllegalArgumentException("Unterminated quote");
+        }
+        if (token != null) {
+            tokens.add(token.toString());
+        }
+        return tokens;
+    }
+
+    private static class Answer {
+        private final String text;
+        // The file the query wrote, the answer is only valid while it exists
+        private final File output;
+        private final long size;
+
+        private Answer(String text, File output) {
+            this.text = text;
+            this.output = output;
+            size = 2L * text.length();
+        }
+    }
+
+    // What a trace was loaded into, from a single scan. The ThreadIndex extract reads threads through is built too,
+    // for the traces that can be indexed.
+    private static class Loaded {
+        private final File file;
+        private final long length;
+        private final long modified;
+        private final FieldIndex fields = new FieldIndex();
+        private final TimeBreaker.PerThread breakdowns = new TimeBreaker.PerThread();
+        // With the lineage records of every index
+        private final List<LineageComputer.IndexLineage> indexes;
+        private final long unmatched;
+        private final long events;
+        private long loadMillis;
+        private long heap;
+
+        private Loaded(File file) throws IOException {
+            this.file = file;
+            length = file.length();
+            modified = file.lastModified();
+            LineageComputer.PerIndex lineages = new LineageComputer.PerIndex();
+            TraceScanner scanner = new TraceScanner().failOnParseError(true)
+                    .register(fields)
+                    .register(breakdowns)
+                    .register(lineages);
+            scanner.scan(file);
+            events = scanner.getLines();
+            indexes = lineages.getIndexes();
+            unmatched = lineages.getUnmatched();
+            if (!TraceInput.isCompressed(file)) {
+                ThreadIndex.load(file);
+            }
+        }
+
+        private List<Pair<String, Long>> find(Map<String, List<String>> predicates) throws Exception {
+            if (predicates.isEmpty()) {
+                throw new IllegalArgumentException("Missing predicates");
+            }
+            if (fields.covers(predicates)) {
+                return fields.find(predicates);
+            }
+            return new ParallelTraceScanner<>(() -> new ThreadFinder.Collector(predicates)).scan(file).getThreads();
+        }
+    }
+
+    // Threads of every value of the built in text fields, with the offset of the first event of the thread that
+    // has the value. The threads of a query are the ones with any of its values, ordered by the first offset they
+    // had one of them at, which is the order ThreadFinder finds them in.
+    private static class FieldIndex implements TraceConsumer {
+        private static final String[] FIELDS = {"pid", "ph", "name", "cat"};
+        private static final int[] SLOTS = {TraceEvent.SLOT_PID, TraceEvent.SLOT_PHASE, TraceEvent.SLOT_NAME,
+                TraceEvent.SLOT_CATEGORY};
+
+        private final ThreadTable threads = new ThreadTable();
+        private final NameTable[] values = new NameTable[SLOTS.length];
+        // Every (value id, thread id) of a field to its first offset in offsets
+        private final LongIntMap[] firsts = new LongIntMap[SLOTS.length];
+        private long[] offsets = new long[16];
+        private int size = 0;
+
+        private FieldIndex() {
+            for (int i = 0; i < SLOTS.length; i++) {
+                values[i] = new NameTable();
+                firsts[i] = new LongIntMap();
+            }
+        }
+
+        @Override
+        public void declare(EventDecoder decoder) {
+            decoder.require(TraceEvent.TID | TraceEvent.PID | TraceEvent.PHASE | TraceEvent.NAME
+                    | TraceEvent.CATEGORY);
+        }
+
+        @Override
+        public void accept(TraceEvent event) {
+            if (!event.has(TraceEvent.TID)) {
+                return;
+            }
+            long thread = threads.getOrAdd(event);
+            for (int i = 0; i < SLOTS.length; i++) {
+                if (!event.isTextual(SLOTS[i])) {
+                    continue;
+                }
+                long key = (long) values[i].getOrAdd(event, SLOTS[i]) << 32 | thread;
+                if (firsts[i].get(key) < 0) {
+                    if (size == offsets.length) {
+                        offsets = Arrays.copyOf(offsets, size * 2);
+                    }
+                    offsets[size] = event.offset();
+                    firsts[i].put(key, size++);
+                }
+            }
+        }
+
+        @Override
+        public void finish() {
+        }
+
+        @Override
+        public ScanMetrics.Stage stage() {
+            return ScanMetrics.Stage.MATCH;
+        }
+
+        private boolean covers(Map<String, List<String>> predicates) {
+            return Arrays.asList(FIELDS).containsAll(predicates.keySet());
+        }
+
+        private List<Pair<String, Long>> find(Map<String, List<String>> predicates) {
+            long[] first = new long[threads.size()];
+            Arrays.fill(first, Long.MAX_VALUE);
+            for (Map.Entry<String, List<String>> predicate : predicates.entrySet()) {
+                int field = Arrays.asList(FIELDS).indexOf(predicate.getKey());
+                for (String value : predicate.getValue()) {
+                    byte[] bytes = EventDecoder.bytes(value);
+                    int id = values[field].get(bytes, 0, bytes.length);
+                    if (id < 0) {
+                        continue;
+                    }
+                    for (int thread = 0; thread < first.length; thread++) {
+                        int offset = firsts[field].get((long) id << 32 | thread);
+                        if (offset >= 0) {
+                            first[thread] = Long.min(first[thread], offsets[offset]);
+                        }
+                    }
+                }
+            }
+            List<Integer> found = new ArrayList<>();
+            for (int thread = 0; thread < first.length; thread++) {
+                if (first[thread] != Long.MAX_VALUE) {
+                    found.add(thread);
+                }
+            }
+            found.sort((a, b) -> Long.compare(first[a], first[b]));
+            List<Pair<String, Long>> matching = new ArrayList<>();
+            for (int thread : found) {
+                matching.add(threads.getThread(thread));
+            }
+            return matching;
+        }
+
+        private int getValues() {
+            int count = 0;
+            for (LongIntMap first : firsts) {
+                count += first.size();
+            }
+            return count;
+        }
+    }
+}
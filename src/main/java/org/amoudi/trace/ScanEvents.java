@@ -0,0 +1,77 @@
+package org.amoudi.trace;
+
+// JFR events of the stages of a run, so a recording of the analyzer (-XX:StartFlightRecording) shows where its time
+// went next to the JVM's own events. They cost next to nothing when nothing is recording.
+// jdk.jfr isn't part of the Java 8 API, so the JFR events themselves are in JfrScanEvents, which is only built on
+// JDK 11 and later and loaded reflectively. Without it, as on a Java 8 JVM, every event here does nothing.
+public final class ScanEvents {
+
+    private static final Recorder RECORDER = load();
+
+    private ScanEvents() {
+    }
+
+    // Starts, fills and commits the JFR event of a span
+    interface Recorder {
+        // The begun JFR event of the span, or null if its type isn't enabled
+        Object begin(Span span);
+
+        boolean shouldCommit(Object event);
+
+        // Copies the fields of the span to the event and commits it
+        void commit(Object event, Span span);
+    }
+
+    private static Recorder load() {
+        try {
+            return (Recorder) Class.forName("org.amoudi.trace.JfrScanEvents").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+
+    // Fields are set between begin and commit, like on a JFR event
+    abstract static class Span {
+        private Object event;
+
+        void begin() {
+            event = RECORDER == null ? null : RECORDER.begin(this);
+        }
+
+        boolean shouldCommit() {
+            return event != null && RECORDER.shouldCommit(event);
+        }
+
+        void commit() {
+            if (event != null) {
+                RECORDER.commit(event, this);
+                event = null;
+            }
+        }
+    }
+
+    static class FileScan extends Span {
+        String file;
+        long lines;
+        long failures;
+        boolean cached;
+    }
+
+    static class ChunkScan extends Span {
+        long start;
+        long end;
+    }
+
+    static class Read extends Span {
+        long bytes;
+    }
+
+    static class Finish extends Span {
+        String consumer;
+        String stage;
+    }
+
+    static class Analysis extends Span {
+        String file;
+    }
+}
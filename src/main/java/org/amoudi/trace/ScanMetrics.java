@@ -0,0 +1,364 @@
+package org.amoudi.trace;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+// Counters, stage times and queue depths of the scans of a run, shared by all of its threads. Every tool gets them
+// when the JVM is started with -Dtrace.metrics=<json file> and/or -Dtrace.progress=<seconds>: progress is printed
+// periodically and the metrics are written to the file when the JVM exits.
+// Scans count their lines locally and publish them in batches. Reads are timed exactly, decoding and consumers are
+// timed on one event out of SAMPLE_INTERVAL on average and scaled up, which keeps the cost of the clock off the hot
+// path. The gaps between samples are random so that periodic work, like flushing a buffer every so many events, is
+// neither always nor never sampled.
+public class ScanMetrics {
+
+    public static final String METRICS_PROPERTY = "trace.metrics";
+    public static final String PROGRESS_PROPERTY = "trace.progress";
+    private static final int SAMPLE_INTERVAL = 32;
+    private static final int PUBLISH_INTERVAL = 1 << 16;
+    private static final long DEFAULT_PROGRESS_SECONDS = 10;
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final ScanMetrics GLOBAL = fromSystemProperties();
+
+    // Where the time of a scan goes. Consumers tell which of the last three they are.
+    public enum Stage {
+        READ, DECODE, MATCH, AGGREGATE, WRITE
+    }
+
+    private final long startNanos = System.nanoTime();
+    // Cost of reading the clock, which every timed sample includes once and would otherwise be scaled up with it
+    private final long clockNanos = clockNanos();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder lines = new LongAdder();
+    private final LongAdder events = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder[] stageNanos = new LongAdder[Stage.values().length];
+    private final Map<String, Queue> queues = new ConcurrentHashMap<>();
+    private ScheduledExecutorService ticker;
+    private long progressSeconds = 0;
+    private long ticks = 0;
+    private long lastBytes = 0;
+    private long lastEvents = 0;
+    private long lastNanos = startNanos;
+
+    public ScanMetrics() {
+        for (int i = 0; i < stageNanos.length; i++) {
+            stageNanos[i] = new LongAdder();
+        }
+    }
+
+    // The metrics every scanner records to by default, null unless they were asked for
+    public static ScanMetrics global() {
+        return GLOBAL;
+    }
+
+    private static ScanMetrics fromSystemProperties() {
+        String file = System.getProperty(METRICS_PROPERTY);
+        String progress = System.getProperty(PROGRESS_PROPERTY);
+        if (file == null && progress == null) {
+            return null;
+        }
+        ScanMetrics metrics = new ScanMetrics()
+                .start(progress == null ? DEFAULT_PROGRESS_SECONDS : Long.parseLong(progress));
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            metrics.stop();
+            if (file != null) {
+                try {
+                    metrics.write(new File(file));
+                    System.out.println("Metrics written to " + new File(file).getAbsolutePath());
+                } catch (IOException e) {
+                    System.err.println("Failed writing metrics to " + file + ": " + e);
+                }
+            }
+        }));
+        return metrics;
+    }
+
+    // Samples the queues every second and prints a progress line every progressSeconds, 0 for never
+    public synchronized ScanMetrics start(long progressSeconds) {
+        if (ticker == null) {
+            this.progressSeconds = progressSeconds;
+            ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "trace-metrics");
+                thread.setDaemon(true);
+                return thread;
+            });
+            ticker.scheduleAtFixedRate(this::tick, 1, 1, TimeUnit.SECONDS);
+        }
+        return this;
+    }
+
+    public synchronized void stop() {
+        if (ticker != null) {
+            ticker.shutdownNow();
+            ticker = null;
+        }
+    }
+
+    // Counts the bytes read from in and the time spent waiting for them
+    public InputStream meter(InputStream in) {
+        return new MeteredInputStream(in);
+    }
+
+    public void addStage(Stage stage, long nanos) {
+        stageNanos[stage.ordinal()].add(nanos);
+    }
+
+    // Tracks the depth of a queue of a parallel stage until the returned handle is closed. Queues of the same name,
+    // e.g. of files analyzed concurrently, are summed.
+    public Closeable queue(String name, IntSupplier depth) {
+        Queue queue = queues.computeIfAbsent(name, n -> new Queue());
+        queue.depths.add(depth);
+        return () -> queue.depths.remove(depth);
+    }
+
+    // Records the lines of one scan on a single thread
+    Recorder recorder(List<? extends TraceConsumer> consumers) {
+        return new Recorder(consumers);
+    }
+
+    public long getBytes() {
+        return bytes.sum();
+    }
+
+    public long getLines() {
+        return lines.sum();
+    }
+
+    public long getEvents() {
+        return events.sum();
+    }
+
+    public long getFailures() {
+        return failures.sum();
+    }
+
+    public long getStageNanos(Stage stage) {
+        return stageNanos[stage.ordinal()].sum();
+    }
+
+    private static long clockNanos() {
+        long best = Long.MAX_VALUE;
+        for (int round = 0; round < 5; round++) {
+            long start = System.nanoTime();
+            long last = start;
+            for (int i = 0; i < 20_000; i++) {
+                last = System.nanoTime();
+            }
+            best = Math.min(best, (last - start) / 20_000);
+        }
+        return best;
+    }
+
+    // Sum of the peaks of the heap pools since the JVM started
+    public static long getPeakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    private synchronized void tick() {
+        sampleQueues();
+        if (progressSeconds > 0 && ++ticks % progressSeconds == 0) {
+            progress();
+        }
+    }
+
+    private void progress() {
+        long now = System.nanoTime();
+        long bytesNow = bytes.sum();
+        long eventsNow = events.sum();
+        double seconds = Math.max(now - lastNanos, 1) / 1e9;
+        Runtime runtime = Runtime.getRuntime();
+        StringBuilder line = new StringBuilder("Progress: ")
+                .append(bytesNow >> 20).append("MB read, ")
+                .append((long) ((bytesNow - lastBytes) / seconds / (1 << 20))).append("MB/s, ")
+                .append(eventsNow).append(" events, ")
+                .append((long) ((eventsNow - lastEvents) / seconds)).append(" events/s, ")
+                .append(failures.sum()).append(" parse failures, heap ")
+                .append((runtime.totalMemory() - runtime.freeMemory()) >> 20).append("MB");
+        for (Map.Entry<String, Queue> queue : queues.entrySet()) {
+            line.append(", ").append(queue.getKey()).append(" queue ").append(queue.getValue().last);
+        }
+        System.out.println(line);
+        lastNanos = now;
+        lastBytes = bytesNow;
+        lastEvents = eventsNow;
+    }
+
+    private void sampleQueues() {
+        for (Queue queue : queues.values()) {
+            queue.sample();
+        }
+    }
+
+    public synchronized void write(File file) throws IOException {
+        sampleQueues();
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("seconds", seconds);
+        json.put("bytes", bytes.sum());
+        json.put("lines", lines.sum());
+        json.put("events", events.sum());
+        json.put("parseFailures", failures.sum());
+        json.put("megabytesPerSecond", bytes.sum() / seconds / (1 << 20));
+        json.put("linesPerSecond", lines.sum() / seconds);
+        json.put("eventsPerSecond", events.sum() / seconds);
+        Map<String, Object> stages = new LinkedHashMap<>();
+        for (Stage stage : Stage.values()) {
+            stages.put(stage.name().toLowerCase(), getStageNanos(stage) / 1e9);
+        }
+        json.put("stageSeconds", stages);
+        Map<String, Object> depths = new LinkedHashMap<>();
+        for (Map.Entry<String, Queue> queue : queues.entrySet()) {
+            Map<String, Object> depth = new LinkedHashMap<>();
+            depth.put("max", queue.getValue().max);
+            depth.put("average", queue.getValue().samples == 0 ? 0
+                    : (double) queue.getValue().sum / queue.getValue().samples);
+            depths.put(queue.getKey(), depth);
+        }
+        json.put("queues", depths);
+        json.put("peakHeapBytes", getPeakHeap());
+        MAPPER.writerWithDefaultPrettyPrinter().writeValue(file, json);
+    }
+
+    private static class Queue {
+        private final List<IntSupplier> depths = new CopyOnWriteArrayList<>();
+        private int last = 0;
+        private int max = 0;
+        private long sum = 0;
+        private long samples = 0;
+
+        private void sample() {
+            int depth = 0;
+            for (IntSupplier supplier : depths) {
+                depth += supplier.getAsInt();
+            }
+            last = depth;
+            max = Math.max(max, depth);
+            sum += depth;
+            samples++;
+        }
+    }
+
+    class Recorder implements AutoCloseable {
+        private final Stage[] stages;
+        private final long[] nanos = new long[Stage.values().length];
+        private long lines = 0;
+        private long events = 0;
+        private long failures = 0;
+        private int untilSample = SAMPLE_INTERVAL;
+        private int seed = (int) System.nanoTime() | 1;
+
+        private Recorder(List<? extends TraceConsumer> consumers) {
+            stages = new Stage[consumers.size()];
+            for (int i = 0; i < stages.length; i++) {
+                stages[i] = consumers.get(i).stage();
+            }
+        }
+
+        void line() {
+            if (++lines % PUBLISH_INTERVAL == 0) {
+                publish();
+            }
+        }
+
+        void event() {
+            events++;
+        }
+
+        void failure() {
+            failures++;
+        }
+
+        // True for about one event out of SAMPLE_INTERVAL, for the event to be timed
+        boolean sample() {
+            if (--untilSample > 0) {
+                return false;
+            }
+            // xorshift, for a gap uniform in [1, 2 * SAMPLE_INTERVAL)
+            seed ^= seed << 13;
+            seed ^= seed >>> 17;
+            seed ^= seed << 5;
+            untilSample = 1 + ((seed >>> 1) % (2 * SAMPLE_INTERVAL - 1));
+            return true;
+        }
+
+        void decoded(long sampleNanos) {
+            nanos[Stage.DECODE.ordinal()] += Math.max(sampleNanos - clockNanos, 0) * SAMPLE_INTERVAL;
+        }
+
+        void consumed(int consumer, long sampleNanos) {
+            nanos[stages[consumer].ordinal()] += Math.max(sampleNanos - clockNanos, 0) * SAMPLE_INTERVAL;
+        }
+
+        private void publish() {
+            ScanMetrics.this.lines.add(lines);
+            ScanMetrics.this.events.add(events);
+            ScanMetrics.this.failures.add(failures);
+            for (int i = 0; i < nanos.length; i++) {
+                if (nanos[i] != 0) {
+                    stageNanos[i].add(nanos[i]);
+                    nanos[i] = 0;
+                }
+            }
+            lines = 0;
+            events = 0;
+            failures = 0;
+        }
+
+        @Override
+        public void close() {
+            publish();
+        }
+    }
+
+    private class MeteredInputStream extends FilterInputStream {
+        private MeteredInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            ScanEvents.Read event = new ScanEvents.Read();
+            event.begin();
+            long start = System.nanoTime();
+            int read = super.read(b, off, len);
+            stageNanos[Stage.READ.ordinal()].add(System.nanoTime() - start);
+            if (read > 0) {
+                bytes.add(read);
+                event.bytes = read;
+            }
+            event.commit();
+            return read;
+        }
+    }
+}
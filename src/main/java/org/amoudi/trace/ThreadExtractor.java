@@ -1,7 +1,5 @@
 package org.amoudi.trace;
 
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.tuple.Pair;
 
@@ -9,13 +7,13 @@ import java.io.*;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.List;
+import java.util.*;
 
 public class ThreadExtractor {
 
     private static final String KEY_THREADS = "t";
     private static final String THREAD_FIELD_NAME = "tid";
-    private static final String PROCESS_FIELD_NAME = "pid";
+    private static final int MAX_FILE_NAME = 255;
 
     private static void help() {
         System.out.println("This tool is used to extract thread specific traces from a trace file");
@@ -25,6 +23,19 @@ public class ThreadExtractor {
     }
 
     public static File extract(String fileName, List<Pair<String,Long>> threads, String outputDir) throws Exception {
+        return extract(fileName, threads, outputDir, false);
+    }
+
+    public static File extract(String fileName, List<Pair<String,Long>> threads, String outputDir, boolean useIndex)
+            throws Exception {
+        return extract(fileName, threads, outputDir, useIndex, false);
+    }
+
+    // With useIndex the events are read through the thread's ThreadIndex, which is built on first use. Compressed
+    // traces can't be indexed and are always scanned, and so is a trace whose index can't be built or written, like
+    // one in a read only directory. With compress the output is written gzip compressed.
+    public static File extract(String fileName, List<Pair<String,Long>> threads, String outputDir, boolean useIndex,
+            boolean compress) throws Exception {
 
         if (threads == null) {
             System.out.println("Incorrect use. Missing argument -" + KEY_THREADS);
@@ -41,78 +52,320 @@ public class ThreadExtractor {
             System.out.println("File" + input.getAbsolutePath() + " doesn't exist");
             System.exit(1);
         }
-        return extract(input, threads, outputDir);
+        return extract(input, threads, outputDir, useIndex && !TraceInput.isCompressed(input), compress);
     }
 
-    private static File extract(File file, List<Pair<String, Long>> processesAndThreads, String outputDir)
-            throws IOException, InterruptedException {
-        ObjectMapper om = new ObjectMapper();
+    private static File extract(File file, List<Pair<String, Long>> processesAndThreads, String outputDir,
+            boolean useIndex, boolean compress) throws IOException, InterruptedException {
+        File outputFile = getOutputFile(file, processesAndThreads, outputDir, compress);
+        System.out.println("Writing output to " + outputFile.getAbsolutePath());
+        try (EventOutput out = new EventOutput(outputFile, compress, file)) {
+            int[] perThread = new int[processesAndThreads.size()];
+            // Threads with a pid are matched exactly, the ones without a pid match that tid in any process. Each
+            // table id maps to the first requested thread it was added for, which gets the event's count.
+            ThreadTable exact = new ThreadTable();
+            ThreadTable anyProcess = new ThreadTable();
+            List<Integer> exactThreads = new ArrayList<>();
+            List<Integer> anyProcessThreads = new ArrayList<>();
+            for (int t = 0; t < processesAndThreads.size(); t++) {
+                Pair<String, Long> thread = processesAndThreads.get(t);
+                ThreadTable table = thread.getLeft() == null ? anyProcess : exact;
+                List<Integer> requested = thread.getLeft() == null ? anyProcessThreads : exactThreads;
+                if (table.add(thread) == requested.size()) {
+                    requested.add(t);
+                }
+            }
+            TraceConsumer writer = new TraceConsumer() {
+                @Override
+                public void declare(EventDecoder decoder) {
+                    decoder.require(TraceEvent.TID | TraceEvent.PID);
+                }
+
+                @Override
+                public void accept(TraceEvent event) throws IOException {
+                    if (!event.has(TraceEvent.TID)) {
+                        System.out.println(event.line() + " doesn't contain a " + THREAD_FIELD_NAME + " object");
+                        return;
+                    }
+                    int exactId = exact.get(event);
+                    int anyProcessId = anyProcess.get(event.tid());
+                    if (exactId < 0 && anyProcessId < 0) {
+                        return;
+                    }
+                    // Counted once, under whichever of its requested threads comes first
+                    int t = exactId < 0 ? anyProcessThreads.get(anyProcessId)
+                            : anyProcessId < 0 ? exactThreads.get(exactId)
+                            : Math.min(exactThreads.get(exactId), anyProcessThreads.get(anyProcessId));
+                    perThread[t]++;
+                    out.write(event);
+                }
+
+                @Override
+                public void finish() {
+                }
+
+                @Override
+                public ScanMetrics.Stage stage() {
+                    return ScanMetrics.Stage.WRITE;
+                }
+            };
+            TraceScanner scanner = new TraceScanner();
+            long totalIn;
+            ThreadIndex index = null;
+            if (useIndex) {
+                try {
+                    index = ThreadIndex.load(file);
+                } catch (IOException e) {
+                    System.out.println("Can't index " + file.getAbsolutePath() + ", scanning it instead: " + e);
+                }
+            }
+            if (index != null) {
+                index.scan(processesAndThreads, scanner, Collections.singletonList(writer));
+                totalIn = index.getLines();
+            } else {
+                scanner.register(writer).scan(file);
+                totalIn = scanner.getLines();
+            }
+            int totalOut = 0;
+            for (int i = 0; i < perThread.length; i++) {
+                totalOut += perThread[i];
+            }
+            System.out.println("Total in: " + totalIn + ". Total out: " + totalOut);
+            for (int i = 0; i < perThread.length; i++) {
+                System.out.println("Thread " + processesAndThreads.get(i) + ": " + perThread[i]);
+            }
+        }
+        return outputFile;
+    }
+
+    private static File getOutputFile(File file, List<Pair<String, Long>> processesAndThreads, String outputDir,
+            boolean compress) throws IOException {
         String outputFileName = file.getParentFile().getAbsolutePath();
         outputFileName = outputFileName + File.separator + outputDir;
         Path outputDirPath = Paths.get(outputFileName);
         if(!Files.exists(outputDirPath)){
             FileUtils.forceMkdir(outputDirPath.toFile());
         }
-        outputFileName = outputFileName + File.separator + file.getName() + ".filtered";
+        String name = TraceInput.getName(file) + ".filtered";
         for (Pair<String, Long> pidtid : processesAndThreads) {
             String pid = pidtid.getLeft();
             Long tid = pidtid.getRight();
             if (pid != null) {
-                outputFileName = outputFileName + "." + pid + '.' + tid;
+                name = name + "." + pid + '.' + tid;
             } else {
-                outputFileName = outputFileName + "." + tid;
+                name = name + "." + tid;
             }
 
         }
-        outputFileName = outputFileName + ".json";
-        System.out.println("Writing output to " + outputFileName);
-        File outputFile = new File(outputFileName);
-        try (BufferedWriter bw = new BufferedWriter(new FileWriter(outputFile));
-             BufferedReader br = new BufferedReader(new FileReader(file))) {
-            bw.write("[\n");
-            int totalIn = 0;
-            int[] perThread = new int[processesAndThreads.size()];
-            for (String line; (line = br.readLine()) != null;) {
-                totalIn++;
-                line = line.trim();
-                if (!line.startsWith("{")) {
-                    System.out.println(line + " doesn't contain a json object");
-                    continue;
-                }
-                line = line.substring(0, line.lastIndexOf('}') + 1);
-                JsonNode json;
-                try {
-                    json = om.readTree(line);
-                } catch (Exception e) {
-                    System.err.println("Failed parsing: " + line);
+        // File systems limit a name to 255 bytes, so many threads are named by their count and a hash instead
+        if (name.length() + ".json.gz".length() > MAX_FILE_NAME) {
+            name = TraceInput.getName(file) + ".filtered." + processesAndThreads.size() + "threads."
+                    + Integer.toHexString(processesAndThreads.hashCode());
+        }
+        outputFileName = outputFileName + File.separator + name + ".json";
+        return TraceInput.getOutputFile(outputFileName, compress);
+    }
+
+    // Extracts any number of threads in a single scan, each one to its own file
+    public static Map<Pair<String, Long>, File> extractAll(String fileName, List<Pair<String, Long>> threads,
+            String outputDir) throws Exception {
+        return extractAll(fileName, threads, outputDir, false);
+    }
+
+    public static Map<Pair<String, Long>, File> extractAll(String fileName, List<Pair<String, Long>> threads,
+            String outputDir, boolean compress) throws Exception {
+        if (threads == null) {
+            System.out.println("Incorrect use. Missing argument -" + KEY_THREADS);
+            help();
+            System.exit(1);
+        }
+        File input = new File(fileName);
+        if (!input.exists()) {
+            System.out.println("File" + input.getAbsolutePath() + " doesn't exist");
+            System.exit(1);
+        }
+        // Threads with a pid are matched exactly, the ones without a pid match that tid in any process
+        ThreadTable exact = new ThreadTable();
+        ThreadTable anyProcess = new ThreadTable();
+        List<Integer> exactOutputs = new ArrayList<>();
+        List<Integer> anyProcessOutputs = new ArrayList<>();
+        Map<Pair<String, Long>, File> files = new LinkedHashMap<>();
+        long[] perThread = new long[threads.size()];
+        try (FanOut out = new FanOut(compress)) {
+            for (Pair<String, Long> thread : threads) {
+                if (files.containsKey(thread)) {
                     continue;
                 }
-                JsonNode threadId = json.findValue(THREAD_FIELD_NAME);
-                if (threadId == null) {
-                    System.out.println(line + " doesn't contain a " + THREAD_FIELD_NAME + " object");
-                    continue;
+                File outputFile = getOutputFile(input, Collections.singletonList(thread), outputDir, compress);
+                System.out.println("Writing output to " + outputFile.getAbsolutePath());
+                files.put(thread, outputFile);
+                int output = out.open(outputFile);
+                ThreadTable table = thread.getLeft() == null ? anyProcess : exact;
+                List<Integer> outputs = thread.getLeft() == null ? anyProcessOutputs : exactOutputs;
+                table.add(thread);
+                outputs.add(output);
+            }
+            TraceScanner scanner = new TraceScanner().register(new TraceConsumer() {
+                @Override
+                public void declare(EventDecoder decoder) {
+                    decoder.require(TraceEvent.TID | TraceEvent.PID);
                 }
-                JsonNode processId = json.findValue(PROCESS_FIELD_NAME);
-                for (int t = 0; t < processesAndThreads.size(); t++) {
-                    if (processesAndThreads.get(t).getRight().equals(threadId.longValue())
-                            && (processesAndThreads.get(t).getLeft() == null
-                            || processesAndThreads.get(t).getLeft().equals(processId.asText()))) {
-                        perThread[t]++;
-                        bw.write(json.toString() + ",\n");
-                        break;
+
+                @Override
+                public void accept(TraceEvent event) throws IOException {
+                    if (!event.has(TraceEvent.TID)) {
+                        return;
+                    }
+                    // An event can belong both to an exact thread and to a thread requested without a pid
+                    int exactId = exact.get(event);
+                    int anyProcessId = anyProcess.get(event.tid());
+                    if (exactId < 0 && anyProcessId < 0) {
+                        return;
+                    }
+                    if (exactId >= 0) {
+                        write(exactOutputs.get(exactId), event);
+                    }
+                    if (anyProcessId >= 0) {
+                        write(anyProcessOutputs.get(anyProcessId), event);
                     }
                 }
+
+                private void write(int output, TraceEvent event) throws IOException {
+                    perThread[output]++;
+                    out.write(output, event);
+                }
+
+                @Override
+                public void finish() {
+                }
+
+                @Override
+                public ScanMetrics.Stage stage() {
+                    return ScanMetrics.Stage.WRITE;
+                }
+            });
+            scanner.scan(input);
+            long totalOut = 0;
+            for (long count : perThread) {
+                totalOut += count;
             }
-            int totalOut = 0;
-            for (int i = 0; i < perThread.length; i++) {
-                totalOut += perThread[i];
+            System.out.println("Total in: " + scanner.getLines() + ". Total out: " + totalOut);
+            int output = 0;
+            for (Pair<String, Long> thread : files.keySet()) {
+                System.out.println("Thread " + thread + ": " + perThread[output++]);
             }
-            System.out.println("Total in: " + totalIn + ". Total out: " + totalOut);
-            for (int i = 0; i < perThread.length; i++) {
-                System.out.println("Thread " + processesAndThreads.get(i) + ": " + perThread[i]);
+        }
+        return files;
+    }
+
+    // Writes events to many output files while keeping a bounded number of them open and a bounded buffer per file.
+    // A file evicted from the open set is reopened in append mode the next time its buffer is flushed. Every file is
+    // a JSON array of the original bytes of its events, closed when the FanOut is.
+    static class FanOut implements Closeable {
+        private static final int MAX_OPEN_FILES = 64;
+        private static final int BUFFER_SIZE = 32 << 10;
+
+        private final List<File> files = new ArrayList<>();
+        private final List<byte[]> buffers = new ArrayList<>();
+        // Compressed files are appended to as further gzip members
+        private final boolean compress;
+        private int[] used = new int[16];
+        private boolean[] created = new boolean[16];
+        // Whether an event was written yet, the next ones are preceded by a separator
+        private boolean[] started = new boolean[16];
+        private final LinkedHashMap<Integer, OutputStream> open = new LinkedHashMap<Integer, OutputStream>(16, 0.75f,
+                true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, OutputStream> eldest) {
+                if (size() <= MAX_OPEN_FILES) {
+                    return false;
+                }
+                try {
+                    eldest.getValue().close();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return true;
+            }
+        };
+
+        FanOut(boolean compress) {
+            this.compress = compress;
+        }
+
+        int open(File file) throws IOException {
+            int output = files.size();
+            files.add(file);
+            buffers.add(null);
+            if (output == used.length) {
+                used = Arrays.copyOf(used, output * 2);
+                created = Arrays.copyOf(created, output * 2);
+                started = Arrays.copyOf(started, output * 2);
+            }
+            write(output, EventOutput.OPEN, 0, EventOutput.OPEN.length);
+            return output;
+        }
+
+        void write(int output, TraceEvent event) throws IOException {
+            event.load();
+            if (started[output]) {
+                write(output, EventOutput.SEPARATOR, 0, EventOutput.SEPARATOR.length);
+            }
+            started[output] = true;
+            write(output, event.buffer, event.start, event.end - event.start);
+        }
+
+        private void write(int output, byte[] bytes, int offset, int length) throws IOException {
+            byte[] buffer = buffers.get(output);
+            if (buffer == null) {
+                buffer = new byte[BUFFER_SIZE];
+                buffers.set(output, buffer);
+            }
+            if (used[output] + length > buffer.length) {
+                flush(output);
+                if (length > buffer.length) {
+                    stream(output).write(bytes, offset, length);
+                    return;
+                }
+            }
+            System.arraycopy(bytes, offset, buffer, used[output], length);
+            used[output] += length;
+        }
+
+        private void flush(int output) throws IOException {
+            if (used[output] == 0) {
+                return;
+            }
+            stream(output).write(buffers.get(output), 0, used[output]);
+            used[output] = 0;
+        }
+
+        private OutputStream stream(int output) throws IOException {
+            OutputStream stream = open.get(output);
+            if (stream == null) {
+                stream = TraceInput.create(files.get(output), compress, created[output]);
+                created[output] = true;
+                try {
+                    open.put(output, stream);
+                } catch (UncheckedIOException e) {
+                    throw e.getCause();
+                }
+            }
+            return stream;
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (int output = 0; output < files.size(); output++) {
+                write(output, EventOutput.CLOSE, 0, EventOutput.CLOSE.length);
+                flush(output);
+                OutputStream stream = open.remove(output);
+                if (stream != null) {
+                    stream.close();
+                }
+                buffers.set(output, null);
             }
         }
-        return outputFile;
     }
 
     private static String getArgumentKey(String key) {
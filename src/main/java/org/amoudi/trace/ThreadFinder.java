@@ -1,18 +1,15 @@
 package org.amoudi.trace;
 
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import org.apache.commons.lang3.tuple.Pair;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
+import java.io.Serializable;
 import java.util.*;
 
 public class ThreadFinder {
 
     private static final String THREAD_FIELD_NAME = "tid";
-    private static final String PROCESS_FIELD_NAME = "pid";
+    private static final long FOLLOW_POLL_MILLIS = 200;
 
     private static void help() {
         System.out.println("This tool is used to find threads that produces some traces");
@@ -37,45 +34,106 @@ public class ThreadFinder {
     }
 
     private static List<Pair<String, Long>> find(File file, Map<String, List<String>> predicates) throws Exception {
-        ObjectMapper om = new ObjectMapper();
-        Set<Pair<String, Long>> threadIds = new HashSet<>();
-        Set<Map.Entry<String, List<String>>> entries = predicates.entrySet();
-        try (BufferedReader br = new BufferedReader(new FileReader(file))) {
-            for (String line; (line = br.readLine()) != null;) {
-                line = line.trim();
-                if (!line.startsWith("{")) {
-                    System.out.println(line + " doesn't contain a json object");
-                    continue;
-                }
-                line = line.substring(0, line.lastIndexOf('}') + 1);
-                JsonNode json;
-                try {
-                    json = om.readTree(line);
-                } catch (Exception e) {
-                    System.err.println("Failed parsing: " + line);
-                    continue;
-                }
-                JsonNode threadId = json.findValue(THREAD_FIELD_NAME);
-                if (threadId == null) {
-                    System.out.println(line + " doesn't contain a " + THREAD_FIELD_NAME + " object");
-                    continue;
+        return new ParallelTraceScanner<>(() -> new Collector(predicates)).scan(file).getThreads();
+    }
+
+    // Follows a trace that is still being written and prints the matching threads whenever new ones show up.
+    // With a checkpoint file the state is saved every intervalMillis and a restart resumes from it.
+    public static void follow(String fileName, Map<String, List<String>> predicates, long intervalMillis,
+            File checkpoint) throws Exception {
+        File input = new File(fileName);
+        if (!input.exists()) {
+            System.out.println("File" + input.getAbsolutePath() + " doesn't exist");
+            System.exit(1);
+        }
+        TraceFollower<Collector> follower = new TraceFollower<>(input, () -> new Collector(predicates), checkpoint);
+        int[] reported = {-1};
+        follower.follow(Math.min(FOLLOW_POLL_MILLIS, intervalMillis), intervalMillis, collector -> {
+            if (collector.threadIds.size() != reported[0]) {
+                reported[0] = collector.threadIds.size();
+                System.out.println("Found the following matching threads: "
+                        + Arrays.toString(collector.threadIds.toArray()));
+            }
+        });
+    }
+
+    // Collects the threads that produced at least one event matching the predicates
+    public static class Collector implements MergeableConsumer<Collector>, Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final List<Map.Entry<String, List<String>>> entries = new ArrayList<>();
+        // In the order they were first seen, which keeps merged chunks in the same order as a sequential scan
+        private final Set<Pair<String, Long>> threadIds = new LinkedHashSet<>();
+        private final ThreadTable found = new ThreadTable();
+        private transient int[] slots;
+        // The values of every predicate, interned so an event's field is looked up instead of compared to each one
+        private transient NameTable[] matches;
+
+        public Collector(Map<String, List<String>> predicates) {
+            for (Map.Entry<String, List<String>> predicate : predicates.entrySet()) {
+                entries.add(new AbstractMap.SimpleImmutableEntry<>(predicate.getKey(),
+                        new ArrayList<>(predicate.getValue())));
+            }
+        }
+
+        @Override
+        public void declare(EventDecoder decoder) {
+            decoder.require(TraceEvent.TID | TraceEvent.PID);
+            slots = new int[entries.size()];
+            matches = new NameTable[entries.size()];
+            for (int i = 0; i < entries.size(); i++) {
+                // Keys under args and other objects match too, like they did through JsonNode.findValue
+                slots[i] = decoder.nestedText(entries.get(i).getKey());
+                matches[i] = new NameTable();
+                for (String value : entries.get(i).getValue()) {
+                    matches[i].getOrAdd(value);
                 }
-                JsonNode processId = json.findValue(PROCESS_FIELD_NAME);
-                for (Map.Entry<String, List<String>> entry : entries) {
-                    JsonNode valueInJson = json.findValue(entry.getKey());
-                    if (valueInJson != null && valueInJson.isTextual()) {
-                        String valueAsString = valueInJson.asText();
-                        for (String match : entry.getValue()) {
-                            if (match.equals(valueAsString)) {
-                                threadIds.add(Pair.of(processId.textValue(), threadId.longValue()));
-                                break;
-                            }
-                        }
+            }
+        }
+
+        @Override
+        public void accept(TraceEvent event) {
+            if (!event.has(TraceEvent.TID)) {
+                System.out.println(event.line() + " doesn't contain a " + THREAD_FIELD_NAME + " object");
+                return;
+            }
+            for (int i = 0; i < slots.length; i++) {
+                if (event.isTextual(slots[i]) && matches[i].get(event, slots[i]) >= 0) {
+                    if (found.get(event) < 0) {
+                        threadIds.add(found.getThread(found.getOrAdd(event)));
                     }
                 }
             }
+        }
+
+        @Override
+        public void merge(Collector next) {
+            for (Pair<String, Long> thread : next.threadIds) {
+                found.add(thread);
+                threadIds.add(thread);
+            }
+        }
+
+        @Override
+        public void finish() {
             System.out.println("Found the following matching threads: " + Arrays.toString(threadIds.toArray()));
         }
-        return new ArrayList<>(threadIds);
+
+        @Override
+        public ScanMetrics.Stage stage() {
+            return ScanMetrics.Stage.MATCH;
+        }
+
+        public boolean contains(Pair<String, Long> thread) {
+            return threadIds.contains(thread);
+        }
+
+        public boolean contains(TraceEvent event) {
+            return found.get(event) >= 0;
+        }
+
+        public List<Pair<String, Long>> getThreads() {
+            return new ArrayList<>(threadIds);
+        }
     }
 }
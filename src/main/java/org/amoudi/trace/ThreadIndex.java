@@ -0,0 +1,403 @@
+package org.amoudi.trace;
+
+import org.apache.commons.lang3.tuple.Pair;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+// Sidecar index of a trace that maps every (pid,tid) to the runs of consecutive lines holding its events. The runs
+// are stored as varint (gap, length) pairs, so the events of a thread can be read with positioned reads instead of
+// scanning the whole trace. The index is built on first use and rebuilt when the trace's size or mtime changes.
+public class ThreadIndex {
+
+    private static final String SUFFIX = ".tindex";
+    // "TRINDEX2"
+    private static final long MAGIC = 0x5452494E44455832L;
+    // Runs are cut at this length so a run always fits in a small buffer
+    private static final int RUN_LIMIT = 1 << 20;
+    // While building, the postings of a thread are kept in memory up to this size and then spilled to a temp file, so
+    // the heap doesn't grow with the number of events. Postings are read back through windows of the same size.
+    private static final int BLOCK_SIZE = 8 << 10;
+
+    private final File source;
+    private final File file;
+    private final long lines;
+    private final long postingsStart;
+    private final List<Entry> entries = new ArrayList<>();
+
+    private ThreadIndex(File source, File file, DataInputStream in) throws IOException {
+        this.source = source;
+        this.file = file;
+        lines = in.readLong();
+        int tableLength = in.readInt();
+        postingsStart = 4 * 8 + 4 + tableLength;
+        int threads = in.readInt();
+        for (int i = 0; i < threads; i++) {
+            String pid = in.readBoolean() ? in.readUTF() : null;
+            long tid = in.readLong();
+            long events = in.readLong();
+            long offset = in.readLong();
+            long length = in.readLong();
+            entries.add(new Entry(Pair.of(pid, tid), events, offset, length));
+        }
+    }
+
+    public static File getIndexFile(File trace) {
+        return new File(trace.getAbsolutePath() + SUFFIX);
+    }
+
+    // Returns the index of the trace, building it first if there is none or it is stale
+    public static ThreadIndex load(File trace) throws IOException {
+        ThreadIndex index = open(trace);
+        if (index == null) {
+            build(trace);
+            index = open(trace);
+        }
+        return index;
+    }
+
+    public static ThreadIndex open(File trace) throws IOException {
+        File file = getIndexFile(trace);
+        if (!file.exists()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readLong() != MAGIC || in.readLong() != trace.length() || in.readLong() != trace.lastModified()) {
+                return null;
+            }
+            return new ThreadIndex(trace, file, in);
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    public static File build(File trace) throws IOException {
+        if (TraceInput.isCompressed(trace)) {
+            throw new IOException("Can't index compressed trace " + trace.getAbsolutePath());
+        }
+        File file = getIndexFile(trace);
+        System.out.println("Writing thread index to " + file.getAbsolutePath());
+        long lastModified = trace.lastModified();
+        long length = trace.length();
+        File temp = File.createTempFile("trace-index", SUFFIX, file.getAbsoluteFile().getParentFile());
+        try (Builder builder = new Builder()) {
+            TraceScanner scanner = new TraceScanner().useCache(false).register(builder);
+            scanner.scan(trace);
+
+            ByteArrayOutputStream table = new ByteArrayOutputStream();
+            long offset = 0;
+            try (DataOutputStream out = new DataOutputStream(table)) {
+                out.writeInt(builder.threads.size());
+                for (int id = 0; id < builder.threads.size(); id++) {
+                    Postings postings = builder.postings.get(id);
+                    postings.close();
+                    String pid = builder.threads.getThread(id).getLeft();
+                    out.writeBoolean(pid != null);
+                    if (pid != null) {
+                        out.writeUTF(pid);
+                    }
+                    out.writeLong(builder.threads.getThread(id).getRight());
+                    out.writeLong(postings.events);
+                    out.writeLong(offset);
+                    out.writeLong(postings.length());
+                    offset += postings.length();
+                }
+            }
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+                out.writeLong(MAGIC);
+                out.writeLong(length);
+                out.writeLong(lastModified);
+                out.writeLong(scanner.getLines());
+                out.writeInt(table.size());
+                table.writeTo(out);
+                byte[] block = new byte[BLOCK_SIZE];
+                for (Postings postings : builder.postings) {
+                    for (int b = 0; b < postings.spilledCount; b++) {
+                        read(builder.spill.channel, postings.spilled[b], block, BLOCK_SIZE);
+                        out.write(block);
+                    }
+                    out.write(postings.block, 0, postings.used);
+                }
+            }
+            System.out.println("Indexed " + builder.threads.size() + " threads");
+        } catch (IOException e) {
+            Files.deleteIfExists(temp.toPath());
+            throw e;
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return file;
+    }
+
+    public long getLines() {
+        return lines;
+    }
+
+    // Number of events of a thread, a null pid matches every process
+    public long getEvents(Pair<String, Long> thread) {
+        long events = 0;
+        for (Entry entry : entries) {
+            if (matches(thread, entry.thread)) {
+                events += entry.events;
+            }
+        }
+        return events;
+    }
+
+    // Feeds the events of the threads, in file order, to the consumers. Only the runs of those threads are read.
+    public void scan(List<Pair<String, Long>> threads, TraceScanner scanner, List<? extends TraceConsumer> consumers)
+            throws IOException {
+        EventDecoder decoder = new EventDecoder();
+        for (TraceConsumer consumer : consumers) {
+            consumer.declare(decoder);
+        }
+        PriorityQueue<Cursor> cursors = new PriorityQueue<>();
+        try (FileChannel indexChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+             FileChannel channel = FileChannel.open(source.toPath(), StandardOpenOption.READ)) {
+            for (Entry entry : entries) {
+                for (Pair<String, Long> thread : threads) {
+                    if (matches(thread, entry.thread)) {
+                        Cursor cursor = new Cursor(indexChannel, postingsStart + entry.offset, entry.length);
+                        if (cursor.next()) {
+                            cursors.add(cursor);
+                        }
+                        break;
+                    }
+                }
+            }
+            byte[] buffer = new byte[RUN_LIMIT];
+            while (!cursors.isEmpty()) {
+                Cursor cursor = cursors.poll();
+                // Only a single line longer than RUN_LIMIT makes a longer run
+                int runLength = Math.toIntExact(cursor.runLength);
+                if (buffer.length < runLength) {
+                    buffer = new byte[runLength];
+                }
+                read(channel, cursor.runStart, buffer, runLength);
+                scanner.scan(new LineReader(buffer, runLength), cursor.runStart, decoder, consumers);
+                if (cursor.next()) {
+                    cursors.add(cursor);
+                }
+            }
+        }
+        for (TraceConsumer consumer : consumers) {
+            TraceScanner.finish(consumer, scanner.getMetrics());
+        }
+    }
+
+    private static boolean matches(Pair<String, Long> wanted, Pair<String, Long> thread) {
+        return wanted.getRight().equals(thread.getRight())
+                && (wanted.getLeft() == null || wanted.getLeft().equals(thread.getLeft()));
+    }
+
+    private static void read(FileChannel channel, long position, byte[] bytes, int length) throws IOException {
+        ByteBuffer target = ByteBuffer.wrap(bytes, 0, length);
+        while (target.hasRemaining()) {
+            if (channel.read(target, position + target.position()) < 0) {
+                throw new EOFException("Unexpected end of " + channel);
+            }
+        }
+    }
+
+    private static class Entry {
+        private final Pair<String, Long> thread;
+        private final long events;
+        private final long offset;
+        private final long length;
+
+        private Entry(Pair<String, Long> thread, long events, long offset, long length) {
+            this.thread = thread;
+            this.events = events;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    // Walks the runs of one thread, reading its postings from the index a window at a time
+    private static class Cursor implements Comparable<Cursor> {
+        private final FileChannel channel;
+        private final long end;
+        private final byte[] window;
+        private long windowStart;
+        private int windowLength = 0;
+        private int position = 0;
+        private long runStart = 0;
+        private long runLength = 0;
+
+        private Cursor(FileChannel channel, long start, long length) {
+            this.channel = channel;
+            windowStart = start;
+            end = start + length;
+            window = new byte[(int) Math.min(BLOCK_SIZE, length)];
+        }
+
+        private boolean next() throws IOException {
+            if (position >= windowLength && windowStart + windowLength >= end) {
+                return false;
+            }
+            runStart += runLength + readVarLong();
+            runLength = readVarLong();
+            return true;
+        }
+
+        private long readVarLong() throws IOException {
+            long value = 0;
+            for (int shift = 0; ; shift += 7) {
+                if (position >= windowLength) {
+                    windowStart += windowLength;
+                    windowLength = (int) Math.min(window.length, end - windowStart);
+                    if (windowLength <= 0) {
+                        throw new EOFException("Truncated postings in thread index");
+                    }
+                    read(channel, windowStart, window, windowLength);
+                    position = 0;
+                }
+                int b = window[position++];
+                value |= (long) (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+        }
+
+        @Override
+        public int compareTo(Cursor other) {
+            return Long.compare(runStart, other.runStart);
+        }
+    }
+
+    // The varint runs of one thread. Full blocks are spilled and only their offsets in the spill file are kept.
+    private static class Postings {
+        private final Spill spill;
+        private byte[] block = new byte[16];
+        private int used = 0;
+        private long[] spilled = new long[0];
+        private int spilledCount = 0;
+        private long events = 0;
+        private long lastEnd = 0;
+        private long runStart = -1;
+        private long runEnd = 0;
+
+        private Postings(Spill spill) {
+            this.spill = spill;
+        }
+
+        private long length() {
+            return (long) spilledCount * BLOCK_SIZE + used;
+        }
+
+        private void add(long start, long end, boolean adjacent) throws IOException {
+            events++;
+            if (runStart >= 0 && adjacent && end - runStart <= RUN_LIMIT) {
+                runEnd = end;
+                return;
+            }
+            close();
+            runStart = start;
+            runEnd = end;
+        }
+
+        private void close() throws IOException {
+            if (runStart < 0) {
+                return;
+            }
+            writeVarLong(runStart - lastEnd);
+            writeVarLong(runEnd - runStart);
+            lastEnd = runEnd;
+            runStart = -1;
+        }
+
+        private void writeVarLong(long value) throws IOException {
+            while ((value & ~0x7FL) != 0) {
+                write((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            write((int) value);
+        }
+
+        private void write(int b) throws IOException {
+            if (used == block.length) {
+                if (block.length < BLOCK_SIZE) {
+                    block = Arrays.copyOf(block, block.length * 2);
+                } else {
+                    if (spilledCount == spilled.length) {
+                        spilled = Arrays.copyOf(spilled, Math.max(4, spilledCount * 2));
+                    }
+                    spilled[spilledCount++] = spill.append(block);
+                    used = 0;
+                }
+            }
+            block[used++] = (byte) b;
+        }
+    }
+
+    // Temp file the full blocks of all threads are appended to, created when the first block is spilled
+    private static class Spill implements Closeable {
+        private File file;
+        private FileChannel channel;
+        private long length = 0;
+
+        private long append(byte[] block) throws IOException {
+            if (channel == null) {
+                file = File.createTempFile("trace-index", ".postings");
+                channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            }
+            long offset = length;
+            ByteBuffer source = ByteBuffer.wrap(block);
+            while (source.hasRemaining()) {
+                channel.write(source, offset + source.position());
+            }
+            length += block.length;
+            return offset;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (channel != null) {
+                channel.close();
+                Files.deleteIfExists(file.toPath());
+            }
+        }
+    }
+
+    private static class Builder implements TraceConsumer, Closeable {
+        private final ThreadTable threads = new ThreadTable();
+        // Postings by thread table id
+        private final List<Postings> postings = new ArrayList<>();
+        private final Spill spill = new Spill();
+        private int last = -1;
+
+        @Override
+        public void declare(EventDecoder decoder) {
+            decoder.require(TraceEvent.TID | TraceEvent.PID);
+        }
+
+        @Override
+        public void accept(TraceEvent event) throws IOException {
+            int id = threads.getOrAdd(event);
+            if (id < 0) {
+                last = -1;
+                return;
+            }
+            if (id == postings.size()) {
+                postings.add(new Postings(spill));
+            }
+            // A run goes on as long as no other thread's event came in between
+            postings.get(id).add(event.offset, event.offset + (event.end - event.start), id == last);
+            last = id;
+        }
+
+        @Override
+        public void finish() {
+        }
+
+        @Override
+        public void close() throws IOException {
+            spill.close();
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package org.amoudi.trace;
+
+import org.apache.commons.lang3.tuple.Pair;
+
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Open addressing hash table that gives every (pid,tid) a dense id. Lookups go straight from the pid bytes and the
+// primitive tid of a TraceEvent, so finding a known thread doesn't allocate.
+public class ThreadTable implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private long[] tids = new long[INITIAL_CAPACITY];
+    private byte[][] pids = new byte[INITIAL_CAPACITY][];
+    // id + 1 of the thread in every bucket, 0 for an empty bucket
+    private int[] buckets = new int[INITIAL_CAPACITY];
+    private final List<Pair<String, Long>> threads = new ArrayList<>();
+
+    // Id of the event's thread, or -1 if it isn't in the table or the event has no tid
+    public int get(TraceEvent event) {
+        if (!event.has(TraceEvent.TID)) {
+            return -1;
+        }
+        boolean hasPid = event.hasText(TraceEvent.SLOT_PID);
+        int from = event.textStart[TraceEvent.SLOT_PID];
+        int to = event.textEnd[TraceEvent.SLOT_PID];
+        return find(event.textBuffer, from, to, hasPid, event.tid);
+    }
+
+    // Id of a thread that was added without a pid
+    public int get(long tid) {
+        return find(null, 0, 0, false, tid);
+    }
+
+    public int get(Pair<String, Long> thread) {
+        if (thread.getLeft() == null) {
+            return get(thread.getRight());
+        }
+        byte[] pid = EventDecoder.bytes(thread.getLeft());
+        return find(pid, 0, pid.length, true, thread.getRight());
+    }
+
+    public int getOrAdd(TraceEvent event) {
+        int id = get(event);
+        if (id < 0 && event.has(TraceEvent.TID)) {
+            id = add(Pair.of(event.pid(), event.tid()));
+        }
+        return id;
+    }
+
+    // Adds the thread if it isn't there yet and returns its id
+    public int add(Pair<String, Long> thread) {
+        int id = get(thread);
+        if (id >= 0) {
+            return id;
+        }
+        if ((threads.size() + 1) * 2 > buckets.length) {
+            grow();
+        }
+        byte[] pid = thread.getLeft() == null ? null : thread.getLeft().getBytes(StandardCharsets.UTF_8);
+        id = threads.size();
+        threads.add(thread);
+        insert(pid, thread.getRight(), id);
+        return id;
+    }
+
+    public Pair<String, Long> getThread(int id) {
+        return threads.get(id);
+    }
+
+    public List<Pair<String, Long>> getThreads() {
+        return threads;
+    }
+
+    public int size() {
+        return threads.size();
+    }
+
+    private int find(byte[] buffer, int from, int to, boolean hasPid, long tid) {
+        int mask = buckets.length - 1;
+        for (int b = hash(buffer, from, to, hasPid, tid) & mask; ; b = (b + 1) & mask) {
+            int entry = buckets[b];
+            if (entry == 0) {
+                return -1;
+            }
+            if (tids[b] == tid && samePid(pids[b], buffer, from, to, hasPid)) {
+                return entry - 1;
+            }
+        }
+    }
+
+    private void insert(byte[] pid, long tid, int id) {
+        int mask = buckets.length - 1;
+        int b = hash(pid, 0, pid == null ? 0 : pid.length, pid != null, tid) & mask;
+        while (buckets[b] != 0) {
+            b = (b + 1) & mask;
+        }
+        buckets[b] = id + 1;
+        tids[b] = tid;
+        pids[b] = pid;
+    }
+
+    private void grow() {
+        long[] oldTids = tids;
+        byte[][] oldPids = pids;
+        int[] oldBuckets = buckets;
+        tids = new long[oldBuckets.length * 2];
+        pids = new byte[oldBuckets.length * 2][];
+        buckets = new int[oldBuckets.length * 2];
+        for (int b = 0; b < oldBuckets.length; b++) {
+            if (oldBuckets[b] != 0) {
+                insert(oldPids[b], oldTids[b], oldBuckets[b] - 1);
+            }
+        }
+    }
+
+    private static boolean samePid(byte[] pid, byte[] buffer, int from, int to, boolean hasPid) {
+        if (pid == null || !hasPid) {
+            return pid == null && !hasPid;
+        }
+        if (pid.length != to - from) {
+            return false;
+        }
+        for (int i = 0; i < pid.length; i++) {
+            if (pid[i] != buffer[from + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int hash(byte[] buffer, int from, int to, boolean hasPid, long tid) {
+        long h = tid * 0x9E3779B97F4A7C15L;
+        if (hasPid) {
+            for (int i = from; i < to; i++) {
+                h = (h ^ buffer[i]) * 0x100000001B3L;
+            }
+        }
+        return (int) (h ^ (h >>> 32));
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(threads.toArray());
+    }
+}
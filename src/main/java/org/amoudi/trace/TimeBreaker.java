@@ -1,7 +1,7 @@
 package org.amoudi.trace;
 
-import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import org.apache.commons.lang3.tuple.Pair;
 
 import java.io.*;
@@ -9,20 +9,19 @@ import java.util.*;
 
 public class TimeBreaker {
 
-    private static final String KEY_NAME = "name";
-    private static final String KEY_ARGS = "args";
-    private static final String KEY_PHASE = "ph";
     private static final String KEY_TIMESTAMP = "ts";
-    private static final String KEY_COUNT = "count";
-    private static final String KEY_AVG_DURATION_NANO = "avg-duration-ns";
-    private static final String PHASE_INSTANT = "i";
-    private static final String PHASE_BEGIN = "B";
-    private static final String PHASE_END = "E";
+    private static final byte PHASE_INSTANT = 'i';
+    private static final byte PHASE_BEGIN = 'B';
+    private static final byte PHASE_END = 'E';
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final long FOLLOW_POLL_MILLIS = 200;
 
     private static void help() {
-        System.out.println("This tool is used to produce time breakdown for a single thread trace file");
+        System.out.println("This tool is used to produce time breakdown for every thread of a trace file");
         System.out.println("Expected arguments are:");
         System.out.println("<file name>");
+        System.out.println("[<field 1> <value 1> ... <field n> <value n>] for the threads with a matching event only");
+        System.out.println("[<bucket width in us>] for a timeline with one JSON line per bucket");
     }
 
     public static void breakdown(String fileName, Writer bw) throws Exception {
@@ -31,118 +30,602 @@ public class TimeBreaker {
             System.out.println("File" + input.getAbsolutePath() + " doesn't exist");
             System.exit(1);
         }
-        breakdown(input, bw);
+        breakdown(input, null, bw);
+    }
+
+    public static void breakdown(String fileName, Map<String, List<String>> predicates, Writer bw) throws Exception {
+        File input = new File(fileName);
+        if (!input.exists()) {
+            System.out.println("File" + input.getAbsolutePath() + " doesn't exist");
+            System.exit(1);
+        }
+        breakdown(input, predicates, bw);
     }
 
     public static void breakdown(File file, Writer bw) throws IOException, InterruptedException {
-        long globalStart = Long.MAX_VALUE;
-        long globalEnd = Long.MIN_VALUE;
-
-        ObjectMapper om = new ObjectMapper();
-        // Sum,Min,Max,Count
-        HashMap<String, long[]> name2Duration = new HashMap<>();
-        HashMap<String, Long> name2Instant = new HashMap<>();
-        Stack<Pair<String, JsonNode>> starts = new Stack<>();
-        try (BufferedReader br = new BufferedReader(new FileReader(file))) {
-            for (String line; (line = br.readLine()) != null; ) {
-                line = line.trim();
-                if (!line.startsWith("{")) {
-                    System.out.println(line + " doesn't contain a json object");
-                    continue;
-                }
-                line = line.substring(0, line.lastIndexOf('}') + 1);
-                JsonNode json;
-                try {
-                    json = om.readTree(line);
-                } catch (Exception e) {
-                    System.err.println("Failed parsing: " + line);
-                    throw e;
-                }
-                long timestamp = json.findValue(KEY_TIMESTAMP).asLong();
-                globalStart = Long.min(globalStart, timestamp);
-                globalEnd = Long.max(globalEnd, timestamp);
-                // Get event phase
-                String phase = json.findValue(KEY_PHASE).asText();
-                switch (phase) {
-                    case PHASE_BEGIN:
-                        // Get name
-                        String name = json.findValue(KEY_NAME).asText();
-                        starts.push(Pair.of(name, json));
+        breakdown(file, null, bw);
+    }
+
+    // Writes the breakdown of every thread of the trace, or of the threads with an event matching the predicates
+    // if they are not null, and then the combined breakdown of all of them. A single thread trace only gets the
+    // breakdown of its thread.
+    public static void breakdown(File file, Map<String, List<String>> predicates, Writer bw)
+            throws IOException, InterruptedException {
+        PerThread breakdowns = new ParallelTraceScanner<>(() -> new PerThread(predicates))
+                .failOnParseError(true).scan(file);
+        write(breakdowns, breakdowns.getThreads(), predicates == null, false, bw);
+    }
+
+    // Writes the breakdown of each of the threads and then their combined breakdown, each followed by its call paths
+    // if callPaths is set. When they are all the threads of the trace and there is only one, only its breakdown is
+    // written.
+    public static void write(PerThread breakdowns, List<Pair<String, Long>> threads, boolean all, boolean callPaths,
+                             Writer bw) throws IOException {
+        if (threads.size() == 1 && all) {
+            write(breakdowns.get(threads.get(0)), callPaths, bw);
+            return;
+        }
+        for (Pair<String, Long> thread : threads) {
+            bw.write("Process: " + thread.getLeft() + " Thread: " + thread.getRight() + "\n");
+            write(breakdowns.get(thread), callPaths, bw);
+            bw.write("\n");
+        }
+        bw.write("Combined breakdown of " + threads.size() + " threads:\n");
+        write(breakdowns.combined(threads), callPaths, bw);
+    }
+
+    private static void write(Breakdown breakdown, boolean callPaths, Writer bw) throws IOException {
+        breakdown.write(bw);
+        if (callPaths) {
+            breakdown.writeCallPaths(bw);
+        }
+    }
+
+    // Follows a single thread trace that is still being written and writes its breakdown every intervalMillis.
+    // With a checkpoint file the state is saved at every refresh and a restart resumes from it.
+    public static void follow(String fileName, long intervalMillis, File checkpoint, Writer bw) throws Exception {
+        File input = new File(fileName);
+        if (!input.exists()) {
+            System.out.println("File" + input.getAbsolutePath() + " doesn't exist");
+            System.exit(1);
+        }
+        TraceFollower<Breakdown> follower = new TraceFollower<>(input, Breakdown::new, checkpoint);
+        follower.follow(Math.min(FOLLOW_POLL_MILLIS, intervalMillis), intervalMillis, breakdown -> {
+            // Followed from the start of the trace, so nothing can match its orphans anymore
+            breakdown.finish();
+            bw.write("Breakdown at " + new Date() + " after " + follower.getOffset() + " bytes\n");
+            breakdown.write(bw);
+            bw.write("\n");
+            bw.flush();
+        });
+    }
+
+    // Writes a timeline of a single thread trace, one JSON object per line for every bucketWidth us of the trace
+    public static void timeline(String fileName, long bucketWidth, Writer bw) throws Exception {
+        File input = new File(fileName);
+        if (!input.exists()) {
+            System.out.println("File" + input.getAbsolutePath() + " doesn't exist");
+            System.exit(1);
+        }
+        if (bucketWidth <= 0) {
+            System.out.println("Incorrect use. Bucket width must be positive");
+            help();
+            System.exit(1);
+        }
+        new TraceScanner().failOnParseError(true).register(new Timeline(bucketWidth, bw)).scan(input);
+        bw.flush();
+    }
+
+    // Time breakdown of a single thread's events. Every span is credited with its inclusive time under its name and,
+    // in a CallTree, with its inclusive and self time under its call path: the time its children took is summed
+    // next to it on the stack and subtracted when it ends.
+    public static class Breakdown implements MergeableConsumer<Breakdown>, Serializable {
+        private static final long serialVersionUID = 2L;
+
+        private long globalStart = Long.MAX_VALUE;
+        private long globalEnd = Long.MIN_VALUE;
+        // Span durations in us and, for instant events, avg-duration-ns weighted by count
+        private final NameStats durations = new NameStats();
+        private final NameStats instants = new NameStats();
+        private final CallTree calls = new CallTree();
+        // Name ids in durations, timestamps and call tree nodes of the open begin events
+        private int[] startNames = new int[16];
+        private long[] startTimes = new long[16];
+        private int[] startNodes = new int[16];
+        // Time of the ended children of every open span, shifted by one: childTimes[0] is the time of the ended top
+        // level spans since the last orphan
+        private long[] childTimes = new long[17];
+        private int depth = 0;
+        // Call tree root of the top level spans
+        private int root = 0;
+        // End events that came before any begin event, they can still be matched by a preceding chunk, and the time
+        // of the top level spans that ended before each, which are its children
+        private long[] orphanTimes = new long[0];
+        private long[] orphanChildTimes = new long[0];
+        private final List<String> orphanLines = new ArrayList<>();
+
+        @Override
+        public void declare(EventDecoder decoder) {
+            decoder.require(TraceEvent.TIMESTAMP | TraceEvent.PHASE | TraceEvent.NAME | TraceEvent.ARGS_COUNT
+                    | TraceEvent.ARGS_AVG_DURATION);
+        }
+
+        @Override
+        public void accept(TraceEvent event) {
+            if (!event.has(TraceEvent.TIMESTAMP)) {
+                System.err.println(event.line() + " doesn't contain a " + KEY_TIMESTAMP + " field");
+                return;
+            }
+            long timestamp = event.timestamp();
+            globalStart = Long.min(globalStart, timestamp);
+            globalEnd = Long.max(globalEnd, timestamp);
+            // Get event phase
+            switch (event.phase()) {
+                case PHASE_BEGIN:
+                    // Get name
+                    push(durations.intern(event, TraceEvent.SLOT_NAME), timestamp,
+                            calls.child(top(), event, TraceEvent.SLOT_NAME), 0);
+                    break;
+                case PHASE_END:
+                    if (depth == 0) {
+                        addOrphan(timestamp, event.line(), childTimes[0]);
                         break;
-                    case PHASE_END:
-                        if (starts.isEmpty()) {
-                            System.err.println("End event: " + json + " had no start event");
-                            break;
-                        }
-                        Pair<String, JsonNode> startEvent = starts.pop();
-                        name = startEvent.getKey();
-                        long start = startEvent.getRight().findValue(KEY_TIMESTAMP).asLong();
-                        long end = json.findValue(KEY_TIMESTAMP).asLong();
-                        long[] nameDuration =
-                                name2Duration.getOrDefault(name, new long[]{0L, Long.MAX_VALUE, Long.MIN_VALUE, 0L});
-                        long thisDuration = end - start;
-                        nameDuration[0] = nameDuration[0] + thisDuration;
-                        nameDuration[1] = Long.min(nameDuration[1], thisDuration);
-                        nameDuration[2] = Long.max(nameDuration[2], thisDuration);
-                        nameDuration[3]++;
-                        name2Duration.put(name, nameDuration);
+                    }
+                    end(timestamp);
+                    break;
+                case PHASE_INSTANT:
+                    // For instant events, we will only look at args
+                    // In args, we look for count and avg-duration-ns
+                    if (!event.has(TraceEvent.ARGS_COUNT) || !event.has(TraceEvent.ARGS_AVG_DURATION)) {
                         break;
-                    case PHASE_INSTANT:
-                        // For instant events, we will only look at args
-                        // In args, we look for count and avg-duration-ns
-                        name = json.findValue(KEY_NAME).asText();
-                        JsonNode args = json.findValue(KEY_ARGS);
-                        if (args == null) {
-                            break;
-                        }
-                        JsonNode countField = args.findValue(KEY_COUNT);
-                        if (countField == null) {
-                            break;
-                        }
-                        JsonNode avgDurationField = args.findValue(KEY_AVG_DURATION_NANO);
-                        if (avgDurationField == null) {
-                            break;
-                        }
-                        long count = countField.asLong();
-                        long avgDuration = avgDurationField.asLong();
-                        long duration = avgDuration * count;
-                        Long commulativeDuration = name2Instant.getOrDefault(name, new Long(0));
-                        commulativeDuration = commulativeDuration + duration;
-                        name2Instant.put(name, commulativeDuration);
+                    }
+                    instants.record(instants.intern(event, TraceEvent.SLOT_NAME), event.avgDuration(), event.count());
+                    break;
+                default:
+                    System.err.println("Unknown phase of entry: " + event.text(TraceEvent.SLOT_PHASE));
+            }
+        }
+
+        private void end(long timestamp) {
+            depth--;
+            long total = timestamp - startTimes[depth];
+            durations.record(startNames[depth], total);
+            calls.record(startNodes[depth], total, total - childTimes[depth + 1]);
+            childTimes[depth] += total;
+        }
+
+        private void push(int name, long timestamp, int node, long childTime) {
+            if (depth == startNames.length) {
+                startNames = Arrays.copyOf(startNames, depth * 2);
+                startTimes = Arrays.copyOf(startTimes, depth * 2);
+                startNodes = Arrays.copyOf(startNodes, depth * 2);
+                childTimes = Arrays.copyOf(childTimes, depth * 2 + 1);
+            }
+            startNames[depth] = name;
+            startTimes[depth] = timestamp;
+            startNodes[depth] = node;
+            childTimes[depth + 1] = childTime;
+            depth++;
+        }
+
+        // Call tree node of the innermost open span
+        private int top() {
+            return depth > 0 ? startNodes[depth - 1] : root;
+        }
+
+        // The spans that end after an orphan are under a new root, they belong where the orphan is matched
+        private void addOrphan(long timestamp, String line, long childTime) {
+            int orphans = orphanLines.size();
+            if (orphans == orphanTimes.length) {
+                orphanTimes = Arrays.copyOf(orphanTimes, Math.max(4, orphans * 2));
+                orphanChildTimes = Arrays.copyOf(orphanChildTimes, Math.max(4, orphans * 2));
+            }
+            orphanTimes[orphans] = timestamp;
+            orphanChildTimes[orphans] = childTime;
+            orphanLines.add(line);
+            childTimes[0] = 0;
+            root = calls.addRoot();
+        }
+
+        @Override
+        public void merge(Breakdown next) {
+            globalStart = Long.min(globalStart, next.globalStart);
+            globalEnd = Long.max(globalEnd, next.globalEnd);
+            // The end events the next chunk couldn't match close the spans still open here, innermost first, and the
+            // paths of the next chunk that began before every one of them go under the span that is then innermost
+            int[] targets = new int[next.calls.size()];
+            int nextRoot = 0;
+            targets[nextRoot] = top();
+            for (int i = 0; i < next.orphanLines.size(); i++) {
+                if (depth == 0) {
+                    addOrphan(next.orphanTimes[i], next.orphanLines.get(i), childTimes[0] + next.orphanChildTimes[i]);
+                } else {
+                    childTimes[depth] += next.orphanChildTimes[i];
+                    end(next.orphanTimes[i]);
+                }
+                do {
+                    nextRoot++;
+                } while (!next.calls.isRoot(nextRoot));
+                targets[nextRoot] = top();
+            }
+            childTimes[depth] += next.childTimes[0];
+            int[] nodes = calls.merge(next.calls, targets);
+            for (int i = 0; i < next.depth; i++) {
+                push(durations.intern(next.durations.getName(next.startNames[i])), next.startTimes[i],
+                        nodes[next.startNodes[i]], next.childTimes[i + 1]);
+            }
+            durations.merge(next.durations);
+            instants.merge(next.instants);
+        }
+
+        // Adds the spans of another thread, where merge continues this thread with its next chunk. The time of the
+        // result is from the first to the last event of either.
+        public void add(Breakdown other) {
+            globalStart = Long.min(globalStart, other.globalStart);
+            globalEnd = Long.max(globalEnd, other.globalEnd);
+            durations.merge(other.durations);
+            instants.merge(other.instants);
+            // Every root of the other tree onto the first root of this one
+            calls.merge(other.calls, new int[other.calls.size()]);
+        }
+
+        // No preceding chunk is left to match the orphans: their lines are reported and the spans under their roots
+        // go to the top level, so their paths aren't written once per orphan. The breakdown can go on accepting
+        // events of the same thread afterwards.
+        @Override
+        public void finish() {
+            if (orphanLines.isEmpty()) {
+                return;
+            }
+            for (String line : orphanLines) {
+                System.err.println("End event: " + line + " had no start event");
+            }
+            orphanLines.clear();
+            orphanTimes = new long[0];
+            orphanChildTimes = new long[0];
+            int[] nodes = calls.graftRoots();
+            for (int i = 0; i < depth; i++) {
+                startNodes[i] = nodes[startNodes[i]];
+            }
+            root = 0;
+        }
+
+        // Merges the span durations into durations, leaving this breakdown as it is
+        public void addDurations(Map<String, LatencyHistogram> durations) {
+            for (int i = 0; i < this.durations.size(); i++) {
+                if (this.durations.getCount(i) > 0) {
+                    durations.computeIfAbsent(this.durations.getName(i), name -> new LatencyHistogram())
+                            .merge(this.durations.getHistogram(i));
+                }
+            }
+        }
+
+        public void write(Writer bw) throws IOException {
+            // Write output
+            bw.write("Start = (" + globalStart + ")" + ": " + new Date(globalStart / 1000L) + "\n");
+            bw.write("End = (" + globalEnd + ")" + ": " + new Date(globalEnd / 1000L) + "\n");
+            long totalTime = globalEnd - globalStart;
+            Map<String, Long> selfTimes = calls.getSelfByName();
+            bw.write("Total time spent: " + totalTime + "us = " + (totalTime / 1000L) + "ms = " + (totalTime / 1000000L)
+                    + "s \n");
+            // By name, so a parallel scan writes the same breakdown as a sequential one
+            for (int i : durations.idsByName()) {
+                // Spans that only began have no duration
+                if (durations.getCount(i) == 0) {
+                    continue;
+                }
+                String name = durations.getName(i);
+                long sum = durations.getSum(i);
+                bw.write(name + " took: " + sum + "us which is " + ((double) sum / (double) totalTime)
+                        + " of the whole time... min = " + durations.getMin(i) + ", max = " + durations.getMax(i)
+                        + ", count = " + durations.getCount(i) + "\n");
+                bw.write(name + " percentiles: " + durations.getHistogram(i).percentiles("us") + "\n");
+                long self = selfTimes.getOrDefault(name, 0L);
+                bw.write(name + " self time: " + self + "us which is " + ((double) self / (double) totalTime)
+                        + " of the whole time\n");
+            }
+
+            for (int i : instants.idsByName()) {
+                String name = instants.getName(i);
+                // Change all nanos to micro
+                long time = instants.getSum(i) / 1000L;
+                bw.write(name + " took: " + time + "us which is " + ((double) time / (double) totalTime)
+                        + " of the whole time\n");
+                bw.write(name + " avg-duration-ns percentiles: " + instants.getHistogram(i).percentiles("ns") + "\n");
+            }
+        }
+
+        // Writes every call path with its inclusive and self time, one line each. There is a line for every distinct
+        // path, so it is kept out of the per name breakdown of write.
+        public void writeCallPaths(Writer bw) throws IOException {
+            bw.write("Call paths:\n");
+            calls.write(bw, globalEnd - globalStart);
+        }
+
+        public CallTree getCalls() {
+            return calls;
+        }
+    }
+
+    // Splits a single thread's time into fixed width buckets and reports, per bucket, the busy time of every span
+    // name, the idle time between top level spans and the number of events. Open spans and the current idle period
+    // are credited up to the bucket of the latest event as it moves on, so a bucket is written out as soon as time
+    // has passed it, however long the span that covers it, and only the current buckets are kept in memory.
+    // Events that arrive after their bucket was written out start a new line for the same bucket.
+    public static class Timeline implements TraceConsumer {
+        private final long bucketWidth;
+        private final Writer out;
+        private final TreeMap<Long, Bucket> buckets = new TreeMap<>();
+        private final NameTable names = new NameTable();
+        private int[] startNames = new int[16];
+        // Time every open span is credited from, its begin or the start of the bucket it was last credited up to
+        private long[] busyFrom = new long[16];
+        private int depth = 0;
+        private boolean started = false;
+        private long idleStart;
+        private long last;
+        // Start of the bucket everything before is credited up to
+        private long credited = Long.MIN_VALUE;
+
+        public Timeline(long bucketWidth, Writer out) {
+            this.bucketWidth = bucketWidth;
+            this.out = out;
+        }
+
+        @Override
+        public void declare(EventDecoder decoder) {
+            decoder.require(TraceEvent.TIMESTAMP | TraceEvent.PHASE | TraceEvent.NAME);
+        }
+
+        @Override
+        public void accept(TraceEvent event) throws IOException {
+            if (!event.has(TraceEvent.TIMESTAMP)) {
+                System.err.println(event.line() + " doesn't contain a " + KEY_TIMESTAMP + " field");
+                return;
+            }
+            long timestamp = event.timestamp();
+            if (!started) {
+                started = true;
+                idleStart = timestamp;
+                last = timestamp;
+            }
+            last = Long.max(last, timestamp);
+            bucket(Math.floorDiv(timestamp, bucketWidth)).events++;
+            switch (event.phase()) {
+                case PHASE_BEGIN:
+                    if (depth == 0) {
+                        addIdle(idleStart, timestamp);
+                    }
+                    if (depth == startNames.length) {
+                        startNames = Arrays.copyOf(startNames, depth * 2);
+                        busyFrom = Arrays.copyOf(busyFrom, depth * 2);
+                    }
+                    startNames[depth] = names.getOrAdd(event, TraceEvent.SLOT_NAME);
+                    busyFrom[depth] = timestamp;
+                    depth++;
+                    break;
+                case PHASE_END:
+                    if (depth == 0) {
                         break;
-                    default:
-                        System.err.println("Unknown phase of entry: " + phase);
+                    }
+                    depth--;
+                    addBusy(startNames[depth], busyFrom[depth], timestamp);
+                    if (depth == 0) {
+                        idleStart = timestamp;
+                    }
+                    break;
+                default:
+            }
+            credit(Math.floorDiv(last, bucketWidth) * bucketWidth);
+            // Nothing before the oldest open span, or the start of the current idle period, can change anymore
+            flush(Long.min(depth > 0 ? busyFrom[0] : idleStart, last));
+        }
+
+        // Adds the busy time of the open spans, or the idle time, up to time, the start of a bucket
+        private void credit(long time) {
+            if (time <= credited) {
+                return;
+            }
+            credited = time;
+            for (int i = 0; i < depth; i++) {
+                if (busyFrom[i] < time) {
+                    addBusy(startNames[i], busyFrom[i], time);
+                    busyFrom[i] = time;
+                }
+            }
+            if (depth == 0 && idleStart < time) {
+                addIdle(idleStart, time);
+                idleStart = time;
+            }
+        }
+
+        @Override
+        public void finish() throws IOException {
+            if (!started) {
+                return;
+            }
+            // Spans that never ended are counted as busy up to the end of the trace, and the trace only ends idle
+            // if none is open
+            if (depth == 0) {
+                addIdle(idleStart, last);
+            }
+            while (depth > 0) {
+                depth--;
+                addBusy(startNames[depth], busyFrom[depth], last);
+            }
+            flush(Long.MAX_VALUE);
+        }
+
+        private void addBusy(int name, long from, long to) {
+            for (long index = Math.floorDiv(from, bucketWidth); from < to; index++) {
+                long end = Long.min(to, (index + 1) * bucketWidth);
+                bucket(index).addBusy(name, end - from);
+                from = end;
+            }
+        }
+
+        private void addIdle(long from, long to) {
+            for (long index = Math.floorDiv(from, bucketWidth); from < to; index++) {
+                long end = Long.min(to, (index + 1) * bucketWidth);
+                bucket(index).idle += end - from;
+                from = end;
+            }
+        }
+
+        private Bucket bucket(long index) {
+            Bucket bucket = buckets.get(index);
+            if (bucket == null) {
+                bucket = new Bucket();
+                buckets.put(index, bucket);
+            }
+            return bucket;
+        }
+
+        // Writes out the buckets that end at or before horizon
+        private void flush(long horizon) throws IOException {
+            while (!buckets.isEmpty()) {
+                Map.Entry<Long, Bucket> first = buckets.firstEntry();
+                long start = first.getKey() * bucketWidth;
+                if (horizon != Long.MAX_VALUE && start + bucketWidth > horizon) {
+                    return;
+                }
+                buckets.remove(first.getKey());
+                Bucket bucket = first.getValue();
+                ObjectNode line = MAPPER.createObjectNode();
+                line.put("start", start);
+                line.put("end", start + bucketWidth);
+                line.put("events", bucket.events);
+                line.put("idle", bucket.idle);
+                // Sorted by name
+                Map<String, Long> sorted = new TreeMap<>();
+                for (int name = 0; name < bucket.busy.length; name++) {
+                    if (bucket.busy[name] > 0) {
+                        sorted.put(names.getName(name), bucket.busy[name]);
+                    }
+                }
+                ObjectNode busy = line.putObject("busy");
+                for (Map.Entry<String, Long> entry : sorted.entrySet()) {
+                    busy.put(entry.getKey(), entry.getValue());
+                }
+                out.write(line.toString());
+                out.write("\n");
+            }
+        }
+
+        private static class Bucket {
+            private long events = 0;
+            private long idle = 0;
+            // Busy time by name id
+            private long[] busy = new long[0];
+
+            private void addBusy(int name, long time) {
+                if (name >= busy.length) {
+                    busy = Arrays.copyOf(busy, Integer.max(name + 1, busy.length * 2));
                 }
+                busy[name] += time;
             }
         }
+    }
+
+    // Keeps a separate breakdown, with its own stack of open spans, for every thread in a multi-thread trace. The
+    // breakdown of an event is found through a ThreadTable keyed by its pid bytes and primitive tid. With predicates
+    // only the threads with an event matching them are reported, in the order ThreadFinder would find them.
+    public static class PerThread implements MergeableConsumer<PerThread> {
+        private final ThreadTable threads = new ThreadTable();
+        // Indexed by thread id
+        private final List<Breakdown> breakdowns = new ArrayList<>();
+        private final ThreadFinder.Collector selection;
+        // Events without a tid belong to no thread's breakdown
+        private long skipped = 0;
 
-        // Post processing
-        // Change all nanos to micor
-        List<String> keys = new ArrayList<>(name2Instant.keySet());
-        for (String name : keys) {
-            long durationNano = name2Instant.get(name);
-            name2Instant.put(name, durationNano / 1000L);
+        public PerThread() {
+            this(null);
         }
 
-        // Write output
-        bw.write("Start = (" + globalStart + ")" + ": " + new Date(globalStart / 1000L) + "\n");
-        bw.write("End = (" + globalEnd + ")" + ": " + new Date(globalEnd / 1000L) + "\n");
-        long totalTime = globalEnd - globalStart;
-        bw.write("Total time spent: " + totalTime + "us = " + (totalTime / 1000L) + "ms = " + (totalTime / 1000000L)
-                + "s \n");
-        for (Map.Entry<String, long[]> entry : name2Duration.entrySet()) {
-            String name = entry.getKey();
-            long[] stats = entry.getValue();
-            bw.write(name + " took: " + stats[0] + "us which is " + ((double) stats[0] / (double) totalTime)
-                    + " of the whole time... min = " + stats[1] + ", max = " + stats[2] + ", count = " + stats[3]
-                    + "\n");
+        // Null predicates select every thread
+        public PerThread(Map<String, List<String>> predicates) {
+            selection = predicates == null ? null : new ThreadFinder.Collector(predicates);
         }
 
-        for (Map.Entry<String, Long> entry : name2Instant.entrySet()) {
-            String name = entry.getKey();
-            Long time = entry.getValue();
-            bw.write(name + " took: " + time + "us which is " + ((double) time / (double) totalTime)
-                    + " of the whole time\n");
+        @Override
+        public void declare(EventDecoder decoder) {
+            decoder.require(TraceEvent.TID | TraceEvent.PID);
+            new Breakdown().declare(decoder);
+            if (selection != null) {
+                selection.declare(decoder);
+            }
+        }
+
+        @Override
+        public void accept(TraceEvent event) {
+            if (!event.has(TraceEvent.TID)) {
+                skipped++;
+                return;
+            }
+            if (selection != null) {
+                selection.accept(event);
+            }
+            int id = threads.getOrAdd(event);
+            if (id == breakdowns.size()) {
+                breakdowns.add(new Breakdown());
+            }
+            breakdowns.get(id).accept(event);
+        }
+
+        @Override
+        public void merge(PerThread next) {
+            if (selection != null) {
+                selection.merge(next.selection);
+            }
+            skipped += next.skipped;
+            for (int i = 0; i < next.breakdowns.size(); i++) {
+                int id = threads.add(next.threads.getThread(i));
+                if (id == breakdowns.size()) {
+                    breakdowns.add(next.breakdowns.get(i));
+                } else {
+                    breakdowns.get(id).merge(next.breakdowns.get(i));
+                }
+            }
+        }
+
+        @Override
+        public void finish() {
+            for (Breakdown breakdown : breakdowns) {
+                breakdown.finish();
+            }
+            if (selection != null) {
+                selection.finish();
+            }
+            if (skipped > 0) {
+                System.err.println(skipped + " events had no tid field and were skipped");
+            }
+        }
+
+        public long getSkipped() {
+            return skipped;
+        }
+
+        public Breakdown get(Pair<String, Long> thread) {
+            int id = threads.get(thread);
+            return id < 0 ? null : breakdowns.get(id);
+        }
+
+        // The selected threads
+        public List<Pair<String, Long>> getThreads() {
+            return selection == null ? threads.getThreads() : selection.getThreads();
+        }
+
+        // One breakdown of all the selected threads
+        public Breakdown combined() {
+            return combined(getThreads());
+        }
+
+        public Breakdown combined(List<Pair<String, Long>> threads) {
+            Breakdown combined = new Breakdown();
+            for (Pair<String, Long> thread : threads) {
+                combined.add(get(thread));
+            }
+            return combined;
         }
     }
 }
@@ -0,0 +1,490 @@
+package org.amoudi.trace;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Binary columnar copy of a trace, built once with build() and then read by the scanners instead of the JSON
+// whenever it is newer than the trace. name, cat, ph and pid are dictionary encoded, ts and tid are delta encoded,
+// the args used by the tools are typed columns and every event keeps the offset of its object in the trace so the
+// original JSON can still be fetched. A scan only reads the columns of the fields its consumers declared.
+public class TraceCache {
+
+    private static final String SUFFIX = ".tcache";
+    // "TRCACHE1"
+    private static final long MAGIC = 0x5452434143484531L;
+    private static final int BUFFER_SIZE = 64 << 10;
+
+    private static final int COL_PRESENT = 0;
+    private static final int COL_PID = 1;
+    private static final int COL_PHASE = 2;
+    private static final int COL_NAME = 3;
+    private static final int COL_CATEGORY = 4;
+    private static final int COL_TID = 5;
+    private static final int COL_TIMESTAMP = 6;
+    private static final int COL_SIZE = 7;
+    private static final int COL_COUNT = 8;
+    private static final int COL_AVG_DURATION = 9;
+    private static final int COL_OFFSET = 10;
+    private static final int COL_LENGTH = 11;
+    private static final int DICT_PID = 12;
+    private static final int COLUMNS = 16;
+    // Indexed by text slot, the dictionary of COL_PID + slot is DICT_PID + slot
+    private static final int[] TEXT_FIELDS = {TraceEvent.PID, TraceEvent.PHASE, TraceEvent.NAME,
+            TraceEvent.CATEGORY};
+    private static final int TEXT_COLUMNS = TEXT_FIELDS.length;
+    private static final int NUMERIC_FIELDS = TraceEvent.TID | TraceEvent.TIMESTAMP | TraceEvent.ARGS;
+
+    private final File source;
+    private final File file;
+    private final long lines;
+    private final long events;
+    private final long failures;
+    private final long[] columnOffsets = new long[COLUMNS];
+    private final long[] columnLengths = new long[COLUMNS];
+
+    private TraceCache(File source, File file, DataInputStream in) throws IOException {
+        this.source = source;
+        this.file = file;
+        lines = in.readLong();
+        events = in.readLong();
+        failures = in.readLong();
+        for (int i = 0; i < COLUMNS; i++) {
+            columnOffsets[i] = in.readLong();
+            columnLengths[i] = in.readLong();
+        }
+    }
+
+    public static File getCacheFile(File trace) {
+        return new File(trace.getAbsolutePath() + SUFFIX);
+    }
+
+    // Returns the cache of the trace, or null if there is none or it is older than the trace
+    public static TraceCache open(File trace) throws IOException {
+        File file = getCacheFile(trace);
+        // Events are loaded back from the trace by offset, which compressed traces can't do
+        if (!file.exists() || TraceInput.isCompressed(trace) || file.lastModified() < trace.lastModified()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readLong() != MAGIC || in.readLong() != trace.length() || in.readLong() != trace.lastModified()) {
+                return null;
+            }
+            return new TraceCache(trace, file, in);
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    // True if this cache has every field the decoder was asked for
+    public boolean covers(EventDecoder decoder, boolean failOnParseError) {
+        return decoder.getTextSlots() == TEXT_COLUMNS && !(failOnParseError && failures > 0);
+    }
+
+    public long getLines() {
+        return lines;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 1) {
+            System.out.println("This tool is used to build the columnar cache of a trace file");
+            System.out.println("Expected arguments are:");
+            System.out.println("<file name>");
+            System.exit(1);
+        }
+        build(new File(args[0]));
+    }
+
+    public static File build(File trace) throws IOException {
+        if (TraceInput.isCompressed(trace)) {
+            throw new IOException("Can't cache compressed trace " + trace.getAbsolutePath());
+        }
+        File file = getCacheFile(trace);
+        System.out.println("Writing cache to " + file.getAbsolutePath());
+        Builder builder = new Builder(file);
+        TraceScanner scanner = new TraceScanner().useCache(false).register(builder);
+        long lastModified = trace.lastModified();
+        long length = trace.length();
+        try {
+            scanner.scan(trace);
+            builder.failures = scanner.getFailures();
+            builder.write(length, lastModified, scanner.getLines());
+        } finally {
+            builder.discard();
+        }
+        System.out.println("Total in: " + scanner.getLines() + ". Events cached: " + builder.events);
+        return file;
+    }
+
+    // Feeds every cached event to the consumers and returns the number of lines of the trace
+    public long scan(EventDecoder decoder, List<? extends TraceConsumer> consumers) throws IOException {
+        System.out.println("Reading cache " + file.getAbsolutePath());
+        int fields = decoder.getFields();
+        TraceEvent event = decoder.newEvent();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+             FileChannel sourceChannel = FileChannel.open(source.toPath(), StandardOpenOption.READ)) {
+            ColumnInput present = column(channel, COL_PRESENT);
+            ColumnInput[] text = new ColumnInput[TEXT_COLUMNS];
+            Dictionary dictionary = new Dictionary();
+            for (int slot = 0; slot < TEXT_COLUMNS; slot++) {
+                if ((fields & TEXT_FIELDS[slot]) != 0) {
+                    text[slot] = column(channel, COL_PID + slot);
+                    dictionary.read(slot, column(channel, DICT_PID + slot));
+                }
+            }
+            byte[] textBuffer = dictionary.toBuffer();
+            ColumnInput tid = (fields & TraceEvent.TID) != 0 ? column(channel, COL_TID) : null;
+            ColumnInput timestamp = (fields & TraceEvent.TIMESTAMP) != 0 ? column(channel, COL_TIMESTAMP) : null;
+            ColumnInput size = (fields & TraceEvent.ARGS_SIZE) != 0 ? column(channel, COL_SIZE) : null;
+            ColumnInput count = (fields & TraceEvent.ARGS_COUNT) != 0 ? column(channel, COL_COUNT) : null;
+            ColumnInput avgDuration =
+                    (fields & TraceEvent.ARGS_AVG_DURATION) != 0 ? column(channel, COL_AVG_DURATION) : null;
+            Loader loader = new Loader(channel, sourceChannel);
+            long lastTid = 0;
+            long lastTimestamp = 0;
+            for (long i = 0; i < events; i++) {
+                event.reset(null, 0, 0);
+                event.textBuffer = textBuffer;
+                loader.index = i;
+                event.loader = loader;
+                int has = (int) present.readVarLong();
+                for (int slot = 0; slot < TEXT_COLUMNS; slot++) {
+                    if (text[slot] != null) {
+                        dictionary.fill(slot, (int) text[slot].readVarLong(), event);
+                    }
+                }
+                if ((has & TraceEvent.TID) != 0 && tid != null) {
+                    lastTid += unzigzag(tid.readVarLong());
+                    event.tid = lastTid;
+                }
+                if ((has & TraceEvent.TIMESTAMP) != 0 && timestamp != null) {
+                    lastTimestamp += unzigzag(timestamp.readVarLong());
+                    event.timestamp = lastTimestamp;
+                }
+                if ((has & TraceEvent.ARGS_SIZE) != 0 && size != null) {
+                    event.size = unzigzag(size.readVarLong());
+                }
+                if ((has & TraceEvent.ARGS_COUNT) != 0 && count != null) {
+                    event.count = unzigzag(count.readVarLong());
+                }
+                if ((has & TraceEvent.ARGS_AVG_DURATION) != 0 && avgDuration != null) {
+                    event.avgDuration = unzigzag(avgDuration.readVarLong());
+                }
+                event.present = has & fields;
+                for (int c = 0; c < consumers.size(); c++) {
+                    consumers.get(c).accept(event);
+                }
+            }
+        }
+        return lines;
+    }
+
+    private ColumnInput column(FileChannel channel, int column) {
+        long start = columnOffsets[column];
+        return new ColumnInput(new MappedInputStream(channel, start, start + columnLengths[column]));
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    // Reads the original object of the current event from the trace, the offset columns are only read if needed
+    private class Loader implements TraceEvent.LineLoader {
+        private final FileChannel channel;
+        private final FileChannel sourceChannel;
+        private ColumnInput offsets;
+        private ColumnInput lengths;
+        private long index;
+        private long loaded = -1;
+        private long offset = 0;
+        private int length;
+        private byte[] buffer = new byte[BUFFER_SIZE];
+
+        private Loader(FileChannel channel, FileChannel sourceChannel) {
+            this.channel = channel;
+            this.sourceChannel = sourceChannel;
+        }
+
+        @Override
+        public void load(TraceEvent event) throws IOException {
+            if (offsets == null) {
+                offsets = column(channel, COL_OFFSET);
+                lengths = column(channel, COL_LENGTH);
+            }
+            while (loaded < index) {
+                offset += offsets.readVarLong();
+                length = (int) lengths.readVarLong();
+                loaded++;
+            }
+            if (buffer.length < length) {
+                buffer = new byte[Math.max(length, buffer.length * 2)];
+            }
+            ByteBuffer target = ByteBuffer.wrap(buffer, 0, length);
+            long position = offset;
+            while (target.hasRemaining()) {
+                if (sourceChannel.read(target, position + target.position()) < 0) {
+                    throw new EOFException("Trace " + source + " is shorter than its cache");
+                }
+            }
+            event.buffer = buffer;
+            event.start = 0;
+            event.end = length;
+            event.offset = offset;
+        }
+    }
+
+    // Dictionaries of the text columns, loaded into one buffer so every text slot can point into it
+    private static class Dictionary {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final int[][] starts = new int[TEXT_COLUMNS][];
+        private final int[][] ends = new int[TEXT_COLUMNS][];
+        private final byte[][] flags = new byte[TEXT_COLUMNS][];
+
+        private void read(int slot, ColumnInput in) throws IOException {
+            int size = (int) in.readVarLong();
+            // Id 0 is an absent value
+            starts[slot] = new int[size + 1];
+            ends[slot] = new int[size + 1];
+            flags[slot] = new byte[size + 1];
+            for (int id = 1; id <= size; id++) {
+                flags[slot][id] = (byte) in.readVarLong();
+                int length = (int) in.readVarLong();
+                starts[slot][id] = bytes.size();
+                for (int i = 0; i < length; i++) {
+                    bytes.write(in.read());
+                }
+                ends[slot][id] = bytes.size();
+            }
+        }
+
+        private byte[] toBuffer() {
+            return bytes.toByteArray();
+        }
+
+        private void fill(int slot, int id, TraceEvent event) {
+            if (id == 0) {
+                return;
+            }
+            event.textStart[slot] = starts[slot][id];
+            event.textEnd[slot] = ends[slot][id];
+            event.textQuoted[slot] = (flags[slot][id] & 1) != 0;
+            event.textEscaped[slot] = (flags[slot][id] & 2) != 0;
+            event.textPresent[slot] = true;
+        }
+    }
+
+    private static class Builder implements TraceConsumer {
+        private final File file;
+        private final File[] columnFiles = new File[COLUMNS];
+        private final ColumnOutput[] columns = new ColumnOutput[COLUMNS];
+        private final List<Map<String, Integer>> ids = new ArrayList<>();
+        private final List<List<String>> values = new ArrayList<>();
+        private long events = 0;
+        private long failures = 0;
+        private long lastTid = 0;
+        private long lastTimestamp = 0;
+        private long lastOffset = 0;
+
+        private Builder(File file) throws IOException {
+            this.file = file;
+            for (int i = 0; i < COLUMNS; i++) {
+                columnFiles[i] = File.createTempFile("trace-column", ".bin", file.getAbsoluteFile().getParentFile());
+                columns[i] = new ColumnOutput(columnFiles[i]);
+            }
+            for (int slot = 0; slot < TEXT_COLUMNS; slot++) {
+                ids.add(new HashMap<>());
+                values.add(new ArrayList<>());
+            }
+        }
+
+        @Override
+        public void declare(EventDecoder decoder) {
+            decoder.require(NUMERIC_FIELDS | TraceEvent.PID | TraceEvent.PHASE | TraceEvent.NAME
+                    | TraceEvent.CATEGORY);
+        }
+
+        @Override
+        public void accept(TraceEvent event) throws IOException {
+            events++;
+            int has = event.present & NUMERIC_FIELDS;
+            columns[COL_PRESENT].writeVarLong(has);
+            for (int slot = 0; slot < TEXT_COLUMNS; slot++) {
+                columns[COL_PID + slot].writeVarLong(id(slot, event));
+            }
+            if ((has & TraceEvent.TID) != 0) {
+                columns[COL_TID].writeVarLong(zigzag(event.tid - lastTid));
+                lastTid = event.tid;
+            }
+            if ((has & TraceEvent.TIMESTAMP) != 0) {
+                columns[COL_TIMESTAMP].writeVarLong(zigzag(event.timestamp - lastTimestamp));
+                lastTimestamp = event.timestamp;
+            }
+            if ((has & TraceEvent.ARGS_SIZE) != 0) {
+                columns[COL_SIZE].writeVarLong(zigzag(event.size));
+            }
+            if ((has & TraceEvent.ARGS_COUNT) != 0) {
+                columns[COL_COUNT].writeVarLong(zigzag(event.count));
+            }
+            if ((has & TraceEvent.ARGS_AVG_DURATION) != 0) {
+                columns[COL_AVG_DURATION].writeVarLong(zigzag(event.avgDuration));
+            }
+            columns[COL_OFFSET].writeVarLong(event.offset - lastOffset);
+            lastOffset = event.offset;
+            columns[COL_LENGTH].writeVarLong(event.end - event.start);
+        }
+
+        // Dictionary id of a text slot, 0 if the event doesn't have it
+        private int id(int slot, TraceEvent event) {
+            if (!event.textPresent[slot]) {
+                return 0;
+            }
+            int flag = (event.textQuoted[slot] ? 1 : 0) | (event.textEscaped[slot] ? 2 : 0);
+            // One char per byte, prefixed with the flags
+            String key = (char) flag + new String(event.textBuffer, event.textStart[slot],
+                    event.textEnd[slot] - event.textStart[slot], StandardCharsets.ISO_8859_1);
+            Integer id = ids.get(slot).get(key);
+            if (id == null) {
+                values.get(slot).add(key);
+                id = values.get(slot).size();
+                ids.get(slot).put(key, id);
+            }
+            return id;
+        }
+
+        @Override
+        public void finish() {
+        }
+
+        @Override
+        public ScanMetrics.Stage stage() {
+            return ScanMetrics.Stage.WRITE;
+        }
+
+        private void write(long sourceLength, long sourceModified, long lines) throws IOException {
+            for (int slot = 0; slot < TEXT_COLUMNS; slot++) {
+                ColumnOutput out = columns[DICT_PID + slot];
+                List<String> dictionary = values.get(slot);
+                out.writeVarLong(dictionary.size());
+                for (String key : dictionary) {
+                    out.writeVarLong(key.charAt(0));
+                    byte[] value = key.substring(1).getBytes(StandardCharsets.ISO_8859_1);
+                    out.writeVarLong(value.length);
+                    out.write(value);
+                }
+            }
+            for (ColumnOutput column : columns) {
+                column.close();
+            }
+            File temp = File.createTempFile("trace-cache", SUFFIX, file.getAbsoluteFile().getParentFile());
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+                out.writeLong(MAGIC);
+                out.writeLong(sourceLength);
+                out.writeLong(sourceModified);
+                out.writeLong(lines);
+                out.writeLong(events);
+                out.writeLong(failures);
+                long offset = 6 * 8 + COLUMNS * 16;
+                for (int i = 0; i < COLUMNS; i++) {
+                    out.writeLong(offset);
+                    out.writeLong(columnFiles[i].length());
+                    offset += columnFiles[i].length();
+                }
+                for (int i = 0; i < COLUMNS; i++) {
+                    Files.copy(columnFiles[i].toPath(), out);
+                }
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        private void discard() throws IOException {
+            for (int i = 0; i < COLUMNS; i++) {
+                columns[i].close();
+                Files.deleteIfExists(columnFiles[i].toPath());
+            }
+        }
+    }
+
+    private static class ColumnOutput extends BufferedOutputStream {
+        private boolean closed = false;
+
+        private ColumnOutput(File file) throws IOException {
+            super(new FileOutputStream(file), BUFFER_SIZE);
+        }
+
+        private void writeVarLong(long value) throws IOException {
+            while ((value & ~0x7FL) != 0) {
+                write((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            write((int) value);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!closed) {
+                closed = true;
+                super.close();
+            }
+        }
+    }
+
+    private static class ColumnInput {
+        private final InputStream in;
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+        private int position = 0;
+        private int limit = 0;
+
+        private ColumnInput(InputStream in) {
+            this.in = in;
+        }
+
+        private int read() throws IOException {
+            if (position == limit) {
+                limit = in.read(buffer, 0, buffer.length);
+                position = 0;
+                if (limit <= 0) {
+                    throw new EOFException("Cache column ended early");
+                }
+            }
+            return buffer[position++] & 0xFF;
+        }
+
+        private long readVarLong() throws IOException {
+            if (limit - position < 10) {
+                return readVarLongSlow();
+            }
+            // Enough bytes buffered for the longest varint
+            long value = 0;
+            for (int shift = 0; ; shift += 7) {
+                int b = buffer[position++];
+                value |= (long) (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+        }
+
+        private long readVarLongSlow() throws IOException {
+            long value = 0;
+            for (int shift = 0; ; shift += 7) {
+                int b = read();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package org.amoudi.trace;
+
+import java.io.IOException;
+
+// A stage that is fed every event of a trace by a TraceScanner. Consumers are called in registration order, so a
+// consumer can depend on the state of the consumers registered before it for the same event.
+public interface TraceConsumer {
+
+    // Called once before the scan to declare the fields this consumer reads
+    void declare(EventDecoder decoder);
+
+    // The event is reused for the next line, so it must not be kept
+    void accept(TraceEvent event) throws IOException;
+
+    void finish() throws IOException;
+
+    // Which stage of ScanMetrics the time spent in this consumer counts for
+    default ScanMetrics.Stage stage() {
+        return ScanMetrics.Stage.AGGREGATE;
+    }
+}
@@ -0,0 +1,255 @@
+package org.amoudi.trace;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+// A reusable, mutable view over one decoded trace line. The EventDecoder only fills the fields that were declared,
+// numeric fields as primitives and text fields as ranges of the line buffer, so nothing is allocated per event
+// unless a consumer asks for a String or a JsonNode.
+public class TraceEvent {
+
+    // Fields that can be declared to the decoder
+    public static final int PID = 1;
+    public static final int TID = 1 << 1;
+    public static final int TIMESTAMP = 1 << 2;
+    public static final int PHASE = 1 << 3;
+    public static final int NAME = 1 << 4;
+    public static final int CATEGORY = 1 << 5;
+    public static final int ARGS_SIZE = 1 << 6;
+    public static final int ARGS_COUNT = 1 << 7;
+    public static final int ARGS_AVG_DURATION = 1 << 8;
+    public static final int ARGS = ARGS_SIZE | ARGS_COUNT | ARGS_AVG_DURATION;
+
+    // Text slots of the built in string fields, other keys get their slots from EventDecoder.text(key)
+    public static final int SLOT_PID = 0;
+    public static final int SLOT_PHASE = 1;
+    public static final int SLOT_NAME = 2;
+    public static final int SLOT_CATEGORY = 3;
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    // The object the event was decoded from, loaded on demand when the event comes from a TraceCache
+    byte[] buffer;
+    int start;
+    int end;
+    LineLoader loader;
+    // Offset of the object in the trace file
+    long offset;
+    // Offset of the line after the object's, -1 if unknown, and whether the object's line ends with a comma. Runs
+    // of adjacent events are then exactly the bytes between the first and the last object.
+    long lineEnd = -1;
+    boolean trailingComma;
+    // Buffer the text slots point into
+    byte[] textBuffer;
+    int present;
+    long tid;
+    long timestamp;
+    long size;
+    long count;
+    long avgDuration;
+    final int[] textStart;
+    final int[] textEnd;
+    final boolean[] textPresent;
+    final boolean[] textQuoted;
+    final boolean[] textEscaped;
+    private JsonNode json;
+
+    TraceEvent(int slots) {
+        textStart = new int[slots];
+        textEnd = new int[slots];
+        textPresent = new boolean[slots];
+        textQuoted = new boolean[slots];
+        textEscaped = new boolean[slots];
+    }
+
+    void reset(byte[] buffer, int start, int end) {
+        this.buffer = buffer;
+        this.start = start;
+        this.end = end;
+        this.textBuffer = buffer;
+        this.loader = null;
+        this.lineEnd = -1;
+        this.present = 0;
+        this.json = null;
+        for (int i = 0; i < textPresent.length; i++) {
+            textPresent[i] = false;
+        }
+    }
+
+    public boolean has(int field) {
+        return (present & field) != 0;
+    }
+
+    public long tid() {
+        return tid;
+    }
+
+    public long timestamp() {
+        return timestamp;
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public long count() {
+        return count;
+    }
+
+    public long avgDuration() {
+        return avgDuration;
+    }
+
+    // First character of the phase, or 0 if the event has none
+    public byte phase() {
+        if (!textPresent[SLOT_PHASE] || textEnd[SLOT_PHASE] == textStart[SLOT_PHASE]) {
+            return 0;
+        }
+        return textBuffer[textStart[SLOT_PHASE]];
+    }
+
+    public boolean hasText(int slot) {
+        return textPresent[slot];
+    }
+
+    // True if the value is a JSON string, as opposed to a number or a literal
+    public boolean isTextual(int slot) {
+        return textPresent[slot] && textQuoted[slot];
+    }
+
+    public boolean textEquals(int slot, byte[] value) {
+        if (!textPresent[slot]) {
+            return false;
+        }
+        if (textEscaped[slot]) {
+            return text(slot).equals(new String(value, StandardCharsets.UTF_8));
+        }
+        int from = textStart[slot];
+        int length = textEnd[slot] - from;
+        if (length != value.length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (textBuffer[from + i] != value[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public boolean textContains(int slot, byte[] pattern) {
+        if (!textPresent[slot]) {
+            return false;
+        }
+        if (textEscaped[slot]) {
+            return text(slot).contains(new String(pattern, StandardCharsets.UTF_8));
+        }
+        int last = textEnd[slot] - pattern.length;
+        outer:
+        for (int i = textStart[slot]; i <= last; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (textBuffer[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    public String text(int slot) {
+        if (!textPresent[slot]) {
+            return null;
+        }
+        String raw = new String(textBuffer, textStart[slot], textEnd[slot] - textStart[slot], StandardCharsets.UTF_8);
+        return textEscaped[slot] ? unescape(raw) : raw;
+    }
+
+    public String pid() {
+        return text(SLOT_PID);
+    }
+
+    public String name() {
+        return text(SLOT_NAME);
+    }
+
+    public String category() {
+        return text(SLOT_CATEGORY);
+    }
+
+    public long offset() {
+        return offset;
+    }
+
+    public String line() {
+        try {
+            load();
+        } catch (IOException e) {
+            return "<event at offset " + offset + ">";
+        }
+        return new String(buffer, start, end - start, StandardCharsets.UTF_8);
+    }
+
+    // The full tree of the event, parsed on demand
+    public JsonNode json() throws IOException {
+        if (json == null) {
+            load();
+            json = MAPPER.readValue(buffer, start, end - start, JsonNode.class);
+        }
+        return json;
+    }
+
+    // Makes buffer[start, end) the original object
+    void load() throws IOException {
+        if (loader != null) {
+            loader.load(this);
+            loader = null;
+        }
+    }
+
+    // Fetches the original object of an event that was not decoded from it
+    interface LineLoader {
+        void load(TraceEvent event) throws IOException;
+    }
+
+    private static String unescape(String raw) {
+        StringBuilder sb = new StringBuilder(raw.length());
+        for (int i = 0; i < raw.length(); i++) {
+            char c = raw.charAt(i);
+            if (c != '\\' || i + 1 == raw.length()) {
+                sb.append(c);
+                continue;
+            }
+            c = raw.charAt(++i);
+            switch (c) {
+                case 'b':
+                    sb.append('\b');
+                    break;
+                case 'f':
+                    sb.append('\f');
+                    break;
+                case 'n':
+                    sb.append('\n');
+                    break;
+                case 'r':
+                    sb.append('\r');
+                    break;
+                case 't':
+                    sb.append('\t');
+                    break;
+                case 'u':
+                    if (i + 4 < raw.length()) {
+                        sb.append((char) Integer.parseInt(raw.substring(i + 1, i + 5), 16));
+                        i += 4;
+                    }
+                    break;
+                default:
+                    sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
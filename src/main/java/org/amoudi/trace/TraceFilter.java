@@ -1,7 +1,5 @@
 package org.amoudi.trace;
 
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import org.apache.commons.lang3.tuple.Pair;
 
 import java.io.*;
@@ -10,21 +8,50 @@ import java.util.*;
 public class TraceFilter {
 
     private static final String KEY_FILE = "f";
-    private static final char EXACT = 'e';
-    private static final char CONTAINS = 'c';
 
     private static void help() {
         System.out.println("This tool is used to extract traces that matches some predicate from a trace file");
-        System.out.println("The search predicates are OR combined and currently this only works on String fields");
+        System.out.println("Predicates are either OR combined string matches or a filter expression with AND, OR, NOT,");
+        System.out.println("==, !=, ~ (contains), <, <=, >, >=, IN (a, b, ...) and IN [from, to) on ts, tid, args.size,");
+        System.out.println("args.count, args.avg-duration-ns and any other top level field, ~ only on text fields");
         System.out.println("Expected arguments are:");
         System.out.println("-f <file name>");
         System.out.println("-c<property> <key> (contains match)");
         System.out.println("-e<property> <key> (exact match)");
+        System.out.println("-x <expression> (filter expression)");
     }
 
     public static File filter(String fileName, Map<String, List<Pair<Character, String>>> predicates) throws Exception {
+        return filter(fileName, predicates, false);
+    }
+
+    // With compress the output is written gzip compressed
+    public static File filter(String fileName, Map<String, List<Pair<Character, String>>> predicates,
+            boolean compress) throws Exception {
+        File input = getInput(fileName);
+        return extract(input, FilterExpression.anyOf(predicates), new ArrayList<>(predicates.keySet()), compress);
+    }
+
+    public static File filter(String fileName, String expression) throws Exception {
+        return filter(fileName, expression, false);
+    }
+
+    public static File filter(String fileName, String expression, boolean compress) throws Exception {
+        File input = getInput(fileName);
+        FilterExpression filter = null;
+        try {
+            filter = FilterExpression.compile(expression);
+        } catch (IllegalArgumentException e) {
+            System.out.println("Incorrect use. " + e.getMessage());
+            help();
+            System.exit(1);
+        }
+        return extract(input, filter, filter.getFields(), compress);
+    }
+
+    private static File getInput(String fileName) {
         if (fileName == null) {
-            System.out.println("Incorrect use. Missing argument -" + fileName);
+            System.out.println("Incorrect use. Missing argument -" + KEY_FILE);
             help();
             System.exit(1);
         }
@@ -33,67 +60,44 @@ public class TraceFilter {
             System.out.println("File" + input.getAbsolutePath() + " doesn't exist");
             System.exit(1);
         }
-        return extract(input, predicates);
+        return input;
     }
 
-    private static File extract(File file, Map<String, List<Pair<Character, String>>> predicates)
+    private static File extract(File file, FilterExpression filter, List<String> fields, boolean compress)
             throws IOException, InterruptedException {
-        ObjectMapper om = new ObjectMapper();
-        String outputFileName = file.getAbsolutePath();
+        String outputFileName = TraceInput.getPath(file);
         outputFileName = outputFileName.substring(0, outputFileName.lastIndexOf('.')) + ".filtered";
-        for (Map.Entry<String, List<Pair<Character, String>>> predicate : predicates.entrySet()) {
-            outputFileName = outputFileName + "." + predicate.getKey();
+        for (String field : fields) {
+            outputFileName = outputFileName + "." + field;
         }
         outputFileName = outputFileName + ".json";
-        System.out.println("Writing output to " + outputFileName);
-        File outputFile = new File(outputFileName);
-        try (BufferedWriter bw = new BufferedWriter(new FileWriter(outputFile));
-             BufferedReader br = new BufferedReader(new FileReader(file))) {
-            bw.write("[\n");
-            int totalIn = 0;
-            int totalOut = 0;
-            for (String line; (line = br.readLine()) != null;) {
-                totalIn++;
-                line = line.trim();
-                if (!line.startsWith("{")) {
-                    System.out.println(line + " doesn't contain a json object");
-                    continue;
+        File outputFile = TraceInput.getOutputFile(outputFileName, compress);
+        System.out.println("Writing output to " + outputFile.getAbsolutePath());
+        try (EventOutput out = new EventOutput(outputFile, compress, file)) {
+            TraceScanner scanner = new TraceScanner().failOnParseError(true).register(new TraceConsumer() {
+                @Override
+                public void declare(EventDecoder decoder) {
+                    filter.declare(decoder);
                 }
-                line = line.substring(0, line.lastIndexOf('}') + 1);
-                JsonNode json;
-                try {
-                    json = om.readTree(line);
-                } catch (Exception e) {
-                    System.err.println("Failed parsing: " + line);
-                    throw e;
-                }
-                // We got the json, now we check if it should be included
-                for (Map.Entry<String, List<Pair<Character, String>>> predicate : predicates.entrySet()) {
-                    JsonNode property = json.findValue(predicate.getKey());
-                    if (property != null) {
-                        String asString = property.asText();
-                        if (asString != null && asString.length() > 0) {
-                            for (Pair<Character, String> pair : predicate.getValue()) {
-                                switch (pair.getKey()) {
-                                    case EXACT:
-                                        if (asString.equals(pair.getValue())) {
-                                            break;
-                                        }
-                                        continue;
-                                    case CONTAINS:
-                                        if (asString.contains(pair.getValue())) {
-                                            break;
-                                        }
-                                        continue;
-                                }
-                                bw.write(json.toString() + ",\n");
-                                totalOut++;
-                            }
-                        }
+
+                @Override
+                public void accept(TraceEvent event) throws IOException {
+                    if (filter.matches(event)) {
+                        out.write(event);
                     }
                 }
-            }
-            System.out.println("Total in: " + totalIn + ". Total out: " + totalOut);
+
+                @Override
+                public void finish() {
+                }
+
+                @Override
+                public ScanMetrics.Stage stage() {
+                    return ScanMetrics.Stage.WRITE;
+                }
+            });
+            scanner.scan(file);
+            System.out.println("Total in: " + scanner.getLines() + ". Total out: " + out.getEvents());
         }
         return outputFile;
     }
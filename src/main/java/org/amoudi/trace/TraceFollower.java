@@ -0,0 +1,196 @@
+package org.amoudi.trace;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+
+// Follows a trace that is still being written. Every poll feeds only the complete lines appended since the last
+// one to the consumer, which keeps its state, open spans included, between polls. The consumer and the offset of
+// the first line it hasn't seen can be checkpointed, so a restarted follower resumes where the last one stopped.
+public class TraceFollower<T extends TraceConsumer & Serializable> {
+
+    // "TRFOLLOW"
+    private static final long MAGIC = 0x5452464F4C4C4F57L;
+    private static final int FINGERPRINT_LENGTH = 4 << 10;
+    private static final int READ_SIZE = 64 << 10;
+
+    private final File file;
+    private final Supplier<T> factory;
+    private final File checkpoint;
+    private final TraceScanner scanner = new TraceScanner();
+    private EventDecoder decoder;
+    private T consumer;
+    private long offset = 0;
+
+    // The checkpoint can be null, otherwise the follower resumes from it if it was taken on the same trace
+    public TraceFollower(File file, Supplier<T> factory, File checkpoint) throws IOException {
+        if (TraceInput.isCompressed(file)) {
+            throw new IOException("Can't follow compressed trace " + file.getAbsolutePath());
+        }
+        this.file = file;
+        this.factory = factory;
+        this.checkpoint = checkpoint;
+        if (checkpoint == null || !restore()) {
+            reset();
+        }
+    }
+
+    public T get() {
+        return consumer;
+    }
+
+    // Offset of the first byte that wasn't consumed yet
+    public long getOffset() {
+        return offset;
+    }
+
+    // Consumes the complete lines appended since the last poll, returns false if there were none
+    public boolean poll() throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < offset) {
+                System.out.println("Trace " + file.getAbsolutePath() + " was truncated, starting over");
+                reset();
+            }
+            long end = lastLineEnd(channel, offset, size);
+            if (end <= offset) {
+                return false;
+            }
+            int bufferSize = (int) Math.min(1 << 20, end - offset + 1);
+            try (LineReader reader = new LineReader(new MappedInputStream(channel, offset, end), bufferSize)) {
+                scanner.scan(reader, offset, decoder, Collections.singletonList(consumer));
+            }
+            offset = end;
+            return true;
+        }
+    }
+
+    // Polls every pollMillis and calls the listener every intervalMillis until the thread is interrupted
+    public void follow(long pollMillis, long intervalMillis, Listener<T> listener) throws IOException {
+        long nextRefresh = System.currentTimeMillis();
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                boolean consumed = poll();
+                long now = System.currentTimeMillis();
+                if (now >= nextRefresh) {
+                    listener.refresh(consumer);
+                    if (checkpoint != null) {
+                        checkpoint();
+                    }
+                    nextRefresh = now + intervalMillis;
+                }
+                if (!consumed) {
+                    Thread.sleep(pollMillis);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Atomically replaces the checkpoint with the current state
+    public void checkpoint() throws IOException {
+        File temp = File.createTempFile("trace-follow", ".checkpoint", checkpoint.getAbsoluteFile().getParentFile());
+        try (ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeLong(MAGIC);
+            out.writeUTF(file.getAbsolutePath());
+            out.writeLong(offset);
+            out.writeLong(fingerprint());
+            out.writeObject(consumer);
+        } catch (IOException e) {
+            Files.deleteIfExists(temp.toPath());
+            throw e;
+        }
+        Files.move(temp.toPath(), checkpoint.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    @SuppressWarnings("unchecked")
+    private boolean restore() throws IOException {
+        if (!checkpoint.exists()) {
+            return false;
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(checkpoint)))) {
+            if (in.readLong() != MAGIC || !in.readUTF().equals(file.getAbsolutePath())) {
+                System.out.println("Checkpoint " + checkpoint.getAbsolutePath() + " is not of this trace");
+                return false;
+            }
+            offset = in.readLong();
+            // The trace was replaced if it got shorter or its beginning changed
+            if (file.length() < offset || in.readLong() != fingerprint()) {
+                System.out.println("Trace changed since checkpoint " + checkpoint.getAbsolutePath()
+                        + ", starting over");
+                return false;
+            }
+            consumer = (T) in.readObject();
+        } catch (ClassNotFoundException | ObjectStreamException | EOFException e) {
+            System.out.println("Can't read checkpoint " + checkpoint.getAbsolutePath() + ": " + e);
+            return false;
+        }
+        decoder = new EventDecoder();
+        consumer.declare(decoder);
+        System.out.println("Resuming " + file.getAbsolutePath() + " from offset " + offset);
+        return true;
+    }
+
+    private void reset() {
+        offset = 0;
+        consumer = factory.get();
+        decoder = new EventDecoder();
+        consumer.declare(decoder);
+    }
+
+    // Checksum of the part of the first bytes of the trace that was already consumed
+    private long fingerprint() throws IOException {
+        int length = (int) Math.min(FINGERPRINT_LENGTH, offset);
+        byte[] bytes = new byte[length];
+        try (InputStream in = new FileInputStream(file)) {
+            int read = 0;
+            while (read < length) {
+                int n = in.read(bytes, read, length - read);
+                if (n < 0) {
+                    break;
+                }
+                read += n;
+            }
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, length);
+        return crc.getValue();
+    }
+
+    // Offset right after the last newline in [from, size), or from if there is none
+    private static long lastLineEnd(FileChannel channel, long from, long size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(READ_SIZE);
+        long end = size;
+        while (end > from) {
+            long start = Math.max(from, end - READ_SIZE);
+            buffer.clear();
+            buffer.limit((int) (end - start));
+            int read = 0;
+            while (buffer.hasRemaining()) {
+                int n = channel.read(buffer, start + read);
+                if (n < 0) {
+                    break;
+                }
+                read += n;
+            }
+            for (int i = read - 1; i >= 0; i--) {
+                if (buffer.get(i) == '\n') {
+                    return start + i + 1;
+                }
+            }
+            end = start;
+        }
+        return from;
+    }
+
+    public interface Listener<T> {
+        void refresh(T consumer) throws IOException;
+    }
+}
@@ -0,0 +1,528 @@
+package org.amoudi.trace;
+
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+// Writes synthetic traces in the format the tools read, for load tests at scale. Every thread nests spans up to a
+// depth and has instant events in between, the first threads of every process carry the configured thread names,
+// and every index gets its own thread of flushes and merges named like LineageComputer expects.
+// The trace is cut into segments of a fixed number of events that are generated on several threads, each from its
+// own random stream derived from the seed, and written in order. A segment closes the spans it opened, so the same
+// seed and settings always give the same trace.
+public class TraceGenerator {
+
+    public static final String INGESTION = "Write-Network-Ingestion-To-Store";
+    public static final String STORAGE = "Ingestion-Store";
+    private static final String[] SPAN_NAMES = {"Frame-Parse", "Record-Insert", "Log-Write", "Page-Pin",
+            "Index-Search", "Buffer-Flush", "Tuple-Copy", "Lock-Acquire"};
+    private static final String[] INSTANT_NAMES = {"Page-Read", "Page-Write", "Log-Force"};
+    private static final long START_TIMESTAMP = 1508281686570000L;
+    private static final long START_DATE = LocalDateTime.of(2017, 10, 17, 23, 8, 6, 570_000_000)
+            .toInstant(ZoneOffset.UTC).toEpochMilli();
+    private static final int SEGMENT_EVENTS = 1 << 16;
+    // Flushes of an index per merge of the newest ones, and per merge of the whole cycle
+    private static final int FLUSHES_PER_MERGE = 4;
+    private static final int FLUSHES_PER_CYCLE = 16;
+    private static final int OPS_PER_CYCLE = FLUSHES_PER_CYCLE + FLUSHES_PER_CYCLE / FLUSHES_PER_MERGE + 1;
+    private static final int IO_THREAD = 1000;
+    private static final byte BEGIN = 'B';
+    private static final byte END = 'E';
+    private static final byte INSTANT = 'i';
+    private static final byte[] NO_ARGS = EventDecoder.bytes("\"args\":{}},\n");
+    private static final byte[] SIZE_ARG = EventDecoder.bytes("\"args\":{\"size\":");
+    private static final byte[] COUNT_ARG = EventDecoder.bytes("\"args\":{\"count\":");
+    private static final byte[] DURATION_ARG = EventDecoder.bytes(",\"avg-duration-ns\":");
+    private static final byte[] ARGS_END = EventDecoder.bytes("}},\n");
+    private static final byte[] DIGIT_PAIRS = new byte[200];
+
+    static {
+        for (int i = 0; i < 100; i++) {
+            DIGIT_PAIRS[2 * i] = (byte) ('0' + i / 10);
+            DIGIT_PAIRS[2 * i + 1] = (byte) ('0' + i % 10);
+        }
+    }
+
+    private final long seed;
+    private int processes = 2;
+    private int threads = 4;
+    private int depth = 4;
+    private List<String> threadNames = Arrays.asList(INGESTION, STORAGE);
+    private long rate = 100_000;
+    private int indexes = 1;
+    private int lineageInterval = 100;
+
+    private static void help() {
+        System.out.println("This tool is used to generate a synthetic trace file");
+        System.out.println("Expected arguments are:");
+        System.out.println("-o <file name>");
+        System.out.println("-size <bytes, with an optional K, M or G suffix> and/or -events <number of events>");
+        System.out.println("[-seed <seed>] [-processes <n>] [-threads <per process>] [-depth <max span depth>]");
+        System.out.println("[-names <thread name>,<thread name>,...] [-rate <events per second>]");
+        System.out.println("[-indexes <n>] [-lineage <one flush or merge event every n events, 0 for none>]");
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0 || args.length % 2 != 0) {
+            System.out.println("Incorrect use. Arguments come in pairs");
+            help();
+            System.exit(1);
+        }
+        String output = null;
+        long size = Long.MAX_VALUE;
+        long events = Long.MAX_VALUE;
+        long seed = 1;
+        List<String[]> options = new ArrayList<>();
+        for (int i = 0; i < args.length; i += 2) {
+            switch (args[i]) {
+                case "-o":
+                    output = args[i + 1];
+                    break;
+                case "-size":
+                    size = parseSize(args[i + 1]);
+                    break;
+                case "-events":
+                    events = Long.parseLong(args[i + 1]);
+                    break;
+                case "-seed":
+                    seed = Long.parseLong(args[i + 1]);
+                    break;
+                default:
+                    options.add(new String[]{args[i], args[i + 1]});
+            }
+        }
+        if (output == null || (size == Long.MAX_VALUE && events == Long.MAX_VALUE)) {
+            System.out.println("Incorrect use. Missing the output file or its size");
+            help();
+            System.exit(1);
+        }
+        TraceGenerator generator = new TraceGenerator(seed);
+        for (String[] option : options) {
+            switch (option[0]) {
+                case "-processes":
+                    generator.processes(Integer.parseInt(option[1]));
+                    break;
+                case "-threads":
+                    generator.threads(Integer.parseInt(option[1]));
+                    break;
+                case "-depth":
+                    generator.depth(Integer.parseInt(option[1]));
+                    break;
+                case "-names":
+                    generator.threadNames(Arrays.asList(option[1].split(",")));
+                    break;
+                case "-rate":
+                    generator.rate(Long.parseLong(option[1]));
+                    break;
+                case "-indexes":
+                    generator.indexes(Integer.parseInt(option[1]));
+                    break;
+                case "-lineage":
+                    generator.lineageInterval(Integer.parseInt(option[1]));
+                    break;
+                default:
+                    System.out.println("Incorrect use. Unknown argument: " + option[0]);
+                    help();
+                    System.exit(1);
+            }
+        }
+        File file = new File(output);
+        System.out.println("Writing trace to " + file.getAbsolutePath());
+        long start = System.nanoTime();
+        long written = generator.generate(file, size, events);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println("Events: " + written + ". Bytes: " + file.length() + ". "
+                + (long) (file.length() / seconds / (1 << 20)) + "MB/s");
+    }
+
+    public TraceGenerator(long seed) {
+        this.seed = seed;
+    }
+
+    public TraceGenerator processes(int processes) {
+        this.processes = positive(processes, "processes");
+        return this;
+    }
+
+    // Threads of every process
+    public TraceGenerator threads(int threads) {
+        this.threads = positive(threads, "threads");
+        return this;
+    }
+
+    // Max nesting depth of the spans of a thread
+    public TraceGenerator depth(int depth) {
+        this.depth = positive(depth, "depth");
+        return this;
+    }
+
+    // Names of the top level spans of the first threads of every process, like the ones Driver looks for
+    public TraceGenerator threadNames(List<String> threadNames) {
+        this.threadNames = new ArrayList<>(threadNames);
+        return this;
+    }
+
+    // Events per second of trace time
+    public TraceGenerator rate(long rate) {
+        this.rate = positive(rate, "rate");
+        return this;
+    }
+
+    public TraceGenerator indexes(int indexes) {
+        this.indexes = positive(indexes, "indexes");
+        return this;
+    }
+
+    // One flush or merge event every interval events, 0 for none
+    public TraceGenerator lineageInterval(int interval) {
+        if (interval < 0) {
+            throw new IllegalArgumentException("Lineage interval can't be negative");
+        }
+        this.lineageInterval = interval;
+        return this;
+    }
+
+    private static <T extends Number> T positive(T value, String name) {
+        if (value.longValue() <= 0) {
+            throw new IllegalArgumentException("Number of " + name + " must be positive");
+        }
+        return value;
+    }
+
+    // Writes segments until the file has at least maxBytes or maxEvents events, returns the number of events. The
+    // file is a JSON array like the ones EventOutput writes: the separator that ends every segment is held back until
+    // the next segment follows it, and the last one is replaced by the end of the array.
+    public long generate(File file, long maxBytes, long maxEvents) throws IOException {
+        Encoding encoding = new Encoding();
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        int window = 2 * Math.max(1, Runtime.getRuntime().availableProcessors());
+        ArrayDeque<Future<Segment>> ahead = new ArrayDeque<>();
+        long bytes = 0;
+        long events = 0;
+        long next = 0;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            bytes += write(channel, EventOutput.OPEN, 0, EventOutput.OPEN.length);
+            // Segments still queued when the size is reached are cancelled, all of them are written otherwise
+            while (bytes < maxBytes) {
+                while (ahead.size() < window && next * SEGMENT_EVENTS < maxEvents) {
+                    long first = next * SEGMENT_EVENTS;
+                    long last = Math.min(maxEvents, first + SEGMENT_EVENTS);
+                    long segment = next++;
+                    ahead.add(pool.submit(() -> new Segment(segment, encoding).generate(first, last)));
+                }
+                if (ahead.isEmpty()) {
+                    break;
+                }
+                Segment segment = join(ahead.poll());
+                if (events > 0) {
+                    bytes += write(channel, EventOutput.SEPARATOR, 0, EventOutput.SEPARATOR.length);
+                }
+                bytes += write(channel, segment.output, 0, segment.length - EventOutput.SEPARATOR.length);
+                events += segment.events;
+            }
+            write(channel, EventOutput.CLOSE, 0, EventOutput.CLOSE.length);
+        } finally {
+            for (Future<Segment> future : ahead) {
+                future.cancel(false);
+            }
+        }
+        return events;
+    }
+
+    private static long write(FileChannel channel, byte[] bytes, int offset, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, length);
+        long written = 0;
+        while (buffer.hasRemaining()) {
+            written += channel.write(buffer);
+        }
+        return written;
+    }
+
+    private static Segment join(Future<Segment> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    // The bytes every event of a name or of a thread starts with, up to the phase and up to the timestamp
+    private class Encoding {
+        private final byte[][] spans = new byte[SPAN_NAMES.length + threadNames.size()][];
+        private final byte[][] instants = new byte[INSTANT_NAMES.length][];
+        private final byte[][] threads = new byte[processes * TraceGenerator.this.threads][];
+        private final byte[][] ioThreads = new byte[indexes][];
+
+        private Encoding() {
+            for (int i = 0; i < spans.length; i++) {
+                String name = i < SPAN_NAMES.length ? SPAN_NAMES[i] : threadNames.get(i - SPAN_NAMES.length);
+                spans[i] = prefix(name, "c");
+            }
+            for (int i = 0; i < instants.length; i++) {
+                instants[i] = prefix(INSTANT_NAMES[i], "c");
+            }
+            int perProcess = TraceGenerator.this.threads;
+            for (int i = 0; i < threads.length; i++) {
+                threads[i] = thread("nc" + (i / perProcess + 1), 11 + i % perProcess);
+            }
+            for (int i = 0; i < ioThreads.length; i++) {
+                ioThreads[i] = thread("nc" + (i % processes + 1), IO_THREAD + i);
+            }
+        }
+    }
+
+    private static byte[] prefix(String name, String category) {
+        return EventDecoder.bytes("{\"name\":\"" + new String(JsonStringEncoder.getInstance().quoteAsString(name))
+                + "\",\"cat\":\"" + category + "\",\"ph\":\"");
+    }
+
+    private static byte[] thread(String pid, int tid) {
+        return EventDecoder.bytes("\",\"pid\":\"" + pid + "\",\"tid\":" + tid + ",\"ts\":");
+    }
+
+    // Events [first, last) of the trace, written into a byte array
+    private class Segment {
+        private final Encoding encoding;
+        private final SplittableRandom random;
+        // Open span names of every thread, as indexes into SPAN_NAMES or, past it, into threadNames
+        private final int[][] stacks = new int[processes * threads][depth];
+        private final int[] depths = new int[processes * threads];
+        private byte[] output = new byte[SEGMENT_EVENTS * 128];
+        private int length = 0;
+        private long events = 0;
+        private long timestampHigh = -1;
+        private byte[] timestampDigits;
+
+        private Segment(long index, Encoding encoding) {
+            this.encoding = encoding;
+            random = new SplittableRandom(seed * 0x9E3779B97F4A7C15L + index);
+        }
+
+        private Segment generate(long first, long last) {
+            long timestamp = START_TIMESTAMP;
+            for (long i = first; i < last; i++) {
+                timestamp = START_TIMESTAMP + i * 1_000_000L / rate;
+                if (lineageInterval > 0 && (i + 1) % lineageInterval == 0) {
+                    lineage(i / lineageInterval, timestamp);
+                } else {
+                    threadEvent(random.nextInt(stacks.length), timestamp);
+                }
+            }
+            // Spans don't cross segments
+            for (int thread = 0; thread < stacks.length; thread++) {
+                while (depths[thread] > 0) {
+                    end(thread, timestamp);
+                }
+            }
+            return this;
+        }
+
+        private void threadEvent(int thread, long timestamp) {
+            double r = random.nextDouble();
+            if (depths[thread] > 0 && (r < 0.4 || depths[thread] == depth)) {
+                end(thread, timestamp);
+            } else if (r < 0.85) {
+                int local = thread % threads;
+                int name = depths[thread] == 0 && local < threadNames.size() && random.nextBoolean()
+                        ? SPAN_NAMES.length + local : random.nextInt(SPAN_NAMES.length);
+                stacks[thread][depths[thread]++] = name;
+                event(encoding.spans[name], BEGIN, encoding.threads[thread], timestamp);
+                append(NO_ARGS);
+            } else {
+                event(encoding.instants[random.nextInt(INSTANT_NAMES.length)], INSTANT, encoding.threads[thread],
+                        timestamp);
+                append(COUNT_ARG);
+                append(1 + random.nextInt(16));
+                append(DURATION_ARG);
+                append(100 + random.nextInt(100_000));
+                append(ARGS_END);
+            }
+        }
+
+        private void end(int thread, long timestamp) {
+            event(encoding.spans[stacks[thread][--depths[thread]]], END, encoding.threads[thread], timestamp);
+            append(SIZE_ARG);
+            append(random.nextInt(1 << 16));
+            append(ARGS_END);
+        }
+
+        // The lineage event number tells the index, the operation of the index and whether it begins or ends. Every
+        // index flushes in cycles: 4 flushes then a merge of them, four times, then a merge of the whole cycle.
+        private void lineage(long number, long timestamp) {
+            int index = (int) (number % indexes);
+            long indexEvent = number / indexes;
+            byte phase = indexEvent % 2 == 0 ? BEGIN : END;
+            long op = indexEvent / 2;
+            long cycle = op / OPS_PER_CYCLE;
+            int position = (int) (op % OPS_PER_CYCLE);
+            long newest;
+            long oldest;
+            String category;
+            if (position == OPS_PER_CYCLE - 1) {
+                category = "merge";
+                oldest = cycle * FLUSHES_PER_CYCLE;
+                newest = oldest + FLUSHES_PER_CYCLE - 1;
+            } else if (position % (FLUSHES_PER_MERGE + 1) == FLUSHES_PER_MERGE) {
+                category = "merge";
+                oldest = cycle * FLUSHES_PER_CYCLE + position / (FLUSHES_PER_MERGE + 1) * FLUSHES_PER_MERGE;
+                newest = oldest + FLUSHES_PER_MERGE - 1;
+            } else {
+                category = "flush";
+                newest = cycle * FLUSHES_PER_CYCLE + position / (FLUSHES_PER_MERGE + 1) * FLUSHES_PER_MERGE
+                        + position % (FLUSHES_PER_MERGE + 1);
+                oldest = newest;
+            }
+            StringBuilder name = new StringBuilder("idx").append(index).append('/');
+            date(name, START_DATE + newest);
+            name.append('_');
+            date(name, START_DATE + oldest);
+            name.append("_b");
+            event(prefix(name.toString(), category), phase, encoding.ioThreads[index], timestamp);
+            if (phase == BEGIN) {
+                append(NO_ARGS);
+            } else {
+                append(SIZE_ARG);
+                append((newest - oldest + 1) * (1 << 20) + random.nextInt(1 << 20));
+                append(ARGS_END);
+            }
+        }
+
+        private void event(byte[] prefix, byte phase, byte[] thread, long timestamp) {
+            events++;
+            append(prefix);
+            appendByte(phase);
+            append(thread);
+            appendTimestamp(timestamp);
+            appendByte((byte) ',');
+        }
+
+        // Timestamps of a segment share their high digits, so only the last 8 digits are converted
+        private void appendTimestamp(long timestamp) {
+            long high = timestamp / 100_000_000;
+            if (high != timestampHigh) {
+                int start = length;
+                append(high);
+                timestampDigits = Arrays.copyOfRange(output, start, length);
+                timestampHigh = high;
+                length = start;
+            }
+            append(timestampDigits);
+            ensure(8);
+            appendDigits((int) (timestamp - high * 100_000_000), 8);
+        }
+
+        private void append(byte[] bytes) {
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, output, length, bytes.length);
+            length += bytes.length;
+        }
+
+        private void append(long value) {
+            ensure(20);
+            if (value < 0) {
+                output[length++] = '-';
+                value = -value;
+            }
+            if (value <= Integer.MAX_VALUE) {
+                appendDigits((int) value, digits((int) value));
+            } else {
+                long high = value / 100_000_000;
+                append(high);
+                appendDigits((int) (value - high * 100_000_000), 8);
+            }
+        }
+
+        // The last count digits of value, padded with zeros
+        private void appendDigits(int value, int count) {
+            int i = length + count;
+            while (i > length + 1) {
+                int pair = (value % 100) * 2;
+                value /= 100;
+                output[--i] = DIGIT_PAIRS[pair + 1];
+                output[--i] = DIGIT_PAIRS[pair];
+            }
+            if (i > length) {
+                output[--i] = (byte) ('0' + value % 10);
+            }
+            length += count;
+        }
+
+        private void appendByte(byte value) {
+            ensure(1);
+            output[length++] = value;
+        }
+
+        private void ensure(int count) {
+            if (length + count > output.length) {
+                output = Arrays.copyOf(output, Math.max(length + count, output.length * 2));
+            }
+        }
+    }
+
+    private static int digits(int value) {
+        int digits = 1;
+        for (int limit = 10; digits < 10 && value >= limit; limit *= 10) {
+            digits++;
+        }
+        return digits;
+    }
+
+    // yyyy-MM-dd-HH-mm-ss-SSS of the UTC date, like the component names
+    private static void date(StringBuilder out, long millis) {
+        LocalDateTime date = LocalDateTime.ofEpochSecond(Math.floorDiv(millis, 1000L), 0, ZoneOffset.UTC);
+        out.append(date.getYear()).append('-');
+        pad(out, date.getMonthValue(), 2).append('-');
+        pad(out, date.getDayOfMonth(), 2).append('-');
+        pad(out, date.getHour(), 2).append('-');
+        pad(out, date.getMinute(), 2).append('-');
+        pad(out, date.getSecond(), 2).append('-');
+        pad(out, (int) Math.floorMod(millis, 1000L), 3);
+    }
+
+    private static StringBuilder pad(StringBuilder out, int value, int width) {
+        for (int limit = 10; width > 1; width--, limit *= 10) {
+            if (value < limit) {
+                out.append('0');
+            }
+        }
+        return out.append(value);
+    }
+
+    static long parseSize(String size) {
+        long unit = 1;
+        switch (Character.toUpperCase(size.charAt(size.length() - 1))) {
+            case 'K':
+                unit = 1L << 10;
+                break;
+            case 'M':
+                unit = 1L << 20;
+                break;
+            case 'G':
+                unit = 1L << 30;
+                break;
+            default:
+        }
+        return Long.parseLong(unit == 1 ? size : size.substring(0, size.length() - 1)) * unit;
+    }
+}
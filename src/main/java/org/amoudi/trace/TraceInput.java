@@ -0,0 +1,52 @@
+package org.amoudi.trace;
+
+import java.io.*;
+
+// Opens trace files whether they are plain or gzip compressed, and creates the files tools write their output to
+public class TraceInput {
+
+    private static final String GZIP_SUFFIX = ".gz";
+
+    private TraceInput() {
+    }
+
+    // True if the file starts with the gzip magic number
+    public static boolean isCompressed(File file) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            return in.read() == 0x1F && in.read() == 0x8B;
+        }
+    }
+
+    // The uncompressed content of the trace
+    public static InputStream open(File file) throws IOException {
+        if (isCompressed(file)) {
+            return new GzipTraceInputStream(file);
+        }
+        return new FileInputStream(file);
+    }
+
+    // Name of the trace without the compression suffix, the base of the names of the files derived from it
+    public static String getName(File file) {
+        String name = file.getName();
+        return name.endsWith(GZIP_SUFFIX) ? name.substring(0, name.length() - GZIP_SUFFIX.length()) : name;
+    }
+
+    public static String getPath(File file) {
+        return new File(file.getAbsoluteFile().getParentFile(), getName(file)).getAbsolutePath();
+    }
+
+    // Output files that are compressed get the gzip suffix and are written as BGZF, so they can be read back in
+    // parallel
+    public static File getOutputFile(String fileName, boolean compress) {
+        return new File(compress ? fileName + GZIP_SUFFIX : fileName);
+    }
+
+    public static OutputStream create(File file, boolean compress, boolean append) throws IOException {
+        OutputStream out = new FileOutputStream(file, append);
+        return compress ? new BgzfOutputStream(out) : out;
+    }
+
+    public static Writer createWriter(File file, boolean compress) throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(create(file, compress, false)));
+    }
+}
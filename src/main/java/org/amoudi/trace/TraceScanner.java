@@ -0,0 +1,183 @@
+package org.amoudi.trace;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+// Reads a trace file once and feeds every event to all of the registered consumers
+public class TraceScanner {
+
+    private final List<TraceConsumer> consumers = new ArrayList<>();
+    private boolean failOnParseError = false;
+    private boolean useCache = true;
+    private ScanMetrics metrics = ScanMetrics.global();
+    private long lines = 0;
+    private long failures = 0;
+
+    public TraceScanner register(TraceConsumer consumer) {
+        consumers.add(consumer);
+        return this;
+    }
+
+    public TraceScanner failOnParseError(boolean failOnParseError) {
+        this.failOnParseError = failOnParseError;
+        return this;
+    }
+
+    // Whether a TraceCache of the file is read instead of the file when there is one
+    public TraceScanner useCache(boolean useCache) {
+        this.useCache = useCache;
+        return this;
+    }
+
+    // Where scans record their metrics, null for none
+    public TraceScanner metrics(ScanMetrics metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
+    public void scan(File file) throws IOException {
+        ScanEvents.FileScan scanEvent = new ScanEvents.FileScan();
+        scanEvent.begin();
+        long linesBefore = lines;
+        long failuresBefore = failures;
+        EventDecoder decoder = new EventDecoder();
+        for (TraceConsumer consumer : consumers) {
+            consumer.declare(decoder);
+        }
+        TraceCache cache = useCache ? TraceCache.open(file) : null;
+        if (cache != null && cache.covers(decoder, failOnParseError)) {
+            lines += cache.scan(decoder, consumers);
+            scanEvent.cached = true;
+        } else {
+            InputStream in = TraceInput.open(file);
+            Closeable queue = metrics != null && in instanceof GzipTraceInputStream
+                    ? metrics.queue("inflate", ((GzipTraceInputStream) in)::inFlight) : null;
+            try (LineReader reader = new LineReader(metrics == null ? in : metrics.meter(in))) {
+                scan(reader, 0, decoder, consumers);
+            } finally {
+                if (queue != null) {
+                    queue.close();
+                }
+            }
+        }
+        for (TraceConsumer consumer : consumers) {
+            finish(consumer, metrics);
+        }
+        scanEvent.file = file.getPath();
+        scanEvent.lines = lines - linesBefore;
+        scanEvent.failures = failures - failuresBefore;
+        scanEvent.commit();
+    }
+
+    // Finishes the consumer, its time counts for its stage
+    static void finish(TraceConsumer consumer, ScanMetrics metrics) throws IOException {
+        ScanEvents.Finish finishEvent = new ScanEvents.Finish();
+        finishEvent.begin();
+        long start = System.nanoTime();
+        consumer.finish();
+        if (metrics != null) {
+            metrics.addStage(consumer.stage(), System.nanoTime() - start);
+        }
+        if (finishEvent.shouldCommit()) {
+            finishEvent.consumer = consumer.getClass().getName();
+            finishEvent.stage = consumer.stage().name();
+            finishEvent.commit();
+        }
+    }
+
+    // Decodes every line of the reader and feeds it to the consumers
+    void scan(LineReader reader, long startOffset, EventDecoder decoder, List<? extends TraceConsumer> consumers)
+            throws IOException {
+        TraceEvent event = decoder.newEvent();
+        ScanMetrics.Recorder recorder = metrics == null ? null : metrics.recorder(consumers);
+        try {
+            scan(reader, startOffset, decoder, consumers, event, recorder);
+        } finally {
+            if (recorder != null) {
+                recorder.close();
+            }
+        }
+    }
+
+    private void scan(LineReader reader, long startOffset, EventDecoder decoder,
+            List<? extends TraceConsumer> consumers, TraceEvent event, ScanMetrics.Recorder recorder)
+            throws IOException {
+        while (reader.next()) {
+            lines++;
+            if (recorder != null) {
+                recorder.line();
+            }
+            byte[] buffer = reader.buffer();
+            int start = reader.start();
+            int end = reader.end();
+            while (start < end && buffer[start] <= ' ' && buffer[start] >= 0) {
+                start++;
+            }
+            if (start == end || buffer[start] != '{') {
+                String line = new String(buffer, start, end - start, StandardCharsets.UTF_8).trim();
+                // The lines that open and close the array of events
+                if (!line.equals("[") && !line.equals("]")) {
+                    System.out.println(line + " doesn't contain a json object");
+                }
+                continue;
+            }
+            int close = end - 1;
+            while (buffer[close] != '}' && close > start) {
+                close--;
+            }
+            boolean sample = recorder != null && recorder.sample();
+            long decodeStart = sample ? System.nanoTime() : 0;
+            if (!decoder.decode(buffer, start, close + 1, event)) {
+                String line = new String(buffer, start, close + 1 - start, StandardCharsets.UTF_8);
+                System.err.println("Failed parsing: " + line);
+                failures++;
+                if (recorder != null) {
+                    recorder.failure();
+                }
+                if (failOnParseError) {
+                    throw new IOException("Failed parsing: " + line);
+                }
+                continue;
+            }
+            event.offset = startOffset + reader.offset() + (start - reader.start());
+            event.lineEnd = startOffset + reader.offset() + (end - reader.start()) + 1;
+            event.trailingComma = close + 2 == end && buffer[close + 1] == ',';
+            if (recorder != null) {
+                recorder.event();
+            }
+            if (sample) {
+                long consumerStart = System.nanoTime();
+                recorder.decoded(consumerStart - decodeStart);
+                for (int i = 0; i < consumers.size(); i++) {
+                    consumers.get(i).accept(event);
+                    long consumerEnd = System.nanoTime();
+                    recorder.consumed(i, consumerEnd - consumerStart);
+                    consumerStart = consumerEnd;
+                }
+            } else {
+                for (int i = 0; i < consumers.size(); i++) {
+                    consumers.get(i).accept(event);
+                }
+            }
+        }
+    }
+
+    public ScanMetrics getMetrics() {
+        return metrics;
+    }
+
+    // Number of lines read, including the ones that are not events
+    public long getLines() {
+        return lines;
+    }
+
+    // Number of lines that looked like objects but could not be decoded
+    public long getFailures() {
+        return failures;
+    }
+}
@@ -0,0 +1,542 @@
+package org.amoudi.trace;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Sorts a trace by (pid, tid, ts), so that the B and E events of every thread come in timestamp order even when the
+// trace was written by several buffered writers, within a fixed memory budget. Events are copied into a buffer
+// until the budget is used, sorted there and spilled as a run to a temporary file, and the runs are then merged
+// with a heap into the output, at most MAX_FAN_IN at a time. The output is a trace like any other, so the analyzers
+// read it as they read the original.
+// A trace that is already sorted is detected by a first scan that stops at the first event out of order, and is
+// left as it is. Events with the same key keep their order in the trace, events without a pid, tid or ts sort
+// before the ones that have it.
+public class TraceSorter {
+
+    // Runs are copied into a single array
+    private static final int MAX_RUN_BYTES = 1 << 30;
+    // Memory of the keys and the sort indexes of an event in a run
+    private static final int BYTES_PER_EVENT = 5 * Integer.BYTES + 2 * Long.BYTES;
+    private static final int INITIAL_EVENTS = 1 << 14;
+    private static final int INITIAL_BYTES = 1 << 20;
+    private static final int MAX_FAN_IN = 128;
+    private static final int MIN_READ_BUFFER = 64 << 10;
+    private static final int MAX_READ_BUFFER = 1 << 20;
+
+    private long memory = Runtime.getRuntime().maxMemory() / 3;
+    private File tempDir = null;
+    private boolean compress = false;
+    private ScanMetrics metrics = ScanMetrics.global();
+
+    // Pid ids of every event and the rank of every id in the order of the pids
+    private final NameTable pids = new NameTable();
+    private int[] ranks = new int[0];
+
+    // The run being filled: the events are data[starts[i], starts[i] + lengths[i]) in trace order
+    private byte[] data;
+    private int dataLength;
+    private int[] starts;
+    private int[] lengths;
+    private int[] pidIds;
+    private long[] tids;
+    private long[] timestamps;
+    private int events;
+    private final List<Run> runs = new ArrayList<>();
+    private int spilledRuns = 0;
+
+    private static void help() {
+        System.out.println("This tool is used to sort a trace file by process, thread and timestamp");
+        System.out.println("Expected arguments are:");
+        System.out.println("-f <file name>");
+        System.out.println("[-o <output file name>] [-memory <bytes, with an optional K, M or G suffix>]");
+        System.out.println("[-tmp <directory of the temporary files>] [-compress <true|false>]");
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0 || args.length % 2 != 0) {
+            System.out.println("Incorrect use. Arguments come in pairs");
+            help();
+            System.exit(1);
+        }
+        String fileName = null;
+        String output = null;
+        TraceSorter sorter = new TraceSorter();
+        for (int i = 0; i < args.length; i += 2) {
+            switch (args[i]) {
+                case "-f":
+                    fileName = args[i + 1];
+                    break;
+                case "-o":
+                    output = args[i + 1];
+                    break;
+                case "-memory":
+                    sorter.memory(TraceGenerator.parseSize(args[i + 1]));
+                    break;
+                case "-tmp":
+                    sorter.tempDir(new File(args[i + 1]));
+                    break;
+                case "-compress":
+                    sorter.compress(Boolean.parseBoolean(args[i + 1]));
+                    break;
+                default:
+                    System.out.println("Incorrect use. Unknown argument: " + args[i]);
+                    help();
+                    System.exit(1);
+            }
+        }
+        if (fileName == null) {
+            System.out.println("Incorrect use. Missing argument -f");
+            help();
+            System.exit(1);
+        }
+        File input = new File(fileName);
+        if (!input.exists()) {
+            System.out.println("File" + input.getAbsolutePath() + " doesn't exist");
+            System.exit(1);
+        }
+        sorter.sort(input, output == null ? null : new File(output));
+    }
+
+    // Bytes of events and keys held in memory at once
+    public TraceSorter memory(long memory) {
+        if (memory < INITIAL_BYTES) {
+            throw new IllegalArgumentException("Memory budget must be at least " + INITIAL_BYTES + " bytes");
+        }
+        this.memory = memory;
+        return this;
+    }
+
+    // Where the runs are spilled, the directory of the output by default
+    public TraceSorter tempDir(File tempDir) {
+        this.tempDir = tempDir;
+        return this;
+    }
+
+    // With compress the output is written gzip compressed
+    public TraceSorter compress(boolean compress) {
+        this.compress = compress;
+        return this;
+    }
+
+    // Where the scans record their metrics, null for none
+    public TraceSorter metrics(ScanMetrics metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
+    // Sorts the trace into output, <trace>.sorted.json by default, and returns the file to analyze: the trace
+    // itself if it is already sorted, the output otherwise
+    public File sort(File input, File output) throws IOException {
+        spilledRuns = 0;
+        if (isSorted(input)) {
+            System.out.println(input.getAbsolutePath() + " is already sorted");
+            return input;
+        }
+        if (output == null) {
+            String outputFileName = TraceInput.getPath(input);
+            int extension = outputFileName.lastIndexOf('.');
+            outputFileName = (extension > outputFileName.lastIndexOf(File.separatorChar)
+                    ? outputFileName.substring(0, extension) : outputFileName) + ".sorted.json";
+            output = TraceInput.getOutputFile(outputFileName, compress);
+        }
+        File spillDir = tempDir != null ? tempDir : output.getAbsoluteFile().getParentFile();
+        System.out.println("Writing output to " + output.getAbsolutePath());
+        try {
+            spill(input, spillDir);
+            int spilled = runs.size();
+            spilledRuns = spilled;
+            long start = System.nanoTime();
+            // Consecutive runs are merged into one in their place, which keeps the runs in trace order
+            while (runs.size() > MAX_FAN_IN) {
+                for (int i = 0; i < runs.size(); i++) {
+                    int end = Math.min(i + MAX_FAN_IN, runs.size());
+                    Run merged = new Run(Files.createTempFile(spillDir.toPath(), "trace-sort-", ".run").toFile());
+                    // Kept in the runs to be deleted if the merge fails
+                    runs.add(end, merged);
+                    List<Run> group = runs.subList(i, end);
+                    try (DataOutputStream out = merged.create()) {
+                        merge(group, cursor -> {
+                            cursor.writeTo(out);
+                            merged.events++;
+                        });
+                    }
+                    for (Run run : group) {
+                        run.delete();
+                    }
+                    group.clear();
+                }
+            }
+            long total;
+            try (EventOutput out = new EventOutput(output, compress, null)) {
+                merge(runs, cursor -> out.write(cursor.bytes, 0, cursor.length));
+                total = out.getEvents();
+            }
+            if (metrics != null) {
+                metrics.addStage(ScanMetrics.Stage.WRITE, System.nanoTime() - start);
+            }
+            System.out.println("Sorted " + total + " events in " + spilled + " runs");
+        } finally {
+            for (Run run : runs) {
+                run.delete();
+            }
+            runs.clear();
+        }
+        return output;
+    }
+
+    // Runs the last sort spilled before merging them, 0 if its trace was already sorted
+    public int getSpilledRuns() {
+        return spilledRuns;
+    }
+
+    // True if every event sorts at or after the one before it
+    public boolean isSorted(File input) throws IOException {
+        try {
+            new TraceScanner().metrics(metrics).register(new TraceConsumer() {
+                private boolean first = true;
+                private int pid;
+                private long tid;
+                private long timestamp;
+
+                @Override
+                public void declare(EventDecoder decoder) {
+                    decoder.require(TraceEvent.PID | TraceEvent.TID | TraceEvent.TIMESTAMP);
+                }
+
+                @Override
+                public void accept(TraceEvent event) {
+                    int pid = pidId(event);
+                    long tid = event.has(TraceEvent.TID) ? event.tid() : Long.MIN_VALUE;
+                    long timestamp = event.has(TraceEvent.TIMESTAMP) ? event.timestamp() : Long.MIN_VALUE;
+                    if (!first && compare(rank(this.pid), this.tid, this.timestamp, rank(pid), tid, timestamp) > 0) {
+                        throw new OutOfOrder();
+                    }
+                    first = false;
+                    this.pid = pid;
+                    this.tid = tid;
+                    this.timestamp = timestamp;
+                }
+
+                @Override
+                public void finish() {
+                }
+            }).scan(input);
+        } catch (OutOfOrder e) {
+            return false;
+        }
+        return true;
+    }
+
+    private void spill(File input, File spillDir) throws IOException {
+        long budget = Math.max(memory - 2L * MAX_FAN_IN * MIN_READ_BUFFER, INITIAL_BYTES);
+        int maxBytes = (int) Math.min(MAX_RUN_BYTES, budget * 3 / 4);
+        int maxEvents = (int) Math.min(Integer.MAX_VALUE - 8, budget / 4 / BYTES_PER_EVENT);
+        data = new byte[Math.min(INITIAL_BYTES, maxBytes)];
+        starts = new int[Math.min(INITIAL_EVENTS, maxEvents)];
+        lengths = new int[starts.length];
+        pidIds = new int[starts.length];
+        tids = new long[starts.length];
+        timestamps = new long[starts.length];
+        // The spilled runs keep the original bytes, which a TraceCache doesn't have
+        new TraceScanner().useCache(false).failOnParseError(true).metrics(metrics).register(new TraceConsumer() {
+            @Override
+            public void declare(EventDecoder decoder) {
+                decoder.require(TraceEvent.PID | TraceEvent.TID | TraceEvent.TIMESTAMP);
+            }
+
+            @Override
+            public void accept(TraceEvent event) throws IOException {
+                event.load();
+                int length = event.end - event.start;
+                if (length > maxBytes) {
+                    throw new IOException("Event at " + event.offset() + " is larger than a run: " + event.line());
+                }
+                if (dataLength + length > data.length) {
+                    if (data.length == maxBytes) {
+                        spillRun(spillDir);
+                    } else {
+                        data = Arrays.copyOf(data, (int) Math.min(maxBytes,
+                                Math.max(dataLength + (long) length, 2L * data.length)));
+                    }
+                }
+                if (events == starts.length) {
+                    if (events == maxEvents) {
+                        spillRun(spillDir);
+                    } else {
+                        int capacity = (int) Math.min(maxEvents, 2L * events);
+                        starts = Arrays.copyOf(starts, capacity);
+                        lengths = Arrays.copyOf(lengths, capacity);
+                        pidIds = Arrays.copyOf(pidIds, capacity);
+                        tids = Arrays.copyOf(tids, capacity);
+                        timestamps = Arrays.copyOf(timestamps, capacity);
+                    }
+                }
+                System.arraycopy(event.buffer, event.start, data, dataLength, length);
+                starts[events] = dataLength;
+                lengths[events] = length;
+                pidIds[events] = pidId(event);
+                tids[events] = event.has(TraceEvent.TID) ? event.tid() : Long.MIN_VALUE;
+                timestamps[events] = event.has(TraceEvent.TIMESTAMP) ? event.timestamp() : Long.MIN_VALUE;
+                dataLength += length;
+                events++;
+            }
+
+            @Override
+            public void finish() throws IOException {
+                if (events > 0) {
+                    spillRun(spillDir);
+                }
+            }
+
+            @Override
+            public ScanMetrics.Stage stage() {
+                return ScanMetrics.Stage.WRITE;
+            }
+        }).scan(input);
+        data = null;
+        starts = null;
+        lengths = null;
+        pidIds = null;
+        tids = null;
+        timestamps = null;
+    }
+
+    // Sorts the events in memory and writes them to a new run
+    private void spillRun(File spillDir) throws IOException {
+        int[] order = new int[events];
+        for (int i = 0; i < events; i++) {
+            order[i] = i;
+        }
+        updateRanks();
+        sort(order, new int[events]);
+        Run run = new Run(Files.createTempFile(spillDir.toPath(), "trace-sort-", ".run").toFile());
+        runs.add(run);
+        try (DataOutputStream out = run.create()) {
+            for (int i : order) {
+                out.writeInt(pidIds[i]);
+                out.writeLong(tids[i]);
+                out.writeLong(timestamps[i]);
+                out.writeInt(lengths[i]);
+                out.write(data, starts[i], lengths[i]);
+            }
+        }
+        run.events = events;
+        System.out.println("Spilled run " + runs.size() + " of " + events + " events");
+        dataLength = 0;
+        events = 0;
+    }
+
+    // Bottom up merge sort of the event indexes, which skips merging halves that are already in order so that
+    // nearly sorted runs cost little more than a pass
+    private void sort(int[] order, int[] scratch) {
+        int n = order.length;
+        for (int width = 1; width < n; width *= 2) {
+            for (int from = 0; from < n - width; from += 2 * width) {
+                int middle = from + width;
+                int to = Math.min(from + 2 * width, n);
+                if (compare(order[middle - 1], order[middle]) <= 0) {
+                    continue;
+                }
+                System.arraycopy(order, from, scratch, from, to - from);
+                for (int i = from, left = from, right = middle; i < to; i++) {
+                    if (right == to || (left < middle && compare(scratch[left], scratch[right]) <= 0)) {
+                        order[i] = scratch[left++];
+                    } else {
+                        order[i] = scratch[right++];
+                    }
+                }
+            }
+        }
+    }
+
+    // Ties are broken by the position in the trace
+    private int compare(int a, int b) {
+        int c = compare(ranks[pidIds[a] + 1], tids[a], timestamps[a], ranks[pidIds[b] + 1], tids[b], timestamps[b]);
+        return c != 0 ? c : Integer.compare(a, b);
+    }
+
+    private static int compare(int pidA, long tidA, long timestampA, int pidB, long tidB, long timestampB) {
+        if (pidA != pidB) {
+            return Integer.compare(pidA, pidB);
+        }
+        if (tidA != tidB) {
+            return Long.compare(tidA, tidB);
+        }
+        return Long.compare(timestampA, timestampB);
+    }
+
+    private void merge(List<Run> group, Sink sink) throws IOException {
+        int buffer = (int) Math.max(MIN_READ_BUFFER, Math.min(MAX_READ_BUFFER, memory / 2 / group.size()));
+        updateRanks();
+        // Min heap of the runs by their next event, ties go to the older run
+        Cursor[] heap = new Cursor[group.size()];
+        int size = 0;
+        try {
+            for (int i = 0; i < group.size(); i++) {
+                Cursor cursor = new Cursor(group.get(i), i, buffer);
+                if (cursor.next()) {
+                    heap[size++] = cursor;
+                    for (int child = size - 1; child > 0 && heap[(child - 1) / 2].compareTo(heap[child]) > 0;
+                         child = (child - 1) / 2) {
+                        swap(heap, child, (child - 1) / 2);
+                    }
+                } else {
+                    cursor.close();
+                }
+            }
+            while (size > 0) {
+                Cursor top = heap[0];
+                sink.write(top);
+                if (!top.next()) {
+                    top.close();
+                    heap[0] = heap[--size];
+                    heap[size] = null;
+                }
+                for (int parent = 0; ; ) {
+                    int child = 2 * parent + 1;
+                    if (child >= size) {
+                        break;
+                    }
+                    if (child + 1 < size && heap[child + 1].compareTo(heap[child]) < 0) {
+                        child++;
+                    }
+                    if (heap[parent].compareTo(heap[child]) <= 0) {
+                        break;
+                    }
+                    swap(heap, parent, child);
+                    parent = child;
+                }
+            }
+        } finally {
+            for (int i = 0; i < size; i++) {
+                heap[i].close();
+            }
+        }
+    }
+
+    private static void swap(Cursor[] heap, int a, int b) {
+        Cursor cursor = heap[a];
+        heap[a] = heap[b];
+        heap[b] = cursor;
+    }
+
+    private int pidId(TraceEvent event) {
+        return event.hasText(TraceEvent.SLOT_PID) ? pids.getOrAdd(event, TraceEvent.SLOT_PID) : -1;
+    }
+
+    // Rank of the pid id in the order of the pids, -1 for none
+    private int rank(int pid) {
+        updateRanks();
+        return ranks[pid + 1];
+    }
+
+    // Pids are few and mostly seen early, so the ranks are only recomputed when there are new ones
+    private void updateRanks() {
+        if (ranks.length != pids.size() + 1) {
+            Integer[] sorted = new Integer[pids.size()];
+            for (int id = 0; id < sorted.length; id++) {
+                sorted[id] = id;
+            }
+            Arrays.sort(sorted, (a, b) -> pids.getName(a).compareTo(pids.getName(b)));
+            ranks = new int[sorted.length + 1];
+            ranks[0] = -1;
+            for (int rank = 0; rank < sorted.length; rank++) {
+                ranks[sorted[rank] + 1] = rank;
+            }
+        }
+    }
+
+    private interface Sink {
+        void write(Cursor cursor) throws IOException;
+    }
+
+    // Thrown to stop scanning at the first event out of order
+    private static class OutOfOrder extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        private OutOfOrder() {
+            super(null, null, false, false);
+        }
+    }
+
+    // A temporary file of sorted events, each a pid id, tid, ts and length followed by the original bytes
+    private static class Run {
+        private final File file;
+        private long events = 0;
+
+        private Run(File file) {
+            this.file = file;
+            file.deleteOnExit();
+        }
+
+        private DataOutputStream create() throws IOException {
+            return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), MAX_READ_BUFFER));
+        }
+
+        private void delete() {
+            file.delete();
+        }
+    }
+
+    private class Cursor {
+        private final DataInputStream in;
+        private final int index;
+        private long remaining;
+        private int pid;
+        private int rank;
+        private long tid;
+        private long timestamp;
+        private byte[] bytes = new byte[256];
+        private int length;
+
+        private Cursor(Run run, int index, int buffer) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(run.file), buffer));
+            this.index = index;
+            this.remaining = run.events;
+        }
+
+        private boolean next() throws IOException {
+            if (remaining == 0) {
+                return false;
+            }
+            remaining--;
+            pid = in.readInt();
+            rank = ranks[pid + 1];
+            tid = in.readLong();
+            timestamp = in.readLong();
+            length = in.readInt();
+            if (length > bytes.length) {
+                bytes = new byte[Math.max(length, 2 * bytes.length)];
+            }
+            in.readFully(bytes, 0, length);
+            return true;
+        }
+
+        private void writeTo(DataOutputStream out) throws IOException {
+            out.writeInt(pid);
+            out.writeLong(tid);
+            out.writeLong(timestamp);
+            out.writeInt(length);
+            out.write(bytes, 0, length);
+        }
+
+        private int compareTo(Cursor other) {
+            int c = compare(rank, tid, timestamp, other.rank, other.tid, other.timestamp);
+            return c != 0 ? c : Integer.compare(index, other.index);
+        }
+
+        private void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -1,26 +1,57 @@
 package org.amoudi.trace;
 
-import org.apache.commons.lang3.tuple.Triple;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
-import java.util.HashMap;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 public class TreeHeightComputer {
     private static final String FLUSH = "flush -> ";
     private static final String MERGE = "merge -> ";
+    private static final String KEY_INDEX = "index";
+    private static final String KEY_OP = "op";
+    private static final String KEY_ID = "id";
 
-    private static double compute(String input) throws Exception {
+    // Reads either the lineage written by LineageComputer, or flush and merge lines, and returns the max weighted
+    // average height. A lineage of many indexes, like Driver's, gets a tree per index.
+    public static double compute(String input) throws Exception {
         File file = new File(input);
         if (!file.exists()) {
             throw new Exception("File s" + file.getAbsolutePath() + " doesn't exist");
         }
-        // Key is range start, value is Start, End, Height
-        Map<Integer, Triple<Integer, Integer, Double>> weightedAvgMap = new HashMap<>();
-        // Key is range start, value is Start, End, Height
-        Map<Integer, Triple<Integer, Integer, Integer>> maxMap = new HashMap<>();
+        Map<String, Tree> trees = isJson(file) ? readLineage(file) : readLines(file);
+        double avgMax = 0;
+        for (Map.Entry<String, Tree> entry : trees.entrySet()) {
+            if (trees.size() > 1) {
+                System.out.println("Index: " + entry.getKey());
+            }
+            Tree tree = entry.getValue();
+            System.out.println("The height computation using the max of input +1 = the height of output");
+            for (int i = 0; i < tree.size; i++) {
+                System.out.println("[" + tree.starts[i] + '-' + tree.ends[i] + "] -> " + tree.maxHeights[i]);
+            }
+            System.out.println("The max height = " + tree.getMaxHeight());
+            System.out.println("==========================================================================");
+            System.out.println("==========================================================================");
+            System.out.println("==========================================================================");
+            System.out.println("The height computation using the weighted average of input +1 = the height of output");
+            for (int i = 0; i < tree.size; i++) {
+                System.out.println("[" + tree.starts[i] + '-' + tree.ends[i] + "] -> " + tree.avgHeights[i]);
+            }
+            avgMax = Double.max(avgMax, tree.getMaxAverageHeight());
+        }
+        return avgMax;
+    }
+
+    private static Map<String, Tree> readLines(File file) throws IOException {
+        Tree tree = new Tree();
         try (BufferedReader br = new BufferedReader(new FileReader(file))) {
             for (String line; (line = br.readLine()) != null;) {
                 if (line.length() == 0) {
@@ -28,30 +59,9 @@ public class TreeHeightComputer {
                 }
                 if (line.charAt(0) == 'm') {
                     int[] range = getMerge(line);
-                    int maxHeightIn = 0;
-                    double totalHeightIn = 0;
-                    double countComponentsIn = 0;
-                    for (int i = range[0]; i <= range[1]; i++) {
-                        // The max
-                        Triple<Integer, Integer, Integer> maxHeight = maxMap.remove(i);
-                        if (maxHeight != null) {
-                            maxHeightIn = Integer.max(maxHeightIn, maxHeight.getRight());
-                            Triple<Integer, Integer, Double> avgHeight = weightedAvgMap.remove(i);
-                            double thisCount = avgHeight.getMiddle() - avgHeight.getLeft() + 1;
-                            countComponentsIn += thisCount;
-                            double thisHeight = avgHeight.getRight() * thisCount;
-                            totalHeightIn += thisHeight;
-                        }
-                    }
-                    maxHeightIn++;
-                    maxMap.put(range[0], Triple.of(range[0], range[1], maxHeightIn));
-                    totalHeightIn /= countComponentsIn;
-                    totalHeightIn += 1.0;
-                    weightedAvgMap.put(range[0], Triple.of(range[0], range[1], totalHeightIn));
+                    tree.merge(range[0], range[1]);
                 } else if (line.charAt(0) == 'f') {
-                    int number = getFlush(line);
-                    weightedAvgMap.put(number, Triple.of(number, number, 1.0));
-                    maxMap.put(number, Triple.of(number, number, 1));
+                    tree.flush(getFlush(line));
                 } else {
                     System.err.println("Line " + line + " doesn't representa flush nor a merge");
                     help();
@@ -59,25 +69,183 @@ public class TreeHeightComputer {
                 }
             }
         }
-        System.out.println("The height computation using the max of input +1 = the height of output");
-        int maxMax = 0;
-        for (Map.Entry<Integer, Triple<Integer, Integer, Integer>> entry : maxMap.entrySet()) {
-            maxMax = Integer.max(maxMax, entry.getValue().getRight());
-            System.out.println("[" + entry.getValue().getLeft() + '-' + entry.getValue().getMiddle() + "] -> "
-                    + entry.getValue().getRight());
+        Map<String, Tree> trees = new LinkedHashMap<>();
+        trees.put("", tree);
+        return trees;
+    }
+
+    // Streams the array of lineage records, without building a tree of JSON nodes
+    private static Map<String, Tree> readLineage(File file) throws IOException {
+        Map<String, Tree> trees = new LinkedHashMap<>();
+        try (JsonParser parser = new JsonFactory().createParser(file)) {
+            if (parser.nextToken() != JsonToken.START_ARRAY) {
+                System.err.println(file.getAbsolutePath() + " isn't an array of lineage records");
+                help();
+                System.exit(1);
+            }
+            while (parser.nextToken() == JsonToken.START_OBJECT) {
+                String index = "";
+                String op = null;
+                String id = null;
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String key = parser.getCurrentName();
+                    parser.nextToken();
+                    if (KEY_INDEX.equals(key)) {
+                        index = parser.getText();
+                    } else if (KEY_OP.equals(key)) {
+                        op = parser.getText();
+                    } else if (KEY_ID.equals(key)) {
+                        id = parser.getText();
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+                Tree tree = trees.computeIfAbsent(index, i -> new Tree());
+                if ("flush".equals(op) && id != null) {
+                    tree.flush(Integer.parseInt(id));
+                } else if ("merge".equals(op) && id != null) {
+                    int delimiter = id.indexOf('-');
+                    // A merge of components flushed before the trace started has null ends
+                    if (delimiter > 0 && !id.startsWith("null") && !id.endsWith("null")) {
+                        tree.merge(Integer.parseInt(id.substring(0, delimiter)),
+                                Integer.parseInt(id.substring(delimiter + 1)));
+                    }
+                } else {
+                    System.err.println("Record " + op + " " + id + " doesn't representa flush nor a merge");
+                    help();
+                    System.exit(1);
+                }
+            }
         }
-        System.out.println("The max height = " + maxMax);
-        System.out.println("==========================================================================");
-        System.out.println("==========================================================================");
-        System.out.println("==========================================================================");
-        System.out.println("The height computation using the weighted average of input +1 = the height of output");
-        double avgMax = 0;
-        for (Map.Entry<Integer, Triple<Integer, Integer, Double>> entry : weightedAvgMap.entrySet()) {
-            avgMax = Double.max(avgMax, entry.getValue().getRight());
-            System.out.println("[" + entry.getValue().getLeft() + '-' + entry.getValue().getMiddle() + "] -> "
-                    + entry.getValue().getRight());
+        return trees;
+    }
+
+    private static boolean isJson(File file) throws IOException {
+        try (BufferedReader br = new BufferedReader(new FileReader(file))) {
+            for (int c; (c = br.read()) >= 0;) {
+                if (!Character.isWhitespace(c)) {
+                    return c == '[';
+                }
+            }
+        }
+        return false;
+    }
+
+    // Heights of the components of one index, updated as its flushes and merges happen. A flushed component has
+    // height 1 and a merged one is one higher than the components it replaced, taking either their max or their
+    // average weighted by how many flushes each of them holds.
+    // The live components are kept in primitive arrays sorted by their first flush. The components a merge replaces
+    // are adjacent in that order, so a merge costs a binary search, a pass over the components it merged and a shift
+    // of the components after them, which is O(n) in the worst case. Merges mostly combine the latest components, so
+    // that tail is usually short, and flushes append at the end.
+    public static class Tree {
+        private static final int INITIAL_CAPACITY = 16;
+
+        private int[] starts = new int[INITIAL_CAPACITY];
+        private int[] ends = new int[INITIAL_CAPACITY];
+        private int[] maxHeights = new int[INITIAL_CAPACITY];
+        private double[] avgHeights = new double[INITIAL_CAPACITY];
+        private int size = 0;
+
+        public void flush(int number) {
+            int i = search(number);
+            if (i < size && starts[i] == number) {
+                set(i, number, number, 1, 1.0);
+            } else {
+                insert(i, number, number, 1, 1.0);
+            }
+        }
+
+        // Replaces the components that start within flushes [from, to] with their merge
+        public void merge(int from, int to) {
+            int first = search(from);
+            int last = first;
+            int maxHeightIn = 0;
+            double totalHeightIn = 0;
+            double countComponentsIn = 0;
+            for (; last < size && starts[last] <= to; last++) {
+                maxHeightIn = Integer.max(maxHeightIn, maxHeights[last]);
+                double thisCount = ends[last] - starts[last] + 1;
+                countComponentsIn += thisCount;
+                totalHeightIn += avgHeights[last] * thisCount;
+            }
+            // A merge of nothing known, e.g. of components flushed before the trace started, is a new component
+            double avgHeight = countComponentsIn == 0 ? 1.0 : totalHeightIn / countComponentsIn + 1.0;
+            if (last == first) {
+                insert(first, from, to, maxHeightIn + 1, avgHeight);
+                return;
+            }
+            set(first, from, to, maxHeightIn + 1, avgHeight);
+            int removed = last - first - 1;
+            if (removed > 0) {
+                System.arraycopy(starts, last, starts, first + 1, size - last);
+                System.arraycopy(ends, last, ends, first + 1, size - last);
+                System.arraycopy(maxHeights, last, maxHeights, first + 1, size - last);
+                System.arraycopy(avgHeights, last, avgHeights, first + 1, size - last);
+                size -= removed;
+            }
+        }
+
+        // Number of components currently in the tree
+        public int size() {
+            return size;
+        }
+
+        public int getMaxHeight() {
+            int maxMax = 0;
+            for (int i = 0; i < size; i++) {
+                maxMax = Integer.max(maxMax, maxHeights[i]);
+            }
+            return maxMax;
+        }
+
+        public double getMaxAverageHeight() {
+            double avgMax = 0;
+            for (int i = 0; i < size; i++) {
+                avgMax = Double.max(avgMax, avgHeights[i]);
+            }
+            return avgMax;
+        }
+
+        // Position of the first component that starts at or after number
+        private int search(int number) {
+            if (size == 0 || starts[size - 1] < number) {
+                return size;
+            }
+            int low = 0;
+            int high = size - 1;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (starts[middle] < number) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+
+        private void set(int i, int start, int end, int maxHeight, double avgHeight) {
+            starts[i] = start;
+            ends[i] = end;
+            maxHeights[i] = maxHeight;
+            avgHeights[i] = avgHeight;
+        }
+
+        private void insert(int i, int start, int end, int maxHeight, double avgHeight) {
+            if (size == starts.length) {
+                starts = Arrays.copyOf(starts, size * 2);
+                ends = Arrays.copyOf(ends, size * 2);
+                maxHeights = Arrays.copyOf(maxHeights, size * 2);
+                avgHeights = Arrays.copyOf(avgHeights, size * 2);
+            }
+            System.arraycopy(starts, i, starts, i + 1, size - i);
+            System.arraycopy(ends, i, ends, i + 1, size - i);
+            System.arraycopy(maxHeights, i, maxHeights, i + 1, size - i);
+            System.arraycopy(avgHeights, i, avgHeights, i + 1, size - i);
+            set(i, start, end, maxHeight, avgHeight);
+            size++;
         }
-        return avgMax;
     }
 
     private static int[] getMerge(String line) {
@@ -95,7 +263,8 @@ public class TreeHeightComputer {
 
     private static void help() {
         System.out.println("This tool is used to compute the height of the tree of flushes and merges."
-                + " The file passed is expected to only have flushes and merges as follows");
+                + " The file passed is expected to be the lineage written by LineageComputer, or to only have"
+                + " flushes and merges as follows");
         System.out.println("flush -> 0");
         System.out.println("flush -> 1");
         System.out.println("flush -> 2");
@@ -0,0 +1,100 @@
+package org.amoudi.trace;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CallTreeTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void mergeAddsUpEqualPaths() {
+        CallTree first = new CallTree();
+        first.record(first.child(first.child(0, "a"), "b"), 5, 5);
+        CallTree second = new CallTree();
+        second.record(second.child(second.child(0, "a"), "b"), 7, 3);
+        first.merge(second, new int[second.size()]);
+        assertEquals(3, first.size());
+        int node = first.child(first.child(0, "a"), "b");
+        assertEquals(2, first.getCount(node));
+        assertEquals(12, first.getTotal(node));
+        assertEquals(8, first.getSelf(node));
+    }
+
+    @Test
+    public void graftRootsMovesPathsOntoRootZero() throws IOException {
+        CallTree calls = new CallTree();
+        calls.record(calls.child(0, "a"), 10, 10);
+        int root = calls.addRoot();
+        int node = calls.child(calls.child(root, "a"), "b");
+        calls.record(node, 4, 4);
+        int[] nodes = calls.graftRoots();
+        assertTrue(calls.isRoot(0));
+        for (int i = 1; i < calls.size(); i++) {
+            assertTrue(!calls.isRoot(i));
+        }
+        assertEquals("[a, b]", calls.getPath(nodes[node]).toString());
+        StringWriter folded = new StringWriter();
+        calls.writeFolded(folded);
+        assertEquals("a 10\na;b 4\n", folded.toString());
+    }
+
+    // Orphan end events at the start of the trace and of every chunk must not write a path more than once
+    @Test
+    public void foldedStacksAreWrittenOnce() throws IOException, InterruptedException {
+        File trace = folder.newFile("orphans.json");
+        StringBuilder json = new StringBuilder("[\n");
+        long ts = 0;
+        for (int i = 0; i < 3; i++) {
+            json.append(span("a", ts, "b", ts += 10)).append(",\n");
+            json.append(event("x", "E", ts += 10)).append(",\n");
+        }
+        for (int i = 0; i < 200; i++) {
+            json.append(span("a", ts, "b", ts += 10)).append(i == 199 ? "\n" : ",\n");
+        }
+        Files.write(trace.toPath(), json.append("]\n").toString().getBytes(StandardCharsets.UTF_8));
+
+        String sequential = folded(trace, Long.MAX_VALUE);
+        assertEquals("a 1015\na;b 1015\n", sequential);
+        for (long chunkSize : new long[]{100, 333, 1000}) {
+            String parallel = folded(trace, chunkSize);
+            Set<String> stacks = new HashSet<>();
+            for (String line : parallel.split("\n")) {
+                assertTrue(line + " is written more than once", stacks.add(line.substring(0, line.lastIndexOf(' '))));
+            }
+            assertEquals(sequential, parallel);
+        }
+    }
+
+    private static String folded(File trace, long chunkSize) throws IOException {
+        TimeBreaker.Breakdown breakdown = new ParallelTraceScanner<>(TimeBreaker.Breakdown::new).chunkSize(chunkSize)
+                .metrics(null).scan(trace);
+        StringWriter folded = new StringWriter();
+        breakdown.getCalls().writeFolded(folded);
+        return folded.toString();
+    }
+
+    // An a span from start to end with a b span in its second half
+    private static String span(String outer, long start, String inner, long end) {
+        long middle = (start + end) / 2;
+        return event(outer, "B", start) + ",\n" + event(inner, "B", middle) + ",\n" + event(inner, "E", end) + ",\n"
+                + event(outer, "E", end);
+    }
+
+    private static String event(String name, String phase, long ts) {
+        return "{\"name\": \"" + name + "\", \"ph\": \"" + phase + "\", \"ts\": " + ts + ", \"pid\": 1, \"tid\": 1}";
+    }
+}
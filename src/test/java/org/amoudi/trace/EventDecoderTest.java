@@ -0,0 +1,118 @@
+package org.amoudi.trace;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class EventDecoderTest {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    @Test
+    public void unescapesLikeJackson() throws IOException {
+        String[] names = {
+                "plain",
+                "quote \\\" and backslash \\\\",
+                "slash \\/ and controls \\b\\f\\n\\r\\t",
+                "\\u00e9t\\u00C9",
+                "pair \\ud83d\\ude00 end",
+                "\\u0041",
+                "trailing \\\\"
+        };
+        for (String name : names) {
+            String line = "{\"name\": \"" + name + "\", \"ph\": \"B\"}";
+            TraceEvent event = decode(line, TraceEvent.NAME | TraceEvent.PHASE);
+            String expected = MAPPER.readTree(line).get("name").asText();
+            assertEquals(name, expected, event.name());
+            assertTrue(event.textEquals(TraceEvent.SLOT_NAME, expected.getBytes(StandardCharsets.UTF_8)));
+            assertEquals('B', event.phase());
+        }
+    }
+
+    @Test
+    public void keepsUtf8Bytes() throws IOException {
+        TraceEvent event = decode("{\"name\": \"caf\u00e9 \u6f22\"}", TraceEvent.NAME);
+        assertEquals("caf\u00e9 \u6f22", event.name());
+    }
+
+    @Test
+    public void decodesNumbersAndTextSlots() throws IOException {
+        EventDecoder decoder = new EventDecoder().require(TraceEvent.PID | TraceEvent.TID | TraceEvent.TIMESTAMP
+                | TraceEvent.ARGS);
+        int index = decoder.text("index");
+        String line = "{\"pid\": 3, \"tid\": \"7\", \"ts\": 12.9e0, \"index\": \"a\\tb\", \"args\": {\"count\": 2, "
+                + "\"avg-duration-ns\": -5, \"size\": 1024}}";
+        TraceEvent event = decoder.newEvent();
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        assertTrue(decoder.decode(bytes, 0, bytes.length, event));
+        assertEquals(7, event.tid());
+        assertEquals(12, event.timestamp());
+        assertEquals(2, event.count());
+        assertEquals(-5, event.avgDuration());
+        assertEquals(1024, event.size());
+        assertEquals("3", event.pid());
+        assertFalse(event.isTextual(TraceEvent.SLOT_PID));
+        assertEquals("a\tb", event.text(index));
+        assertTrue(event.isTextual(index));
+        JsonNode json = event.json();
+        assertEquals(3, json.get("pid").asInt());
+    }
+
+    // Like JsonNode.findValue, which predicates used to read their keys with
+    @Test
+    public void findsNestedKeys() {
+        EventDecoder decoder = new EventDecoder().require(TraceEvent.NAME);
+        int count = decoder.nestedText("count");
+        int key = decoder.nestedText("key");
+        int topLevelCount = decoder.text("count");
+        assertEquals(TraceEvent.SLOT_NAME, decoder.nestedText("name"));
+        TraceEvent event = decoder.newEvent();
+        String line = "{\"name\": \"a\", \"list\": [1, [{\"key\": \"first\"}]], \"args\": {\"count\": 8, "
+                + "\"inner\": {\"key\": \"second\"}}}";
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        assertTrue(decoder.decode(bytes, 0, bytes.length, event));
+        assertEquals("8", event.text(count));
+        assertFalse(event.isTextual(count));
+        assertEquals("first", event.text(key));
+        assertFalse(event.hasText(topLevelCount));
+        assertEquals("a", event.name());
+
+        line = "{\"args\": {\"key\": \"nested\"}, \"key\": \"top\", \"count\": \"c\\\"1\"}";
+        bytes = line.getBytes(StandardCharsets.UTF_8);
+        assertTrue(decoder.decode(bytes, 0, bytes.length, event));
+        assertEquals("top", event.text(key));
+        assertEquals("c\"1", event.text(count));
+        assertEquals("c\"1", event.text(topLevelCount));
+
+        line = "{\"name\": \"b\", \"args\": {}}";
+        bytes = line.getBytes(StandardCharsets.UTF_8);
+        assertTrue(decoder.decode(bytes, 0, bytes.length, event));
+        assertFalse(event.hasText(count));
+        assertFalse(event.hasText(key));
+    }
+
+    @Test
+    public void rejectsMalformedObjects() {
+        EventDecoder decoder = new EventDecoder().require(TraceEvent.NAME);
+        TraceEvent event = decoder.newEvent();
+        for (String line : new String[]{"", "[1]", "{\"name\": \"open", "{\"name\" \"a\"}"}) {
+            byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+            assertFalse(line, decoder.decode(bytes, 0, bytes.length, event));
+        }
+    }
+
+    private static TraceEvent decode(String line, int fields) {
+        EventDecoder decoder = new EventDecoder().require(fields);
+        TraceEvent event = decoder.newEvent();
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        assertTrue(line, decoder.decode(bytes, 0, bytes.length, event));
+        return event;
+    }
+}
@@ -0,0 +1,136 @@
+package org.amoudi.trace;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class FilterExpressionTest {
+
+    private static final String[] EVENTS = {
+            "{\"name\": \"flush\", \"cat\": \"io\", \"ts\": 10, \"tid\": 1, \"index\": \"i1\", \"args\": {\"count\": 3}}",
+            "{\"name\": \"merge\", \"cat\": \"cpu\", \"ts\": 20, \"tid\": 2, \"index\": \"i2\", \"args\": {\"size\": 100, "
+                    + "\"count\": 1}}",
+            "{\"name\": \"flush-big\", \"cat\": \"io\", \"ts\": 30, \"tid\": 3, \"index\": -5}",
+            "{\"name\": \"read\", \"ts\": 40, \"tid\": 4, \"index\": \"7.5\"}",
+            "{\"name\": \"a\\\"b\", \"cat\": \"x\", \"ts\": 50, \"tid\": 5}"
+    };
+
+    @Test
+    public void comparisons() {
+        assertMatches("name == flush", 0);
+        assertMatches("name != flush", 1, 2, 3, 4);
+        assertMatches("name == \"a\\\"b\"", 4);
+        assertMatches("name ~ flush", 0, 2);
+        assertMatches("ts IN [20, 40)", 1, 2);
+        assertMatches("ts IN [20, 40]", 1, 2, 3);
+        assertMatches("tid > 2 AND tid < 5", 2, 3);
+        assertMatches("args.count >= 3", 0);
+        // Other fields are compared through their text
+        assertMatches("index <= 0", 2);
+        assertMatches("index > 6", 3);
+    }
+
+    // The args fields aren't top level keys, equality has to read them as numbers
+    @Test
+    public void numericEquality() {
+        assertMatches("args.size == 100", 1);
+        assertMatches("args.size = 100 OR args.size == 7", 1);
+        assertMatches("args.size IN (5, 100)", 1);
+        assertMatches("args.count != 3", 1);
+        assertMatches("args.count IN (1, 3)", 0, 1);
+        assertMatches("NOT args.count == 3", 1, 2, 3, 4);
+        assertMatches("ts == 20", 1);
+        assertMatches("ts IN (10, 50)", 0, 4);
+        assertMatches("tid != 2", 0, 2, 3, 4);
+    }
+
+    @Test
+    public void booleanOperators() {
+        assertMatches("NOT name == flush AND cat == io", 2);
+        assertMatches("!(cat == io) && ts >= 20", 1, 3, 4);
+        assertMatches("(name == flush OR cat == cpu) AND (ts < 15 OR ts > 15)", 0, 1);
+        assertMatches("name == flush or name == merge", 0, 1);
+        assertMatches("name == read OR name == merge AND ts > 100", 3);
+    }
+
+    // The matches of a field under the same OR are folded into one set or automaton, nested ORs included
+    @Test
+    public void foldedMatchesKeepTheirMeaning() {
+        assertMatches("name = flush OR name == merge OR name == read", 0, 1, 3);
+        assertMatches("name IN (flush, merge) || (name == read || cat == x)", 0, 1, 3, 4);
+        assertMatches("name ~ (ush, erg) OR name ~ ead", 0, 1, 2, 3);
+        assertMatches("name == flush OR name ~ erg OR cat == io OR cat ~ p", 0, 1, 2);
+        // Negated matches aren't folded into the set of the others
+        assertMatches("name == flush OR name != merge", 0, 2, 3, 4);
+        assertMatches("(name == flush OR name == read) AND NOT (name == read OR name == merge)", 0);
+    }
+
+    @Test
+    public void anyOf() {
+        Map<String, List<Pair<Character, String>>> predicates = new LinkedHashMap<>();
+        predicates.put("name", Arrays.asList(Pair.of('e', "flush"), Pair.of('c', "erg")));
+        predicates.put("cat", Arrays.asList(Pair.of('e', "x")));
+        assertEquals(Arrays.asList(0, 1, 4), matches(FilterExpression.anyOf(predicates)));
+    }
+
+    // The keys of -e and -c predicates are found under args too, where expressions only read top level keys
+    @Test
+    public void anyOfFindsNestedKeys() {
+        Map<String, List<Pair<Character, String>>> predicates = new LinkedHashMap<>();
+        predicates.put("count", Arrays.asList(Pair.of('e', "3")));
+        assertEquals(Arrays.asList(0), matches(FilterExpression.anyOf(predicates)));
+        predicates.put("size", Arrays.asList(Pair.of('c', "10")));
+        assertEquals(Arrays.asList(0, 1), matches(FilterExpression.anyOf(predicates)));
+        assertEquals(Arrays.asList(), matches(FilterExpression.compile("count == 3")));
+    }
+
+    @Test
+    public void fieldsInOrderOfFirstAppearance() {
+        assertEquals(Arrays.asList("name", "cat", "ts"),
+                FilterExpression.compile("name == a OR cat ~ b AND name != c OR ts > 1").getFields());
+    }
+
+    @Test
+    public void rejectsMalformedExpressions() {
+        for (String expression : new String[]{"", "name ==", "name flush", "(name == a", "ts > x", "name == \"open",
+                "name == a b", "ts IN [1 2]", "args.size ~ 10", "ts ~ (1, 2)", "args.count == x",
+                "tid IN (1, y)"}) {
+            try {
+                FilterExpression.compile(expression);
+                fail("Compiled " + expression);
+            } catch (IllegalArgumentException e) {
+                // Expected
+            }
+        }
+    }
+
+    private static void assertMatches(String expression, Integer... expected) {
+        assertEquals(expression, Arrays.asList(expected), matches(FilterExpression.compile(expression)));
+    }
+
+    private static List<Integer> matches(FilterExpression filter) {
+        EventDecoder decoder = new EventDecoder();
+        filter.declare(decoder);
+        TraceEvent event = decoder.newEvent();
+        List<Integer> matching = new ArrayList<>();
+        for (int i = 0; i < EVENTS.length; i++) {
+            byte[] bytes = EVENTS[i].getBytes(StandardCharsets.UTF_8);
+            if (!decoder.decode(bytes, 0, bytes.length, event)) {
+                fail("Couldn't decode " + EVENTS[i]);
+            }
+            if (filter.matches(event)) {
+                matching.add(i);
+            }
+        }
+        return matching;
+    }
+}
@@ -0,0 +1,213 @@
+package org.amoudi.trace;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class GzipTraceInputStreamTest {
+
+    private static final int FLAG_HEADER_CRC = 2;
+    private static final int FLAG_EXTRA = 4;
+    private static final int FLAG_NAME = 8;
+    private static final int FLAG_COMMENT = 16;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // Enough members for the file to be inflated in many parallel segments, with every optional header field
+    @Test
+    public void readsManyMembers() throws IOException {
+        Random random = new Random(1);
+        ByteArrayOutputStream plain = new ByteArrayOutputStream();
+        ByteArrayOutputStream gzip = new ByteArrayOutputStream();
+        for (int member = 0; member < 300; member++) {
+            byte[] data = lines(random, 1 + random.nextInt(800));
+            plain.write(data);
+            gzip.write(member(data, Deflater.DEFAULT_COMPRESSION, member % 32));
+        }
+        assertTrue(gzip.size() > 1 << 20);
+        assertReads(plain.toByteArray(), write(gzip.toByteArray()));
+    }
+
+    // Stored blocks copy their data as is, so these members are full of gzip header look-alikes
+    @Test
+    public void skipsHeaderLookAlikes() throws IOException {
+        Random random = new Random(2);
+        byte[] lookAlike = {0x1F, (byte) 0x8B, 8, 0, 0, 0, 0, 0, 0, (byte) 0xFF};
+        ByteArrayOutputStream plain = new ByteArrayOutputStream();
+        ByteArrayOutputStream gzip = new ByteArrayOutputStream();
+        for (int member = 0; member < 40; member++) {
+            ByteArrayOutputStream data = new ByteArrayOutputStream();
+            while (data.size() < 60000) {
+                data.write(lines(random, 1));
+                data.write(lookAlike);
+            }
+            plain.write(data.toByteArray());
+            gzip.write(member(data.toByteArray(), Deflater.NO_COMPRESSION, 0));
+        }
+        assertReads(plain.toByteArray(), write(gzip.toByteArray()));
+    }
+
+    // The rest of a member that inflates to more than a segment may hold is inflated on the reading thread
+    @Test
+    public void readsLargeMembers() throws IOException {
+        Random random = new Random(3);
+        byte[] large = new byte[40 << 20];
+        Arrays.fill(large, (byte) 'x');
+        ByteArrayOutputStream plain = new ByteArrayOutputStream();
+        ByteArrayOutputStream gzip = new ByteArrayOutputStream();
+        for (byte[] data : new byte[][]{lines(random, 3000), large, lines(random, 3000)}) {
+            plain.write(data);
+            gzip.write(member(data, Deflater.BEST_SPEED, 0));
+        }
+        assertReads(plain.toByteArray(), write(gzip.toByteArray()));
+    }
+
+    @Test
+    public void readsSingleMembers() throws IOException {
+        byte[] data = lines(new Random(4), 50000);
+        assertReads(data, write(member(data, Deflater.DEFAULT_COMPRESSION, FLAG_NAME)));
+        assertReads(new byte[0], write(member(new byte[0], Deflater.DEFAULT_COMPRESSION, 0)));
+    }
+
+    @Test
+    public void readsBgzf() throws IOException {
+        byte[] data = lines(new Random(5), 60000);
+        File file = folder.newFile("trace.json.gz");
+        try (OutputStream out = new BgzfOutputStream(Files.newOutputStream(file.toPath()))) {
+            out.write(data);
+        }
+        assertTrue(TraceInput.isCompressed(file));
+        assertReads(data, file);
+        try (InputStream in = new GZIPInputStream(Files.newInputStream(file.toPath()))) {
+            assertArrayEquals(data, readAll(in, new Random(6)));
+        }
+    }
+
+    @Test
+    public void failsOnCorruptMembers() throws IOException {
+        Random random = new Random(7);
+        ByteArrayOutputStream gzip = new ByteArrayOutputStream();
+        for (int member = 0; member < 20; member++) {
+            gzip.write(member(lines(random, 2000), Deflater.DEFAULT_COMPRESSION, 0));
+        }
+        byte[] bytes = gzip.toByteArray();
+        byte[] corrupt = bytes.clone();
+        // The CRC of the last member
+        corrupt[corrupt.length - 8] ^= 1;
+        assertFails(write(corrupt));
+        assertFails(write(Arrays.copyOf(bytes, bytes.length - 5)));
+    }
+
+    private File write(byte[] bytes) throws IOException {
+        File file = folder.newFile();
+        Files.write(file.toPath(), bytes);
+        return file;
+    }
+
+    private static void assertReads(byte[] expected, File file) throws IOException {
+        try (InputStream in = TraceInput.open(file)) {
+            assertTrue(in instanceof GzipTraceInputStream);
+            assertArrayEquals(expected, readAll(in, new Random(expected.length)));
+        }
+    }
+
+    private static void assertFails(File file) {
+        try (InputStream in = new GzipTraceInputStream(file)) {
+            readAll(in, new Random(8));
+            fail("Read " + file);
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    // Reads with single bytes and buffers of any size
+    private static byte[] readAll(InputStream in, Random random) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1 << 17];
+        while (true) {
+            if (random.nextInt(10) == 0) {
+                int b = in.read();
+                if (b < 0) {
+                    break;
+                }
+                out.write(b);
+                continue;
+            }
+            int read = in.read(buffer, 0, 1 + random.nextInt(buffer.length));
+            if (read < 0) {
+                break;
+            }
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] lines(Random random, int count) {
+        StringBuilder lines = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            lines.append("{\"name\": \"span-").append(random.nextInt(100)).append("\", \"ph\": \"B\", \"ts\": ")
+                    .append(random.nextLong()).append(", \"pid\": 1, \"tid\": ").append(random.nextInt(8))
+                    .append("},\n");
+        }
+        return lines.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    // One gzip member with the optional header fields of flags
+    private static byte[] member(byte[] data, int level, int flags) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(0x1F);
+        out.write(0x8B);
+        out.write(8);
+        out.write(flags);
+        out.write(new byte[]{0, 0, 0, 0, 0, (byte) 0xFF}, 0, 6);
+        if ((flags & FLAG_EXTRA) != 0) {
+            out.write(new byte[]{4, 0, 'A', 'B', 0, 0}, 0, 6);
+        }
+        if ((flags & FLAG_NAME) != 0) {
+            out.write(new byte[]{'t', '.', 'j', 's', 'o', 'n', 0}, 0, 7);
+        }
+        if ((flags & FLAG_COMMENT) != 0) {
+            out.write(new byte[]{'c', 0}, 0, 2);
+        }
+        if ((flags & FLAG_HEADER_CRC) != 0) {
+            out.write(new byte[]{0, 0}, 0, 2);
+        }
+        Deflater deflater = new Deflater(level, true);
+        deflater.setInput(data);
+        deflater.finish();
+        byte[] buffer = new byte[1 << 16];
+        while (!deflater.finished()) {
+            out.write(buffer, 0, deflater.deflate(buffer));
+        }
+        deflater.end();
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        writeInt(out, (int) crc.getValue());
+        writeInt(out, data.length);
+        return out.toByteArray();
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int value) {
+        for (int i = 0; i < 4; i++) {
+            out.write(value >>> (8 * i));
+        }
+    }
+}
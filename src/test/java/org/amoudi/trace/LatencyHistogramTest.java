@@ -0,0 +1,151 @@
+package org.amoudi.trace;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+
+    private static final double[] PERCENTILES = {0, 1, 25, 50, 75, 90, 99, 99.9, 100};
+
+    @Test
+    public void mergeIsLikeRecordingEverythingInOne() {
+        Random random = new Random(42);
+        for (int round = 0; round < 20; round++) {
+            LatencyHistogram all = new LatencyHistogram();
+            LatencyHistogram[] parts = new LatencyHistogram[1 + random.nextInt(4)];
+            for (int i = 0; i < parts.length; i++) {
+                parts[i] = new LatencyHistogram();
+            }
+            int values = random.nextInt(2000);
+            for (int i = 0; i < values; i++) {
+                long value = (long) Math.exp(random.nextDouble() * 25);
+                long times = 1 + random.nextInt(3);
+                all.record(value, times);
+                parts[random.nextInt(parts.length)].record(value, times);
+            }
+            LatencyHistogram merged = new LatencyHistogram();
+            for (LatencyHistogram part : parts) {
+                merged.merge(part);
+            }
+            assertSame(all, merged);
+        }
+    }
+
+    // A histogram that only saw one value has no buckets until it sees another one or merges a different value
+    @Test
+    public void singleValues() {
+        LatencyHistogram single = new LatencyHistogram();
+        single.record(1234, 5);
+        single.record(1234);
+        assertEquals(6, single.getCount());
+        assertEquals(1234 * 6, single.getSum());
+        for (double percentile : PERCENTILES) {
+            assertEquals(1234, single.getValueAtPercentile(percentile));
+        }
+
+        LatencyHistogram same = new LatencyHistogram();
+        same.record(1234, 2);
+        single.merge(same);
+        assertEquals(8, single.getCount());
+        assertEquals(1234, single.getValueAtPercentile(50));
+
+        LatencyHistogram other = new LatencyHistogram();
+        other.record(10, 8);
+        LatencyHistogram both = new LatencyHistogram();
+        both.record(1234, 8);
+        both.record(10, 8);
+        single.merge(other);
+        assertSame(both, single);
+        assertEquals(10, single.getValueAtPercentile(50));
+        assertEquals(1234, single.getValueAtPercentile(51));
+
+        // The single value is kept when the buckets come from the other side
+        LatencyHistogram spread = new LatencyHistogram();
+        spread.record(1);
+        spread.record(100000);
+        LatencyHistogram lazy = new LatencyHistogram();
+        lazy.record(500, 3);
+        lazy.merge(spread);
+        LatencyHistogram expected = new LatencyHistogram();
+        expected.record(500, 3);
+        expected.record(1);
+        expected.record(100000);
+        assertSame(expected, lazy);
+    }
+
+    @Test
+    public void emptyHistograms() {
+        LatencyHistogram empty = new LatencyHistogram();
+        assertEquals(0, empty.getValueAtPercentile(50));
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(7);
+        histogram.record(9);
+        histogram.merge(new LatencyHistogram());
+        empty.merge(new LatencyHistogram());
+        assertEquals(0, empty.getCount());
+        assertEquals(2, histogram.getCount());
+        assertEquals(7, histogram.getMin());
+        assertEquals(9, histogram.getMax());
+        empty.merge(histogram);
+        assertSame(histogram, empty);
+    }
+
+    @Test
+    public void percentilesAreWithinOnePercent() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        long[] values = new long[10000];
+        Random random = new Random(7);
+        for (int i = 0; i < values.length; i++) {
+            values[i] = random.nextInt(1 << 30);
+            histogram.record(values[i]);
+        }
+        Arrays.sort(values);
+        for (double percentile : PERCENTILES) {
+            long exact = values[Math.max(0, (int) Math.ceil(percentile / 100 * values.length) - 1)];
+            long value = histogram.getValueAtPercentile(percentile);
+            assertTrue(percentile + ": " + value + " vs " + exact, Math.abs(value - exact) <= exact / 100 + 1);
+        }
+        assertEquals(values[values.length - 1], histogram.getValueAtPercentile(100));
+    }
+
+    // Like a span that ended before it began, which clock adjustments can make
+    @Test
+    public void negativeValuesAreZeroInTheBuckets() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        histogram.record(-3);
+        histogram.record(10);
+        histogram.record(20);
+        assertEquals(4, histogram.getCount());
+        assertEquals(22, histogram.getSum());
+        assertEquals(-5, histogram.getMin());
+        assertEquals(20, histogram.getMax());
+        assertEquals(0, histogram.getValueAtPercentile(25));
+        assertEquals(0, histogram.getValueAtPercentile(50));
+        assertEquals(10, histogram.getValueAtPercentile(75));
+        assertEquals(20, histogram.getValueAtPercentile(100));
+
+        LatencyHistogram negative = new LatencyHistogram();
+        negative.record(-5);
+        negative.record(-3);
+        assertEquals(-3, negative.getValueAtPercentile(50));
+        assertEquals(-3, negative.getValueAtPercentile(100));
+    }
+
+    private static void assertSame(LatencyHistogram expected, LatencyHistogram actual) {
+        assertEquals(expected.getCount(), actual.getCount());
+        assertEquals(expected.getSum(), actual.getSum());
+        assertEquals(expected.getMin(), actual.getMin());
+        assertEquals(expected.getMax(), actual.getMax());
+        for (double percentile : PERCENTILES) {
+            assertEquals("p" + percentile, expected.getValueAtPercentile(percentile),
+                    actual.getValueAtPercentile(percentile));
+        }
+        assertEquals(expected.percentiles("us"), actual.percentiles("us"));
+    }
+}
@@ -0,0 +1,113 @@
+package org.amoudi.trace;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ParallelTraceScannerTest {
+
+    private static final String[] NAMES = {"flush", "merge", "write", "read", "Ingestion-Store", "sync"};
+    private static final long[] CHUNK_SIZES = {64, 500, 4096, 1 << 16};
+
+    @ClassRule
+    public static TemporaryFolder folder = new TemporaryFolder();
+
+    private static File trace;
+
+    // Interleaved threads of several processes with nested spans, instant events, end events before any begin,
+    // spans that never end and an event without a tid
+    @BeforeClass
+    public static void writeTrace() throws IOException {
+        Random random = new Random(3);
+        List<String> events = new ArrayList<>();
+        int threads = 6;
+        List<List<String>> stacks = new ArrayList<>();
+        for (int thread = 0; thread < threads; thread++) {
+            stacks.add(new ArrayList<>());
+            events.add(event(thread, NAMES[thread % NAMES.length], "E", thread));
+        }
+        long ts = 100;
+        for (int i = 0; i < 20000; i++) {
+            int thread = random.nextInt(threads);
+            List<String> stack = stacks.get(thread);
+            ts += random.nextInt(50);
+            int choice = random.nextInt(10);
+            if (choice < 4 || stack.isEmpty() && choice < 9) {
+                String name = NAMES[random.nextInt(NAMES.length)];
+                stack.add(name);
+                events.add(event(thread, name, "B", ts));
+            } else if (choice < 9) {
+                events.add(event(thread, stack.remove(stack.size() - 1), "E", ts));
+            } else {
+                events.add("{\"name\": \"cache\", \"ph\": \"i\", \"ts\": " + ts + ", \"pid\": \"p" + thread % 3
+                        + "\", \"tid\": " + thread + ", \"args\": {\"count\": " + (1 + random.nextInt(5))
+                        + ", \"avg-duration-ns\": " + random.nextInt(100000) + "}}");
+            }
+            if (i == 10000) {
+                events.add("{\"name\": \"lost\", \"ph\": \"i\", \"ts\": " + ts + ", \"pid\": \"p0\"}");
+            }
+        }
+        trace = folder.newFile("threads.json");
+        Files.write(trace.toPath(), ("[\n" + String.join(",\n", events) + "\n]\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void breakdownsAreTheSame() throws IOException {
+        TimeBreaker.PerThread sequential = new TimeBreaker.PerThread();
+        new TraceScanner().metrics(null).register(sequential).scan(trace);
+        String expected = breakdowns(sequential);
+        assertTrue(expected.contains("Call paths:"));
+        assertEquals(1, sequential.getSkipped());
+        for (long chunkSize : CHUNK_SIZES) {
+            TimeBreaker.PerThread parallel = new ParallelTraceScanner<>(TimeBreaker.PerThread::new)
+                    .chunkSize(chunkSize).metrics(null).scan(trace);
+            assertEquals("Chunks of " + chunkSize, expected, breakdowns(parallel));
+            assertEquals(1, parallel.getSkipped());
+        }
+    }
+
+    @Test
+    public void foundThreadsAreTheSame() throws IOException {
+        Map<String, List<String>> predicates = Collections.singletonMap("name",
+                Collections.singletonList("Ingestion-Store"));
+        ThreadFinder.Collector sequential = new ThreadFinder.Collector(predicates);
+        new TraceScanner().metrics(null).register(sequential).scan(trace);
+        List<Pair<String, Long>> expected = sequential.getThreads();
+        assertTrue(expected.size() > 1);
+        for (long chunkSize : CHUNK_SIZES) {
+            ThreadFinder.Collector parallel = new ParallelTraceScanner<>(() -> new ThreadFinder.Collector(predicates))
+                    .chunkSize(chunkSize).metrics(null).scan(trace);
+            assertEquals("Chunks of " + chunkSize, expected, parallel.getThreads());
+        }
+    }
+
+    private static String breakdowns(TimeBreaker.PerThread breakdowns) throws IOException {
+        StringWriter text = new StringWriter();
+        TimeBreaker.write(breakdowns, breakdowns.getThreads(), true, true, text);
+        for (Pair<String, Long> thread : breakdowns.getThreads()) {
+            breakdowns.get(thread).getCalls().writeFolded(text);
+        }
+        return text.toString();
+    }
+
+    private static String event(int thread, String name, String phase, long ts) {
+        return "{\"name\": \"" + name + "\", \"ph\": \"" + phase + "\", \"ts\": " + ts + ", \"pid\": \"p" + thread % 3
+                + "\", \"tid\": " + thread + "}";
+    }
+}
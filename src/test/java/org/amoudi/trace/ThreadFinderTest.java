@@ -0,0 +1,47 @@
+package org.amoudi.trace;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+public class ThreadFinderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // Predicates on keys under args match like they did through JsonNode.findValue, top level keys first
+    @Test
+    public void matchesNestedKeys() throws IOException {
+        File trace = folder.newFile("trace.json");
+        Files.write(trace.toPath(), ("[\n"
+                + "{\"name\": \"a\", \"ph\": \"B\", \"pid\": \"p\", \"tid\": 1, \"args\": {\"index\": \"i1\"}},\n"
+                + "{\"name\": \"a\", \"ph\": \"B\", \"pid\": \"p\", \"tid\": 2, \"args\": {\"index\": \"i2\"}},\n"
+                + "{\"name\": \"a\", \"ph\": \"B\", \"pid\": \"p\", \"tid\": 3, \"index\": \"i1\"},\n"
+                + "{\"name\": \"a\", \"ph\": \"B\", \"pid\": \"p\", \"tid\": 4, \"index\": \"i3\", \"args\": {\"index\": "
+                + "\"i1\"}},\n"
+                + "{\"name\": \"a\", \"ph\": \"B\", \"pid\": \"p\", \"tid\": 5, \"args\": {\"index\": 7}}\n"
+                + "]\n").getBytes(StandardCharsets.UTF_8));
+        assertEquals(Arrays.asList(Pair.of("p", 1L), Pair.of("p", 3L)), find(trace, "index", "i1"));
+        // Like before, only string values match
+        assertEquals(Collections.emptyList(), find(trace, "index", "7"));
+    }
+
+    private static List<Pair<String, Long>> find(File trace, String field, String value) throws IOException {
+        Map<String, List<String>> predicates = Collections.singletonMap(field, Collections.singletonList(value));
+        ThreadFinder.Collector collector = new ThreadFinder.Collector(predicates);
+        new TraceScanner().metrics(null).register(collector).scan(trace);
+        return collector.getThreads();
+    }
+}
@@ -0,0 +1,75 @@
+package org.amoudi.trace;
+
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ThreadIndexTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // Interleaved threads, so every thread has thousands of runs and its postings are spilled while building
+    @Test
+    public void extractsLikeAScan() throws Exception {
+        File trace = folder.newFile("trace.json");
+        write(trace, 1, 40000);
+        List<Pair<String, Long>> threads = Arrays.asList(Pair.of("p0", 1L), Pair.of((String) null, 2L),
+                Pair.of("p1", 99L));
+        assertNull(ThreadIndex.open(trace));
+        File scanned = ThreadExtractor.extract(trace.getPath(), threads, "scan", false);
+        File indexed = ThreadExtractor.extract(trace.getPath(), threads, "index", true);
+        assertArrayEquals(Files.readAllBytes(scanned.toPath()), Files.readAllBytes(indexed.toPath()));
+        assertTrue(Files.readAllLines(indexed.toPath()).size() > 10000);
+
+        ThreadIndex index = ThreadIndex.open(trace);
+        assertNotNull(index);
+        assertEquals(40002, index.getLines());
+        assertEquals(0, index.getEvents(Pair.of("p1", 99L)));
+        assertEquals(Files.readAllLines(indexed.toPath()).size() - 2,
+                index.getEvents(Pair.of("p0", 1L)) + index.getEvents(Pair.of((String) null, 2L)));
+
+        // Another trace written later makes the index stale
+        long modified = trace.lastModified();
+        write(trace, 2, 40000);
+        assertTrue(trace.setLastModified(modified + 2000));
+        assertNull(ThreadIndex.open(trace));
+        scanned = ThreadExtractor.extract(trace.getPath(), threads, "scan", false);
+        indexed = ThreadExtractor.extract(trace.getPath(), threads, "index", true);
+        assertArrayEquals(Files.readAllBytes(scanned.toPath()), Files.readAllBytes(indexed.toPath()));
+        assertNotNull(ThreadIndex.open(trace));
+    }
+
+    private static void write(File trace, long seed, int events) throws IOException {
+        Random random = new Random(seed);
+        try (BufferedWriter out = Files.newBufferedWriter(trace.toPath(), StandardCharsets.UTF_8)) {
+            out.write("[\n");
+            for (int i = 0; i < events; i++) {
+                if (i > 0) {
+                    out.write(",\n");
+                }
+                // Some events without a tid, which belong to no thread
+                String tid = random.nextInt(50) == 0 ? "" : ", \"tid\": " + random.nextInt(4);
+                out.write("{\"name\": \"e" + random.nextInt(10) + "\", \"ph\": \"i\", \"pid\": \"p"
+                        + random.nextInt(2) + "\"" + tid + ", \"ts\": " + (1000 + i) + "}");
+            }
+            out.write("\n]\n");
+        }
+    }
+}
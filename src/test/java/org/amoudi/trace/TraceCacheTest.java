@@ -0,0 +1,147 @@
+package org.amoudi.trace;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TraceCacheTest {
+
+    private static final int ALL_FIELDS = TraceEvent.PID | TraceEvent.TID | TraceEvent.TIMESTAMP | TraceEvent.PHASE
+            | TraceEvent.NAME | TraceEvent.CATEGORY | TraceEvent.ARGS;
+    private static final int[] FIELDS = {TraceEvent.PID, TraceEvent.TID, TraceEvent.TIMESTAMP, TraceEvent.PHASE,
+            TraceEvent.NAME, TraceEvent.CATEGORY, TraceEvent.ARGS_SIZE, TraceEvent.ARGS_COUNT,
+            TraceEvent.ARGS_AVG_DURATION};
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // Timestamps and tids that go back and forth, negative and extreme values, escaped and unquoted text, missing
+    // fields and a line that doesn't parse, read once from the JSON and once from the cache
+    @Test
+    public void scansLikeTheTrace() throws IOException {
+        File trace = folder.newFile("trace.json");
+        Random random = new Random(11);
+        try (BufferedWriter out = Files.newBufferedWriter(trace.toPath(), StandardCharsets.UTF_8)) {
+            out.write("[\n");
+            out.write("{\"name\": \"a\", \"cat\": \"c\", \"ph\": \"B\", \"pid\": \"p1\", \"tid\": 5, \"ts\": 100, "
+                    + "\"args\": {\"size\": 10, \"count\": 2, \"avg-duration-ns\": 300}},\n");
+            out.write("{\"name\": \"a\", \"cat\": \"c\", \"ph\": \"E\", \"pid\": \"p1\", \"tid\": -3, \"ts\": 90, "
+                    + "\"args\": {\"size\": -7}},\n");
+            out.write("{\"name\": \"esc\\\"aped \\u00e9\", \"ph\": \"i\", \"pid\": 7, \"tid\": 9223372036854775807, "
+                    + "\"ts\": -5},\n");
+            out.write("{\"name\": \"r\u00e9sum\u00e9\", \"pid\": \"p1\"},\n");
+            out.write("{\"name\": \"broken\"\n");
+            out.write("{\"cat\": \"c\", \"tid\": 0, \"ts\": 1508281686570000, \"args\": {\"count\": -123456789012}},\n");
+            for (int i = 0; i < 5000; i++) {
+                StringBuilder event = new StringBuilder("{\"name\": \"n").append(random.nextInt(50)).append('"');
+                if (random.nextInt(4) > 0) {
+                    event.append(", \"ph\": \"").append("BEi".charAt(random.nextInt(3))).append('"');
+                }
+                if (random.nextInt(4) > 0) {
+                    event.append(", \"pid\": \"p").append(random.nextInt(3)).append('"');
+                }
+                if (random.nextInt(4) > 0) {
+                    event.append(", \"tid\": ").append(random.nextInt(100) - 50);
+                }
+                if (random.nextInt(4) > 0) {
+                    event.append(", \"ts\": ").append(1508281686570000L + random.nextInt(1 << 20));
+                }
+                if (random.nextBoolean()) {
+                    event.append(", \"args\": {\"size\": ").append(random.nextLong())
+                            .append(", \"avg-duration-ns\": ").append(random.nextInt(1000)).append('}');
+                }
+                out.write(event.append("},\n").toString());
+            }
+            out.write("{\"name\": \"last\"}\n");
+            out.write("]\n");
+        }
+        List<String> json = scan(trace, ALL_FIELDS, false);
+        List<String> jsonTimes = scan(trace, TraceEvent.TID | TraceEvent.TIMESTAMP, false);
+
+        TraceCache.build(trace);
+        TraceCache cache = TraceCache.open(trace);
+        assertNotNull(cache);
+        EventDecoder decoder = new EventDecoder().require(ALL_FIELDS);
+        assertTrue(cache.covers(decoder, false));
+        // The broken line isn't in the cache
+        assertFalse(cache.covers(decoder, true));
+        assertEquals(json, scan(trace, ALL_FIELDS, true));
+        assertEquals(jsonTimes, scan(trace, TraceEvent.TID | TraceEvent.TIMESTAMP, true));
+        assertEquals(5000 + 9, cache.getLines());
+
+        // A trace with another mtime or length than the one cached is read again
+        long modified = trace.lastModified();
+        assertTrue(trace.setLastModified(modified + 2000));
+        assertNull(TraceCache.open(trace));
+        assertTrue(trace.setLastModified(modified - 2000));
+        assertNull(TraceCache.open(trace));
+        assertTrue(trace.setLastModified(modified));
+        assertNotNull(TraceCache.open(trace));
+        Files.write(trace.toPath(), "\n".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+        assertTrue(trace.setLastModified(modified));
+        assertNull(TraceCache.open(trace));
+        assertEquals(json, scan(trace, ALL_FIELDS, true));
+    }
+
+    // Every field of every event, and the original line of every third one, which the cache loads by offset
+    private static List<String> scan(File trace, int fields, boolean useCache) throws IOException {
+        List<String> events = new ArrayList<>();
+        TraceConsumer recorder = new TraceConsumer() {
+            @Override
+            public void declare(EventDecoder decoder) {
+                decoder.require(fields);
+            }
+
+            @Override
+            public void accept(TraceEvent event) {
+                StringBuilder fields = new StringBuilder();
+                for (int field : FIELDS) {
+                    fields.append(event.has(field) ? '1' : '0');
+                }
+                fields.append(' ').append(event.tid()).append(' ').append(event.timestamp());
+                fields.append(' ').append(event.has(TraceEvent.ARGS_SIZE) ? event.size() : 0);
+                fields.append(' ').append(event.has(TraceEvent.ARGS_COUNT) ? event.count() : 0);
+                fields.append(' ').append(event.has(TraceEvent.ARGS_AVG_DURATION) ? event.avgDuration() : 0);
+                for (int slot = TraceEvent.SLOT_PID; slot <= TraceEvent.SLOT_CATEGORY; slot++) {
+                    fields.append(' ').append(event.isTextual(slot)).append(event.text(slot));
+                }
+                if (events.size() % 3 == 0) {
+                    fields.append(' ').append(event.line()).append(" at ").append(event.offset());
+                }
+                events.add(fields.toString());
+            }
+
+            @Override
+            public void finish() {
+            }
+        };
+        if (useCache) {
+            EventDecoder decoder = new EventDecoder();
+            recorder.declare(decoder);
+            TraceCache cache = TraceCache.open(trace);
+            if (cache != null) {
+                cache.scan(decoder, Collections.singletonList(recorder));
+                return events;
+            }
+        }
+        new TraceScanner().useCache(false).metrics(null).register(recorder).scan(trace);
+        return events;
+    }
+}
@@ -0,0 +1,105 @@
+package org.amoudi.trace;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TraceSorterTest {
+
+    // With the smallest budget a run holds a few thousand events, so this many make more runs than are merged at
+    // once and the runs are merged in two rounds
+    private static final int EVENTS = 940_000;
+    private static final int MAX_FAN_IN = 128;
+    private static final int MISSING = -1;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final int[] pids = new int[EVENTS];
+    private final long[] tids = new long[EVENTS];
+    private final long[] timestamps = new long[EVENTS];
+
+    // Shuffled events of a few threads with many equal timestamps, some without a pid, tid or ts. Every event has
+    // its position in the trace, which the sorted output is checked against.
+    @Test
+    public void sortsInManyRuns() throws IOException {
+        Random random = new Random(3);
+        File trace = folder.newFile("trace.json");
+        try (BufferedWriter out = Files.newBufferedWriter(trace.toPath(), StandardCharsets.UTF_8)) {
+            out.write("[\n");
+            for (int seq = 0; seq < EVENTS; seq++) {
+                pids[seq] = random.nextInt(10) == 0 ? MISSING : random.nextInt(5);
+                tids[seq] = random.nextInt(20) == 0 ? MISSING : random.nextInt(8);
+                timestamps[seq] = random.nextInt(20) == 0 ? MISSING : random.nextInt(2000);
+                if (seq > 0) {
+                    out.write(",\n");
+                }
+                out.write(line(seq));
+            }
+            out.write("\n]\n");
+        }
+        // The key of every event packed with its position last, so equal keys keep their order in the trace and
+        // missing fields sort first
+        long[] expected = new long[EVENTS];
+        for (int seq = 0; seq < EVENTS; seq++) {
+            expected[seq] = (pids[seq] + 1L) << 56 | (tids[seq] + 1L) << 48 | (timestamps[seq] + 1L) << 32 | seq;
+        }
+        Arrays.sort(expected);
+
+        TraceSorter sorter = new TraceSorter().memory(1 << 20).metrics(null);
+        File output = new File(folder.getRoot(), "sorted.json");
+        assertEquals(output, sorter.sort(trace, output));
+        assertTrue(sorter.getSpilledRuns() + " runs", sorter.getSpilledRuns() > MAX_FAN_IN);
+        try (BufferedReader in = Files.newBufferedReader(output.toPath(), StandardCharsets.UTF_8)) {
+            assertEquals("[", in.readLine());
+            for (int i = 0; i < EVENTS; i++) {
+                String line = in.readLine();
+                String event = i < EVENTS - 1 ? line.substring(0, line.length() - 1) : line;
+                assertEquals("event " + i, line((int) expected[i]), event);
+            }
+            assertEquals("]", in.readLine());
+            assertNull(in.readLine());
+        }
+        // The runs are gone
+        assertEquals(Arrays.asList("sorted.json", "trace.json"), Arrays.asList(sorted(folder.getRoot().list())));
+
+        // The output is detected as sorted and returned as it is
+        TraceSorter again = new TraceSorter().memory(1 << 20).metrics(null);
+        assertEquals(output, again.sort(output, new File(folder.getRoot(), "again.json")));
+        assertEquals(0, again.getSpilledRuns());
+        assertFalse(new File(folder.getRoot(), "again.json").exists());
+    }
+
+    private String line(int seq) {
+        StringBuilder line = new StringBuilder("{\"name\":\"e\",\"ph\":\"i\"");
+        if (pids[seq] != MISSING) {
+            line.append(",\"pid\":\"p").append(pids[seq]).append('"');
+        }
+        if (tids[seq] != MISSING) {
+            line.append(",\"tid\":").append(tids[seq]);
+        }
+        if (timestamps[seq] != MISSING) {
+            line.append(",\"ts\":").append(timestamps[seq]);
+        }
+        return line.append(",\"seq\":").append(seq).append('}').toString();
+    }
+
+    private static String[] sorted(String[] names) {
+        Arrays.sort(names);
+        return names;
+    }
+}
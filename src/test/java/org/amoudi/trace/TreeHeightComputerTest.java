@@ -0,0 +1,109 @@
+package org.amoudi.trace;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class TreeHeightComputerTest {
+
+    // Random flushes, many of them out of order or of numbers already merged, and merges of random ranges that
+    // overlap earlier merges or hit no component at all, checked after every step against the map of components
+    // by first flush the tree replaced
+    @Test
+    public void matchesTheMapOfComponents() {
+        Random random = new Random(5);
+        for (int round = 0; round < 200; round++) {
+            TreeHeightComputer.Tree tree = new TreeHeightComputer.Tree();
+            Components expected = new Components();
+            int flushes = 1 + random.nextInt(300);
+            for (int step = 0; step < 2000; step++) {
+                if (random.nextInt(3) > 0) {
+                    int number = random.nextInt(flushes);
+                    tree.flush(number);
+                    expected.flush(number);
+                } else {
+                    int from = random.nextInt(flushes + 10) - 5;
+                    int to = from + random.nextInt(random.nextBoolean() ? 4 : 40);
+                    tree.merge(from, to);
+                    expected.merge(from, to);
+                }
+                assertEquals(expected.maxHeights.size(), tree.size());
+                assertEquals(expected.getMaxHeight(), tree.getMaxHeight());
+                assertEquals(expected.getMaxAverageHeight(), tree.getMaxAverageHeight(), 1e-9);
+            }
+        }
+    }
+
+    @Test
+    public void heights() {
+        TreeHeightComputer.Tree tree = new TreeHeightComputer.Tree();
+        for (int i = 0; i < 4; i++) {
+            tree.flush(i);
+        }
+        tree.merge(0, 1);
+        tree.merge(0, 2);
+        assertEquals(2, tree.size());
+        assertEquals(3, tree.getMaxHeight());
+        // Two flushes at height 2 and one at 1, plus one
+        assertEquals(8.0 / 3, tree.getMaxAverageHeight(), 1e-9);
+        // Nothing to merge, which the map of components averaged into NaN
+        tree = new TreeHeightComputer.Tree();
+        tree.merge(5, 9);
+        assertEquals(1, tree.size());
+        assertEquals(1, tree.getMaxHeight());
+        assertEquals(1.0, tree.getMaxAverageHeight(), 0);
+    }
+
+    // The components as TreeHeightComputer kept them before Tree, in maps by their first flush, which a merge
+    // probed once for every flush number of its range
+    private static class Components {
+        private final Map<Integer, Integer> ends = new HashMap<>();
+        private final Map<Integer, Integer> maxHeights = new HashMap<>();
+        private final Map<Integer, Double> avgHeights = new HashMap<>();
+
+        private void flush(int number) {
+            ends.put(number, number);
+            maxHeights.put(number, 1);
+            avgHeights.put(number, 1.0);
+        }
+
+        private void merge(int from, int to) {
+            int maxHeightIn = 0;
+            double totalHeightIn = 0;
+            double countComponentsIn = 0;
+            for (int i = from; i <= to; i++) {
+                Integer maxHeight = maxHeights.remove(i);
+                if (maxHeight != null) {
+                    maxHeightIn = Integer.max(maxHeightIn, maxHeight);
+                    double thisCount = ends.remove(i) - i + 1;
+                    countComponentsIn += thisCount;
+                    totalHeightIn += avgHeights.remove(i) * thisCount;
+                }
+            }
+            ends.put(from, to);
+            maxHeights.put(from, maxHeightIn + 1);
+            // Where 0 / 0 used to make NaN, a merge of nothing is a new component
+            avgHeights.put(from, countComponentsIn == 0 ? 1.0 : totalHeightIn / countComponentsIn + 1.0);
+        }
+
+        private int getMaxHeight() {
+            int maxMax = 0;
+            for (int height : maxHeights.values()) {
+                maxMax = Integer.max(maxMax, height);
+            }
+            return maxMax;
+        }
+
+        private double getMaxAverageHeight() {
+            double avgMax = 0;
+            for (double height : avgHeights.values()) {
+                avgMax = Double.max(avgMax, height);
+            }
+            return avgMax;
+        }
+    }
+}